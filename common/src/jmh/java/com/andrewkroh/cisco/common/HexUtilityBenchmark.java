@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link HexUtility#bytesToHex(byte[])}, as used on a sub-range of a
+ * receive buffer, with the streaming methods writing into reused
+ * destinations. Run with {@code -prof gc} to see the allocation rate of
+ * each.
+ *
+ * @author akroh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexUtilityBenchmark
+{
+    /**
+     * Datagram size in bytes: an RTP packet with 20 ms of G.711, and an
+     * Ethernet MTU.
+     */
+    @Param({"172", "1472"})
+    private int length;
+
+    /**
+     * Receive buffer holding the datagram at offset 0.
+     */
+    private byte[] receiveBuffer;
+
+    private ByteBuffer directBuffer;
+
+    private StringBuilder builder;
+
+    private ByteBuf out;
+
+    @Setup
+    public void setUp()
+    {
+        receiveBuffer = new byte[65507];
+        new Random(0).nextBytes(receiveBuffer);
+
+        directBuffer = ByteBuffer.allocateDirect(receiveBuffer.length);
+        directBuffer.put(receiveBuffer);
+        directBuffer.clear();
+
+        builder = new StringBuilder(2 * 65507);
+        out = Unpooled.directBuffer(2 * 65507);
+    }
+
+    @Benchmark
+    public String copyThenBytesToHex()
+    {
+        return HexUtility.bytesToHex(Arrays.copyOfRange(receiveBuffer, 0, length));
+    }
+
+    @Benchmark
+    public StringBuilder appendHexArray()
+    {
+        builder.setLength(0);
+        return HexUtility.appendHex(builder, receiveBuffer, 0, length);
+    }
+
+    @Benchmark
+    public StringBuilder appendHexDirectByteBuffer()
+    {
+        builder.setLength(0);
+        return HexUtility.appendHex(builder, directBuffer, 0, length);
+    }
+
+    @Benchmark
+    public ByteBuf writeHexByteBuf()
+    {
+        out.clear();
+        return HexUtility.writeHex(out, receiveBuffer, 0, length);
+    }
+
+    @Benchmark
+    public StringBuilder appendHexDump()
+    {
+        builder.setLength(0);
+        return HexUtility.appendHexDump(builder, receiveBuffer, 0, length);
+    }
+}
@@ -16,11 +16,30 @@
 
 package com.andrewkroh.cisco.common;
 
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
 import com.google.common.base.Preconditions;
 
 /**
  * Utilities methods for converting bytes to hex.
  *
+ * <p/>
+ * Besides {@link #bytesToHex(byte[])}, which returns a new {@code String},
+ * there are streaming variants that append the hex directly to a
+ * caller-supplied {@link StringBuilder}, {@link Appendable} (for example a
+ * {@link java.nio.CharBuffer} or {@link java.io.Writer}) or Netty
+ * {@link ByteBuf}. They read a range of a {@code byte[]}, {@link ByteBuffer}
+ * or {@code ByteBuf} given by an absolute offset and length, without
+ * changing the position or reader index of the source, and do not allocate
+ * beyond a small per-thread scratch buffer.
+ * The {@code appendHexDump} methods produce a multi-line layout with
+ * offsets and an ASCII column.
+ *
  * @author akroh
  */
 public final class HexUtility
@@ -32,6 +51,29 @@ public final class HexUtility
     private static final char[] HEX_CHARACTERS =
             "0123456789ABCDEF".toCharArray();
 
+    /**
+     * Number of bytes shown on each line of a hex dump.
+     */
+    private static final int DUMP_BYTES_PER_LINE = 16;
+
+    /**
+     * Number of bytes encoded at a time by the streaming methods.
+     */
+    private static final int SCRATCH_BYTES = 256;
+
+    /**
+     * Per-thread buffer that the streaming methods encode into before
+     * appending the characters in bulk, which is much faster than appending
+     * them one at a time.
+     */
+    private static final ThreadLocal<char[]> SCRATCH = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue()
+        {
+            return new char[SCRATCH_BYTES * 2];
+        }
+    };
+
     /**
      * Converts the given byte array to its hex representation.
      *
@@ -83,6 +125,577 @@ public final class HexUtility
         return new String(hexChars);
     }
 
+    /**
+     * Appends the hex representation of a range of bytes to a
+     * {@code StringBuilder}.
+     *
+     * @param out
+     *            builder to append to
+     * @param bytes
+     *            source of the bytes
+     * @param offset
+     *            index of the first byte to convert
+     * @param length
+     *            number of bytes to convert
+     * @return {@code out}
+     *
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within {@code bytes}
+     */
+    public static StringBuilder appendHex(StringBuilder out, byte[] bytes,
+                                          int offset, int length)
+    {
+        checkRange(bytes.length, offset, length);
+        return appendHex(out, bytes, null, null, offset, length);
+    }
+
+    /**
+     * Appends the hex representation of a range of a {@code ByteBuffer} to a
+     * {@code StringBuilder}.
+     *
+     * @param out
+     *            builder to append to
+     * @param bytes
+     *            source of the bytes, its position is not changed
+     * @param offset
+     *            absolute index of the first byte to convert
+     * @param length
+     *            number of bytes to convert
+     * @return {@code out}
+     *
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the limit of {@code bytes}
+     */
+    public static StringBuilder appendHex(StringBuilder out, ByteBuffer bytes,
+                                          int offset, int length)
+    {
+        checkRange(bytes.limit(), offset, length);
+        return appendHex(out, null, bytes, null, offset, length);
+    }
+
+    /**
+     * Appends the hex representation of a range of a {@code ByteBuf} to a
+     * {@code StringBuilder}.
+     *
+     * @param out
+     *            builder to append to
+     * @param bytes
+     *            source of the bytes, its reader index is not changed
+     * @param offset
+     *            absolute index of the first byte to convert
+     * @param length
+     *            number of bytes to convert
+     * @return {@code out}
+     *
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the capacity of {@code bytes}
+     */
+    public static StringBuilder appendHex(StringBuilder out, ByteBuf bytes,
+                                          int offset, int length)
+    {
+        checkRange(bytes.capacity(), offset, length);
+        return appendHex(out, null, null, bytes, offset, length);
+    }
+
+    /**
+     * Appends the hex representation of a range of bytes to an
+     * {@code Appendable}.
+     *
+     * @param out
+     *            destination of the hex characters
+     * @param bytes
+     *            source of the bytes
+     * @param offset
+     *            index of the first byte to convert
+     * @param length
+     *            number of bytes to convert
+     * @return {@code out}
+     *
+     * @throws IOException
+     *             if {@code out} throws it
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within {@code bytes}
+     */
+    public static Appendable appendHex(Appendable out, byte[] bytes,
+                                       int offset, int length)
+            throws IOException
+    {
+        checkRange(bytes.length, offset, length);
+        return appendHex(out, bytes, null, null, offset, length);
+    }
+
+    /**
+     * Appends the hex representation of a range of a {@code ByteBuffer} to an
+     * {@code Appendable}.
+     *
+     * @param out
+     *            destination of the hex characters
+     * @param bytes
+     *            source of the bytes, its position is not changed
+     * @param offset
+     *            absolute index of the first byte to convert
+     * @param length
+     *            number of bytes to convert
+     * @return {@code out}
+     *
+     * @throws IOException
+     *             if {@code out} throws it
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the limit of {@code bytes}
+     */
+    public static Appendable appendHex(Appendable out, ByteBuffer bytes,
+                                       int offset, int length)
+            throws IOException
+    {
+        checkRange(bytes.limit(), offset, length);
+        return appendHex(out, null, bytes, null, offset, length);
+    }
+
+    /**
+     * Appends the hex representation of a range of a {@code ByteBuf} to an
+     * {@code Appendable}.
+     *
+     * @param out
+     *            destination of the hex characters
+     * @param bytes
+     *            source of the bytes, its reader index is not changed
+     * @param offset
+     *            absolute index of the first byte to convert
+     * @param length
+     *            number of bytes to convert
+     * @return {@code out}
+     *
+     * @throws IOException
+     *             if {@code out} throws it
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the capacity of {@code bytes}
+     */
+    public static Appendable appendHex(Appendable out, ByteBuf bytes,
+                                       int offset, int length)
+            throws IOException
+    {
+        checkRange(bytes.capacity(), offset, length);
+        return appendHex(out, null, null, bytes, offset, length);
+    }
+
+    /**
+     * Writes the hex representation of a range of bytes to a {@code ByteBuf}
+     * as ASCII characters, advancing its writer index.
+     *
+     * @param out
+     *            buffer to write to, expanded if necessary
+     * @param bytes
+     *            source of the bytes
+     * @param offset
+     *            index of the first byte to convert
+     * @param length
+     *            number of bytes to convert
+     * @return {@code out}
+     *
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within {@code bytes}
+     */
+    public static ByteBuf writeHex(ByteBuf out, byte[] bytes, int offset, int length)
+    {
+        checkRange(bytes.length, offset, length);
+        return writeHex(out, bytes, null, null, offset, length);
+    }
+
+    /**
+     * Writes the hex representation of a range of a {@code ByteBuffer} to a
+     * {@code ByteBuf} as ASCII characters, advancing its writer index.
+     *
+     * @param out
+     *            buffer to write to, expanded if necessary
+     * @param bytes
+     *            source of the bytes, its position is not changed
+     * @param offset
+     *            absolute index of the first byte to convert
+     * @param length
+     *            number of bytes to convert
+     * @return {@code out}
+     *
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the limit of {@code bytes}
+     */
+    public static ByteBuf writeHex(ByteBuf out, ByteBuffer bytes, int offset, int length)
+    {
+        checkRange(bytes.limit(), offset, length);
+        return writeHex(out, null, bytes, null, offset, length);
+    }
+
+    /**
+     * Writes the hex representation of a range of a {@code ByteBuf} to
+     * another {@code ByteBuf} as ASCII characters, advancing its writer index.
+     *
+     * @param out
+     *            buffer to write to, expanded if necessary
+     * @param bytes
+     *            source of the bytes, its reader index is not changed
+     * @param offset
+     *            absolute index of the first byte to convert
+     * @param length
+     *            number of bytes to convert
+     * @return {@code out}
+     *
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the capacity of {@code bytes}
+     */
+    public static ByteBuf writeHex(ByteBuf out, ByteBuf bytes, int offset, int length)
+    {
+        checkRange(bytes.capacity(), offset, length);
+        return writeHex(out, null, null, bytes, offset, length);
+    }
+
+    /**
+     * Appends a hex dump of a range of bytes to a {@code StringBuilder}. Each
+     * line holds 16 bytes: the offset of the first byte relative to
+     * {@code offset}, the bytes in hex, and the bytes as ASCII with
+     * non-printable characters shown as {@code '.'}. Every line, including the
+     * last, ends with {@code '\n'}.
+     *
+     * <pre>
+     * 00000000  80 00 12 34 00 00 00 A0  0B AD CA FE 48 65 6C 6C  |...4........Hell|
+     * 00000010  6F                                                |o|
+     * </pre>
+     *
+     * @param out
+     *            builder to append to
+     * @param bytes
+     *            source of the bytes
+     * @param offset
+     *            index of the first byte to dump
+     * @param length
+     *            number of bytes to dump
+     * @return {@code out}
+     *
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within {@code bytes}
+     */
+    public static StringBuilder appendHexDump(StringBuilder out, byte[] bytes,
+                                              int offset, int length)
+    {
+        checkRange(bytes.length, offset, length);
+        return appendHexDump(out, bytes, null, null, offset, length);
+    }
+
+    /**
+     * Appends a hex dump of a range of a {@code ByteBuffer} to a
+     * {@code StringBuilder}. See
+     * {@link #appendHexDump(StringBuilder, byte[], int, int)} for the layout.
+     *
+     * @param out
+     *            builder to append to
+     * @param bytes
+     *            source of the bytes, its position is not changed
+     * @param offset
+     *            absolute index of the first byte to dump
+     * @param length
+     *            number of bytes to dump
+     * @return {@code out}
+     *
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the limit of {@code bytes}
+     */
+    public static StringBuilder appendHexDump(StringBuilder out, ByteBuffer bytes,
+                                              int offset, int length)
+    {
+        checkRange(bytes.limit(), offset, length);
+        return appendHexDump(out, null, bytes, null, offset, length);
+    }
+
+    /**
+     * Appends a hex dump of a range of a {@code ByteBuf} to a
+     * {@code StringBuilder}. See
+     * {@link #appendHexDump(StringBuilder, byte[], int, int)} for the layout.
+     *
+     * @param out
+     *            builder to append to
+     * @param bytes
+     *            source of the bytes, its reader index is not changed
+     * @param offset
+     *            absolute index of the first byte to dump
+     * @param length
+     *            number of bytes to dump
+     * @return {@code out}
+     *
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the capacity of {@code bytes}
+     */
+    public static StringBuilder appendHexDump(StringBuilder out, ByteBuf bytes,
+                                              int offset, int length)
+    {
+        checkRange(bytes.capacity(), offset, length);
+        return appendHexDump(out, null, null, bytes, offset, length);
+    }
+
+    /**
+     * Appends a hex dump of a range of bytes to an {@code Appendable}. See
+     * {@link #appendHexDump(StringBuilder, byte[], int, int)} for the layout.
+     *
+     * @param out
+     *            destination of the dump
+     * @param bytes
+     *            source of the bytes
+     * @param offset
+     *            index of the first byte to dump
+     * @param length
+     *            number of bytes to dump
+     * @return {@code out}
+     *
+     * @throws IOException
+     *             if {@code out} throws it
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within {@code bytes}
+     */
+    public static Appendable appendHexDump(Appendable out, byte[] bytes,
+                                           int offset, int length)
+            throws IOException
+    {
+        checkRange(bytes.length, offset, length);
+        return appendHexDump(out, bytes, null, null, offset, length);
+    }
+
+    /**
+     * Appends a hex dump of a range of a {@code ByteBuffer} to an
+     * {@code Appendable}. See
+     * {@link #appendHexDump(StringBuilder, byte[], int, int)} for the layout.
+     *
+     * @param out
+     *            destination of the dump
+     * @param bytes
+     *            source of the bytes, its position is not changed
+     * @param offset
+     *            absolute index of the first byte to dump
+     * @param length
+     *            number of bytes to dump
+     * @return {@code out}
+     *
+     * @throws IOException
+     *             if {@code out} throws it
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the limit of {@code bytes}
+     */
+    public static Appendable appendHexDump(Appendable out, ByteBuffer bytes,
+                                           int offset, int length)
+            throws IOException
+    {
+        checkRange(bytes.limit(), offset, length);
+        return appendHexDump(out, null, bytes, null, offset, length);
+    }
+
+    /**
+     * Appends a hex dump of a range of a {@code ByteBuf} to an
+     * {@code Appendable}. See
+     * {@link #appendHexDump(StringBuilder, byte[], int, int)} for the layout.
+     *
+     * @param out
+     *            destination of the dump
+     * @param bytes
+     *            source of the bytes, its reader index is not changed
+     * @param offset
+     *            absolute index of the first byte to dump
+     * @param length
+     *            number of bytes to dump
+     * @return {@code out}
+     *
+     * @throws IOException
+     *             if {@code out} throws it
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the capacity of {@code bytes}
+     */
+    public static Appendable appendHexDump(Appendable out, ByteBuf bytes,
+                                           int offset, int length)
+            throws IOException
+    {
+        checkRange(bytes.capacity(), offset, length);
+        return appendHexDump(out, null, null, bytes, offset, length);
+    }
+
+    private static void checkRange(int size, int offset, int length)
+    {
+        Preconditions.checkArgument(length >= 0, "Length cannot be negative.");
+        Preconditions.checkPositionIndexes(offset, offset + length, size);
+    }
+
+    /**
+     * Reads one byte from whichever of the sources is not null.
+     */
+    private static int byteAt(byte[] array, ByteBuffer buffer, ByteBuf buf, int index)
+    {
+        if (array != null)
+        {
+            return array[index] & 0xFF;
+        }
+        if (buffer != null)
+        {
+            return buffer.get(index) & 0xFF;
+        }
+        return buf.getByte(index) & 0xFF;
+    }
+
+    /**
+     * Encodes {@code length} bytes into {@code chars} starting at index 0.
+     * Heap buffers are read through their backing array.
+     */
+    private static void encode(byte[] array, ByteBuffer buffer, ByteBuf buf,
+                               int offset, int length, char[] chars)
+    {
+        if (array == null && buffer != null && buffer.hasArray())
+        {
+            array = buffer.array();
+            offset += buffer.arrayOffset();
+        }
+        else if (array == null && buf != null && buf.hasArray())
+        {
+            array = buf.array();
+            offset += buf.arrayOffset();
+        }
+
+        if (array != null)
+        {
+            for (int i = 0, j = 0; i < length; i++)
+            {
+                int value = array[offset + i] & 0xFF;
+                chars[j++] = HEX_CHARACTERS[value >>> 4];
+                chars[j++] = HEX_CHARACTERS[value & 0x0F];
+            }
+        }
+        else
+        {
+            for (int i = 0, j = 0; i < length; i++)
+            {
+                int value = byteAt(null, buffer, buf, offset + i);
+                chars[j++] = HEX_CHARACTERS[value >>> 4];
+                chars[j++] = HEX_CHARACTERS[value & 0x0F];
+            }
+        }
+    }
+
+    private static StringBuilder appendHex(StringBuilder out, byte[] array,
+                                           ByteBuffer buffer, ByteBuf buf,
+                                           int offset, int length)
+    {
+        out.ensureCapacity(out.length() + length * 2);
+
+        char[] chars = SCRATCH.get();
+        for (int done = 0; done < length; done += SCRATCH_BYTES)
+        {
+            int count = Math.min(SCRATCH_BYTES, length - done);
+            encode(array, buffer, buf, offset + done, count, chars);
+            out.append(chars, 0, count * 2);
+        }
+        return out;
+    }
+
+    private static Appendable appendHex(Appendable out, byte[] array,
+                                        ByteBuffer buffer, ByteBuf buf,
+                                        int offset, int length)
+            throws IOException
+    {
+        if (out instanceof StringBuilder)
+        {
+            return appendHex((StringBuilder) out, array, buffer, buf, offset, length);
+        }
+
+        char[] chars = SCRATCH.get();
+        for (int done = 0; done < length; done += SCRATCH_BYTES)
+        {
+            int count = Math.min(SCRATCH_BYTES, length - done);
+            encode(array, buffer, buf, offset + done, count, chars);
+
+            if (out instanceof CharBuffer)
+            {
+                ((CharBuffer) out).put(chars, 0, count * 2);
+            }
+            else if (out instanceof Writer)
+            {
+                ((Writer) out).write(chars, 0, count * 2);
+            }
+            else
+            {
+                for (int i = 0; i < count * 2; i++)
+                {
+                    out.append(chars[i]);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static ByteBuf writeHex(ByteBuf out, byte[] array,
+                                    ByteBuffer buffer, ByteBuf buf,
+                                    int offset, int length)
+    {
+        out.ensureWritable(length * 2);
+
+        int index = out.writerIndex();
+        for (int i = offset; i < offset + length; i++)
+        {
+            int value = byteAt(array, buffer, buf, i);
+            out.setByte(index++, HEX_CHARACTERS[value >>> 4]);
+            out.setByte(index++, HEX_CHARACTERS[value & 0x0F]);
+        }
+        return out.writerIndex(index);
+    }
+
+    private static StringBuilder appendHexDump(StringBuilder out, byte[] array,
+                                               ByteBuffer buffer, ByteBuf buf,
+                                               int offset, int length)
+    {
+        try
+        {
+            appendHexDump((Appendable) out, array, buffer, buf, offset, length);
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError("StringBuilder does not throw IOException.");
+        }
+        return out;
+    }
+
+    private static Appendable appendHexDump(Appendable out, byte[] array,
+                                            ByteBuffer buffer, ByteBuf buf,
+                                            int offset, int length)
+            throws IOException
+    {
+        for (int line = 0; line < length; line += DUMP_BYTES_PER_LINE)
+        {
+            int lineLength = Math.min(DUMP_BYTES_PER_LINE, length - line);
+
+            // Offset as eight hex digits.
+            for (int shift = 28; shift >= 0; shift -= 4)
+            {
+                out.append(HEX_CHARACTERS[(line >>> shift) & 0x0F]);
+            }
+            out.append(' ');
+
+            for (int i = 0; i < DUMP_BYTES_PER_LINE; i++)
+            {
+                out.append(i == DUMP_BYTES_PER_LINE / 2 ? "  " : " ");
+                if (i < lineLength)
+                {
+                    int value = byteAt(array, buffer, buf, offset + line + i);
+                    out.append(HEX_CHARACTERS[value >>> 4]);
+                    out.append(HEX_CHARACTERS[value & 0x0F]);
+                }
+                else
+                {
+                    out.append("  ");
+                }
+            }
+
+            out.append("  |");
+            for (int i = 0; i < lineLength; i++)
+            {
+                int value = byteAt(array, buffer, buf, offset + line + i);
+                out.append(value >= 0x20 && value < 0x7F ? (char) value : '.');
+            }
+            out.append("|\n");
+        }
+        return out;
+    }
+
     /**
      * Private constructor to prevent instantiation.
      */
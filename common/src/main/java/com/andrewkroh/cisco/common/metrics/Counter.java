@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonically increasing count that can be updated from any thread
+ * without locking.
+ *
+ * @author akroh
+ */
+public final class Counter implements CounterMBean
+{
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Adds one to the count.
+     */
+    public void increment()
+    {
+        count.incrementAndGet();
+    }
+
+    /**
+     * Adds {@code n} to the count.
+     *
+     * @param n
+     *            amount to add
+     */
+    public void add(long n)
+    {
+        count.addAndGet(n);
+    }
+
+    @Override
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.valueOf(getCount());
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+/**
+ * Metric whose current value is read on demand, such as the size of a
+ * queue. Gauges are registered with
+ * {@link MetricsRegistry#gauge(String, Gauge)} and are also their own JMX
+ * management interface.
+ *
+ * @author akroh
+ */
+public interface Gauge
+{
+    /**
+     * Returns the current value. Must be safe to call from any thread.
+     *
+     * @return the value
+     */
+    long getValue();
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, typically latencies in
+ * nanoseconds.
+ *
+ * <p/>
+ * Values are counted in log-linear buckets: every power of two is split into
+ * 16 equal sub-buckets, so a value is known to within 6.25% of its
+ * magnitude across the whole {@code long} range using a fixed array of 960
+ * counts. Recording a value is a few bit operations and one atomic
+ * increment, and never allocates.
+ *
+ * @author akroh
+ */
+public final class Histogram implements HistogramMBean
+{
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value
+     *            value to record
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(bucketIndex(value));
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get()))
+        {
+            if (max.compareAndSet(currentMax, value))
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the current state of the histogram. Values recorded
+     * while the snapshot is being taken may or may not be included.
+     *
+     * @return the snapshot
+     */
+    public HistogramSnapshot snapshot()
+    {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts[i] = buckets.get(i);
+        }
+        return new HistogramSnapshot(counts, sum.get(), max.get());
+    }
+
+    @Override
+    public long getCount()
+    {
+        return snapshot().getCount();
+    }
+
+    @Override
+    public double getMean()
+    {
+        return snapshot().getMean();
+    }
+
+    @Override
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    @Override
+    public long get50thPercentile()
+    {
+        return snapshot().getPercentile(50);
+    }
+
+    @Override
+    public long get90thPercentile()
+    {
+        return snapshot().getPercentile(90);
+    }
+
+    @Override
+    public long get99thPercentile()
+    {
+        return snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long get999thPercentile()
+    {
+        return snapshot().getPercentile(99.9);
+    }
+
+    static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketLowerBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    static long bucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return bucketLowerBound(index) + (1L << shift) - 1;
+    }
+}
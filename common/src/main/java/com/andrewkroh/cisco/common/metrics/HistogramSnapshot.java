@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Immutable copy of the state of a {@link Histogram}.
+ *
+ * @author akroh
+ */
+public final class HistogramSnapshot
+{
+    private final long[] buckets;
+
+    private final long count;
+
+    private final long sum;
+
+    private final long max;
+
+    HistogramSnapshot(long[] buckets, long sum, long max)
+    {
+        this.buckets = buckets;
+        this.sum = sum;
+        this.max = max;
+
+        long total = 0;
+        for (long bucket : buckets)
+        {
+            total += bucket;
+        }
+        this.count = total;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return number of values
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the sum of the recorded values.
+     *
+     * @return sum of the values
+     */
+    public long getSum()
+    {
+        return sum;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return the maximum, or 0 if there are no values
+     */
+    public long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return the mean, or 0 if there are no values
+     */
+    public double getMean()
+    {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded
+     * values fall. The result is the upper bound of the bucket containing
+     * the percentile, so it overstates the exact value by at most 6.25%.
+     *
+     * @param percentile
+     *            percentile between 0 and 100
+     * @return the value at the percentile, or 0 if there are no values
+     */
+    public long getPercentile(double percentile)
+    {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100,
+                "Percentile must be between 0 and 100.");
+
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++)
+        {
+            seen += buckets[i];
+            if (seen >= rank)
+            {
+                return Math.min(Histogram.bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p999=%d max=%d",
+                count, getMean(), getPercentile(50), getPercentile(90),
+                getPercentile(99), getPercentile(99.9), max);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+/**
+ * Receives periodic snapshots of a {@link MetricsRegistry} from a
+ * {@link MetricsReporter} and publishes them somewhere, such as a log, a
+ * monitoring system, or an HTTP endpoint.
+ *
+ * @author akroh
+ */
+public interface MetricsExporter
+{
+    /**
+     * Publishes a snapshot. Invoked on the reporter's thread.
+     *
+     * @param snapshot
+     *            the metrics
+     */
+    void export(MetricsSnapshot snapshot);
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Named collection of {@link Counter Counters}, {@link Histogram Histograms}
+ * and {@link Gauge Gauges}.
+ *
+ * <p/>
+ * Metrics are created on first use and then shared by everyone using the same
+ * name, so components look them up once and keep the reference. Names are
+ * dot separated, for example {@code rtp.session.5004.packetsSent}.
+ *
+ * <p/>
+ * Once {@link #registerMBeans(MBeanServer, String)} has been called every
+ * metric, including those created afterwards, is published as an MBean named
+ * {@code <domain>:type=<Counter|Histogram|Gauge>,name=<name>}.
+ *
+ * @author akroh
+ */
+public class MetricsRegistry
+{
+    /**
+     * Default JMX domain of the MBeans.
+     */
+    public static final String DEFAULT_DOMAIN = "com.andrewkroh.cisco";
+
+    private static final MetricsRegistry DEFAULT_REGISTRY = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Object> metrics =
+            new ConcurrentHashMap<String, Object>();
+
+    private MBeanServer mbeanServer;
+
+    private String domain;
+
+    /**
+     * Returns the registry shared by all components of the process.
+     *
+     * @return the default registry
+     */
+    public static MetricsRegistry getDefault()
+    {
+        return DEFAULT_REGISTRY;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     *
+     * @param name
+     *            metric name
+     * @return the counter
+     * @throws IllegalArgumentException
+     *             if the name is in use by a histogram
+     */
+    public Counter counter(String name)
+    {
+        return getOrCreate(name, Counter.class);
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     *
+     * @param name
+     *            metric name
+     * @return the histogram
+     * @throws IllegalArgumentException
+     *             if the name is in use by a counter
+     */
+    public Histogram histogram(String name)
+    {
+        return getOrCreate(name, Histogram.class);
+    }
+
+    /**
+     * Registers a gauge.
+     *
+     * @param name
+     *            metric name
+     * @param gauge
+     *            the gauge
+     * @throws IllegalArgumentException
+     *             if the name is already in use
+     */
+    public void gauge(String name, Gauge gauge)
+    {
+        Preconditions.checkNotNull(name, "Name cannot be null.");
+        Preconditions.checkNotNull(gauge, "Gauge cannot be null.");
+
+        Preconditions.checkArgument(metrics.putIfAbsent(name, gauge) == null,
+                "Metric %s already exists.", name);
+        registerMBean(name, gauge);
+    }
+
+    private <T> T getOrCreate(String name, Class<T> type)
+    {
+        Preconditions.checkNotNull(name, "Name cannot be null.");
+
+        Object metric = metrics.get(name);
+        if (metric == null)
+        {
+            Object created = type == Counter.class ? new Counter() : new Histogram();
+            metric = metrics.putIfAbsent(name, created);
+            if (metric == null)
+            {
+                metric = created;
+                registerMBean(name, metric);
+            }
+        }
+
+        Preconditions.checkArgument(type.isInstance(metric),
+                "Metric %s is a %s.", name, metric.getClass().getSimpleName());
+        return type.cast(metric);
+    }
+
+    /**
+     * Removes every metric whose name starts with {@code prefix}. Components
+     * call this when they are shut down so that their metrics and MBeans do
+     * not outlive them.
+     *
+     * @param prefix
+     *            metric name prefix
+     */
+    public void remove(String prefix)
+    {
+        Preconditions.checkNotNull(prefix, "Prefix cannot be null.");
+
+        for (Map.Entry<String, Object> entry : metrics.entrySet())
+        {
+            if (entry.getKey().startsWith(prefix) &&
+                    metrics.remove(entry.getKey(), entry.getValue()))
+            {
+                unregisterMBean(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes the metric with exactly the given name.
+     *
+     * @param name
+     *            metric name
+     * @return true if the metric existed
+     */
+    public boolean removeMetric(String name)
+    {
+        Preconditions.checkNotNull(name, "Name cannot be null.");
+
+        Object metric = metrics.remove(name);
+        if (metric == null)
+        {
+            return false;
+        }
+        unregisterMBean(name, metric);
+        return true;
+    }
+
+    /**
+     * Returns a copy of the current value of every metric.
+     *
+     * @return the snapshot
+     */
+    public MetricsSnapshot snapshot()
+    {
+        TreeMap<String, Long> counters = new TreeMap<String, Long>();
+        TreeMap<String, HistogramSnapshot> histograms =
+                new TreeMap<String, HistogramSnapshot>();
+        TreeMap<String, Long> gauges = new TreeMap<String, Long>();
+
+        for (Map.Entry<String, Object> entry : metrics.entrySet())
+        {
+            Object metric = entry.getValue();
+            if (metric instanceof Counter)
+            {
+                counters.put(entry.getKey(), ((Counter) metric).getCount());
+            }
+            else if (metric instanceof Histogram)
+            {
+                histograms.put(entry.getKey(), ((Histogram) metric).snapshot());
+            }
+            else
+            {
+                gauges.put(entry.getKey(), ((Gauge) metric).getValue());
+            }
+        }
+
+        return new MetricsSnapshot(System.currentTimeMillis(),
+                counters, histograms, gauges);
+    }
+
+    /**
+     * Publishes the metrics as MBeans in the platform MBean server using
+     * {@link #DEFAULT_DOMAIN}.
+     *
+     * @throws JMException
+     *             if an MBean cannot be registered
+     */
+    public void registerMBeans() throws JMException
+    {
+        registerMBeans(ManagementFactory.getPlatformMBeanServer(), DEFAULT_DOMAIN);
+    }
+
+    /**
+     * Publishes every current and future metric as an MBean.
+     *
+     * @param server
+     *            server to register the MBeans with
+     * @param domain
+     *            domain of the MBean names
+     * @throws JMException
+     *             if an MBean cannot be registered
+     */
+    public synchronized void registerMBeans(MBeanServer server, String domain)
+            throws JMException
+    {
+        Preconditions.checkNotNull(server, "MBean server cannot be null.");
+        Preconditions.checkNotNull(domain, "Domain cannot be null.");
+        Preconditions.checkState(mbeanServer == null, "MBeans are already registered.");
+
+        this.mbeanServer = server;
+        this.domain = domain;
+
+        for (Map.Entry<String, Object> entry : metrics.entrySet())
+        {
+            ObjectName objectName = objectName(entry.getKey(), entry.getValue());
+            if (!server.isRegistered(objectName))
+            {
+                server.registerMBean(mbean(entry.getValue()), objectName);
+            }
+        }
+    }
+
+    /**
+     * Removes the MBeans published by {@link #registerMBeans(MBeanServer, String)}.
+     */
+    public synchronized void unregisterMBeans()
+    {
+        if (mbeanServer == null)
+        {
+            return;
+        }
+
+        for (Map.Entry<String, Object> entry : metrics.entrySet())
+        {
+            unregisterMBean(entry.getKey(), entry.getValue());
+        }
+        mbeanServer = null;
+        domain = null;
+    }
+
+    private synchronized void registerMBean(String name, Object metric)
+    {
+        if (mbeanServer == null)
+        {
+            return;
+        }
+
+        // The metric may have been published by registerMBeans() after it
+        // was added to the map.
+        try
+        {
+            ObjectName objectName = objectName(name, metric);
+            if (!mbeanServer.isRegistered(objectName))
+            {
+                mbeanServer.registerMBean(mbean(metric), objectName);
+            }
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException("Failed to register MBean for " + name + ".", e);
+        }
+    }
+
+    private synchronized void unregisterMBean(String name, Object metric)
+    {
+        if (mbeanServer == null)
+        {
+            return;
+        }
+
+        try
+        {
+            ObjectName objectName = objectName(name, metric);
+            if (mbeanServer.isRegistered(objectName))
+            {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException("Failed to unregister MBean for " + name + ".", e);
+        }
+    }
+
+    private static StandardMBean mbean(Object metric)
+    {
+        if (metric instanceof Counter)
+        {
+            return new StandardMBean((Counter) metric, CounterMBean.class, false);
+        }
+        if (metric instanceof Histogram)
+        {
+            return new StandardMBean((Histogram) metric, HistogramMBean.class, false);
+        }
+        return new StandardMBean((Gauge) metric, Gauge.class, false);
+    }
+
+    private ObjectName objectName(String name, Object metric) throws JMException
+    {
+        String type = metric instanceof Counter ? "Counter" :
+                metric instanceof Histogram ? "Histogram" : "Gauge";
+        return new ObjectName(domain + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AbstractScheduledService;
+
+/**
+ * Service that periodically takes a snapshot of a {@link MetricsRegistry}
+ * and passes it to each {@link MetricsExporter}.
+ *
+ * @author akroh
+ */
+public class MetricsReporter extends AbstractScheduledService
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsReporter.class);
+
+    private final MetricsRegistry registry;
+
+    private final long period;
+
+    private final TimeUnit unit;
+
+    private final List<MetricsExporter> exporters;
+
+    /**
+     * Creates a reporter.
+     *
+     * @param registry
+     *            registry to report
+     * @param period
+     *            time between reports
+     * @param unit
+     *            unit of {@code period}
+     * @param exporters
+     *            exporters that receive each snapshot
+     */
+    public MetricsReporter(MetricsRegistry registry, long period, TimeUnit unit,
+                           MetricsExporter... exporters)
+    {
+        this.registry = Preconditions.checkNotNull(registry, "Registry cannot be null.");
+        this.unit = Preconditions.checkNotNull(unit, "TimeUnit cannot be null.");
+        Preconditions.checkArgument(period > 0, "Period must be greater than 0.");
+        this.period = period;
+        this.exporters = ImmutableList.copyOf(exporters);
+    }
+
+    @Override
+    protected void runOneIteration()
+    {
+        report();
+    }
+
+    @Override
+    protected void shutDown()
+    {
+        // Publish the final values.
+        report();
+    }
+
+    /**
+     * Takes a snapshot and exports it immediately.
+     */
+    public void report()
+    {
+        MetricsSnapshot snapshot = registry.snapshot();
+        for (MetricsExporter exporter : exporters)
+        {
+            try
+            {
+                exporter.export(snapshot);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.warn("Exception while exporting metrics with {}.", exporter, e);
+            }
+        }
+    }
+
+    @Override
+    protected Scheduler scheduler()
+    {
+        return Scheduler.newFixedDelaySchedule(period, period, unit);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+import java.util.Collections;
+import java.util.SortedMap;
+
+/**
+ * Point in time copy of every metric in a {@link MetricsRegistry}.
+ *
+ * @author akroh
+ */
+public final class MetricsSnapshot
+{
+    private final long timestampMillis;
+
+    private final SortedMap<String, Long> counters;
+
+    private final SortedMap<String, HistogramSnapshot> histograms;
+
+    private final SortedMap<String, Long> gauges;
+
+    MetricsSnapshot(long timestampMillis,
+                    SortedMap<String, Long> counters,
+                    SortedMap<String, HistogramSnapshot> histograms,
+                    SortedMap<String, Long> gauges)
+    {
+        this.timestampMillis = timestampMillis;
+        this.counters = Collections.unmodifiableSortedMap(counters);
+        this.histograms = Collections.unmodifiableSortedMap(histograms);
+        this.gauges = Collections.unmodifiableSortedMap(gauges);
+    }
+
+    /**
+     * Returns the time at which the snapshot was taken.
+     *
+     * @return epoch milliseconds
+     */
+    public long getTimestampMillis()
+    {
+        return timestampMillis;
+    }
+
+    /**
+     * Returns the counter values keyed by metric name.
+     *
+     * @return unmodifiable map sorted by name
+     */
+    public SortedMap<String, Long> getCounters()
+    {
+        return counters;
+    }
+
+    /**
+     * Returns the histogram snapshots keyed by metric name.
+     *
+     * @return unmodifiable map sorted by name
+     */
+    public SortedMap<String, HistogramSnapshot> getHistograms()
+    {
+        return histograms;
+    }
+
+    /**
+     * Returns the gauge values keyed by metric name.
+     *
+     * @return unmodifiable map sorted by name
+     */
+    public SortedMap<String, Long> getGauges()
+    {
+        return gauges;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exporter that logs one line per metric. Counters are logged with their
+ * rate per second since the previous snapshot.
+ *
+ * @author akroh
+ */
+public class Slf4jMetricsExporter implements MetricsExporter
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Slf4jMetricsExporter.class);
+
+    private final Map<String, Long> previousCounts = new HashMap<String, Long>();
+
+    private long previousTimestamp;
+
+    @Override
+    public synchronized void export(MetricsSnapshot snapshot)
+    {
+        if (!LOGGER.isInfoEnabled())
+        {
+            return;
+        }
+
+        double seconds = (snapshot.getTimestampMillis() - previousTimestamp) / 1000.0;
+
+        for (Map.Entry<String, Long> counter : snapshot.getCounters().entrySet())
+        {
+            Long previous = previousCounts.put(counter.getKey(), counter.getValue());
+            if (previous == null || seconds <= 0)
+            {
+                LOGGER.info("{} count={}", counter.getKey(), counter.getValue());
+            }
+            else
+            {
+                LOGGER.info("{} count={} rate={}/s", counter.getKey(), counter.getValue(),
+                        String.format("%.1f", (counter.getValue() - previous) / seconds));
+            }
+        }
+
+        for (Map.Entry<String, Long> gauge : snapshot.getGauges().entrySet())
+        {
+            LOGGER.info("{} value={}", gauge.getKey(), gauge.getValue());
+        }
+
+        for (Map.Entry<String, HistogramSnapshot> histogram : snapshot.getHistograms().entrySet())
+        {
+            LOGGER.info("{} {}", histogram.getKey(), histogram.getValue());
+        }
+
+        previousCounts.keySet().retainAll(snapshot.getCounters().keySet());
+        previousTimestamp = snapshot.getTimestampMillis();
+    }
+}
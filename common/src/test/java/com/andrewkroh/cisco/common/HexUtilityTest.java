@@ -2,6 +2,13 @@ package com.andrewkroh.cisco.common;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 
 import org.junit.Test;
 
@@ -61,4 +68,82 @@ public class HexUtilityTest
     {
         HexUtility.bytesToHex(null, 0, 1);
     }
+
+    @Test
+    public void appendHex_array_appendsRangeToBuilder()
+    {
+        StringBuilder builder = new StringBuilder("prefix:");
+
+        assertThat(HexUtility.appendHex(builder, TEST_ARRAY, 10, 6).toString(),
+                equalTo("prefix:0A0B0C0D0E0F"));
+    }
+
+    @Test
+    public void appendHex_emptyRange_appendsNothing()
+    {
+        assertThat(HexUtility.appendHex(new StringBuilder(), TEST_ARRAY, 16, 0).toString(),
+                equalTo(""));
+    }
+
+    @Test
+    public void appendHex_directByteBuffer_doesNotChangePosition()
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TEST_ARRAY.length);
+        buffer.put(TEST_ARRAY);
+        buffer.position(3);
+
+        assertThat(HexUtility.appendHex(new StringBuilder(), buffer, 0, 4).toString(),
+                equalTo("00010203"));
+        assertThat(buffer.position(), equalTo(3));
+    }
+
+    @Test
+    public void appendHex_byteBufToCharBuffer_writesHex() throws Exception
+    {
+        ByteBuf buf = Unpooled.wrappedBuffer(TEST_ARRAY);
+        CharBuffer chars = CharBuffer.allocate(8);
+
+        HexUtility.appendHex(chars, buf, 12, 4);
+
+        chars.flip();
+        assertThat(chars.toString(), equalTo("0C0D0E0F"));
+        assertThat(buf.readerIndex(), equalTo(0));
+    }
+
+    @Test
+    public void appendHex_writer_writesHex() throws Exception
+    {
+        StringWriter writer = new StringWriter();
+
+        HexUtility.appendHex(writer, TEST_ARRAY, 0, 2);
+
+        assertThat(writer.toString(), equalTo("0001"));
+    }
+
+    @Test
+    public void writeHex_toByteBuf_writesAsciiAndAdvancesWriterIndex()
+    {
+        ByteBuf out = Unpooled.buffer(1);
+        out.writeByte('>');
+
+        HexUtility.writeHex(out, ByteBuffer.wrap(TEST_ARRAY), 14, 2);
+
+        assertThat(out.toString(StandardCharsets.US_ASCII), equalTo(">0E0F"));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void appendHex_rangePastEnd_throwsException()
+    {
+        HexUtility.appendHex(new StringBuilder(), TEST_ARRAY, 10, 7);
+    }
+
+    @Test
+    public void appendHexDump_showsOffsetsHexAndAscii()
+    {
+        byte[] bytes = "0123456789ABCDEF\u0000Hi".getBytes(StandardCharsets.US_ASCII);
+
+        assertThat(HexUtility.appendHexDump(new StringBuilder(), bytes, 0, bytes.length).toString(),
+                equalTo("00000000  30 31 32 33 34 35 36 37  38 39 41 42 43 44 45 46  |0123456789ABCDEF|\n" +
+                        "00000010  00 48 69                                          |.Hi|\n"));
+    }
 }
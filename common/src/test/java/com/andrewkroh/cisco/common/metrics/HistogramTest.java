@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Histogram} and {@link HistogramSnapshot}.
+ *
+ * @author akroh
+ */
+public class HistogramTest
+{
+    @Test
+    public void bucketIndex_smallValues_areExact()
+    {
+        for (int i = 0; i < 16; i++)
+        {
+            assertEquals(i, Histogram.bucketIndex(i));
+            assertEquals(i, Histogram.bucketLowerBound(i));
+            assertEquals(i, Histogram.bucketUpperBound(i));
+        }
+    }
+
+    @Test
+    public void bucketIndex_valueIsWithinBucketBounds()
+    {
+        long[] values = {16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values)
+        {
+            int index = Histogram.bucketIndex(value);
+            assertTrue(index < Histogram.BUCKET_COUNT);
+            assertTrue(value >= Histogram.bucketLowerBound(index));
+            assertTrue(value <= Histogram.bucketUpperBound(index));
+        }
+        assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketBounds_areContiguous()
+    {
+        for (int i = 1; i < Histogram.BUCKET_COUNT; i++)
+        {
+            assertEquals(Histogram.bucketUpperBound(i - 1) + 1,
+                         Histogram.bucketLowerBound(i));
+        }
+    }
+
+    @Test
+    public void snapshot_empty_returnsZeros()
+    {
+        HistogramSnapshot snapshot = new Histogram().snapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getPercentile(99), 0);
+        assertEquals(0, snapshot.getMean(), 0);
+    }
+
+    @Test
+    public void snapshot_uniformValues_percentilesWithinPrecision()
+    {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10000; i++)
+        {
+            histogram.record(i * 1000L);
+        }
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000000L, snapshot.getMax());
+        assertEquals(5000500.0, snapshot.getMean(), 0.001);
+        assertWithinPrecision(5000000, snapshot.getPercentile(50));
+        assertWithinPrecision(9900000, snapshot.getPercentile(99));
+        assertEquals(10000000L, snapshot.getPercentile(100));
+    }
+
+    @Test
+    public void record_negativeValue_recordedAsZero()
+    {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getSum());
+        assertEquals(0, snapshot.getPercentile(50));
+    }
+
+    @Test
+    public void record_concurrently_countsEveryValue() throws InterruptedException
+    {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 100000; j++)
+                    {
+                        histogram.record(j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99999, histogram.getMax());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual)
+    {
+        assertTrue("Expected " + expected + " but was " + actual,
+                   actual >= expected && actual <= expected * 1.0625);
+    }
+}
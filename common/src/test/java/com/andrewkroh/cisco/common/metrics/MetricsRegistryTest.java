@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.andrewkroh.cisco.common.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link MetricsRegistry} and {@link MetricsReporter}.
+ *
+ * @author akroh
+ */
+public class MetricsRegistryTest
+{
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    @Test
+    public void counter_sameName_returnsSameCounter()
+    {
+        Counter counter = registry.counter("a.count");
+        counter.add(3);
+        counter.increment();
+
+        assertSame(counter, registry.counter("a.count"));
+        assertEquals(4, registry.counter("a.count").getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void histogram_nameUsedByCounter_throwsException()
+    {
+        registry.counter("a.metric");
+        registry.histogram("a.metric");
+    }
+
+    @Test
+    public void snapshot_containsAllMetrics()
+    {
+        registry.counter("b.count").add(7);
+        registry.histogram("a.latency").record(100);
+
+        MetricsSnapshot snapshot = registry.snapshot();
+
+        assertEquals(Long.valueOf(7), snapshot.getCounters().get("b.count"));
+        assertEquals(1, snapshot.getHistograms().get("a.latency").getCount());
+    }
+
+    @Test
+    public void gauge_isReadWhenSnapshotIsTaken()
+    {
+        final AtomicLong value = new AtomicLong(3);
+        registry.gauge("queue.size", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return value.get();
+            }
+        });
+
+        assertEquals(Long.valueOf(3), registry.snapshot().getGauges().get("queue.size"));
+        value.set(8);
+        assertEquals(Long.valueOf(8), registry.snapshot().getGauges().get("queue.size"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void gauge_nameInUse_throwsException()
+    {
+        registry.counter("queue.size");
+        registry.gauge("queue.size", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return 0;
+            }
+        });
+    }
+
+    @Test
+    public void remove_prefix_removesOnlyMatchingMetrics()
+    {
+        registry.counter("session.1.packets");
+        registry.counter("session.1.bytes");
+        registry.counter("session.2.packets");
+
+        registry.remove("session.1.");
+
+        assertEquals(1, registry.snapshot().getCounters().size());
+        assertTrue(registry.snapshot().getCounters().containsKey("session.2.packets"));
+    }
+
+    @Test
+    public void registerMBeans_publishesExistingAndNewMetrics() throws Exception
+    {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        registry.counter("before").add(5);
+        registry.registerMBeans(server, "test");
+        registry.histogram("after").record(42);
+
+        ObjectName counterName = new ObjectName("test:type=Counter,name=\"before\"");
+        ObjectName histogramName = new ObjectName("test:type=Histogram,name=\"after\"");
+        assertEquals(5L, server.getAttribute(counterName, "Count"));
+        assertEquals(42L, server.getAttribute(histogramName, "Max"));
+        assertEquals(42L, server.getAttribute(histogramName, "50thPercentile"));
+
+        registry.remove("after");
+        assertFalse(server.isRegistered(histogramName));
+
+        registry.unregisterMBeans();
+        assertFalse(server.isRegistered(counterName));
+    }
+
+    @Test
+    public void reporter_exportsSnapshots() throws Exception
+    {
+        final List<MetricsSnapshot> snapshots = new ArrayList<MetricsSnapshot>();
+        registry.counter("count").increment();
+
+        MetricsReporter reporter = new MetricsReporter(registry, 1, TimeUnit.HOURS,
+                new MetricsExporter() {
+                    @Override
+                    public void export(MetricsSnapshot snapshot)
+                    {
+                        snapshots.add(snapshot);
+                    }
+                });
+        reporter.report();
+
+        assertEquals(1, snapshots.size());
+        assertEquals(Long.valueOf(1), snapshots.get(0).getCounters().get("count"));
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.andrewkroh.cisco.common.TestUtils;
+
+/**
+ * Finds the maximum packet rate that {@link MulticastCaptureEngine} sustains
+ * without loss. RTP sized datagrams are sent over the loopback interface,
+ * round-robin across {@code groups} multicast groups, paced at {@code rate}
+ * packets per second. The {@code received} and {@code lost} counters are
+ * reported per second; the sustained rate is the highest {@code rate} whose
+ * {@code lost} is zero. A {@code send} score below {@code rate} means the
+ * single sending thread, not the capture engine, was the limit.
+ *
+ * <p/>
+ * Results depend on the kernel's socket receive buffer limits
+ * ({@code net.core.rmem_max} on Linux) as much as on the capture thread.
+ *
+ * @author akroh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(1)
+@Fork(1)
+public class MulticastCaptureEngineBenchmark
+{
+    /**
+     * RTP header plus 20 ms of G.711.
+     */
+    private static final int PACKET_SIZE = 172;
+
+    /**
+     * Offered load in packets per second.
+     */
+    @Param({"25000", "50000", "100000", "200000"})
+    private int rate;
+
+    /**
+     * Number of multicast groups, each on its own port.
+     */
+    @Param({"1", "24"})
+    private int groups;
+
+    /**
+     * {@code SO_RCVBUF} size requested for each channel.
+     */
+    @Param({"4194304"})
+    private int receiveBufferSize;
+
+    private MulticastCaptureEngine engine;
+
+    private Thread captureThread;
+
+    private DatagramChannel sender;
+
+    private InetSocketAddress[] groupAddresses;
+
+    private ByteBuffer packet;
+
+    private long intervalNanos;
+
+    private long nextSendNanos;
+
+    /**
+     * Datagrams received by the engine before the iteration started.
+     */
+    private long receivedBefore;
+
+    private long sent;
+
+    private int sequenceNumber;
+
+    /**
+     * Received and lost datagrams during an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters
+    {
+        public long received;
+
+        public long lost;
+
+        @Setup(Level.Iteration)
+        public void startIteration(MulticastCaptureEngineBenchmark benchmark)
+                throws InterruptedException
+        {
+            benchmark.startIteration();
+            received = 0;
+            lost = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void endIteration(MulticastCaptureEngineBenchmark benchmark)
+                throws InterruptedException
+        {
+            benchmark.awaitQuiet();
+            received = benchmark.engine.getDatagramCount() - benchmark.receivedBefore;
+            lost = benchmark.sent - received;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        NetworkInterface loopback =
+                NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+
+        engine = new MulticastCaptureEngine(loopback, receiveBufferSize,
+                new MulticastCaptureEngine.DatagramHandler() {
+                    @Override
+                    public void datagramReceived(ByteBuffer datagram,
+                                                 InetSocketAddress sender,
+                                                 int localPort, long arrivalNanos)
+                    {
+                        // Counted by the engine.
+                    }
+                });
+
+        groupAddresses = new InetSocketAddress[groups];
+        for (int i = 0; i < groups; i++)
+        {
+            groupAddresses[i] = new InetSocketAddress(
+                    "239.255.43." + (i + 1), TestUtils.getFreePort());
+            engine.join(groupAddresses[i]);
+        }
+
+        captureThread = new Thread(engine, "capture");
+        captureThread.start();
+
+        sender = DatagramChannel.open(StandardProtocolFamily.INET);
+        sender.setOption(StandardSocketOptions.IP_MULTICAST_IF, loopback);
+        sender.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+        packet = ByteBuffer.allocateDirect(PACKET_SIZE);
+        packet.put(0, (byte) 0x80);
+        intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        engine.close();
+        captureThread.join(5000);
+        sender.close();
+    }
+
+    private void startIteration() throws InterruptedException
+    {
+        awaitQuiet();
+        receivedBefore = engine.getDatagramCount();
+        sent = 0;
+        nextSendNanos = System.nanoTime();
+    }
+
+    /**
+     * Waits for the capture thread to read every datagram that is queued.
+     */
+    private void awaitQuiet() throws InterruptedException
+    {
+        long count;
+        do
+        {
+            count = engine.getDatagramCount();
+            Thread.sleep(50);
+        }
+        while (engine.getDatagramCount() != count);
+    }
+
+    @Benchmark
+    public void send(Counters counters) throws IOException
+    {
+        while (System.nanoTime() < nextSendNanos)
+        {
+            // Busy-wait to pace the sends.
+        }
+        nextSendNanos += intervalNanos;
+
+        packet.putShort(2, (short) sequenceNumber++);
+        packet.clear();
+        sender.send(packet, groupAddresses[sequenceNumber % groups]);
+        sent++;
+    }
+}
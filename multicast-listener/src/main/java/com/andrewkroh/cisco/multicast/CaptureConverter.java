@@ -0,0 +1,353 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import com.andrewkroh.cisco.common.HexUtility;
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+/**
+ * Offline tool that converts capture segments written by
+ * {@link CaptureWriter} into a hex dump or a pcap file that can be opened
+ * with Wireshark.
+ *
+ * <p/>
+ * The pcap file uses nanosecond timestamps and raw IP packets. The sender
+ * and the local port are known for each datagram, but the group address it
+ * was sent to is not, so the IP destination is taken from
+ * {@code --destination} (the unspecified address by default).
+ *
+ * @author akroh
+ */
+public class CaptureConverter
+{
+    /**
+     * Struct containing the command line arguments.
+     */
+    private static class Arguments
+    {
+        @Parameter(description = "Segment files or directories of segments", required = true)
+        private List<String> segments = new ArrayList<String>();
+
+        @Parameter(names={"--format", "-f"},
+                   description = "Output format: hex or pcap")
+        private String format = "hex";
+
+        @Parameter(names={"--output", "-o"},
+                   description = "Output file, standard output if not given")
+        private String output;
+
+        @Parameter(names={"--destination", "-d"},
+                   description = "IP destination address written to pcap packets")
+        private String destination;
+    }
+
+    /**
+     * pcap magic number for nanosecond resolution timestamps.
+     */
+    private static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+
+    /**
+     * pcap link type of raw IPv4 and IPv6 packets.
+     */
+    private static final int LINKTYPE_RAW = 101;
+
+    private static final int IPV4_HEADER_SIZE = 20;
+
+    private static final int IPV6_HEADER_SIZE = 40;
+
+    private static final int UDP_HEADER_SIZE = 8;
+
+    private static final int UDP_PROTOCOL = 17;
+
+    private static final int TTL = 64;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Parses the command line arguments and converts the segments.
+     *
+     * @param args
+     *            command line arguments as as String array
+     */
+    public static void main(String[] args)
+    {
+        Arguments arguments = new Arguments();
+        JCommander jcommander = new JCommander(arguments);
+
+        try
+        {
+            jcommander.parse(args);
+            if (!"hex".equals(arguments.format) && !"pcap".equals(arguments.format))
+            {
+                throw new ParameterException("Unknown format " + arguments.format + ".");
+            }
+        }
+        catch (ParameterException e)
+        {
+            System.err.println(e.getMessage());
+            jcommander.setProgramName(CaptureConverter.class.getName());
+            jcommander.usage();
+            System.exit(1);
+        }
+
+        try
+        {
+            List<File> segments = listSegments(arguments.segments);
+
+            OutputStream out = new BufferedOutputStream(arguments.output == null ?
+                    System.out : new FileOutputStream(arguments.output));
+            try
+            {
+                if ("pcap".equals(arguments.format))
+                {
+                    InetAddress destination = arguments.destination == null ?
+                            null : InetAddress.getByName(arguments.destination);
+                    toPcap(segments, destination, out);
+                }
+                else
+                {
+                    toHex(segments, out);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Expands directories into the segment files they contain. Segments are
+     * returned in the order given, with the contents of each directory
+     * ordered by name (which is also the order they were written in).
+     *
+     * @param paths
+     *            segment files or directories
+     * @return segment files
+     */
+    static List<File> listSegments(List<String> paths)
+    {
+        List<File> segments = new ArrayList<File>();
+        for (String path : paths)
+        {
+            File file = new File(path);
+            if (!file.isDirectory())
+            {
+                segments.add(file);
+                continue;
+            }
+
+            File[] files = file.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name)
+                {
+                    return name.endsWith(CaptureFormat.SEGMENT_EXTENSION);
+                }
+            });
+            if (files != null)
+            {
+                Arrays.sort(files);
+                segments.addAll(Arrays.asList(files));
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Writes one line per datagram containing the UTC receive time, the
+     * sender, the local port, the length and the datagram in hex.
+     *
+     * @param segments
+     *            segment files to convert
+     * @param out
+     *            stream to write the dump to
+     * @throws IOException
+     *             if reading or writing fails
+     */
+    static void toHex(List<File> segments, OutputStream out) throws IOException
+    {
+        SimpleDateFormat dateFormat =
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.US_ASCII);
+        for (File file : segments)
+        {
+            try (CaptureReader reader = new CaptureReader(file))
+            {
+                while (reader.next())
+                {
+                    long timestamp = reader.getTimestampNanos();
+                    ByteBuffer datagram = reader.getDatagram();
+
+                    writer.write(String.format(Locale.US, "%s.%09dZ %s:%d -> :%d %d ",
+                            dateFormat.format(new Date(TimeUnit.NANOSECONDS.toMillis(timestamp))),
+                            timestamp % NANOS_PER_SECOND,
+                            reader.getSender().getAddress().getHostAddress(),
+                            reader.getSender().getPort(),
+                            reader.getLocalPort(),
+                            datagram.remaining()));
+                    HexUtility.appendHex(writer, datagram,
+                            datagram.position(), datagram.remaining());
+                    writer.write(System.getProperty("line.separator"));
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the datagrams as a pcap file of raw IP/UDP packets.
+     *
+     * @param segments
+     *            segment files to convert
+     * @param destination
+     *            IP destination address of the packets, or null for the
+     *            unspecified address
+     * @param out
+     *            stream to write the pcap file to
+     * @throws IOException
+     *             if reading or writing fails
+     */
+    static void toPcap(List<File> segments, InetAddress destination,
+                       OutputStream out) throws IOException
+    {
+        DataOutputStream pcap = new DataOutputStream(out);
+        pcap.writeInt(PCAP_MAGIC_NANOS);
+        pcap.writeShort(2);
+        pcap.writeShort(4);
+        pcap.writeInt(0);
+        pcap.writeInt(0);
+        pcap.writeInt(0xFFFF);
+        pcap.writeInt(LINKTYPE_RAW);
+
+        byte[] destination4 = destinationBytes(destination, 4);
+        byte[] destination6 = destinationBytes(destination, 16);
+
+        for (File file : segments)
+        {
+            try (CaptureReader reader = new CaptureReader(file))
+            {
+                while (reader.next())
+                {
+                    ByteBuffer datagram = reader.getDatagram();
+                    InetAddress sender = reader.getSender().getAddress();
+                    boolean ipv4 = sender instanceof Inet4Address;
+                    int udpLength = UDP_HEADER_SIZE + datagram.remaining();
+                    int packetLength = (ipv4 ? IPV4_HEADER_SIZE : IPV6_HEADER_SIZE) + udpLength;
+
+                    long timestamp = reader.getTimestampNanos();
+                    pcap.writeInt((int) (timestamp / NANOS_PER_SECOND));
+                    pcap.writeInt((int) (timestamp % NANOS_PER_SECOND));
+                    pcap.writeInt(packetLength);
+                    pcap.writeInt(packetLength);
+
+                    if (ipv4)
+                    {
+                        pcap.write(ipv4Header(sender.getAddress(), destination4, packetLength));
+                    }
+                    else
+                    {
+                        pcap.writeInt(0x60000000);
+                        pcap.writeShort(udpLength);
+                        pcap.writeByte(UDP_PROTOCOL);
+                        pcap.writeByte(TTL);
+                        pcap.write(sender.getAddress());
+                        pcap.write(destination6);
+                    }
+
+                    // UDP header without a checksum.
+                    pcap.writeShort(reader.getSender().getPort());
+                    pcap.writeShort(reader.getLocalPort());
+                    pcap.writeShort(udpLength);
+                    pcap.writeShort(0);
+
+                    byte[] data = new byte[datagram.remaining()];
+                    datagram.get(data);
+                    pcap.write(data);
+                }
+            }
+        }
+        pcap.flush();
+    }
+
+    private static byte[] destinationBytes(InetAddress destination, int length)
+    {
+        if (destination != null && destination.getAddress().length == length)
+        {
+            return destination.getAddress();
+        }
+        return new byte[length];
+    }
+
+    private static byte[] ipv4Header(byte[] source, byte[] destination, int totalLength)
+    {
+        ByteBuffer header = ByteBuffer.allocate(IPV4_HEADER_SIZE);
+        header.put((byte) 0x45);
+        header.put((byte) 0);
+        header.putShort((short) totalLength);
+        header.putShort((short) 0);
+        header.putShort((short) 0x4000);
+        header.put((byte) TTL);
+        header.put((byte) UDP_PROTOCOL);
+        header.putShort((short) 0);
+        header.put(source);
+        header.put(destination);
+
+        int sum = 0;
+        for (int i = 0; i < IPV4_HEADER_SIZE; i += 2)
+        {
+            sum += header.getShort(i) & 0xFFFF;
+        }
+        while ((sum >>> 16) != 0)
+        {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        header.putShort(10, (short) ~sum);
+
+        return header.array();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+/**
+ * Layout of the capture segment files written by {@link CaptureWriter}. All
+ * values are big-endian.
+ *
+ * <pre>
+ * Segment header (16 bytes):
+ *   int    magic            'MCAP'
+ *   short  version          1
+ *   short  reserved
+ *   long   created          epoch nanoseconds
+ *
+ * Record (33 byte header followed by the datagram):
+ *   int    length           datagram length
+ *   long   timestamp        epoch nanoseconds at which it was received
+ *   byte   addressLength    4 (IPv4) or 16 (IPv6), 0 marks the end of the
+ *                           segment
+ *   byte[16] address        sender address, zero padded
+ *   short  senderPort
+ *   short  localPort        UDP port on which it was received
+ *   byte[] datagram
+ * </pre>
+ *
+ * @author akroh
+ */
+final class CaptureFormat
+{
+    static final int MAGIC = 0x4D434150;
+
+    static final short VERSION = 1;
+
+    static final int SEGMENT_HEADER_SIZE = 16;
+
+    static final int RECORD_HEADER_SIZE = 33;
+
+    static final int ADDRESS_SIZE = 16;
+
+    /**
+     * File name extension of segment files.
+     */
+    static final String SEGMENT_EXTENSION = ".mcap";
+
+    private CaptureFormat()
+    {
+        // Constants only.
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Reads the records of a segment file written by {@link CaptureWriter}.
+ *
+ * <pre>
+ * try (CaptureReader reader = new CaptureReader(file))
+ * {
+ *     while (reader.next())
+ *     {
+ *         ByteBuffer datagram = reader.getDatagram();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author akroh
+ */
+public class CaptureReader implements Closeable
+{
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer segment;
+
+    private final long createdNanos;
+
+    private long timestampNanos;
+
+    private InetSocketAddress sender;
+
+    private int localPort;
+
+    private ByteBuffer datagram;
+
+    /**
+     * Opens a segment file.
+     *
+     * @param file
+     *            segment file
+     * @throws IOException
+     *             if the file cannot be read or is not a capture segment
+     */
+    public CaptureReader(File file) throws IOException
+    {
+        Preconditions.checkNotNull(file, "File cannot be null.");
+        this.file = file;
+
+        channel = new RandomAccessFile(file, "r").getChannel();
+        try
+        {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (segment.remaining() < CaptureFormat.SEGMENT_HEADER_SIZE ||
+                    segment.getInt() != CaptureFormat.MAGIC)
+            {
+                throw new IOException(file + " is not a capture segment.");
+            }
+
+            short version = segment.getShort();
+            if (version != CaptureFormat.VERSION)
+            {
+                throw new IOException(file + " has unsupported version " + version + ".");
+            }
+            segment.getShort();
+            createdNanos = segment.getLong();
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the segment file being read.
+     *
+     * @return the file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Returns the time at which the segment was created.
+     *
+     * @return epoch nanoseconds
+     */
+    public long getCreatedNanos()
+    {
+        return createdNanos;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return true if there is a record, false at the end of the segment
+     * @throws IOException
+     *             if the record is malformed
+     */
+    public boolean next() throws IOException
+    {
+        if (segment.remaining() < CaptureFormat.RECORD_HEADER_SIZE)
+        {
+            return false;
+        }
+
+        // The unused end of a segment that was not truncated is zero filled.
+        int start = segment.position();
+        int addressLength = segment.get(start + 12);
+        if (addressLength == 0)
+        {
+            return false;
+        }
+        if (addressLength != 4 && addressLength != 16)
+        {
+            throw new IOException("Malformed address at offset " + start + " of " + file + ".");
+        }
+
+        int length = segment.getInt(start);
+        if (length < 0 || length > segment.remaining() - CaptureFormat.RECORD_HEADER_SIZE)
+        {
+            throw new IOException("Malformed record at offset " + start + " of " + file + ".");
+        }
+
+        timestampNanos = segment.getLong(start + 4);
+        byte[] address = new byte[CaptureFormat.ADDRESS_SIZE];
+        segment.position(start + 13);
+        segment.get(address);
+        sender = new InetSocketAddress(
+                InetAddress.getByAddress(Arrays.copyOf(address, addressLength)),
+                segment.getShort(start + 29) & 0xFFFF);
+        localPort = segment.getShort(start + 31) & 0xFFFF;
+
+        int dataStart = start + CaptureFormat.RECORD_HEADER_SIZE;
+        segment.limit(dataStart + length);
+        segment.position(dataStart);
+        datagram = segment.slice().asReadOnlyBuffer();
+        segment.limit(segment.capacity());
+        segment.position(dataStart + length);
+
+        return true;
+    }
+
+    /**
+     * Returns the time at which the current record's datagram was received.
+     *
+     * @return epoch nanoseconds
+     */
+    public long getTimestampNanos()
+    {
+        return timestampNanos;
+    }
+
+    public InetSocketAddress getSender()
+    {
+        return sender;
+    }
+
+    public int getLocalPort()
+    {
+        return localPort;
+    }
+
+    /**
+     * Returns the current record's datagram.
+     *
+     * @return read-only buffer containing the datagram
+     */
+    public ByteBuffer getDatagram()
+    {
+        return datagram.duplicate();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cisco.common.ExceptionHandler;
+import com.andrewkroh.cisco.common.NamedThreadFactory;
+import com.google.common.base.Preconditions;
+
+/**
+ * Appends received datagrams to memory-mapped segment files in a directory.
+ * The file layout is described by {@link CaptureFormat}; segments can be
+ * read back with {@link CaptureReader} and converted to hex or pcap with
+ * {@link CaptureConverter}.
+ *
+ * <p/>
+ * {@link #write(ByteBuffer, InetSocketAddress, int, long)} only copies the
+ * record into an in-memory ring buffer, so the receiving thread never
+ * blocks on the disk. A background thread moves the records from the ring
+ * into the current segment, starting a new segment when the current one is
+ * full or has been open for the configured time. If the writer falls behind
+ * and the ring fills up, records are dropped and counted.
+ *
+ * <p/>
+ * {@code write} must always be called from the same thread.
+ *
+ * @author akroh
+ */
+public class CaptureWriter implements Closeable
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(CaptureWriter.class);
+
+    /**
+     * Default maximum size of a segment file (64 MiB).
+     */
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Default size of the ring buffer between the receiving thread and the
+     * writer thread (16 MiB).
+     */
+    public static final int DEFAULT_BUFFER_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Largest datagram that can be captured.
+     */
+    private static final int MAX_UDP_SIZE = 65507;
+
+    /**
+     * Ring buffer marker meaning the rest of the ring is unused and the next
+     * record starts at offset 0.
+     */
+    private static final int WRAP_MARKER = -1;
+
+    /**
+     * Time the writer thread sleeps when the ring buffer is empty.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final File directory;
+
+    private final long maxSegmentBytes;
+
+    private final long maxSegmentNanos;
+
+    /**
+     * Difference between epoch nanoseconds and {@link System#nanoTime()}.
+     */
+    private final long epochOffsetNanos;
+
+    // --- Ring buffer shared by the receiving and writer threads ---
+
+    private final int ringCapacity;
+
+    private final int ringMask;
+
+    /**
+     * View of the ring used only by the receiving thread.
+     */
+    private final ByteBuffer producerRing;
+
+    /**
+     * View of the ring used only by the writer thread.
+     */
+    private final ByteBuffer consumerRing;
+
+    /**
+     * Total bytes written into the ring. Only advanced by the receiving thread.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Total bytes read from the ring. Only advanced by the writer thread.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    // --- Only accessed by the writer thread ---
+
+    private FileChannel segmentChannel;
+
+    private MappedByteBuffer segment;
+
+    private long segmentOpenedNanos;
+
+    // --- Statistics ---
+
+    private final AtomicLong recordCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong segmentCount = new AtomicLong();
+
+    private final Thread writerThread;
+
+    private volatile boolean closed;
+
+    private volatile boolean failed;
+
+    /**
+     * Creates a writer using the default buffer size.
+     *
+     * @param directory
+     *            directory in which segment files are created
+     * @param maxSegmentBytes
+     *            maximum size of a segment file
+     * @param maxSegmentTime
+     *            maximum time a segment is written to before a new one is
+     *            started, or 0 to only rotate by size
+     * @param unit
+     *            unit of {@code maxSegmentTime}
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public CaptureWriter(File directory, long maxSegmentBytes,
+                         long maxSegmentTime, TimeUnit unit)
+            throws IOException
+    {
+        this(directory, maxSegmentBytes, maxSegmentTime, unit, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param directory
+     *            directory in which segment files are created
+     * @param maxSegmentBytes
+     *            maximum size of a segment file
+     * @param maxSegmentTime
+     *            maximum time a segment is written to before a new one is
+     *            started, or 0 to only rotate by size
+     * @param unit
+     *            unit of {@code maxSegmentTime}
+     * @param bufferBytes
+     *            size of the ring buffer holding records that have not been
+     *            written yet, rounded up to a power of two
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public CaptureWriter(File directory, long maxSegmentBytes,
+                         long maxSegmentTime, TimeUnit unit, int bufferBytes)
+            throws IOException
+    {
+        Preconditions.checkNotNull(directory, "Directory cannot be null.");
+        Preconditions.checkNotNull(unit, "Time unit cannot be null.");
+        Preconditions.checkArgument(maxSegmentBytes >= CaptureFormat.SEGMENT_HEADER_SIZE +
+                CaptureFormat.RECORD_HEADER_SIZE + MAX_UDP_SIZE,
+                "Maximum segment size is too small to hold a datagram.");
+        Preconditions.checkArgument(maxSegmentBytes <= Integer.MAX_VALUE,
+                "Maximum segment size cannot exceed 2 GiB.");
+        Preconditions.checkArgument(maxSegmentTime >= 0,
+                "Maximum segment time cannot be negative.");
+        Preconditions.checkArgument(bufferBytes >= 2 * (CaptureFormat.RECORD_HEADER_SIZE + MAX_UDP_SIZE),
+                "Buffer is too small to hold a datagram.");
+        Preconditions.checkArgument(bufferBytes <= 1 << 30,
+                "Buffer cannot exceed 1 GiB.");
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create directory " + directory + ".");
+        }
+
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentNanos = unit.toNanos(maxSegmentTime);
+        this.epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(
+                System.currentTimeMillis()) - System.nanoTime();
+
+        ringCapacity = Integer.highestOneBit(bufferBytes - 1) << 1;
+        ringMask = ringCapacity - 1;
+        ByteBuffer ring = ByteBuffer.allocateDirect(ringCapacity);
+        producerRing = ring.duplicate();
+        consumerRing = ring.duplicate();
+
+        writerThread = new NamedThreadFactory("capture-writer", new ExceptionHandler() {
+            @Override
+            public void handle(Exception e, String message)
+            {
+                LOGGER.error(message, e);
+            }
+        }).newThread(new Runnable() {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        });
+        writerThread.start();
+    }
+
+    /**
+     * Queues a datagram to be written. Does not block or allocate.
+     *
+     * @param datagram
+     *            datagram contents between position and limit; the buffer's
+     *            position and limit are not modified
+     * @param sender
+     *            address of the sender
+     * @param localPort
+     *            UDP port on which the datagram was received
+     * @param arrivalNanos
+     *            {@link System#nanoTime()} at which the datagram arrived
+     * @return true if the datagram was queued, false if it was dropped
+     *         because the writer has fallen behind or failed
+     */
+    public boolean write(ByteBuffer datagram, InetSocketAddress sender,
+                         int localPort, long arrivalNanos)
+    {
+        int length = datagram.remaining();
+        int recordSize = CaptureFormat.RECORD_HEADER_SIZE + length;
+
+        long h = head.get();
+        int offset = (int) (h & ringMask);
+        int contiguous = ringCapacity - offset;
+        int padding = recordSize > contiguous ? contiguous : 0;
+
+        if (closed || failed || h + padding + recordSize - tail.get() > ringCapacity)
+        {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+
+        if (padding > 0)
+        {
+            // The writer skips the end of the ring if it is too short for a
+            // record header, otherwise it needs a marker.
+            if (contiguous >= CaptureFormat.RECORD_HEADER_SIZE)
+            {
+                producerRing.putInt(offset, WRAP_MARKER);
+            }
+            offset = 0;
+        }
+
+        byte[] address = sender.getAddress().getAddress();
+        producerRing.putInt(offset, length);
+        producerRing.putLong(offset + 4, epochOffsetNanos + arrivalNanos);
+        producerRing.put(offset + 12, (byte) address.length);
+        for (int i = 0; i < CaptureFormat.ADDRESS_SIZE; i++)
+        {
+            producerRing.put(offset + 13 + i, i < address.length ? address[i] : 0);
+        }
+        producerRing.putShort(offset + 29, (short) sender.getPort());
+        producerRing.putShort(offset + 31, (short) localPort);
+
+        int position = datagram.position();
+        producerRing.position(offset + CaptureFormat.RECORD_HEADER_SIZE);
+        producerRing.put(datagram);
+        datagram.position(position);
+
+        head.lazySet(h + padding + recordSize);
+        return true;
+    }
+
+    /**
+     * Returns the number of records written to segment files.
+     *
+     * @return number of records
+     */
+    public long getRecordCount()
+    {
+        return recordCount.get();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because the ring buffer was
+     * full or the writer failed.
+     *
+     * @return number of dropped datagrams
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of segment files that have been created.
+     *
+     * @return number of segments
+     */
+    public long getSegmentCount()
+    {
+        return segmentCount.get();
+    }
+
+    /**
+     * Writes the queued records, closes the current segment and stops the
+     * writer thread.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(writerThread);
+
+        try
+        {
+            writerThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop()
+    {
+        try
+        {
+            while (true)
+            {
+                long t = tail.get();
+                if (t == head.get())
+                {
+                    if (closed)
+                    {
+                        break;
+                    }
+                    if (segment != null && isSegmentExpired())
+                    {
+                        closeSegment();
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                int offset = (int) (t & ringMask);
+                int contiguous = ringCapacity - offset;
+                if (contiguous < CaptureFormat.RECORD_HEADER_SIZE ||
+                        consumerRing.getInt(offset) == WRAP_MARKER)
+                {
+                    tail.lazySet(t + contiguous);
+                    continue;
+                }
+
+                int recordSize = CaptureFormat.RECORD_HEADER_SIZE + consumerRing.getInt(offset);
+                if (segment == null)
+                {
+                    openSegment();
+                }
+                else if (segment.remaining() < recordSize || isSegmentExpired())
+                {
+                    closeSegment();
+                    openSegment();
+                }
+
+                consumerRing.limit(offset + recordSize);
+                consumerRing.position(offset);
+                segment.put(consumerRing);
+                consumerRing.limit(ringCapacity);
+
+                tail.lazySet(t + recordSize);
+                recordCount.incrementAndGet();
+            }
+        }
+        catch (IOException e)
+        {
+            failed = true;
+            LOGGER.error("Unable to write capture segment. Capture stopped.", e);
+        }
+        finally
+        {
+            try
+            {
+                closeSegment();
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("IOException while closing capture segment.", e);
+            }
+        }
+    }
+
+    private boolean isSegmentExpired()
+    {
+        return maxSegmentNanos > 0 &&
+                System.nanoTime() - segmentOpenedNanos >= maxSegmentNanos;
+    }
+
+    private void openSegment() throws IOException
+    {
+        long sequence = segmentCount.getAndIncrement();
+        File file = new File(directory, String.format(
+                "capture-%1$tY%1$tm%1$td-%1$tH%1$tM%1$tS-%2$04d%3$s",
+                new Date(), sequence, CaptureFormat.SEGMENT_EXTENSION));
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        segmentChannel = randomAccessFile.getChannel();
+        try
+        {
+            segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, maxSegmentBytes);
+        }
+        catch (IOException e)
+        {
+            segmentChannel.close();
+            segmentChannel = null;
+            throw e;
+        }
+        segmentOpenedNanos = System.nanoTime();
+
+        segment.putInt(CaptureFormat.MAGIC);
+        segment.putShort(CaptureFormat.VERSION);
+        segment.putShort((short) 0);
+        segment.putLong(epochOffsetNanos + segmentOpenedNanos);
+
+        LOGGER.info("Capturing to {}.", file);
+    }
+
+    private void closeSegment() throws IOException
+    {
+        if (segment == null)
+        {
+            return;
+        }
+
+        int size = segment.position();
+        segment.force();
+        segment = null;
+
+        try
+        {
+            // Some platforms do not allow truncating a file that is still
+            // mapped. The reader stops at the zero filled remainder either way.
+            segmentChannel.truncate(size);
+        }
+        catch (IOException e)
+        {
+            LOGGER.debug("Unable to truncate capture segment.", e);
+        }
+        finally
+        {
+            segmentChannel.close();
+            segmentChannel = null;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Receives datagrams from any number of multicast groups on a single thread.
+ *
+ * <p/>
+ * One non-blocking {@link DatagramChannel} is opened per UDP port and every
+ * group joined on that port is a {@link MembershipKey} of the channel. Groups
+ * may be any-source or source-specific (SSM). All of the channels are
+ * registered with one {@link Selector}, and when a channel becomes readable
+ * its datagrams are read into a single reused direct {@link ByteBuffer}. At
+ * most 64 datagrams are read from a channel per select so that a flooded
+ * group cannot starve the other ports; a channel with more queued stays
+ * ready and is read again after the next select.
+ *
+ * <p/>
+ * Groups may be joined before or while {@link #run()} is executing.
+ * {@code run()} blocks until {@link #close()} is called from another thread.
+ *
+ * @author akroh
+ */
+public class MulticastCaptureEngine implements Runnable, Closeable
+{
+    /**
+     * Receives each datagram captured by a {@link MulticastCaptureEngine}.
+     */
+    public interface DatagramHandler
+    {
+        /**
+         * Invoked on the capture thread for every datagram. The buffer is
+         * reused for the next datagram so it must not be retained.
+         *
+         * @param datagram
+         *            datagram contents between position and limit
+         * @param sender
+         *            address of the sender
+         * @param localPort
+         *            UDP port on which the datagram was received
+         * @param arrivalNanos
+         *            {@link System#nanoTime()} at which the datagram was read
+         */
+        void datagramReceived(ByteBuffer datagram, InetSocketAddress sender,
+                              int localPort, long arrivalNanos);
+    }
+
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(MulticastCaptureEngine.class);
+
+    /**
+     * The maximum UDP message size.
+     */
+    private static final int MAX_UDP_SIZE = 65507;
+
+    /**
+     * Maximum number of datagrams read from one channel per select.
+     */
+    private static final int MAX_DATAGRAMS_PER_SELECT = 64;
+
+    private final NetworkInterface networkInterface;
+
+    private final DatagramHandler handler;
+
+    private final int receiveBufferSize;
+
+    private final Selector selector;
+
+    /**
+     * Channels keyed by local port.
+     */
+    private final Map<Integer, DatagramChannel> channels =
+            new HashMap<Integer, DatagramChannel>();
+
+    private final List<MembershipKey> memberships = new ArrayList<MembershipKey>();
+
+    /**
+     * Channels waiting to be registered with the selector by the capture
+     * thread. Registering from another thread would block while the capture
+     * thread is selecting.
+     */
+    private final Queue<DatagramChannel> pendingChannels =
+            new ConcurrentLinkedQueue<DatagramChannel>();
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_UDP_SIZE);
+
+    private final AtomicLong datagramCount = new AtomicLong();
+
+    private final AtomicLong selectCount = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a capture engine that joins groups on the given interface.
+     *
+     * @param networkInterface
+     *            interface on which groups are joined
+     * @param receiveBufferSize
+     *            {@code SO_RCVBUF} size requested for each channel in bytes,
+     *            or 0 for the system default
+     * @param handler
+     *            handler invoked for every received datagram
+     * @throws IOException
+     *             if the selector cannot be opened
+     */
+    public MulticastCaptureEngine(NetworkInterface networkInterface,
+                                  int receiveBufferSize,
+                                  DatagramHandler handler)
+            throws IOException
+    {
+        Preconditions.checkNotNull(networkInterface, "Network interface cannot be null.");
+        Preconditions.checkNotNull(handler, "Handler cannot be null.");
+        Preconditions.checkArgument(receiveBufferSize >= 0,
+                "Receive buffer size cannot be negative.");
+
+        this.networkInterface = networkInterface;
+        this.receiveBufferSize = receiveBufferSize;
+        this.handler = handler;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Joins an any-source multicast group.
+     *
+     * @param group
+     *            multicast group address and UDP port
+     * @return the membership
+     * @throws IOException
+     *             if the channel cannot be opened or the group cannot be joined
+     */
+    public synchronized MembershipKey join(InetSocketAddress group)
+            throws IOException
+    {
+        return join(group, null);
+    }
+
+    /**
+     * Joins a multicast group, receiving only from {@code source} if it is
+     * not null (source-specific multicast).
+     *
+     * @param group
+     *            multicast group address and UDP port
+     * @param source
+     *            the only sender to receive from, or null for any sender
+     * @return the membership
+     * @throws IOException
+     *             if the channel cannot be opened or the group cannot be joined
+     */
+    public synchronized MembershipKey join(InetSocketAddress group,
+                                           InetAddress source)
+            throws IOException
+    {
+        Preconditions.checkNotNull(group, "Group cannot be null.");
+        Preconditions.checkArgument(group.getAddress().isMulticastAddress(),
+                "%s is not a multicast address.", group.getAddress());
+        Preconditions.checkState(!closed, "Capture engine is closed.");
+
+        DatagramChannel channel = getChannel(group.getPort(),
+                protocolFamily(group.getAddress()));
+
+        MembershipKey key = source == null ?
+                channel.join(group.getAddress(), networkInterface) :
+                channel.join(group.getAddress(), networkInterface, source);
+        memberships.add(key);
+
+        LOGGER.info("Joined multicast group {}:{}{} on {}.",
+                group.getAddress().getHostAddress(), group.getPort(),
+                source == null ? "" : " from source " + source.getHostAddress(),
+                networkInterface.getName());
+
+        return key;
+    }
+
+    /**
+     * Returns the memberships that have been joined.
+     *
+     * @return unmodifiable list of memberships
+     */
+    public synchronized List<MembershipKey> getMemberships()
+    {
+        return Collections.unmodifiableList(new ArrayList<MembershipKey>(memberships));
+    }
+
+    /**
+     * Returns the number of datagrams received.
+     *
+     * @return number of datagrams
+     */
+    public long getDatagramCount()
+    {
+        return datagramCount.get();
+    }
+
+    /**
+     * Returns the number of times the selector returned with readable
+     * channels. Each select may read many datagrams.
+     *
+     * @return number of selects
+     */
+    public long getSelectCount()
+    {
+        return selectCount.get();
+    }
+
+    /**
+     * Receives datagrams until {@link #close()} is called.
+     */
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (!closed)
+            {
+                registerPendingChannels();
+
+                if (selector.select() == 0)
+                {
+                    continue;
+                }
+                selectCount.incrementAndGet();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid() && key.isReadable())
+                    {
+                        read((DatagramChannel) key.channel(),
+                             (Integer) key.attachment());
+                    }
+                }
+            }
+        }
+        catch (ClosedSelectorException e)
+        {
+            // Closed while selecting.
+        }
+        catch (IOException e)
+        {
+            if (!closed)
+            {
+                LOGGER.warn("IOException while receiving data.", e);
+            }
+        }
+    }
+
+    private void registerPendingChannels() throws IOException
+    {
+        DatagramChannel channel;
+        while ((channel = pendingChannels.poll()) != null)
+        {
+            int localPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            channel.register(selector, SelectionKey.OP_READ, localPort);
+        }
+    }
+
+    /**
+     * Reads the datagrams queued on the channel, up to
+     * {@link #MAX_DATAGRAMS_PER_SELECT}.
+     */
+    private void read(DatagramChannel channel, int localPort) throws IOException
+    {
+        for (int i = 0; i < MAX_DATAGRAMS_PER_SELECT; i++)
+        {
+            buffer.clear();
+            InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+            if (sender == null)
+            {
+                return;
+            }
+            long arrivalNanos = System.nanoTime();
+            datagramCount.incrementAndGet();
+
+            buffer.flip();
+            try
+            {
+                handler.datagramReceived(buffer, sender, localPort, arrivalNanos);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.warn("Exception while handling datagram from {}.", sender, e);
+            }
+        }
+    }
+
+    /**
+     * Drops all memberships, closes the channels and causes {@link #run()} to
+     * return.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+
+        for (MembershipKey key : memberships)
+        {
+            key.drop();
+        }
+        memberships.clear();
+
+        for (DatagramChannel channel : channels.values())
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("IOException while closing channel.", e);
+            }
+        }
+        channels.clear();
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("IOException while closing selector.", e);
+        }
+    }
+
+    private DatagramChannel getChannel(int port, ProtocolFamily family)
+            throws IOException
+    {
+        DatagramChannel channel = channels.get(port);
+        if (channel != null)
+        {
+            return channel;
+        }
+
+        channel = DatagramChannel.open(family);
+        try
+        {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (receiveBufferSize > 0)
+            {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            channel.configureBlocking(false);
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        channels.put(port, channel);
+        pendingChannels.add(channel);
+        selector.wakeup();
+        return channel;
+    }
+
+    private static ProtocolFamily protocolFamily(InetAddress address)
+    {
+        return address instanceof Inet4Address ?
+                StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+    }
+
+    /**
+     * Returns the first interface that is up and supports multicast,
+     * preferring interfaces other than loopback.
+     *
+     * @return a multicast capable interface
+     * @throws SocketException
+     *             if the interfaces cannot be listed or none support multicast
+     */
+    public static NetworkInterface defaultInterface() throws SocketException
+    {
+        NetworkInterface loopback = null;
+
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements())
+        {
+            NetworkInterface ni = interfaces.nextElement();
+            if (!ni.isUp() || !ni.supportsMulticast())
+            {
+                continue;
+            }
+            if (!ni.isLoopback())
+            {
+                return ni;
+            }
+            loopback = ni;
+        }
+
+        if (loopback == null)
+        {
+            throw new SocketException("No network interface supports multicast.");
+        }
+        return loopback;
+    }
+}
@@ -16,24 +16,51 @@
 
 package com.andrewkroh.cisco.multicast;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.andrewkroh.cisco.common.ExceptionHandler;
 import com.andrewkroh.cisco.common.HexUtility;
+import com.andrewkroh.cisco.common.NamedThreadFactory;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import com.google.common.net.HostAndPort;
 
 /**
- * Utility for joining a multicast group and echoing out the data that
+ * Utility for joining multicast groups and echoing out the data that
  * is received in hex.
  *
+ * <p/>
+ * Any number of groups can be given with {@code --group}, each as
+ * {@code group:port} or, for source-specific multicast,
+ * {@code group:port@source}. All groups are received on one thread by a
+ * {@link MulticastCaptureEngine}.
+ *
+ * <p/>
+ * With {@code --analyze} the received data is instead treated as RTP and a
+ * per-stream health report (packet rate, bitrate, loss, duplicates, late
+ * packets and jitter) is printed every {@code --interval} seconds. See
+ * {@link StreamHealthAnalyzer}.
+ *
+ * <p/>
+ * With {@code --capture} the raw datagrams are written to rotating segment
+ * files in the given directory by a {@link CaptureWriter}. The segments can
+ * be converted to hex or pcap afterwards with {@link CaptureConverter}.
+ * {@code --capture} can be combined with {@code --analyze}.
+ *
  * @author akroh
  */
 public class MulticastListener
@@ -43,30 +70,65 @@ public class MulticastListener
      */
     private static class Arguments
     {
-        @Parameter(names={"--host", "-h"}, required = true)
+        @Parameter(names={"--host", "-h"},
+                   description = "Multicast group to join, used with --port")
         private String multicastHost;
 
-        @Parameter(names={"--port", "-p"}, required = true)
+        @Parameter(names={"--port", "-p"},
+                   description = "UDP port of the --host group")
         private int port;
+
+        @Parameter(names={"--group", "-g"},
+                   description = "Group to join as group:port or group:port@source, may be repeated")
+        private List<String> groups = new ArrayList<String>();
+
+        @Parameter(names={"--interface", "-n"},
+                   description = "Name of the network interface on which to join the groups")
+        private String interfaceName;
+
+        @Parameter(names={"--rcvbuf"},
+                   description = "Socket receive buffer size in bytes")
+        private int receiveBufferSize;
+
+        @Parameter(names={"--analyze", "-a"},
+                   description = "Print RTP stream health instead of hex")
+        private boolean analyze;
+
+        @Parameter(names={"--interval", "-i"},
+                   description = "Seconds between stream health reports")
+        private int reportIntervalSeconds = 5;
+
+        @Parameter(names={"--expire", "-e"},
+                   description = "Seconds after which an idle stream is removed from the report")
+        private int expireSeconds = 300;
+
+        @Parameter(names={"--capture", "-c"},
+                   description = "Directory to write raw capture segments to")
+        private String captureDirectory;
+
+        @Parameter(names={"--segment-size"},
+                   description = "Maximum size of a capture segment in MiB")
+        private int segmentSizeMegabytes = 64;
+
+        @Parameter(names={"--segment-seconds"},
+                   description = "Seconds after which a new capture segment is started, 0 for no limit")
+        private int segmentSeconds = 300;
     }
 
     /**
-     * SLF4J logger for this class.
+     * ANSI escape sequence that clears the terminal and moves the cursor to
+     * the top left corner.
      */
-    private static final Logger LOGGER =
-            LoggerFactory.getLogger(MulticastListener.class);
+    private static final String CLEAR_SCREEN = "\u001B[H\u001B[2J";
 
     /**
-     * The maximum UDP message size.
-     *
-     * <pre>
-     * 0xffff - (sizeof(IP Header) + sizeof(UDP Header)) = 65535-(20+8) = 65507
-     * </pre>
+     * SLF4J logger for this class.
      */
-    private static final int MAX_UDP_SIZE = 65507;
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(MulticastListener.class);
 
     /**
-     * Parses the command line arguments, joins the specified multicast group,
+     * Parses the command line arguments, joins the specified multicast groups,
      * and prints out all the data it receives in hex. User must Ctrl+C to quit.
      *
      * @param args
@@ -80,33 +142,98 @@ public class MulticastListener
         try
         {
             jcommander.parse(args);
+
+            if (arguments.multicastHost != null)
+            {
+                arguments.groups.add(HostAndPort.fromParts(
+                        arguments.multicastHost, arguments.port).toString());
+            }
+            if (arguments.groups.isEmpty())
+            {
+                throw new ParameterException("At least one group is required.");
+            }
         }
-        catch (ParameterException e)
+        catch (ParameterException | IllegalArgumentException e)
         {
+            System.err.println(e.getMessage());
             printUsage(jcommander);
             System.exit(1);
         }
 
         try
         {
-            InetAddress multicastGroupAddress =
-                    InetAddress.getByName(arguments.multicastHost);
-            MulticastSocket multicastSocket = new MulticastSocket(arguments.port);
-            multicastSocket.joinGroup(multicastGroupAddress);
+            NetworkInterface networkInterface = arguments.interfaceName == null ?
+                    MulticastCaptureEngine.defaultInterface() :
+                    NetworkInterface.getByName(arguments.interfaceName);
+            if (networkInterface == null)
+            {
+                throw new IOException("Network interface " +
+                        arguments.interfaceName + " does not exist.");
+            }
+
+            ScheduledExecutorService reporter = null;
+            MulticastCaptureEngine.DatagramHandler handler = null;
+            if (arguments.analyze)
+            {
+                StreamHealthAnalyzer analyzer = new StreamHealthAnalyzer();
+                handler = analyzerHandler(analyzer);
+                reporter = startReporter(analyzer, arguments);
+            }
+            final CaptureWriter captureWriter = arguments.captureDirectory == null ?
+                    null : new CaptureWriter(new File(arguments.captureDirectory),
+                        arguments.segmentSizeMegabytes * 1024L * 1024L,
+                        arguments.segmentSeconds, TimeUnit.SECONDS);
+            if (captureWriter != null)
+            {
+                handler = handler == null ? captureHandler(captureWriter) :
+                        bothHandlers(handler, captureHandler(captureWriter));
+            }
+            if (handler == null)
+            {
+                handler = hexHandler();
+            }
 
-            LOGGER.info("Joined multicast group {}.", multicastGroupAddress.getHostAddress());
+            final MulticastCaptureEngine engine = new MulticastCaptureEngine(
+                    networkInterface, arguments.receiveBufferSize, handler);
 
-            byte[] buffer = new byte[MAX_UDP_SIZE];
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            while (true)
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run()
+                {
+                    engine.close();
+
+                    // Flush the capture here since the JVM does not wait for
+                    // the main thread once shutdown has started.
+                    if (captureWriter != null)
+                    {
+                        captureWriter.close();
+                        LOGGER.info("Captured {} datagrams to {} segments, dropped {}.",
+                                captureWriter.getRecordCount(),
+                                captureWriter.getSegmentCount(),
+                                captureWriter.getDroppedCount());
+                    }
+                }
+            });
+
+            try
             {
-                multicastSocket.receive(packet);
+                for (String group : arguments.groups)
+                {
+                    join(engine, group);
+                }
 
-                if (LOGGER.isDebugEnabled())
+                engine.run();
+            }
+            finally
+            {
+                engine.close();
+                if (reporter != null)
+                {
+                    reporter.shutdownNow();
+                }
+                if (captureWriter != null)
                 {
-                    LOGGER.debug("Received: {}", HexUtility.bytesToHex(
-                            Arrays.copyOfRange(packet.getData(), 0,
-                                               packet.getLength())));
+                    captureWriter.close();
                 }
             }
         }
@@ -116,6 +243,133 @@ public class MulticastListener
         }
     }
 
+    /**
+     * Joins a group given as {@code group:port} or {@code group:port@source}.
+     */
+    private static void join(MulticastCaptureEngine engine, String group)
+            throws IOException
+    {
+        InetAddress source = null;
+        int separator = group.indexOf('@');
+        if (separator >= 0)
+        {
+            source = InetAddress.getByName(group.substring(separator + 1));
+            group = group.substring(0, separator);
+        }
+
+        HostAndPort hostAndPort = HostAndPort.fromString(group);
+        engine.join(new InetSocketAddress(
+                InetAddress.getByName(hostAndPort.getHostText()),
+                hostAndPort.getPort()), source);
+    }
+
+    private static MulticastCaptureEngine.DatagramHandler hexHandler()
+    {
+        return new MulticastCaptureEngine.DatagramHandler() {
+            /**
+             * Reused for every datagram; only used on the capture thread.
+             */
+            private final StringBuilder hex = new StringBuilder();
+
+            @Override
+            public void datagramReceived(ByteBuffer datagram,
+                                         InetSocketAddress sender,
+                                         int localPort, long arrivalNanos)
+            {
+                if (LOGGER.isDebugEnabled())
+                {
+                    hex.setLength(0);
+                    HexUtility.appendHex(hex, datagram,
+                            datagram.position(), datagram.remaining());
+                    LOGGER.debug("Received: {}", hex);
+                }
+            }
+        };
+    }
+
+    private static MulticastCaptureEngine.DatagramHandler analyzerHandler(
+            final StreamHealthAnalyzer analyzer)
+    {
+        return new MulticastCaptureEngine.DatagramHandler() {
+            @Override
+            public void datagramReceived(ByteBuffer datagram,
+                                         InetSocketAddress sender,
+                                         int localPort, long arrivalNanos)
+            {
+                analyzer.packetReceived(datagram, sender.getAddress(),
+                        sender.getPort(), arrivalNanos);
+            }
+        };
+    }
+
+    private static MulticastCaptureEngine.DatagramHandler captureHandler(
+            final CaptureWriter captureWriter)
+    {
+        return new MulticastCaptureEngine.DatagramHandler() {
+            @Override
+            public void datagramReceived(ByteBuffer datagram,
+                                         InetSocketAddress sender,
+                                         int localPort, long arrivalNanos)
+            {
+                captureWriter.write(datagram, sender, localPort, arrivalNanos);
+            }
+        };
+    }
+
+    private static MulticastCaptureEngine.DatagramHandler bothHandlers(
+            final MulticastCaptureEngine.DatagramHandler first,
+            final MulticastCaptureEngine.DatagramHandler second)
+    {
+        return new MulticastCaptureEngine.DatagramHandler() {
+            @Override
+            public void datagramReceived(ByteBuffer datagram,
+                                         InetSocketAddress sender,
+                                         int localPort, long arrivalNanos)
+            {
+                first.datagramReceived(datagram, sender, localPort, arrivalNanos);
+                second.datagramReceived(datagram, sender, localPort, arrivalNanos);
+            }
+        };
+    }
+
+    /**
+     * Starts printing the analyzer's report every {@code --interval} seconds.
+     *
+     * @param analyzer
+     *            analyzer being fed by the capture engine
+     * @param arguments
+     *            command line arguments
+     * @return the executor running the reports
+     */
+    private static ScheduledExecutorService startReporter(
+            final StreamHealthAnalyzer analyzer, final Arguments arguments)
+    {
+        final boolean interactive = System.console() != null;
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("stream-health-reporter", new ExceptionHandler() {
+                    @Override
+                    public void handle(Exception e, String message)
+                    {
+                        LOGGER.warn(message, e);
+                    }
+                }));
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run()
+            {
+                long now = System.nanoTime();
+                analyzer.expireIdleStreams(arguments.expireSeconds, TimeUnit.SECONDS, now);
+
+                String report = analyzer.buildReport(now);
+                System.out.print(interactive ? CLEAR_SCREEN + report : report);
+                System.out.flush();
+            }
+        }, arguments.reportIntervalSeconds, arguments.reportIntervalSeconds, TimeUnit.SECONDS);
+
+        return reporter;
+    }
+
     /**
      * Prints the command line usage information.
      *
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import java.net.InetAddress;
+
+/**
+ * Counters for one RTP stream (SSRC) observed by a
+ * {@link StreamHealthAnalyzer}. The counters are only written by the thread
+ * that receives packets and can be read from any thread.
+ *
+ * @author akroh
+ */
+public final class RtpStreamStats
+{
+    /**
+     * Number of sequence numbers tracked behind the highest sequence number
+     * for detecting duplicates and late arrivals.
+     */
+    private static final int HISTORY_SIZE = 64;
+
+    private static final int SEQUENCE_MODULUS = 0x10000;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final int ssrc;
+
+    private final long firstArrivalNanos;
+
+    private volatile InetAddress sourceAddress;
+
+    private volatile int sourcePort;
+
+    private volatile int payloadType;
+
+    private volatile long packets;
+
+    private volatile long bytes;
+
+    private volatile long lost;
+
+    private volatile long duplicates;
+
+    private volatile long late;
+
+    /**
+     * RFC 3550 interarrival jitter in RTP timestamp units.
+     */
+    private volatile double jitter;
+
+    private volatile long lastArrivalNanos;
+
+    // --- Only accessed by the receiving thread ---
+
+    private int highestSequenceNumber;
+
+    /**
+     * Bit {@code n} is set if sequence number
+     * {@code highestSequenceNumber - n} has been received.
+     */
+    private long receivedHistory;
+
+    /**
+     * RTP timestamp and arrival time of the last packet used for the jitter.
+     */
+    private int lastTimestamp;
+
+    private long lastJitterArrivalNanos;
+
+    // --- Only accessed by the reporting thread ---
+
+    long reportedPackets;
+
+    long reportedBytes;
+
+    long reportedNanos;
+
+    RtpStreamStats(int ssrc, long arrivalNanos)
+    {
+        this.ssrc = ssrc;
+        this.firstArrivalNanos = arrivalNanos;
+        this.reportedNanos = arrivalNanos;
+    }
+
+    /**
+     * Updates the counters with a received packet. This does not allocate.
+     */
+    void update(InetAddress source, int port, int payloadType,
+                int sequenceNumber, long timestamp, int length,
+                long arrivalNanos)
+    {
+        if (source != sourceAddress)
+        {
+            sourceAddress = source;
+        }
+        if (port != sourcePort)
+        {
+            sourcePort = port;
+        }
+        if (payloadType != this.payloadType)
+        {
+            this.payloadType = payloadType;
+        }
+
+        long count = packets;
+        if (count == 0)
+        {
+            highestSequenceNumber = sequenceNumber;
+            receivedHistory = 1;
+            updateJitter(timestamp, arrivalNanos, true);
+        }
+        else
+        {
+            int delta = (sequenceNumber - highestSequenceNumber) & (SEQUENCE_MODULUS - 1);
+
+            if (delta == 0)
+            {
+                duplicates++;
+            }
+            else if (delta < SEQUENCE_MODULUS / 2)
+            {
+                if (delta > 1)
+                {
+                    lost += delta - 1;
+                }
+                receivedHistory = delta >= HISTORY_SIZE ? 1 :
+                        (receivedHistory << delta) | 1;
+                highestSequenceNumber = sequenceNumber;
+                updateJitter(timestamp, arrivalNanos, false);
+            }
+            else
+            {
+                int behind = SEQUENCE_MODULUS - delta;
+                long bit = behind < HISTORY_SIZE ? 1L << behind : 0;
+
+                if ((receivedHistory & bit) != 0)
+                {
+                    duplicates++;
+                }
+                else
+                {
+                    receivedHistory |= bit;
+                    late++;
+                    if (bit != 0 && lost > 0)
+                    {
+                        lost--;
+                    }
+                }
+            }
+        }
+
+        packets = count + 1;
+        bytes += length;
+        lastArrivalNanos = arrivalNanos;
+    }
+
+    private void updateJitter(long timestamp, long arrivalNanos, boolean first)
+    {
+        if (!first)
+        {
+            // D(i-1,i) of RFC 3550 from the differences of consecutive
+            // packets. The timestamp difference is taken as a signed 32-bit
+            // value so that it stays small when the timestamp wraps.
+            double arrivalDelta = (double) (arrivalNanos - lastJitterArrivalNanos) *
+                    getClockRate() / NANOS_PER_SECOND;
+            int timestampDelta = (int) timestamp - lastTimestamp;
+            double difference = Math.abs(arrivalDelta - timestampDelta);
+            jitter += (difference - jitter) / 16;
+        }
+        lastTimestamp = (int) timestamp;
+        lastJitterArrivalNanos = arrivalNanos;
+    }
+
+    public int getSsrc()
+    {
+        return ssrc;
+    }
+
+    public InetAddress getSourceAddress()
+    {
+        return sourceAddress;
+    }
+
+    public int getSourcePort()
+    {
+        return sourcePort;
+    }
+
+    public int getPayloadType()
+    {
+        return payloadType;
+    }
+
+    public long getPacketCount()
+    {
+        return packets;
+    }
+
+    public long getByteCount()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of sequence numbers that were skipped and have not
+     * arrived late.
+     *
+     * @return number of lost packets
+     */
+    public long getLostCount()
+    {
+        return lost;
+    }
+
+    public long getDuplicateCount()
+    {
+        return duplicates;
+    }
+
+    /**
+     * Returns the number of packets that arrived after a packet with a higher
+     * sequence number.
+     *
+     * @return number of late packets
+     */
+    public long getLateCount()
+    {
+        return late;
+    }
+
+    /**
+     * Returns the RFC 3550 interarrival jitter in milliseconds.
+     *
+     * @return jitter in milliseconds
+     */
+    public double getJitterMillis()
+    {
+        return jitter * 1000 / getClockRate();
+    }
+
+    public long getFirstArrivalNanos()
+    {
+        return firstArrivalNanos;
+    }
+
+    public long getLastArrivalNanos()
+    {
+        return lastArrivalNanos;
+    }
+
+    /**
+     * Returns the RTP clock rate of the stream's payload type. The G.711
+     * payload types use an 8000 Hz clock and dynamic payload types are
+     * assumed to do the same.
+     *
+     * @return clock rate in Hz
+     */
+    public int getClockRate()
+    {
+        return 8000;
+    }
+}
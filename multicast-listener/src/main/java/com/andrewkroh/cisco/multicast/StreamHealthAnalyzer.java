@@ -0,0 +1,319 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses received datagrams as RTP and keeps {@link RtpStreamStats} for each
+ * SSRC: packet and byte counts, sequence gaps, duplicates, late packets and
+ * interarrival jitter.
+ *
+ * <p/>
+ * {@link #packetReceived(ByteBuffer, InetAddress, int, long)} must always be
+ * called from the same thread and does not allocate once a stream has been
+ * seen. Streams are held in an open-addressed table keyed by the primitive
+ * SSRC which is replaced (copy-on-write) only when a stream is added or
+ * expired, so lookups need no locking. Reports and expiration may be run
+ * from any other thread.
+ *
+ * @author akroh
+ */
+public class StreamHealthAnalyzer
+{
+    private static final int RTP_HEADER_SIZE = 12;
+
+    private static final int RTP_VERSION = 2;
+
+    private final Object tableLock = new Object();
+
+    /**
+     * Open-addressed table of streams. The length is a power of two and is
+     * kept at least twice the number of streams.
+     */
+    private volatile RtpStreamStats[] table = new RtpStreamStats[16];
+
+    private final AtomicLong invalidPackets = new AtomicLong();
+
+    /**
+     * Updates the stream statistics with a received datagram.
+     *
+     * @param datagram
+     *            datagram contents between position and limit; the buffer's
+     *            position and limit are not modified
+     * @param source
+     *            address of the sender
+     * @param sourcePort
+     *            port of the sender
+     * @param arrivalNanos
+     *            {@link System#nanoTime()} at which the datagram arrived
+     */
+    public void packetReceived(ByteBuffer datagram, InetAddress source,
+                               int sourcePort, long arrivalNanos)
+    {
+        int offset = datagram.position();
+        int length = datagram.remaining();
+
+        if (length < RTP_HEADER_SIZE ||
+                (datagram.get(offset) & 0xC0) >>> 6 != RTP_VERSION)
+        {
+            invalidPackets.incrementAndGet();
+            return;
+        }
+
+        int payloadType = datagram.get(offset + 1) & 0x7F;
+        int sequenceNumber = datagram.getShort(offset + 2) & 0xFFFF;
+        long timestamp = datagram.getInt(offset + 4) & 0xFFFFFFFFL;
+        int ssrc = datagram.getInt(offset + 8);
+
+        RtpStreamStats stream = find(table, ssrc);
+        if (stream == null)
+        {
+            stream = add(ssrc, arrivalNanos);
+        }
+
+        stream.update(source, sourcePort, payloadType, sequenceNumber,
+                timestamp, length, arrivalNanos);
+    }
+
+    /**
+     * Returns the number of datagrams that were not RTP.
+     *
+     * @return number of invalid datagrams
+     */
+    public long getInvalidPacketCount()
+    {
+        return invalidPackets.get();
+    }
+
+    /**
+     * Returns the streams that have been seen, ordered by SSRC.
+     *
+     * @return list of streams
+     */
+    public List<RtpStreamStats> getStreams()
+    {
+        List<RtpStreamStats> streams = new ArrayList<RtpStreamStats>();
+        for (RtpStreamStats stream : table)
+        {
+            if (stream != null)
+            {
+                streams.add(stream);
+            }
+        }
+
+        Collections.sort(streams, new Comparator<RtpStreamStats>() {
+            @Override
+            public int compare(RtpStreamStats a, RtpStreamStats b)
+            {
+                return Long.compare(a.getSsrc() & 0xFFFFFFFFL,
+                                    b.getSsrc() & 0xFFFFFFFFL);
+            }
+        });
+
+        return streams;
+    }
+
+    /**
+     * Removes streams that have not received a packet within the given time.
+     *
+     * @param idleTime
+     *            amount of idle time after which a stream is removed
+     * @param unit
+     *            unit of {@code idleTime}
+     * @param nowNanos
+     *            current {@link System#nanoTime()}
+     * @return number of streams removed
+     */
+    public int expireIdleStreams(long idleTime, TimeUnit unit, long nowNanos)
+    {
+        long idleNanos = unit.toNanos(idleTime);
+
+        synchronized (tableLock)
+        {
+            List<RtpStreamStats> keep = new ArrayList<RtpStreamStats>();
+            for (RtpStreamStats stream : table)
+            {
+                if (stream != null &&
+                        nowNanos - stream.getLastArrivalNanos() < idleNanos)
+                {
+                    keep.add(stream);
+                }
+            }
+
+            int removed = size(table) - keep.size();
+            if (removed > 0)
+            {
+                table = rebuild(keep, table.length);
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Builds a report with one line per stream describing the traffic since
+     * the previous report. Only one thread may build reports.
+     *
+     * @param nowNanos
+     *            current {@link System#nanoTime()}
+     * @return the report
+     */
+    public String buildReport(long nowNanos)
+    {
+        StringBuilder report = new StringBuilder();
+        report.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US)
+                .format(new Date()));
+        report.append(String.format(Locale.US,
+                "  streams=%d  invalid=%d%n", size(table), getInvalidPacketCount()));
+        report.append(String.format(Locale.US,
+                "%-10s %-21s %3s %8s %9s %8s %6s %6s %9s%n",
+                "SSRC", "SOURCE", "PT", "PPS", "KBPS", "LOST", "DUP", "LATE", "JITTER"));
+
+        for (RtpStreamStats stream : getStreams())
+        {
+            long packets = stream.getPacketCount();
+            long bytes = stream.getByteCount();
+            double seconds = (nowNanos - stream.reportedNanos) / 1E9;
+
+            double packetsPerSecond = 0;
+            double kilobitsPerSecond = 0;
+            if (seconds > 0)
+            {
+                packetsPerSecond = (packets - stream.reportedPackets) / seconds;
+                kilobitsPerSecond = (bytes - stream.reportedBytes) * 8 / seconds / 1000;
+            }
+
+            stream.reportedPackets = packets;
+            stream.reportedBytes = bytes;
+            stream.reportedNanos = nowNanos;
+
+            InetAddress source = stream.getSourceAddress();
+            report.append(String.format(Locale.US,
+                    "%08x %-21s %3d %8.1f %9.1f %8d %6d %6d %6.2f ms%s%n",
+                    stream.getSsrc(),
+                    (source == null ? "?" : source.getHostAddress()) + ":" +
+                            stream.getSourcePort(),
+                    stream.getPayloadType(),
+                    packetsPerSecond,
+                    kilobitsPerSecond,
+                    stream.getLostCount(),
+                    stream.getDuplicateCount(),
+                    stream.getLateCount(),
+                    stream.getJitterMillis(),
+                    packetsPerSecond == 0 ? "  idle" : ""));
+        }
+
+        return report.toString();
+    }
+
+    private RtpStreamStats add(int ssrc, long arrivalNanos)
+    {
+        synchronized (tableLock)
+        {
+            RtpStreamStats stream = find(table, ssrc);
+            if (stream != null)
+            {
+                return stream;
+            }
+
+            stream = new RtpStreamStats(ssrc, arrivalNanos);
+
+            List<RtpStreamStats> streams = new ArrayList<RtpStreamStats>();
+            for (RtpStreamStats existing : table)
+            {
+                if (existing != null)
+                {
+                    streams.add(existing);
+                }
+            }
+            streams.add(stream);
+
+            int capacity = table.length;
+            while (capacity < streams.size() * 2)
+            {
+                capacity <<= 1;
+            }
+
+            table = rebuild(streams, capacity);
+            return stream;
+        }
+    }
+
+    private static RtpStreamStats find(RtpStreamStats[] table, int ssrc)
+    {
+        int mask = table.length - 1;
+        for (int i = hash(ssrc) & mask; ; i = (i + 1) & mask)
+        {
+            RtpStreamStats stream = table[i];
+            if (stream == null || stream.getSsrc() == ssrc)
+            {
+                return stream;
+            }
+        }
+    }
+
+    private static RtpStreamStats[] rebuild(List<RtpStreamStats> streams, int capacity)
+    {
+        RtpStreamStats[] newTable = new RtpStreamStats[capacity];
+        int mask = capacity - 1;
+
+        for (RtpStreamStats stream : streams)
+        {
+            int i = hash(stream.getSsrc()) & mask;
+            while (newTable[i] != null)
+            {
+                i = (i + 1) & mask;
+            }
+            newTable[i] = stream;
+        }
+
+        return newTable;
+    }
+
+    private static int size(RtpStreamStats[] table)
+    {
+        int size = 0;
+        for (RtpStreamStats stream : table)
+        {
+            if (stream != null)
+            {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Spreads the SSRC bits, which are random but may be chosen poorly by
+     * some senders.
+     */
+    private static int hash(int ssrc)
+    {
+        int h = ssrc * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
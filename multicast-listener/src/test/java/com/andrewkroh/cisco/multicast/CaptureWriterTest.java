@@ -0,0 +1,265 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test for {@link CaptureWriter}, {@link CaptureReader} and
+ * {@link CaptureConverter}.
+ *
+ * @author akroh
+ */
+public class CaptureWriterTest
+{
+    private static final long SEGMENT_BYTES = 128 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InetSocketAddress sender;
+
+    @Before
+    public void beforeTest() throws Exception
+    {
+        sender = new InetSocketAddress(InetAddress.getByName("10.1.2.3"), 16384);
+    }
+
+    @Test
+    public void write_thenRead_returnsEveryDatagram() throws Exception
+    {
+        File directory = folder.newFolder();
+        CaptureWriter writer = new CaptureWriter(directory, SEGMENT_BYTES, 0, TimeUnit.SECONDS);
+        for (int i = 0; i < 100; i++)
+        {
+            assertThat(writer.write(datagram(i, 172), sender, 20480, 1000L * i), equalTo(true));
+        }
+        writer.close();
+
+        assertThat(writer.getRecordCount(), equalTo(100L));
+        assertThat(writer.getDroppedCount(), equalTo(0L));
+
+        List<File> segments = CaptureConverter.listSegments(
+                Collections.singletonList(directory.getPath()));
+        assertThat(segments, hasSize(1));
+
+        try (CaptureReader reader = new CaptureReader(segments.get(0)))
+        {
+            long previousTimestamp = 0;
+            for (int i = 0; i < 100; i++)
+            {
+                assertThat(reader.next(), equalTo(true));
+                assertThat(reader.getSender(), equalTo(sender));
+                assertThat(reader.getLocalPort(), equalTo(20480));
+                assertThat(reader.getDatagram(), equalTo(datagram(i, 172)));
+                if (i > 0)
+                {
+                    assertThat(reader.getTimestampNanos() - previousTimestamp, equalTo(1000L));
+                }
+                previousTimestamp = reader.getTimestampNanos();
+            }
+            assertThat(reader.next(), equalTo(false));
+        }
+    }
+
+    @Test
+    public void write_pastSegmentSize_rotatesSegments() throws Exception
+    {
+        File directory = folder.newFolder();
+        CaptureWriter writer = new CaptureWriter(directory, SEGMENT_BYTES, 0, TimeUnit.SECONDS);
+
+        // 1000 datagrams of 1000 bytes cannot fit in a 128 KiB segment.
+        int count = 1000;
+        for (int i = 0; i < count; i++)
+        {
+            while (!writer.write(datagram(i, 1000), sender, 20480, i))
+            {
+                Thread.sleep(1);
+            }
+        }
+        writer.close();
+
+        List<File> segments = CaptureConverter.listSegments(
+                Collections.singletonList(directory.getPath()));
+        assertThat(segments.size(), greaterThan(7));
+        assertThat((long) segments.size(), equalTo(writer.getSegmentCount()));
+
+        List<Integer> received = new ArrayList<Integer>();
+        for (File segment : segments)
+        {
+            assertThat(segment.length() <= SEGMENT_BYTES, equalTo(true));
+            try (CaptureReader reader = new CaptureReader(segment))
+            {
+                while (reader.next())
+                {
+                    received.add(reader.getDatagram().getInt(0));
+                }
+            }
+        }
+
+        assertThat(received, hasSize(count));
+        for (int i = 0; i < count; i++)
+        {
+            assertThat(received.get(i), equalTo(i));
+        }
+    }
+
+    @Test
+    public void write_pastSegmentTime_rotatesSegments() throws Exception
+    {
+        File directory = folder.newFolder();
+        CaptureWriter writer = new CaptureWriter(directory, SEGMENT_BYTES,
+                50, TimeUnit.MILLISECONDS);
+
+        writer.write(datagram(1, 172), sender, 20480, 0);
+        Thread.sleep(200);
+        writer.write(datagram(2, 172), sender, 20480, 0);
+        writer.close();
+
+        assertThat(writer.getSegmentCount(), equalTo(2L));
+    }
+
+    @Test
+    public void write_whenBufferIsFull_dropsDatagrams() throws Exception
+    {
+        File directory = folder.newFolder();
+        int bufferBytes = 2 * (CaptureFormat.RECORD_HEADER_SIZE + 65507);
+        CaptureWriter writer = new CaptureWriter(directory, SEGMENT_BYTES,
+                0, TimeUnit.SECONDS, bufferBytes);
+
+        int written = 0;
+        for (int i = 0; i < 100000; i++)
+        {
+            if (writer.write(datagram(i, 60000), sender, 20480, i))
+            {
+                written++;
+            }
+        }
+        writer.close();
+
+        assertThat(writer.getDroppedCount(), greaterThan(0L));
+        assertThat(writer.getRecordCount(), equalTo((long) written));
+    }
+
+    @Test
+    public void toHex_writesOneLinePerDatagram() throws Exception
+    {
+        File directory = folder.newFolder();
+        CaptureWriter writer = new CaptureWriter(directory, SEGMENT_BYTES, 0, TimeUnit.SECONDS);
+        writer.write(ByteBuffer.wrap(new byte[] {(byte) 0x80, 0x00, 0x12, 0x34}),
+                sender, 20480, 0);
+        writer.write(ByteBuffer.allocate(0), sender, 20480, 0);
+        writer.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CaptureConverter.toHex(CaptureConverter.listSegments(
+                Collections.singletonList(directory.getPath())), out);
+
+        String[] lines = new String(out.toByteArray(), StandardCharsets.US_ASCII)
+                .split(System.getProperty("line.separator"));
+        assertThat(lines.length, equalTo(2));
+        assertThat(lines[0], containsString(" 10.1.2.3:16384 -> :20480 4 80001234"));
+        assertThat(lines[1], containsString(" 10.1.2.3:16384 -> :20480 0 "));
+    }
+
+    @Test
+    public void toPcap_writesRawIpv4UdpPackets() throws Exception
+    {
+        File directory = folder.newFolder();
+        CaptureWriter writer = new CaptureWriter(directory, SEGMENT_BYTES, 0, TimeUnit.SECONDS);
+        writer.write(datagram(7, 172), sender, 20480, 0);
+        writer.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CaptureConverter.toPcap(CaptureConverter.listSegments(
+                Collections.singletonList(directory.getPath())),
+                InetAddress.getByName("239.1.1.1"), out);
+        ByteBuffer pcap = ByteBuffer.wrap(out.toByteArray());
+
+        // Global header, record header, IPv4 header, UDP header, datagram.
+        assertThat(pcap.remaining(), equalTo(24 + 16 + 20 + 8 + 172));
+        assertThat(pcap.getInt(0), equalTo(0xA1B23C4D));
+        assertThat(pcap.getInt(20), equalTo(101));
+        assertThat(pcap.getInt(24 + 8), equalTo(200));
+
+        int ip = 24 + 16;
+        assertThat(pcap.get(ip) & 0xFF, equalTo(0x45));
+        assertThat(pcap.get(ip + 9) & 0xFF, equalTo(17));
+        assertThat(pcap.getInt(ip + 12), equalTo(ByteBuffer.wrap(
+                sender.getAddress().getAddress()).getInt()));
+        assertThat(pcap.getInt(ip + 16), equalTo(0xEF010101));
+        assertThat(ipv4Checksum(pcap, ip), equalTo(0));
+
+        int udp = ip + 20;
+        assertThat(pcap.getShort(udp) & 0xFFFF, equalTo(16384));
+        assertThat(pcap.getShort(udp + 2) & 0xFFFF, equalTo(20480));
+        assertThat(pcap.getShort(udp + 4) & 0xFFFF, equalTo(180));
+        assertThat(pcap.getInt(udp + 8), equalTo(7));
+    }
+
+    @Test(expected = IOException.class)
+    public void captureReader_withOtherFile_fails() throws Exception
+    {
+        File file = folder.newFile();
+        Files.write(file.toPath(), new byte[64]);
+        new CaptureReader(file).close();
+    }
+
+    private static ByteBuffer datagram(int value, int length)
+    {
+        ByteBuffer datagram = ByteBuffer.allocate(length);
+        datagram.putInt(0, value);
+        datagram.put(length - 1, (byte) value);
+        return datagram;
+    }
+
+    private static int ipv4Checksum(ByteBuffer packet, int offset)
+    {
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2)
+        {
+            sum += packet.getShort(offset + i) & 0xFFFF;
+        }
+        while ((sum >>> 16) != 0)
+        {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.andrewkroh.cisco.common.TestUtils;
+
+/**
+ * Test for {@link MulticastCaptureEngine}. Datagrams are sent to the groups
+ * over the loopback interface.
+ *
+ * @author akroh
+ */
+public class MulticastCaptureEngineTest
+{
+    private NetworkInterface loopback;
+
+    private DatagramChannel sender;
+
+    private MulticastCaptureEngine engine;
+
+    private Thread captureThread;
+
+    @Before
+    public void beforeTest() throws Exception
+    {
+        loopback = NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+
+        sender = DatagramChannel.open(StandardProtocolFamily.INET);
+        sender.setOption(StandardSocketOptions.IP_MULTICAST_IF, loopback);
+        sender.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    }
+
+    @After
+    public void afterTest() throws Exception
+    {
+        if (engine != null)
+        {
+            engine.close();
+        }
+        if (captureThread != null)
+        {
+            captureThread.join(5000);
+        }
+        sender.close();
+    }
+
+    @Test
+    public void run_withManyGroups_receivesFromEveryGroupOnOneThread() throws Exception
+    {
+        int port = TestUtils.getFreePort();
+        int groupCount = 20;
+
+        final CountDownLatch latch = new CountDownLatch(groupCount);
+        final Set<Byte> received =
+                Collections.newSetFromMap(new ConcurrentHashMap<Byte, Boolean>());
+        engine = new MulticastCaptureEngine(loopback, 0,
+                new MulticastCaptureEngine.DatagramHandler() {
+                    @Override
+                    public void datagramReceived(ByteBuffer datagram,
+                                                 InetSocketAddress sender,
+                                                 int localPort, long arrivalNanos)
+                    {
+                        if (received.add(datagram.get(datagram.position())))
+                        {
+                            latch.countDown();
+                        }
+                    }
+                });
+
+        for (int i = 0; i < groupCount; i++)
+        {
+            engine.join(group(i, port));
+        }
+        startCapture();
+
+        for (int i = 0; i < groupCount; i++)
+        {
+            sender.send(ByteBuffer.wrap(new byte[] {(byte) i}), group(i, port));
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertThat(received, hasSize(groupCount));
+        assertThat(engine.getMemberships(), hasSize(groupCount));
+    }
+
+    @Test
+    public void run_withFloodedPorts_takesTurnsBetweenPorts() throws Exception
+    {
+        int[] ports = {TestUtils.getFreePort(), TestUtils.getFreePort()};
+        int floodCount = 100;
+
+        final CountDownLatch latch = new CountDownLatch(2 * floodCount);
+        final List<Integer> receivedPorts =
+                Collections.synchronizedList(new ArrayList<Integer>());
+        engine = new MulticastCaptureEngine(loopback, 0,
+                new MulticastCaptureEngine.DatagramHandler() {
+                    @Override
+                    public void datagramReceived(ByteBuffer datagram,
+                                                 InetSocketAddress sender,
+                                                 int localPort, long arrivalNanos)
+                    {
+                        receivedPorts.add(localPort);
+                        latch.countDown();
+                    }
+                });
+        engine.join(group(0, ports[0]));
+        engine.join(group(1, ports[1]));
+
+        // Queue both ports before the capture thread selects:
+        for (int i = 0; i < floodCount; i++)
+        {
+            sender.send(ByteBuffer.wrap(new byte[] {1}), group(0, ports[0]));
+            sender.send(ByteBuffer.wrap(new byte[] {2}), group(1, ports[1]));
+        }
+        startCapture();
+
+        // The first port read gives way to the other after 64 datagrams:
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Integer firstPort = receivedPorts.get(0);
+        assertThat(Collections.frequency(receivedPorts.subList(0, 128), firstPort),
+                   equalTo(64));
+    }
+
+    @Test
+    public void join_whileRunning_receivesFromNewPort() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final StreamHealthAnalyzer analyzer = new StreamHealthAnalyzer();
+        engine = new MulticastCaptureEngine(loopback, 0,
+                new MulticastCaptureEngine.DatagramHandler() {
+                    @Override
+                    public void datagramReceived(ByteBuffer datagram,
+                                                 InetSocketAddress sender,
+                                                 int localPort, long arrivalNanos)
+                    {
+                        analyzer.packetReceived(datagram, sender.getAddress(),
+                                sender.getPort(), arrivalNanos);
+                        latch.countDown();
+                    }
+                });
+        startCapture();
+
+        InetSocketAddress group = group(0, TestUtils.getFreePort());
+        engine.join(group);
+
+        ByteBuffer rtp = ByteBuffer.allocate(172);
+        rtp.put(0, (byte) 0x80);
+        rtp.putInt(8, 1234);
+        sender.send(rtp, group);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertThat(analyzer.getStreams().get(0).getSsrc(), equalTo(1234));
+        assertThat(engine.getDatagramCount(), equalTo(1L));
+    }
+
+    @Test
+    public void join_sourceSpecific_filtersOtherSources() throws Exception
+    {
+        int port = TestUtils.getFreePort();
+        final CountDownLatch latch = new CountDownLatch(1);
+        engine = new MulticastCaptureEngine(loopback, 0,
+                new MulticastCaptureEngine.DatagramHandler() {
+                    @Override
+                    public void datagramReceived(ByteBuffer datagram,
+                                                 InetSocketAddress sender,
+                                                 int localPort, long arrivalNanos)
+                    {
+                        latch.countDown();
+                    }
+                });
+
+        // Only accept datagrams from an address that is not sending.
+        engine.join(new InetSocketAddress("232.1.1.1", port),
+                InetAddress.getByName("10.255.255.1"));
+        startCapture();
+
+        sender.send(ByteBuffer.wrap(new byte[] {1}),
+                new InetSocketAddress("232.1.1.1", port));
+
+        assertThat(latch.await(500, TimeUnit.MILLISECONDS), equalTo(false));
+    }
+
+    private void startCapture()
+    {
+        captureThread = new Thread(engine, "capture");
+        captureThread.start();
+    }
+
+    private static InetSocketAddress group(int index, int port)
+    {
+        return new InetSocketAddress("239.255.42." + (index + 1), port);
+    }
+}
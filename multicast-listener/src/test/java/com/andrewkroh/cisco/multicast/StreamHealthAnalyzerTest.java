@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.multicast;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link StreamHealthAnalyzer}.
+ *
+ * @author akroh
+ */
+public class StreamHealthAnalyzerTest
+{
+    private static final int SSRC = 0x0BADCAFE;
+
+    /**
+     * 20 ms of 8 kHz audio.
+     */
+    private static final long PACKET_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private static final int SAMPLES_PER_PACKET = 160;
+
+    private InetAddress source;
+
+    private StreamHealthAnalyzer analyzer;
+
+    @Before
+    public void beforeTest() throws Exception
+    {
+        source = InetAddress.getByName("10.0.0.1");
+        analyzer = new StreamHealthAnalyzer();
+    }
+
+    @Test
+    public void packetReceived_inOrder_countsPacketsWithoutLossOrJitter()
+    {
+        for (int i = 0; i < 50; i++)
+        {
+            receive(SSRC, i, i * SAMPLES_PER_PACKET, i * PACKET_NANOS);
+        }
+
+        RtpStreamStats stream = onlyStream();
+        assertThat(stream.getSsrc(), equalTo(SSRC));
+        assertThat(stream.getSourceAddress(), equalTo(source));
+        assertThat(stream.getPacketCount(), equalTo(50L));
+        assertThat(stream.getByteCount(), equalTo(50L * (12 + SAMPLES_PER_PACKET)));
+        assertThat(stream.getLostCount(), equalTo(0L));
+        assertThat(stream.getDuplicateCount(), equalTo(0L));
+        assertThat(stream.getLateCount(), equalTo(0L));
+        assertThat(stream.getJitterMillis(), closeTo(0, 0.001));
+    }
+
+    @Test
+    public void packetReceived_withGapsAndReordering_countsLossDuplicatesAndLate()
+    {
+        // 65534, 65535, (0 missing), 2, 1 (late), 1 (duplicate), (3 missing), 4
+        int[] sequence = {65534, 65535, 2, 1, 1, 4};
+        for (int i = 0; i < sequence.length; i++)
+        {
+            receive(SSRC, sequence[i], i * SAMPLES_PER_PACKET, i * PACKET_NANOS);
+        }
+
+        RtpStreamStats stream = onlyStream();
+        assertThat(stream.getPacketCount(), equalTo(6L));
+        assertThat(stream.getLostCount(), equalTo(2L));
+        assertThat(stream.getLateCount(), equalTo(1L));
+        assertThat(stream.getDuplicateCount(), equalTo(1L));
+    }
+
+    @Test
+    public void packetReceived_withDelayedArrivals_reportsJitter()
+    {
+        for (int i = 0; i < 200; i++)
+        {
+            // Every other packet arrives 10 ms late.
+            long arrival = i * PACKET_NANOS + (i % 2) * TimeUnit.MILLISECONDS.toNanos(10);
+            receive(SSRC, i, i * SAMPLES_PER_PACKET, arrival);
+        }
+
+        assertThat(onlyStream().getJitterMillis(), closeTo(10, 0.5));
+    }
+
+    @Test
+    public void packetReceived_timestampWraps_reportsNoJitter()
+    {
+        long firstTimestamp = 0xFFFFFFFFL - 10 * SAMPLES_PER_PACKET;
+        for (int i = 0; i < 20; i++)
+        {
+            receive(SSRC, i, firstTimestamp + i * SAMPLES_PER_PACKET, i * PACKET_NANOS);
+        }
+
+        assertThat(onlyStream().getJitterMillis(), closeTo(0, 0.001));
+    }
+
+    @Test
+    public void packetReceived_manyStreams_tracksEachSsrc()
+    {
+        for (int ssrc = 1; ssrc <= 100; ssrc++)
+        {
+            receive(ssrc, 0, 0, 0);
+            receive(ssrc, 1, SAMPLES_PER_PACKET, PACKET_NANOS);
+        }
+
+        List<RtpStreamStats> streams = analyzer.getStreams();
+        assertThat(streams, hasSize(100));
+        for (int i = 0; i < streams.size(); i++)
+        {
+            assertThat(streams.get(i).getSsrc(), equalTo(i + 1));
+            assertThat(streams.get(i).getPacketCount(), equalTo(2L));
+        }
+    }
+
+    @Test
+    public void packetReceived_notRtp_countsInvalid()
+    {
+        analyzer.packetReceived(ByteBuffer.wrap(new byte[] {1, 2, 3}), source, 5000, 0);
+        analyzer.packetReceived(ByteBuffer.wrap(new byte[20]), source, 5000, 0);
+
+        assertThat(analyzer.getInvalidPacketCount(), equalTo(2L));
+        assertThat(analyzer.getStreams(), hasSize(0));
+    }
+
+    @Test
+    public void expireIdleStreams_removesOnlyIdleStreams()
+    {
+        receive(1, 0, 0, 0);
+        receive(2, 0, 0, TimeUnit.SECONDS.toNanos(10));
+
+        int removed = analyzer.expireIdleStreams(5, TimeUnit.SECONDS,
+                TimeUnit.SECONDS.toNanos(12));
+
+        assertThat(removed, equalTo(1));
+        assertThat(onlyStream().getSsrc(), equalTo(2));
+    }
+
+    @Test
+    public void buildReport_includesRateOfEachStream()
+    {
+        for (int i = 0; i < 50; i++)
+        {
+            receive(SSRC, i, i * SAMPLES_PER_PACKET, i * PACKET_NANOS);
+        }
+
+        String report = analyzer.buildReport(TimeUnit.SECONDS.toNanos(1));
+
+        assertThat(report, containsString("0badcafe 10.0.0.1:5000"));
+        assertThat(report, containsString("50.0"));
+    }
+
+    private void receive(int ssrc, int sequenceNumber, long timestamp, long arrivalNanos)
+    {
+        ByteBuffer packet = ByteBuffer.allocate(12 + SAMPLES_PER_PACKET);
+        packet.put(0, (byte) 0x80);
+        packet.put(1, (byte) 0);
+        packet.putShort(2, (short) sequenceNumber);
+        packet.putInt(4, (int) timestamp);
+        packet.putInt(8, ssrc);
+
+        analyzer.packetReceived(packet, source, 5000, arrivalNanos);
+    }
+
+    private RtpStreamStats onlyStream()
+    {
+        List<RtpStreamStats> streams = analyzer.getStreams();
+        assertThat(streams, hasSize(1));
+        return streams.get(0);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+
+/**
+ * Measures setting up a page to many phones. {@code copyOnWriteArraySet} is
+ * the previous implementation of adding destinations one at a time, and
+ * {@code hashSetCopy} is the previous {@code getDestinations()}.
+ * {@code addOneByOne}, {@code addDestinations} and {@code setDestinations}
+ * use the session, which starts each invocation with no destinations.
+ *
+ * @author akroh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DestinationSetupBenchmark
+{
+    @Param({"1000", "10000"})
+    private int destinationCount;
+
+    private List<Destination> destinations;
+
+    private CopyOnWriteArraySet<Destination> copyOnWriteSet;
+
+    private NettyRtpSession session;
+
+    @Setup
+    public void setUp()
+    {
+        destinations = new ArrayList<Destination>(destinationCount);
+        for (int i = 0; i < destinationCount; i++)
+        {
+            destinations.add(new Destination(
+                    "10.1." + (i / 250) + "." + (i % 250 + 1), 20480));
+        }
+
+        copyOnWriteSet = new CopyOnWriteArraySet<Destination>(destinations);
+
+        session = new NettyRtpSession(new InetSocketAddress(0), null, null, null,
+                new MetricsRegistry());
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        session.shutdown();
+    }
+
+    @Benchmark
+    public int copyOnWriteArraySet()
+    {
+        CopyOnWriteArraySet<Destination> set = new CopyOnWriteArraySet<Destination>();
+        for (Destination destination : destinations)
+        {
+            set.add(destination);
+        }
+        return set.size();
+    }
+
+    @Benchmark
+    public int addOneByOne()
+    {
+        session.setDestinations(Collections.<Destination>emptyList());
+        for (Destination destination : destinations)
+        {
+            session.addDestination(destination);
+        }
+        return session.getDestinations().size();
+    }
+
+    @Benchmark
+    public int addDestinations()
+    {
+        session.setDestinations(Collections.<Destination>emptyList());
+        return session.addDestinations(destinations);
+    }
+
+    @Benchmark
+    public int setDestinations()
+    {
+        session.setDestinations(Collections.<Destination>emptyList());
+        session.setDestinations(destinations);
+        return session.getDestinations().size();
+    }
+
+    @Benchmark
+    public int hashSetCopy()
+    {
+        Collection<Destination> copy = new HashSet<Destination>(copyOnWriteSet);
+        return copy.size();
+    }
+
+    @Benchmark
+    public int getDestinations()
+    {
+        return session.getDestinations().size();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of {@link PolyphaseResampler} in input samples per
+ * second.
+ *
+ * @author akroh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PolyphaseResamplerBenchmark
+{
+    private static final int BLOCK_SIZE = PolyphaseResampler.DEFAULT_BLOCK_SIZE;
+
+    @Param({"11025", "22050", "44100", "48000"})
+    private int inputRate;
+
+    @Param({"8000", "16000"})
+    private int outputRate;
+
+    private PolyphaseResampler resampler;
+
+    private short[] input;
+
+    private short[] output;
+
+    @Setup
+    public void setUp()
+    {
+        resampler = new PolyphaseResampler(inputRate, outputRate, BLOCK_SIZE);
+        output = new short[resampler.getMaxOutputLength(BLOCK_SIZE)];
+
+        Random random = new Random(0);
+        input = new short[BLOCK_SIZE];
+        for (int i = 0; i < input.length; i++)
+        {
+            input[i] = (short) random.nextInt();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_SIZE)
+    public int process()
+    {
+        return resampler.process(input, 0, BLOCK_SIZE, output, 0);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-packet cost that SRTP adds to sending. {@code copy} is
+ * the baseline of copying the packet into a new buffer, which plain RTP
+ * sending also does. {@code protect} encrypts and authenticates a new packet
+ * each time, with and without the keystream precomputed. {@code fanOut}
+ * protects one packet for several destinations.
+ *
+ * @author akroh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SrtpTransformerBenchmark
+{
+    private static final ByteBufAllocator ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+
+    /**
+     * Payload size in bytes: 20 ms of G.711, 20 ms of 16 kHz PCM16.
+     */
+    @Param({"160", "640"})
+    private int payloadSize;
+
+    @Param({"10"})
+    private int destinations;
+
+    private SrtpTransformer transformer;
+
+    private RtpPacket packet;
+
+    private ByteBuf rtpBuffer;
+
+    private int sequenceNumber;
+
+    @Setup
+    public void setUp()
+    {
+        transformer = new SrtpTransformer(SrtpMasterKey.generate());
+
+        packet = new RtpPacket(0);
+        packet.setSSRC(0x12345678);
+        packet.setRtpPayloadData(new byte[payloadSize]);
+        rtpBuffer = Unpooled.wrappedBuffer(packet.getBytes());
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        transformer.close();
+    }
+
+    @Benchmark
+    public int copy()
+    {
+        ByteBuf copy = ALLOCATOR.heapBuffer(rtpBuffer.readableBytes());
+        copy.writeBytes(rtpBuffer, rtpBuffer.readerIndex(), rtpBuffer.readableBytes());
+        int length = copy.readableBytes();
+        copy.release();
+        return length;
+    }
+
+    @Benchmark
+    public int protect()
+    {
+        nextSequenceNumber();
+        ByteBuf srtp = transformer.protect(rtpBuffer, ALLOCATOR);
+        int length = srtp.readableBytes();
+        srtp.release();
+        return length;
+    }
+
+    @Benchmark
+    public int protectPrecomputed()
+    {
+        nextSequenceNumber();
+        ByteBuf srtp = transformer.protect(rtpBuffer, ALLOCATOR);
+        int length = srtp.readableBytes();
+        srtp.release();
+        transformer.precomputeNextKeystream();
+        return length;
+    }
+
+    @Benchmark
+    public int fanOut()
+    {
+        nextSequenceNumber();
+        int length = 0;
+        for (int i = 0; i < destinations; i++)
+        {
+            ByteBuf srtp = transformer.protect(rtpBuffer, ALLOCATOR);
+            length += srtp.readableBytes();
+            srtp.release();
+        }
+        return length;
+    }
+
+    private void nextSequenceNumber()
+    {
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+        rtpBuffer.setShort(2, sequenceNumber);
+    }
+}
@@ -27,18 +27,33 @@ import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.andrewkroh.cisco.common.metrics.Counter;
+import com.andrewkroh.cisco.common.metrics.Histogram;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.AbstractScheduledService;
 
 /**
  * Streams an audio file using an {@link RtpSession} as the distribution
- * mechanism.
+ * mechanism. The audio can also come from any other {@link AudioSource},
+ * such as a {@link LiveAudioSource}.
+ *
+ * <p/>
+ * Each tick is measured in the default {@link MetricsRegistry} under the
+ * prefix returned by {@link #getMetricsPrefix()}: {@code tickDuration} and
+ * {@code tickLateness} are histograms in nanoseconds, where lateness is how
+ * long after its scheduled time the tick started, and {@code tickErrors}
+ * counts ticks that failed to send.
+ *
+ * <p/>
+ * The level of the outgoing audio can be measured with
+ * {@link #enableLevelMeter()}, and a file can be normalized to a target
+ * loudness when it is loaded.
  *
  * @author akroh
  */
@@ -55,8 +70,8 @@ public class AudioFileStreamer extends AbstractScheduledService
         ALAW(8),
 
         /**
-         * Dynamic payload type for L16, 8000 Hz, 1 channel.
-         * This is a custom type defined here.
+         * Dynamic payload type for L16, 8000 Hz (16000 Hz for sources above
+         * 8000 Hz), 1 channel. This is a custom type defined here.
          */
         PCM16(96),
 
@@ -117,15 +132,22 @@ public class AudioFileStreamer extends AbstractScheduledService
 
     /**
      * {@code ByteBuffer} containing the source's complete audio data in
-     * the output encoding.
+     * the output encoding. This is {@code null} when streaming from an
+     * {@link AudioSource} that was not loaded from a URL.
      */
     private final ByteBuffer outputDataBuffer;
 
     /**
-     * URL of the source file.
+     * URL of the source file, or {@code null} when streaming from an
+     * {@link AudioSource} that was not loaded from a URL.
      */
     private final URL sourceUrl;
 
+    /**
+     * Source of the audio data sent in each packet.
+     */
+    private final AudioSource audioSource;
+
     /**
      * Random number generator used to generate the starting
      * values for fields within RTP packets.
@@ -148,6 +170,29 @@ public class AudioFileStreamer extends AbstractScheduledService
      */
     private int sequenceNumber = 0;
 
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    private final String metricsPrefix = "rtp.streamer." +
+            String.format("%08x", ssrc) + ".";
+
+    private final Histogram tickDuration = metrics.histogram(metricsPrefix + "tickDuration");
+
+    private final Histogram tickLateness = metrics.histogram(metricsPrefix + "tickLateness");
+
+    private final Counter tickErrors = metrics.counter(metricsPrefix + "tickErrors");
+
+    /**
+     * Meter that analyzes each packet, or {@code null} if metering is not
+     * enabled.
+     */
+    private volatile LevelMeter levelMeter;
+
+    /**
+     * {@link System#nanoTime()} at which the next tick is due, or 0 before
+     * the first tick.
+     */
+    private long nextTickNanos;
+
     /**
      * Constructs a new AudioFileStreamer whose source data will be read from
      * the specified URL. The encoding on the output stream will be the
@@ -175,6 +220,40 @@ public class AudioFileStreamer extends AbstractScheduledService
                              RtpSession rtpSession)
             throws UnsupportedAudioFileException, IOException
     {
+        this(sourceUrl, outputEncoding, outputPacketLengthMs, rtpSession, Double.NaN);
+    }
+
+    /**
+     * Constructs a new AudioFileStreamer whose source data will be read from
+     * the specified URL and scaled once, after it is decoded, so that its RMS
+     * level is {@code targetLoudnessDbfs} (see {@link LoudnessNormalizer}).
+     *
+     * @param sourceUrl
+     *            URL of the source file
+     * @param outputEncoding
+     *            encoding type to use for the output data
+     * @param outputPacketLengthMs
+     *            amount of data to put into each packet
+     * @param rtpSession
+     *            {@code RtpSession} to use for streaming the data
+     * @param targetLoudnessDbfs
+     *            target RMS level in dB relative to full scale, or
+     *            {@link Double#NaN} to stream the file at its own level
+     * @throws UnsupportedAudioFileException
+     *             if the source file is in an unsupported format or if the
+     *             source file cannot be converted to the specifed encoding type
+     * @throws IOException
+     *             if there is problem reading the source file
+     */
+    public AudioFileStreamer(URL sourceUrl,
+                             EncodingType outputEncoding,
+                             long outputPacketLengthMs,
+                             RtpSession rtpSession,
+                             double targetLoudnessDbfs)
+            throws UnsupportedAudioFileException, IOException
+    {
+        Preconditions.checkArgument(Double.isNaN(targetLoudnessDbfs) || targetLoudnessDbfs <= 0,
+                "Target loudness must not be above full scale.");
         this.sourceUrl = Preconditions.checkNotNull(sourceUrl,
                 "Audio file source URL cannot be null.");
         this.outputEncodingType = Preconditions.checkNotNull(outputEncoding,
@@ -183,32 +262,77 @@ public class AudioFileStreamer extends AbstractScheduledService
                 "RtpSession cannot be null.");
         this.outputPacketLengthMs = outputPacketLengthMs;
 
-        // Read input source:
-        AudioInputStream sourceStream =
-                AudioSystem.getAudioInputStream(sourceUrl);
-        AudioFormat conversionFormat = getConversionFormat(
-                sourceStream.getFormat(), outputEncoding);
-        LOGGER.debug("Input format: {}",
-                audioFormatToString(sourceStream.getFormat()));
-        LOGGER.debug("Conversion format: {}",
-                audioFormatToString(conversionFormat));
-
-        // Convert to output format:
-        AudioInputStream outputStream =
-                AudioSystem.getAudioInputStream(conversionFormat, sourceStream);
-        outputFormat = outputStream.getFormat();
-        LOGGER.debug("Output format: {}", audioFormatToString(outputFormat));
+        // Read input source and convert to output format:
+        DecodedAudio decodedAudio = DecodedAudio.decode(sourceUrl, outputEncoding);
+        outputFormat = decodedAudio.getFormat();
+
+        if (!Double.isNaN(targetLoudnessDbfs))
+        {
+            double gain = LoudnessNormalizer.normalize(decodedAudio.getData(),
+                    outputEncoding, targetLoudnessDbfs);
+            LOGGER.debug("Normalized <{}> to {} dBFS with a gain of {}.",
+                    sourceUrl, targetLoudnessDbfs, gain);
+        }
 
         // Buffer the output data:
-        outputDataBuffer = ByteBuffer.wrap(IOUtils.toByteArray(outputStream));
+        outputDataBuffer = ByteBuffer.wrap(decodedAudio.getData());
+        audioSource = new LoopingBufferSource(outputDataBuffer, outputFormat);
 
         // Calculate packet size:
         numSamplesPerPacket = getNumberOfSamplesPerTimePeriod(outputFormat,
                 outputPacketLengthMs, TimeUnit.MILLISECONDS);
-        int sampleSizeBytes = outputStream.getFormat().getSampleSizeInBits() / 8;
+        int sampleSizeBytes = outputFormat.getSampleSizeInBits() / 8;
         payloadSizeBytes = numSamplesPerPacket * sampleSizeBytes;
     }
 
+    /**
+     * Creates a new AudioFileStreamer whose data is read from the given
+     * {@link AudioSource}. The source must already produce data in the
+     * specified {@code outputEncoding}. The source is closed when the
+     * streamer is stopped.
+     *
+     * @param audioSource
+     *            source of the audio data
+     * @param outputEncoding
+     *            encoding type of the data produced by the source
+     * @param outputPacketLengthMs
+     *            amount of data to put into each packet
+     * @param rtpSession
+     *            {@code RtpSession} to use for streaming the data
+     * @return a new {@code AudioFileStreamer}
+     */
+    public static AudioFileStreamer fromAudioSource(AudioSource audioSource,
+                                                    EncodingType outputEncoding,
+                                                    long outputPacketLengthMs,
+                                                    RtpSession rtpSession)
+    {
+        return new AudioFileStreamer(audioSource, outputEncoding,
+                outputPacketLengthMs, rtpSession);
+    }
+
+    private AudioFileStreamer(AudioSource audioSource,
+                              EncodingType outputEncoding,
+                              long outputPacketLengthMs,
+                              RtpSession rtpSession)
+    {
+        this.audioSource = Preconditions.checkNotNull(audioSource,
+                "AudioSource cannot be null.");
+        this.outputEncodingType = Preconditions.checkNotNull(outputEncoding,
+                "Output encoding type cannot be null.");
+        this.rtpSession = Preconditions.checkNotNull(rtpSession,
+                "RtpSession cannot be null.");
+        this.outputPacketLengthMs = outputPacketLengthMs;
+        this.sourceUrl = null;
+        this.outputDataBuffer = null;
+
+        outputFormat = audioSource.getFormat();
+        LOGGER.debug("Output format: {}", audioFormatToString(outputFormat));
+
+        numSamplesPerPacket = getNumberOfSamplesPerTimePeriod(outputFormat,
+                outputPacketLengthMs, TimeUnit.MILLISECONDS);
+        payloadSizeBytes = numSamplesPerPacket * outputFormat.getFrameSize();
+    }
+
     /**
      * Returns the AudioFormat of the output stream.
      *
@@ -244,24 +368,91 @@ public class AudioFileStreamer extends AbstractScheduledService
     /**
      * Returns the URL of the source audio file.
      *
-     * @return URL of the source audio file
+     * @return URL of the source audio file, or {@code null} if the streamer
+     *         was constructed with an {@link AudioSource}
      */
     public URL getSourceUrl()
     {
         return sourceUrl;
     }
 
+    /**
+     * Returns the prefix of the names of this streamer's metrics, which
+     * contains the stream's SSRC in hex, for example
+     * {@code rtp.streamer.1a2b3c4d.}.
+     *
+     * @return metric name prefix ending with a dot
+     */
+    public String getMetricsPrefix()
+    {
+        return metricsPrefix;
+    }
+
+    /**
+     * Starts measuring the level of every packet that is sent. The metrics
+     * are recorded under {@link #getMetricsPrefix()} followed by
+     * {@code level.}.
+     *
+     * @return the meter, which is the same for every call
+     */
+    public synchronized LevelMeter enableLevelMeter()
+    {
+        if (levelMeter == null)
+        {
+            levelMeter = new LevelMeter(outputEncodingType, metrics,
+                    metricsPrefix + "level.");
+        }
+        return levelMeter;
+    }
+
+    /**
+     * Returns the meter measuring the level of every packet.
+     *
+     * @return the meter, or {@code null} if {@link #enableLevelMeter()} has
+     *         not been called
+     */
+    public LevelMeter getLevelMeter()
+    {
+        return levelMeter;
+    }
+
     @Override
     protected void runOneIteration() throws Exception
     {
+        long startNanos = System.nanoTime();
+        if (nextTickNanos == 0)
+        {
+            nextTickNanos = startNanos;
+        }
+        tickLateness.record(startNanos - nextTickNanos);
+        nextTickNanos += TimeUnit.MILLISECONDS.toNanos(outputPacketLengthMs);
+
         try
         {
             sendAudioData();
         }
         catch (RuntimeException e)
         {
+            tickErrors.increment();
             LOGGER.error("An exception occurred while sending audio data.", e);
         }
+        finally
+        {
+            tickDuration.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception
+    {
+        try
+        {
+            audioSource.close();
+        }
+        finally
+        {
+            metrics.remove(metricsPrefix);
+        }
     }
 
     @Override
@@ -272,22 +463,17 @@ public class AudioFileStreamer extends AbstractScheduledService
     }
 
     /**
-     * Sends a single packet of audio data. It reads from the
-     * {@link #outputDataBuffer} and will rewind that buffer when it reaches the
-     * end so that it continuously streams the source file in a loop.
+     * Sends a single packet of audio data read from the {@link #audioSource}.
      */
     private void sendAudioData()
     {
         ByteBuffer packetDataBuffer = ByteBuffer.allocate(payloadSizeBytes);
+        audioSource.read(packetDataBuffer);
 
-        while (packetDataBuffer.hasRemaining())
+        LevelMeter meter = levelMeter;
+        if (meter != null)
         {
-            if (!outputDataBuffer.hasRemaining())
-            {
-                outputDataBuffer.rewind();
-            }
-
-            packetDataBuffer.put(outputDataBuffer.get());
+            meter.analyze(packetDataBuffer.array(), 0, payloadSizeBytes);
         }
 
         timestamp += numSamplesPerPacket;
@@ -312,7 +498,7 @@ public class AudioFileStreamer extends AbstractScheduledService
      *            {@code AudioFormat} to convert to a String
      * @return {@code AudioFormat} object as a String
      */
-    private static String audioFormatToString(AudioFormat format)
+    static String audioFormatToString(AudioFormat format)
     {
         return new ToStringBuilder(format)
                     .append("encoding", format.getEncoding())
@@ -337,7 +523,7 @@ public class AudioFileStreamer extends AbstractScheduledService
      * @return audio format used for converting to the specified
      *         {@code outputEncoding} type
      */
-    private static AudioFormat getConversionFormat(
+    static AudioFormat getConversionFormat(
             AudioFormat source, EncodingType outputEncoding)
     {
         Preconditions.checkNotNull(source,
@@ -420,4 +606,48 @@ public class AudioFileStreamer extends AbstractScheduledService
                                source.getFrameRate(),
                                source.isBigEndian());
     }
+
+    /**
+     * {@link AudioSource} that reads from a {@code ByteBuffer} and will
+     * rewind that buffer when it reaches the end so that it continuously
+     * streams the source file in a loop.
+     */
+    private static final class LoopingBufferSource implements AudioSource
+    {
+        private final ByteBuffer dataBuffer;
+
+        private final AudioFormat format;
+
+        private LoopingBufferSource(ByteBuffer dataBuffer, AudioFormat format)
+        {
+            this.dataBuffer = dataBuffer;
+            this.format = format;
+        }
+
+        @Override
+        public AudioFormat getFormat()
+        {
+            return format;
+        }
+
+        @Override
+        public void read(ByteBuffer packetData)
+        {
+            while (packetData.hasRemaining())
+            {
+                if (!dataBuffer.hasRemaining())
+                {
+                    dataBuffer.rewind();
+                }
+
+                packetData.put(dataBuffer.get());
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            // Nothing to release.
+        }
+    }
 }
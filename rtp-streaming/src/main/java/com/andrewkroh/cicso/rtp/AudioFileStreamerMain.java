@@ -22,12 +22,18 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.andrewkroh.cisco.common.metrics.MetricsReporter;
+import com.andrewkroh.cisco.common.metrics.Slf4jMetricsExporter;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
@@ -87,6 +93,63 @@ public class AudioFileStreamerMain
         @Parameter(names="--whitenoise",
                    description = "Stream white noise as the audio source.")
         private boolean useWhiteNoise = false;
+
+        @Parameter(names="--live",
+                   description = "Stream live raw audio read from a named " +
+                                 "pipe. Use - to read from standard input.")
+        private String liveSource;
+
+        @Parameter(names="--live-encoding",
+                   description = "Encoding type of the live raw audio. " +
+                                 "Options are alaw, ulaw, pcm16 (signed " +
+                                 "little-endian). Audio must be 8000 Hz mono.")
+        private String liveEncoding = "pcm16";
+
+        @Parameter(names="--latency",
+                   description = "Target latency of the live audio buffer " +
+                                 "given in milliseconds.")
+        private long liveLatencyMs = LiveAudioSource.DEFAULT_TARGET_LATENCY_MS;
+
+        @Parameter(names="--playlist",
+                   variableArity = true,
+                   description = "Source wave files that will be streamed " +
+                                 "back-to-back, separated by spaces.")
+        private List<String> playlist;
+
+        @Parameter(names="--srtp-key",
+                   description = "Protect the stream with SRTP " +
+                                 "(AES_CM_128_HMAC_SHA1_80) using this " +
+                                 "base64 master key and salt (SDES inline " +
+                                 "key format).")
+        private String srtpKey;
+
+        @Parameter(names="--loop",
+                   description = "Restart the playlist after the last file.")
+        private boolean loopPlaylist = false;
+
+        @Parameter(names="--metrics-interval",
+                   description = "Log the session and streamer metrics " +
+                                 "every this many seconds, 0 to disable. " +
+                                 "Metrics are always published via JMX.")
+        private long metricsIntervalSeconds = 0;
+
+        @Parameter(names="--freshness",
+                   description = "Drop packets that cannot be sent within " +
+                                 "this many milliseconds because the " +
+                                 "network is congested.")
+        private long freshnessDeadlineMs = NettyRtpSession.DEFAULT_FRESHNESS_DEADLINE_MS;
+
+        @Parameter(names="--meter",
+                   description = "Measure the level of the outgoing audio " +
+                                 "and publish it with the streamer metrics.")
+        private boolean meterLevels = false;
+
+        @Parameter(names="--normalize",
+                   description = "Scale the file, or each playlist item, " +
+                                 "when it is loaded so that its RMS level " +
+                                 "is this many dBFS (e.g. -20). Not " +
+                                 "supported with --live.")
+        private Double normalizeDbfs;
     }
 
     private static EncodingType parseEncoding(String encoding)
@@ -187,49 +250,132 @@ public class AudioFileStreamerMain
                     InetAddress.getByName(arguments.multicastGroup);
         }
 
+        // --- Metrics ---
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        try
+        {
+            metrics.registerMBeans();
+        }
+        catch (JMException e)
+        {
+            System.err.println("Failed to publish metrics via JMX: " + e.getMessage());
+        }
+
+        if (arguments.metricsIntervalSeconds > 0)
+        {
+            new MetricsReporter(metrics, arguments.metricsIntervalSeconds,
+                    TimeUnit.SECONDS, new Slf4jMetricsExporter())
+                .startAsync().awaitRunning();
+        }
+
         // --- RtpSession ---
-        RtpSession rtpSession =
-                new NettyRtpSession(bindAddress, mcastInterface, multicastGroup);
+        SrtpMasterKey srtpKey = null;
+        if (arguments.srtpKey != null)
+        {
+            srtpKey = SrtpMasterKey.fromInlineKey(arguments.srtpKey);
+        }
+
+        NettyRtpSession rtpSession = new NettyRtpSession(bindAddress, mcastInterface,
+                multicastGroup, srtpKey);
+        rtpSession.setFreshnessDeadline(arguments.freshnessDeadlineMs, TimeUnit.MILLISECONDS);
 
-        // --- Source URL ---
-        URL sourceUrl = null;
-        if (arguments.sourceFile != null || arguments.useWhiteNoise)
+        // --- Source ---
+        if (arguments.sourceFile == null && !arguments.useWhiteNoise &&
+                arguments.liveSource == null && arguments.playlist == null)
         {
-            if (arguments.sourceFile != null)
+            return;
+        }
+
+        if (arguments.liveSource != null && arguments.normalizeDbfs != null)
+        {
+            System.out.println("Live audio cannot be normalized because it " +
+                    "is not loaded in advance (see --normalize).");
+            printUsage(jcommander);
+            System.exit(1);
+        }
+
+        // --- Destinations ---
+        if (arguments.destinations != null && !arguments.destinations.isEmpty())
+        {
+            List<Destination> destinations = parseDestinations(arguments.destinations);
+
+            for (Destination destination : destinations)
             {
-                sourceUrl = new File(arguments.sourceFile).toURI().toURL();
+                rtpSession.addDestination(destination);
+            }
+        }
+        else
+        {
+            System.out.println("You must specify at least one " +
+            		"destination (see --destination).");
+            printUsage(jcommander);
+            System.exit(1);
+        }
+
+        // --- EncodingType ---
+        EncodingType encodingType = parseEncoding(arguments.outputEncoding);
+
+        // --- Start Streaming ---
+        AudioFileStreamer streamer;
+        if (arguments.liveSource != null)
+        {
+            EncodingType liveEncoding = parseEncoding(arguments.liveEncoding);
+            LiveAudioSource liveSource;
+
+            if ("-".equals(arguments.liveSource))
+            {
+                liveSource = LiveAudioSource.fromStandardInput(
+                        liveEncoding, encodingType, arguments.liveLatencyMs);
             }
             else
             {
-                sourceUrl = AudioFileStreamer.class.getResource(
-                        "/wavs/white-noise-quiet.wav");
+                liveSource = LiveAudioSource.fromNamedPipe(
+                        Paths.get(arguments.liveSource), liveEncoding,
+                        encodingType, arguments.liveLatencyMs);
             }
 
-            // --- Destinations ---
-            if (arguments.destinations != null && !arguments.destinations.isEmpty())
+            streamer = AudioFileStreamer.fromAudioSource(liveSource, encodingType,
+                    arguments.packetLengthMs, rtpSession);
+        }
+        else if (arguments.playlist != null)
+        {
+            List<URL> items = new ArrayList<URL>();
+            for (String file : arguments.playlist)
             {
-                List<Destination> destinations = parseDestinations(arguments.destinations);
+                items.add(new File(file).toURI().toURL());
+            }
 
-                for (Destination destination : destinations)
-                {
-                    rtpSession.addDestination(destination);
-                }
+            PlaylistAudioSource playlist = new PlaylistAudioSource(items,
+                    encodingType, arguments.loopPlaylist,
+                    PlaylistAudioSource.DEFAULT_MAX_CACHE_BYTES,
+                    arguments.normalizeDbfs == null ? Double.NaN : arguments.normalizeDbfs);
+
+            streamer = AudioFileStreamer.fromAudioSource(playlist, encodingType,
+                    arguments.packetLengthMs, rtpSession);
+        }
+        else
+        {
+            URL sourceUrl;
+            if (arguments.sourceFile != null)
+            {
+                sourceUrl = new File(arguments.sourceFile).toURI().toURL();
             }
             else
             {
-                System.out.println("You must specify at least one " +
-                		"destination (see --destination).");
-                printUsage(jcommander);
-                System.exit(1);
+                sourceUrl = AudioFileStreamer.class.getResource(
+                        "/wavs/white-noise-quiet.wav");
             }
 
-            // --- EncodingType ---
-            EncodingType encodingType = parseEncoding(arguments.outputEncoding);
+            streamer = new AudioFileStreamer(sourceUrl, encodingType,
+                    arguments.packetLengthMs, rtpSession,
+                    arguments.normalizeDbfs == null ? Double.NaN : arguments.normalizeDbfs);
+        }
 
-            // --- Start Streaming ---
-            AudioFileStreamer streamer = new AudioFileStreamer(sourceUrl,
-                    encodingType, arguments.packetLengthMs, rtpSession);
-            streamer.startAsync().awaitRunning();
+        if (arguments.meterLevels)
+        {
+            streamer.enableLevelMeter();
         }
+
+        streamer.startAsync().awaitRunning();
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Supplies audio data to an {@link AudioFileStreamer}. The data returned by a
+ * source is already in the streamer's output encoding.
+ *
+ * @author akroh
+ */
+public interface AudioSource extends Closeable
+{
+    /**
+     * Returns the format of the data returned by {@link #read(ByteBuffer)}.
+     *
+     * @return format of the audio data
+     */
+    AudioFormat getFormat();
+
+    /**
+     * Fills the remaining space in {@code packetData} with the next audio
+     * data. This is invoked from the streamer's pacing thread once per packet
+     * so it must not block; a source that has no data available must fill
+     * the buffer with silence.
+     *
+     * @param packetData
+     *            buffer to fill completely
+     */
+    void read(ByteBuffer packetData);
+}
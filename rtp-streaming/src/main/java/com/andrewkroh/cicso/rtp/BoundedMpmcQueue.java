@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounded, lock-free, multi-producer multi-consumer queue backed by a ring of
+ * sequenced cells (Dmitry Vyukov's algorithm). Each cell carries a sequence
+ * number that tells producers and consumers whether the slot is free for
+ * writing or ready for reading, so neither side ever takes a lock.
+ *
+ * <p/>
+ * The capacity is rounded up to the next power of two. This class does not
+ * permit {@code null} elements.
+ *
+ * @author akroh
+ */
+final class BoundedMpmcQueue<E>
+{
+    /**
+     * Elements stored in the ring.
+     */
+    private final AtomicReferenceArray<E> buffer;
+
+    /**
+     * Sequence number of each cell in the ring.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Mask used to convert a position into a ring index.
+     */
+    private final int mask;
+
+    /**
+     * Next position to be written by a producer.
+     */
+    private final AtomicLong enqueuePosition = new AtomicLong();
+
+    /**
+     * Next position to be read by a consumer.
+     */
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    /**
+     * Constructs a new queue that can hold at least {@code capacity} elements.
+     *
+     * @param capacity
+     *            minimum capacity of the queue, must be greater than zero
+     */
+    BoundedMpmcQueue(int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30),
+                "Capacity <%s> is not within (0, 2^30].", capacity);
+
+        int ringSize = capacity == 1 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        buffer = new AtomicReferenceArray<E>(ringSize);
+        sequences = new AtomicLongArray(ringSize);
+        mask = ringSize - 1;
+
+        for (int i = 0; i < ringSize; i++)
+        {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Inserts the element at the tail of the queue if space is available.
+     *
+     * @param element
+     *            element to insert
+     * @return true if the element was added, false if the queue is full
+     */
+    boolean offer(E element)
+    {
+        Preconditions.checkNotNull(element, "Element cannot be null.");
+
+        long position = enqueuePosition.get();
+        int index;
+
+        while (true)
+        {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0)
+            {
+                if (enqueuePosition.compareAndSet(position, position + 1))
+                {
+                    break;
+                }
+                position = enqueuePosition.get();
+            }
+            else if (difference < 0)
+            {
+                return false;
+            }
+            else
+            {
+                position = enqueuePosition.get();
+            }
+        }
+
+        buffer.lazySet(index, element);
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Removes and returns the element at the head of the queue.
+     *
+     * @return head of the queue, or {@code null} if the queue is empty
+     */
+    E poll()
+    {
+        long position = dequeuePosition.get();
+        int index;
+
+        while (true)
+        {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0)
+            {
+                if (dequeuePosition.compareAndSet(position, position + 1))
+                {
+                    break;
+                }
+                position = dequeuePosition.get();
+            }
+            else if (difference < 0)
+            {
+                return null;
+            }
+            else
+            {
+                position = dequeuePosition.get();
+            }
+        }
+
+        E element = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+        return element;
+    }
+
+    /**
+     * Returns an estimate of the number of elements in the queue. The value
+     * may be stale while producers or consumers are active.
+     *
+     * @return approximate number of elements in the queue
+     */
+    int size()
+    {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * Returns the actual capacity of the ring.
+     *
+     * @return number of elements the queue can hold
+     */
+    int capacity()
+    {
+        return mask + 1;
+    }
+}
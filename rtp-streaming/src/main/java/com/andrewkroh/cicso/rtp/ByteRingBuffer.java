@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Lock-free single-producer single-consumer ring of bytes. Exactly one thread
+ * may call {@link #write(byte[], int, int)} and exactly one other thread may
+ * call {@link #read(byte[], int, int)} and {@link #skip(int)}.
+ *
+ * <p/>
+ * The capacity is rounded up to the next power of two.
+ *
+ * @author akroh
+ */
+final class ByteRingBuffer
+{
+    private final byte[] buffer;
+
+    private final int mask;
+
+    /**
+     * Total number of bytes ever written. Only advanced by the producer.
+     */
+    private final AtomicLong writePosition = new AtomicLong();
+
+    /**
+     * Total number of bytes ever read or skipped. Only advanced by the
+     * consumer.
+     */
+    private final AtomicLong readPosition = new AtomicLong();
+
+    ByteRingBuffer(int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30),
+                "Capacity <%s> is not within (0, 2^30].", capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    int capacity()
+    {
+        return buffer.length;
+    }
+
+    /**
+     * Returns the number of bytes available to the consumer.
+     *
+     * @return number of readable bytes
+     */
+    int available()
+    {
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    /**
+     * Writes all {@code length} bytes into the ring if there is room for all
+     * of them. Nothing is written if there is not enough room.
+     *
+     * @return true if the bytes were written, false if the ring is too full
+     */
+    boolean write(byte[] source, int offset, int length)
+    {
+        long write = writePosition.get();
+        long free = buffer.length - (write - readPosition.get());
+
+        if (length > free)
+        {
+            return false;
+        }
+
+        int index = (int) (write & mask);
+        int firstPart = Math.min(length, buffer.length - index);
+        System.arraycopy(source, offset, buffer, index, firstPart);
+        System.arraycopy(source, offset + firstPart, buffer, 0, length - firstPart);
+
+        writePosition.lazySet(write + length);
+        return true;
+    }
+
+    /**
+     * Reads up to {@code length} bytes from the ring.
+     *
+     * @return number of bytes read
+     */
+    int read(byte[] destination, int offset, int length)
+    {
+        long read = readPosition.get();
+        int count = (int) Math.min(length, writePosition.get() - read);
+
+        int index = (int) (read & mask);
+        int firstPart = Math.min(count, buffer.length - index);
+        System.arraycopy(buffer, index, destination, offset, firstPart);
+        System.arraycopy(buffer, 0, destination, offset + firstPart, count - firstPart);
+
+        readPosition.lazySet(read + count);
+        return count;
+    }
+
+    /**
+     * Discards up to {@code length} bytes from the ring.
+     *
+     * @return number of bytes discarded
+     */
+    int skip(int length)
+    {
+        long read = readPosition.get();
+        int count = (int) Math.min(length, writePosition.get() - read);
+        readPosition.lazySet(read + count);
+        return count;
+    }
+}
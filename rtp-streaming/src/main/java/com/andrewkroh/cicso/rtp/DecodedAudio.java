@@ -0,0 +1,292 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.google.common.base.Preconditions;
+
+/**
+ * Complete contents of an audio file after conversion to an output
+ * {@link EncodingType}.
+ *
+ * <p/>
+ * Phones only play G.711 at 8000 Hz, so sources at any other rate are
+ * converted to 16-bit PCM, mixed down to mono, and passed through a
+ * {@link PolyphaseResampler} block by block while they are decoded. PCM16
+ * output is resampled to 16000 Hz instead when the source rate is above
+ * 8000 Hz.
+ *
+ * @author akroh
+ */
+final class DecodedAudio
+{
+    /**
+     * SLF4J Logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(DecodedAudio.class);
+
+    /**
+     * Output sample rate of G.711 encodings.
+     */
+    static final int NARROWBAND_RATE_HZ = 8000;
+
+    /**
+     * Output sample rate of PCM16 for sources above 8000 Hz.
+     */
+    static final int WIDEBAND_RATE_HZ = 16000;
+
+    private final URL sourceUrl;
+
+    private final AudioFormat format;
+
+    private final byte[] data;
+
+    private DecodedAudio(URL sourceUrl, AudioFormat format, byte[] data)
+    {
+        this.sourceUrl = sourceUrl;
+        this.format = format;
+        this.data = data;
+    }
+
+    /**
+     * Reads the audio file at {@code sourceUrl} and converts it to the given
+     * encoding.
+     *
+     * @param sourceUrl
+     *            URL of the source file
+     * @param outputEncoding
+     *            encoding type to convert the data to
+     * @return the decoded audio
+     * @throws UnsupportedAudioFileException
+     *             if the source file is in an unsupported format or if the
+     *             source file cannot be converted to the specifed encoding type
+     * @throws IOException
+     *             if there is problem reading the source file
+     */
+    static DecodedAudio decode(URL sourceUrl, EncodingType outputEncoding)
+            throws UnsupportedAudioFileException, IOException
+    {
+        Preconditions.checkNotNull(sourceUrl,
+                "Audio file source URL cannot be null.");
+
+        // Read input source:
+        AudioInputStream sourceStream =
+                AudioSystem.getAudioInputStream(sourceUrl);
+
+        int sourceRate = Math.round(sourceStream.getFormat().getSampleRate());
+        int outputRate = getOutputSampleRate(sourceRate, outputEncoding);
+        if (sourceRate != outputRate)
+        {
+            return resample(sourceUrl, sourceStream, outputRate, outputEncoding);
+        }
+
+        AudioFormat conversionFormat = AudioFileStreamer.getConversionFormat(
+                sourceStream.getFormat(), outputEncoding);
+        LOGGER.debug("Input format: {}",
+                AudioFileStreamer.audioFormatToString(sourceStream.getFormat()));
+        LOGGER.debug("Conversion format: {}",
+                AudioFileStreamer.audioFormatToString(conversionFormat));
+
+        // Convert to output format:
+        AudioInputStream outputStream =
+                AudioSystem.getAudioInputStream(conversionFormat, sourceStream);
+        AudioFormat outputFormat = outputStream.getFormat();
+        LOGGER.debug("Output format: {}",
+                AudioFileStreamer.audioFormatToString(outputFormat));
+
+        try
+        {
+            return new DecodedAudio(sourceUrl, outputFormat,
+                    IOUtils.toByteArray(outputStream));
+        }
+        finally
+        {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Returns the sample rate that a source at {@code sourceRate} is
+     * streamed at when using the given encoding.
+     *
+     * @param sourceRate
+     *            sample rate of the source in Hz
+     * @param outputEncoding
+     *            encoding type of the output
+     * @return output sample rate in Hz
+     */
+    static int getOutputSampleRate(int sourceRate, EncodingType outputEncoding)
+    {
+        if (outputEncoding == EncodingType.PCM16 && sourceRate > NARROWBAND_RATE_HZ)
+        {
+            return WIDEBAND_RATE_HZ;
+        }
+
+        return NARROWBAND_RATE_HZ;
+    }
+
+    private static DecodedAudio resample(URL sourceUrl,
+                                         AudioInputStream sourceStream,
+                                         int outputRate,
+                                         EncodingType outputEncoding)
+            throws IOException
+    {
+        AudioFormat sourceFormat = sourceStream.getFormat();
+        int sourceRate = Math.round(sourceFormat.getSampleRate());
+        int channels = sourceFormat.getChannels();
+
+        AudioFormat pcmFormat = new AudioFormat(sourceRate, 16, channels, true, false);
+        AudioFormat outputFormat = AudioFileStreamer.getConversionFormat(
+                new AudioFormat(outputRate, 16, 1, true, false), outputEncoding);
+        LOGGER.debug("Input format: {}",
+                AudioFileStreamer.audioFormatToString(sourceFormat));
+        LOGGER.debug("Resampling from {} Hz to {} Hz.", sourceRate, outputRate);
+        LOGGER.debug("Output format: {}",
+                AudioFileStreamer.audioFormatToString(outputFormat));
+
+        AudioInputStream pcmStream =
+                AudioSystem.getAudioInputStream(pcmFormat, sourceStream);
+
+        try
+        {
+            PolyphaseResampler resampler =
+                    new PolyphaseResampler(sourceRate, outputRate);
+            int blockSize = resampler.getBlockSize();
+            int frameSize = pcmFormat.getFrameSize();
+
+            byte[] pcmBytes = new byte[blockSize * frameSize];
+            short[] monoSamples = new short[blockSize];
+            short[] outputSamples = new short[resampler.getMaxOutputLength(blockSize)];
+            byte[] outputBytes = new byte[outputSamples.length * outputFormat.getFrameSize()];
+            ByteArrayOutputStream outputData = new ByteArrayOutputStream();
+
+            int bytesRead;
+            while ((bytesRead = readFully(pcmStream, pcmBytes)) > 0)
+            {
+                int frames = bytesRead / frameSize;
+                for (int frame = 0; frame < frames; frame++)
+                {
+                    // Mix down to mono:
+                    int sum = 0;
+                    int index = frame * frameSize;
+                    for (int channel = 0; channel < channels; channel++, index += 2)
+                    {
+                        sum += (short) ((pcmBytes[index] & 0xFF) | (pcmBytes[index + 1] << 8));
+                    }
+                    monoSamples[frame] = (short) (sum / channels);
+                }
+
+                int count = resampler.process(monoSamples, 0, frames, outputSamples, 0);
+                int length = encode(outputSamples, count, outputEncoding, outputBytes);
+                outputData.write(outputBytes, 0, length);
+            }
+
+            return new DecodedAudio(sourceUrl, outputFormat, outputData.toByteArray());
+        }
+        finally
+        {
+            pcmStream.close();
+        }
+    }
+
+    /**
+     * Encodes 16-bit signed samples into the output encoding.
+     *
+     * @return number of bytes written to {@code output}
+     */
+    private static int encode(short[] samples, int count,
+                              EncodingType outputEncoding, byte[] output)
+    {
+        switch (outputEncoding)
+        {
+            case ULAW:
+                for (int i = 0; i < count; i++)
+                {
+                    output[i] = G711.linearToUlaw(samples[i]);
+                }
+                return count;
+            case ALAW:
+                for (int i = 0; i < count; i++)
+                {
+                    output[i] = G711.linearToAlaw(samples[i]);
+                }
+                return count;
+            case PCM16:
+                // Output PCM16 is unsigned little-endian.
+                for (int i = 0; i < count; i++)
+                {
+                    output[2 * i] = (byte) samples[i];
+                    output[2 * i + 1] = (byte) ((samples[i] >> 8) ^ 0x80);
+                }
+                return 2 * count;
+            default:
+                throw new IllegalArgumentException(
+                        "Unhandled EncodingType: " + outputEncoding.name());
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the end of the stream is reached.
+     *
+     * @return number of bytes read, or 0 at the end of the stream
+     */
+    private static int readFully(InputStream stream, byte[] buffer)
+            throws IOException
+    {
+        int total = 0;
+        while (total < buffer.length)
+        {
+            int read = stream.read(buffer, total, buffer.length - total);
+            if (read < 0)
+            {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    URL getSourceUrl()
+    {
+        return sourceUrl;
+    }
+
+    AudioFormat getFormat()
+    {
+        return format;
+    }
+
+    byte[] getData()
+    {
+        return data;
+    }
+}
@@ -37,6 +37,12 @@ public class Destination
 
     private final InetSocketAddress socketAddress;
 
+    /**
+     * Cached because destinations are compared for every change to a
+     * session's destinations.
+     */
+    private final int hashCode;
+
     public Destination(String host, int port)
     {
         Preconditions.checkNotNull(host, "Host cannot be null.");
@@ -46,6 +52,10 @@ public class Destination
         this.host = host;
         this.port = port;
         this.socketAddress = new InetSocketAddress(host, port);
+        this.hashCode = new HashCodeBuilder(19, 53)
+                            .append(host)
+                            .append(port)
+                            .build();
     }
 
     public String getHost()
@@ -66,10 +76,7 @@ public class Destination
     @Override
     public int hashCode()
     {
-        return new HashCodeBuilder(19, 53)
-                    .append(host)
-                    .append(port)
-                    .build();
+        return hashCode;
     }
 
     @Override
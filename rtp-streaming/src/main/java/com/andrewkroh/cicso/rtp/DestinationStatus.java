@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Point in time view of the send health of one {@link Destination} of an
+ * {@link RtpSession}.
+ *
+ * @author akroh
+ */
+public class DestinationStatus
+{
+    private final Destination destination;
+
+    private final boolean quarantined;
+
+    private final int consecutiveFailures;
+
+    private final long totalFailures;
+
+    private final long quarantineCount;
+
+    private final long nextProbeDelayNanos;
+
+    public DestinationStatus(Destination destination,
+                             boolean quarantined,
+                             int consecutiveFailures,
+                             long totalFailures,
+                             long quarantineCount,
+                             long nextProbeDelayNanos)
+    {
+        this.destination = Preconditions.checkNotNull(destination,
+                "Destination cannot be null.");
+        this.quarantined = quarantined;
+        this.consecutiveFailures = consecutiveFailures;
+        this.totalFailures = totalFailures;
+        this.quarantineCount = quarantineCount;
+        this.nextProbeDelayNanos = nextProbeDelayNanos;
+    }
+
+    public Destination getDestination()
+    {
+        return destination;
+    }
+
+    /**
+     * Returns true if packets are not being sent to the destination because
+     * too many consecutive sends failed.
+     *
+     * @return true if quarantined
+     */
+    public boolean isQuarantined()
+    {
+        return quarantined;
+    }
+
+    public int getConsecutiveFailures()
+    {
+        return consecutiveFailures;
+    }
+
+    public long getTotalFailures()
+    {
+        return totalFailures;
+    }
+
+    /**
+     * Returns the number of times the destination has been quarantined.
+     *
+     * @return number of quarantines
+     */
+    public long getQuarantineCount()
+    {
+        return quarantineCount;
+    }
+
+    /**
+     * Returns the time until the next packet is sent to a quarantined
+     * destination to check whether it has recovered.
+     *
+     * @param unit
+     *            unit of the result
+     * @return time until the next probe, 0 if it is due or the destination
+     *         is not quarantined
+     */
+    public long getNextProbeDelay(TimeUnit unit)
+    {
+        return unit.convert(nextProbeDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this)
+                    .append("destination", destination)
+                    .append("quarantined", quarantined)
+                    .append("consecutiveFailures", consecutiveFailures)
+                    .append("totalFailures", totalFailures)
+                    .append("quarantineCount", quarantineCount)
+                    .append("nextProbeDelayMs",
+                            TimeUnit.NANOSECONDS.toMillis(nextProbeDelayNanos))
+                    .build();
+    }
+}
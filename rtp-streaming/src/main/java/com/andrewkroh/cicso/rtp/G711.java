@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+/**
+ * Sample-by-sample G.711 (u-law and A-law) encoder and decoder. These are
+ * the classic ITU-T G.711 segment algorithms and operate on 16-bit signed
+ * linear samples. Decoding uses precomputed tables.
+ *
+ * @author akroh
+ */
+public final class G711
+{
+    /**
+     * Encoded u-law value of a zero sample.
+     */
+    public static final byte ULAW_SILENCE = (byte) 0xFF;
+
+    /**
+     * Encoded A-law value of a zero sample.
+     */
+    public static final byte ALAW_SILENCE = (byte) 0xD5;
+
+    /**
+     * Bias added to the magnitude before u-law encoding.
+     */
+    private static final int ULAW_BIAS = 0x84;
+
+    /**
+     * Largest magnitude that can be u-law encoded.
+     */
+    private static final int ULAW_CLIP = 32635;
+
+    /**
+     * Upper bound of each A-law segment for 13-bit magnitudes.
+     */
+    private static final int[] ALAW_SEGMENT_END =
+        {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+
+    private static final short[] ULAW_TO_LINEAR = new short[256];
+
+    private static final short[] ALAW_TO_LINEAR = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++)
+        {
+            ULAW_TO_LINEAR[i] = computeUlawToLinear(i);
+            ALAW_TO_LINEAR[i] = computeAlawToLinear(i);
+        }
+    }
+
+    /**
+     * Encodes a 16-bit signed linear sample as u-law.
+     *
+     * @param sample
+     *            16-bit signed linear sample
+     * @return u-law encoded sample
+     */
+    public static byte linearToUlaw(int sample)
+    {
+        int sign = (sample >> 8) & 0x80;
+        int magnitude = sign != 0 ? -sample : sample;
+
+        if (magnitude > ULAW_CLIP)
+        {
+            magnitude = ULAW_CLIP;
+        }
+        magnitude += ULAW_BIAS;
+
+        int exponent = 7;
+        for (int mask = 0x4000; (magnitude & mask) == 0 && exponent > 0; mask >>= 1)
+        {
+            exponent--;
+        }
+
+        int mantissa = (magnitude >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+
+    /**
+     * Decodes a u-law sample to 16-bit signed linear.
+     *
+     * @param ulaw
+     *            u-law encoded sample
+     * @return 16-bit signed linear sample
+     */
+    public static short ulawToLinear(byte ulaw)
+    {
+        return ULAW_TO_LINEAR[ulaw & 0xFF];
+    }
+
+    /**
+     * Encodes a 16-bit signed linear sample as A-law.
+     *
+     * @param sample
+     *            16-bit signed linear sample
+     * @return A-law encoded sample
+     */
+    public static byte linearToAlaw(int sample)
+    {
+        int magnitude = sample >> 3;
+        int mask;
+
+        if (magnitude >= 0)
+        {
+            mask = 0xD5;
+        }
+        else
+        {
+            mask = 0x55;
+            magnitude = -magnitude - 1;
+        }
+
+        int segment = 0;
+        while (segment < ALAW_SEGMENT_END.length &&
+                magnitude > ALAW_SEGMENT_END[segment])
+        {
+            segment++;
+        }
+
+        if (segment >= ALAW_SEGMENT_END.length)
+        {
+            return (byte) (0x7F ^ mask);
+        }
+
+        int value = segment << 4;
+        if (segment < 2)
+        {
+            value |= (magnitude >> 1) & 0x0F;
+        }
+        else
+        {
+            value |= (magnitude >> segment) & 0x0F;
+        }
+
+        return (byte) (value ^ mask);
+    }
+
+    /**
+     * Decodes an A-law sample to 16-bit signed linear.
+     *
+     * @param alaw
+     *            A-law encoded sample
+     * @return 16-bit signed linear sample
+     */
+    public static short alawToLinear(byte alaw)
+    {
+        return ALAW_TO_LINEAR[alaw & 0xFF];
+    }
+
+    private static short computeUlawToLinear(int ulaw)
+    {
+        int value = ~ulaw & 0xFF;
+        int sign = value & 0x80;
+        int exponent = (value >> 4) & 0x07;
+        int mantissa = value & 0x0F;
+
+        int sample = (((mantissa << 3) + ULAW_BIAS) << exponent) - ULAW_BIAS;
+        return (short) (sign != 0 ? -sample : sample);
+    }
+
+    private static short computeAlawToLinear(int alaw)
+    {
+        int value = alaw ^ 0x55;
+        int sample = (value & 0x0F) << 4;
+        int segment = (value & 0x70) >> 4;
+
+        switch (segment)
+        {
+            case 0:
+                sample += 8;
+                break;
+            case 1:
+                sample += 0x108;
+                break;
+            default:
+                sample += 0x108;
+                sample <<= segment - 1;
+                break;
+        }
+
+        return (short) ((value & 0x80) != 0 ? sample : -sample);
+    }
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private G711()
+    {
+        // Not to be instantiated.
+    }
+}
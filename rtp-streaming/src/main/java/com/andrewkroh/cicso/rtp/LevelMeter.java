@@ -0,0 +1,328 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cisco.common.metrics.Counter;
+import com.andrewkroh.cisco.common.metrics.Gauge;
+import com.andrewkroh.cisco.common.metrics.Histogram;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.google.common.base.Preconditions;
+
+/**
+ * Measures the level of the audio in each packet of a stream.
+ *
+ * <p/>
+ * For every packet the RMS and peak sample magnitudes are recorded in the
+ * {@code packetRms} and {@code packetPeak} histograms (as 16-bit linear
+ * values, where 32768 is full scale), and samples at the largest magnitude
+ * that the encoding can represent are counted as {@code clippedSamples} and
+ * {@code clippedPackets}. The loudness of the whole stream, the RMS over
+ * every sample analyzed, is available from {@link #getLoudnessDbfs()} and
+ * the {@code loudness} gauge (in hundredths of a dB, or
+ * {@link Long#MIN_VALUE} while only silence has been analyzed).
+ *
+ * <p/>
+ * {@link #analyze(byte[], int, int)} must only be called by one thread,
+ * normally the streamer's pacing thread. The getters may be called from any
+ * thread.
+ *
+ * @author akroh
+ */
+public class LevelMeter
+{
+    /**
+     * Magnitude of a full scale 16-bit sample.
+     */
+    public static final double FULL_SCALE = 32768;
+
+    private final EncodingType encoding;
+
+    /**
+     * Linear value of each G.711 code, or null for PCM16.
+     */
+    private final short[] decodeTable;
+
+    /**
+     * Sample magnitude at or above which a sample is counted as clipped.
+     */
+    private final int clipLevel;
+
+    private final Histogram packetRms;
+
+    private final Histogram packetPeak;
+
+    private final Counter clippedSamples;
+
+    private final Counter clippedPackets;
+
+    private volatile long packetCount;
+
+    private volatile long sampleCount;
+
+    private volatile double sumOfSquares;
+
+    private volatile int peak;
+
+    /**
+     * Creates a meter for audio in the given encoding.
+     *
+     * @param encoding
+     *            encoding of the analyzed data
+     * @param metrics
+     *            registry to record the metrics in
+     * @param metricsPrefix
+     *            prefix of the metric names
+     */
+    public LevelMeter(EncodingType encoding, MetricsRegistry metrics, String metricsPrefix)
+    {
+        this.encoding = Preconditions.checkNotNull(encoding,
+                "Encoding type cannot be null.");
+        Preconditions.checkNotNull(metrics, "MetricsRegistry cannot be null.");
+        Preconditions.checkNotNull(metricsPrefix, "Metrics prefix cannot be null.");
+
+        decodeTable = decodeTable(encoding);
+        clipLevel = maxMagnitude(decodeTable);
+
+        packetRms = metrics.histogram(metricsPrefix + "packetRms");
+        packetPeak = metrics.histogram(metricsPrefix + "packetPeak");
+        clippedSamples = metrics.counter(metricsPrefix + "clippedSamples");
+        clippedPackets = metrics.counter(metricsPrefix + "clippedPackets");
+        metrics.gauge(metricsPrefix + "loudness", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                // Gauges are integers so this is in hundredths of a dB.
+                double loudness = getLoudnessDbfs();
+                return Double.isInfinite(loudness) ?
+                        Long.MIN_VALUE : Math.round(loudness * 100);
+            }
+        });
+    }
+
+    /**
+     * Measures one packet of audio.
+     *
+     * @param data
+     *            encoded audio data
+     * @param offset
+     *            index of the first byte to analyze
+     * @param length
+     *            number of bytes to analyze
+     */
+    public void analyze(byte[] data, int offset, int length)
+    {
+        long squares = 0;
+        int packetMax = 0;
+        int clipped = 0;
+        int samples;
+
+        if (decodeTable != null)
+        {
+            samples = length;
+            for (int i = offset, end = offset + length; i < end; i++)
+            {
+                int sample = decodeTable[data[i] & 0xFF];
+                int magnitude = sample < 0 ? -sample : sample;
+                squares += sample * sample;
+                if (magnitude > packetMax)
+                {
+                    packetMax = magnitude;
+                }
+                if (magnitude >= clipLevel)
+                {
+                    clipped++;
+                }
+            }
+        }
+        else
+        {
+            samples = length / 2;
+            for (int i = offset, end = offset + 2 * samples; i < end; i += 2)
+            {
+                int sample = pcm16Sample(data, i);
+                int magnitude = sample < 0 ? -sample : sample;
+                squares += sample * sample;
+                if (magnitude > packetMax)
+                {
+                    packetMax = magnitude;
+                }
+                if (magnitude >= clipLevel)
+                {
+                    clipped++;
+                }
+            }
+        }
+
+        if (samples == 0)
+        {
+            return;
+        }
+
+        packetRms.record(Math.round(Math.sqrt((double) squares / samples)));
+        packetPeak.record(packetMax);
+        if (clipped > 0)
+        {
+            clippedSamples.add(clipped);
+            clippedPackets.increment();
+        }
+
+        // Only this thread writes these fields.
+        packetCount++;
+        sampleCount += samples;
+        sumOfSquares += squares;
+        if (packetMax > peak)
+        {
+            peak = packetMax;
+        }
+    }
+
+    /**
+     * Returns the encoding of the analyzed data.
+     *
+     * @return encoding type
+     */
+    public EncodingType getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * Returns the number of packets that were analyzed.
+     *
+     * @return number of packets
+     */
+    public long getPacketCount()
+    {
+        return packetCount;
+    }
+
+    /**
+     * Returns the number of samples at the largest magnitude that the
+     * encoding can represent.
+     *
+     * @return number of clipped samples
+     */
+    public long getClippedSampleCount()
+    {
+        return clippedSamples.getCount();
+    }
+
+    /**
+     * Returns the number of packets containing at least one clipped sample.
+     *
+     * @return number of clipped packets
+     */
+    public long getClippedPacketCount()
+    {
+        return clippedPackets.getCount();
+    }
+
+    /**
+     * Returns the largest sample magnitude seen in the stream.
+     *
+     * @return peak level in dB relative to full scale
+     */
+    public double getPeakDbfs()
+    {
+        return toDbfs(peak);
+    }
+
+    /**
+     * Returns the RMS level over every sample of the stream that has been
+     * analyzed.
+     *
+     * @return loudness in dB relative to full scale, or negative infinity
+     *         if nothing but silence has been analyzed
+     */
+    public double getLoudnessDbfs()
+    {
+        long samples = sampleCount;
+        return samples == 0 ?
+                Double.NEGATIVE_INFINITY : toDbfs(Math.sqrt(sumOfSquares / samples));
+    }
+
+    /**
+     * Converts a linear 16-bit magnitude to dB relative to full scale.
+     *
+     * @param magnitude
+     *            linear magnitude
+     * @return level in dBFS
+     */
+    public static double toDbfs(double magnitude)
+    {
+        return 20 * Math.log10(magnitude / FULL_SCALE);
+    }
+
+    /**
+     * Returns the linear value of each G.711 code in the given encoding, or
+     * null if the encoding is PCM16.
+     */
+    static short[] decodeTable(EncodingType encoding)
+    {
+        switch (encoding)
+        {
+            case ULAW:
+            {
+                short[] table = new short[256];
+                for (int code = 0; code < table.length; code++)
+                {
+                    table[code] = G711.ulawToLinear((byte) code);
+                }
+                return table;
+            }
+            case ALAW:
+            {
+                short[] table = new short[256];
+                for (int code = 0; code < table.length; code++)
+                {
+                    table[code] = G711.alawToLinear((byte) code);
+                }
+                return table;
+            }
+            case PCM16:
+                return null;
+            default:
+                throw new IllegalArgumentException(
+                        "Unhandled EncodingType: " + encoding.name());
+        }
+    }
+
+    /**
+     * Reads one PCM16 sample. Output PCM16 is unsigned little-endian (see
+     * {@link AudioFileStreamer#getConversionFormat}).
+     */
+    static int pcm16Sample(byte[] data, int index)
+    {
+        return (short) ((data[index] & 0xFF) | (((data[index + 1] ^ 0x80) & 0xFF) << 8));
+    }
+
+    private static int maxMagnitude(short[] decodeTable)
+    {
+        if (decodeTable == null)
+        {
+            return Short.MAX_VALUE;
+        }
+
+        int max = 0;
+        for (short sample : decodeTable)
+        {
+            max = Math.max(max, Math.abs(sample));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cisco.common.ExceptionHandler;
+import com.andrewkroh.cisco.common.NamedThreadFactory;
+import com.google.common.base.Preconditions;
+
+/**
+ * {@link AudioSource} that streams live audio produced by another process
+ * through a named pipe (FIFO) or standard input. The input must be raw,
+ * headerless, 8000 Hz mono audio that is either u-law, A-law, or 16-bit
+ * signed little-endian PCM.
+ *
+ * <p/>
+ * A reader thread pulls data from the channel using NIO, converts it to the
+ * output encoding, and places it into a small lock-free ring. The streamer's
+ * pacing thread drains one packet per tick from the ring. Playback does not
+ * begin until the ring holds the target latency worth of audio. If the ring
+ * runs dry the missing data is replaced with silence (an underrun) and the
+ * source re-buffers. If the producer runs ahead of real-time and the ring
+ * grows beyond twice the target latency, the oldest audio is discarded to
+ * bring the latency back to the target (an overrun).
+ *
+ * <p/>
+ * When reading from a named pipe the pipe is reopened each time the writing
+ * process closes it, so writers can come and go while the stream continues
+ * with silence. If the pipe cannot be opened or read, for example because it
+ * does not exist yet, it is reopened after a delay that doubles with each
+ * consecutive failure, from 100 ms up to 5 s.
+ *
+ * @author akroh
+ */
+public class LiveAudioSource implements AudioSource
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(LiveAudioSource.class);
+
+    /**
+     * Sample rate of the input and output audio.
+     */
+    public static final float SAMPLE_RATE_HZ = 8000f;
+
+    /**
+     * Default amount of audio buffered between the reader and the pacer.
+     */
+    public static final long DEFAULT_TARGET_LATENCY_MS = 60;
+
+    /**
+     * Size of the buffer used for each read from the channel.
+     */
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    /**
+     * Delay before reopening the named pipe after the first failure.
+     */
+    private static final long MIN_REOPEN_DELAY_MS = 100;
+
+    /**
+     * Upper bound of the delay before reopening the named pipe.
+     */
+    private static final long MAX_REOPEN_DELAY_MS = 5000;
+
+    /**
+     * Path of the named pipe, or {@code null} when reading from a channel
+     * that cannot be reopened.
+     */
+    private final Path pipePath;
+
+    private final EncodingType inputEncoding;
+
+    private final EncodingType outputEncoding;
+
+    private final AudioFormat outputFormat;
+
+    /**
+     * Number of bytes in one output sample.
+     */
+    private final int outputFrameSize;
+
+    /**
+     * Amount of buffered output data at which playback starts.
+     */
+    private final int targetBytes;
+
+    /**
+     * Amount of buffered output data above which old data is discarded.
+     */
+    private final int maxBytes;
+
+    private final ByteRingBuffer ring;
+
+    private final AtomicLong underruns = new AtomicLong();
+
+    private final AtomicLong overruns = new AtomicLong();
+
+    private final AtomicLong discardedBytes = new AtomicLong();
+
+    private final AtomicLong inputErrors = new AtomicLong();
+
+    private final Thread readerThread;
+
+    private volatile ReadableByteChannel channel;
+
+    private volatile boolean running = true;
+
+    /**
+     * True while waiting for the ring to fill to the target latency. Only
+     * accessed by the pacing thread.
+     */
+    private boolean buffering = true;
+
+    /**
+     * Creates a source that reads from a named pipe. The pipe is opened by
+     * the reader thread so this does not block waiting for a writer.
+     *
+     * @param pipePath
+     *            path to the named pipe
+     * @param inputEncoding
+     *            encoding of the data written to the pipe
+     * @param outputEncoding
+     *            encoding of the data returned by this source
+     * @param targetLatencyMs
+     *            amount of audio to buffer before starting playback
+     * @return a started {@code LiveAudioSource}
+     */
+    public static LiveAudioSource fromNamedPipe(Path pipePath,
+                                                EncodingType inputEncoding,
+                                                EncodingType outputEncoding,
+                                                long targetLatencyMs)
+    {
+        Preconditions.checkNotNull(pipePath, "Pipe path cannot be null.");
+
+        return new LiveAudioSource(pipePath, null, inputEncoding,
+                outputEncoding, targetLatencyMs);
+    }
+
+    /**
+     * Creates a source that reads from standard input.
+     *
+     * @param inputEncoding
+     *            encoding of the data written to standard input
+     * @param outputEncoding
+     *            encoding of the data returned by this source
+     * @param targetLatencyMs
+     *            amount of audio to buffer before starting playback
+     * @return a started {@code LiveAudioSource}
+     */
+    public static LiveAudioSource fromStandardInput(EncodingType inputEncoding,
+                                                    EncodingType outputEncoding,
+                                                    long targetLatencyMs)
+    {
+        return fromChannel(Channels.newChannel(System.in), inputEncoding,
+                outputEncoding, targetLatencyMs);
+    }
+
+    /**
+     * Creates a source that reads from an arbitrary channel. The channel is
+     * not reopened when it reaches end-of-stream.
+     *
+     * @param channel
+     *            channel to read the audio from
+     * @param inputEncoding
+     *            encoding of the data read from the channel
+     * @param outputEncoding
+     *            encoding of the data returned by this source
+     * @param targetLatencyMs
+     *            amount of audio to buffer before starting playback
+     * @return a started {@code LiveAudioSource}
+     */
+    public static LiveAudioSource fromChannel(ReadableByteChannel channel,
+                                              EncodingType inputEncoding,
+                                              EncodingType outputEncoding,
+                                              long targetLatencyMs)
+    {
+        Preconditions.checkNotNull(channel, "Channel cannot be null.");
+
+        return new LiveAudioSource(null, channel, inputEncoding,
+                outputEncoding, targetLatencyMs);
+    }
+
+    private LiveAudioSource(Path pipePath,
+                            ReadableByteChannel channel,
+                            EncodingType inputEncoding,
+                            EncodingType outputEncoding,
+                            long targetLatencyMs)
+    {
+        this.inputEncoding = Preconditions.checkNotNull(inputEncoding,
+                "Input encoding type cannot be null.");
+        this.outputEncoding = Preconditions.checkNotNull(outputEncoding,
+                "Output encoding type cannot be null.");
+        Preconditions.checkArgument(targetLatencyMs > 0,
+                "Target latency must be greater than zero.");
+
+        this.pipePath = pipePath;
+        this.channel = channel;
+        this.outputFormat = toOutputFormat(outputEncoding);
+        this.outputFrameSize = outputFormat.getFrameSize();
+
+        int bytesPerMs = (int) (SAMPLE_RATE_HZ / 1000) * outputFrameSize;
+        this.targetBytes = (int) (targetLatencyMs * bytesPerMs);
+        this.maxBytes = targetBytes * 2;
+        this.ring = new ByteRingBuffer(maxBytes * 4);
+
+        readerThread = new NamedThreadFactory("live-audio-reader",
+                new ExceptionHandler() {
+                    @Override
+                    public void handle(Exception e, String errorMessage)
+                    {
+                        LOGGER.error(errorMessage, e);
+                    }
+                }).newThread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        readUntilClosed();
+                    }
+                });
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    @Override
+    public AudioFormat getFormat()
+    {
+        return outputFormat;
+    }
+
+    @Override
+    public void read(ByteBuffer packetData)
+    {
+        int length = packetData.remaining();
+        int available = ring.available();
+
+        if (buffering)
+        {
+            if (available < targetBytes)
+            {
+                Silence.fill(packetData, outputEncoding);
+                return;
+            }
+
+            buffering = false;
+        }
+
+        if (available > maxBytes)
+        {
+            int excess = available - targetBytes;
+            excess -= excess % outputFrameSize;
+            discardedBytes.addAndGet(ring.skip(excess));
+            overruns.incrementAndGet();
+        }
+
+        int count;
+        if (packetData.hasArray())
+        {
+            count = ring.read(packetData.array(),
+                    packetData.arrayOffset() + packetData.position(), length);
+            packetData.position(packetData.position() + count);
+        }
+        else
+        {
+            byte[] copy = new byte[length];
+            count = ring.read(copy, 0, length);
+            packetData.put(copy, 0, count);
+        }
+
+        if (count < length)
+        {
+            underruns.incrementAndGet();
+            buffering = true;
+            Silence.fill(packetData, outputEncoding);
+        }
+    }
+
+    /**
+     * Stops the reader thread and closes the underlying channel.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        running = false;
+
+        ReadableByteChannel current = channel;
+        if (current != null)
+        {
+            current.close();
+        }
+
+        readerThread.interrupt();
+    }
+
+    /**
+     * Returns the number of times the ring ran dry during playback and
+     * silence was inserted.
+     *
+     * @return number of underruns
+     */
+    public long getUnderrunCount()
+    {
+        return underruns.get();
+    }
+
+    /**
+     * Returns the number of times audio was discarded because the producer
+     * was too far ahead or the ring was full.
+     *
+     * @return number of overruns
+     */
+    public long getOverrunCount()
+    {
+        return overruns.get();
+    }
+
+    /**
+     * Returns the total number of output bytes discarded due to overruns.
+     *
+     * @return number of discarded bytes
+     */
+    public long getDiscardedByteCount()
+    {
+        return discardedBytes.get();
+    }
+
+    /**
+     * Returns the number of times the input could not be opened or read.
+     *
+     * @return number of input errors
+     */
+    public long getInputErrorCount()
+    {
+        return inputErrors.get();
+    }
+
+    /**
+     * Returns the amount of audio currently buffered between the reader and
+     * the pacer.
+     *
+     * @return buffered audio in milliseconds
+     */
+    public long getBufferedMillis()
+    {
+        return (long) (ring.available() / outputFrameSize / (SAMPLE_RATE_HZ / 1000));
+    }
+
+    /**
+     * Reader thread loop. Reads from the channel, converts to the output
+     * encoding, and writes into the ring.
+     */
+    private void readUntilClosed()
+    {
+        ByteBuffer input = ByteBuffer.allocateDirect(READ_BUFFER_SIZE)
+                                     .order(ByteOrder.LITTLE_ENDIAN);
+        byte[] output = new byte[READ_BUFFER_SIZE * 2];
+        long reopenDelayMs = 0;
+
+        while (running)
+        {
+            try
+            {
+                if (channel == null)
+                {
+                    LOGGER.debug("Opening named pipe {}.", pipePath);
+                    channel = FileChannel.open(pipePath, StandardOpenOption.READ);
+                    input.clear();
+
+                    // close() may have run while the open was blocked.
+                    if (!running)
+                    {
+                        closeQuietly(channel);
+                        return;
+                    }
+                }
+
+                int bytesRead = channel.read(input);
+                if (bytesRead > 0)
+                {
+                    reopenDelayMs = 0;
+                }
+                else if (bytesRead < 0)
+                {
+                    channel.close();
+                    if (pipePath == null)
+                    {
+                        LOGGER.info("Live audio input reached end-of-stream.");
+                        return;
+                    }
+
+                    channel = null;
+                    continue;
+                }
+
+                input.flip();
+                int outputLength = transcode(input, output);
+                input.compact();
+
+                if (outputLength > 0 && !ring.write(output, 0, outputLength))
+                {
+                    discardedBytes.addAndGet(outputLength);
+                    overruns.incrementAndGet();
+                }
+            }
+            catch (AsynchronousCloseException e)
+            {
+                // Closed by close().
+                return;
+            }
+            catch (IOException e)
+            {
+                if (!running)
+                {
+                    return;
+                }
+
+                inputErrors.incrementAndGet();
+                closeQuietly(channel);
+                channel = null;
+
+                if (pipePath == null)
+                {
+                    LOGGER.warn("Error reading live audio input.", e);
+                    return;
+                }
+
+                // Only the first of consecutive failures is logged as a
+                // warning, the pipe may not exist for a while:
+                if (reopenDelayMs == 0)
+                {
+                    reopenDelayMs = MIN_REOPEN_DELAY_MS;
+                    LOGGER.warn("Error reading named pipe " + pipePath +
+                            ", retrying in " + reopenDelayMs + " ms.", e);
+                }
+                else
+                {
+                    reopenDelayMs = Math.min(reopenDelayMs * 2, MAX_REOPEN_DELAY_MS);
+                    LOGGER.debug("Error reading named pipe {}, retrying in {} ms: {}",
+                            pipePath, reopenDelayMs, e.toString());
+                }
+
+                try
+                {
+                    Thread.sleep(reopenDelayMs);
+                }
+                catch (InterruptedException ie)
+                {
+                    // Interrupted by close().
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(ReadableByteChannel channel)
+    {
+        if (channel == null)
+        {
+            return;
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.debug("Error closing live audio input.", e);
+        }
+    }
+
+    /**
+     * Converts all whole input samples in {@code input} to the output
+     * encoding. A trailing partial sample is left in the buffer.
+     *
+     * @return number of bytes written to {@code output}
+     */
+    private int transcode(ByteBuffer input, byte[] output)
+    {
+        int outputLength = 0;
+
+        if (inputEncoding == outputEncoding && inputEncoding != EncodingType.PCM16)
+        {
+            outputLength = input.remaining();
+            input.get(output, 0, outputLength);
+            return outputLength;
+        }
+
+        while (input.remaining() >= bytesPerSample(inputEncoding))
+        {
+            int sample;
+            switch (inputEncoding)
+            {
+                case ULAW:
+                    sample = G711.ulawToLinear(input.get());
+                    break;
+                case ALAW:
+                    sample = G711.alawToLinear(input.get());
+                    break;
+                default:
+                    sample = input.getShort();
+                    break;
+            }
+
+            switch (outputEncoding)
+            {
+                case ULAW:
+                    output[outputLength++] = G711.linearToUlaw(sample);
+                    break;
+                case ALAW:
+                    output[outputLength++] = G711.linearToAlaw(sample);
+                    break;
+                default:
+                    // Output PCM16 is unsigned little-endian (see
+                    // AudioFileStreamer#toPcm16Format).
+                    int unsigned = (sample ^ 0x8000) & 0xFFFF;
+                    output[outputLength++] = (byte) unsigned;
+                    output[outputLength++] = (byte) (unsigned >>> 8);
+                    break;
+            }
+        }
+
+        return outputLength;
+    }
+
+    private static int bytesPerSample(EncodingType encoding)
+    {
+        return encoding == EncodingType.PCM16 ? 2 : 1;
+    }
+
+    private static AudioFormat toOutputFormat(EncodingType encoding)
+    {
+        switch (encoding)
+        {
+            case ALAW:
+                return new AudioFormat(AudioFormat.Encoding.ALAW,
+                        SAMPLE_RATE_HZ, 8, 1, 1, SAMPLE_RATE_HZ, false);
+            case PCM16:
+                return new AudioFormat(AudioFormat.Encoding.PCM_UNSIGNED,
+                        SAMPLE_RATE_HZ, 16, 1, 2, SAMPLE_RATE_HZ, false);
+            case ULAW:
+                return new AudioFormat(AudioFormat.Encoding.ULAW,
+                        SAMPLE_RATE_HZ, 8, 1, 1, SAMPLE_RATE_HZ, false);
+            default:
+                throw new IllegalArgumentException(
+                        "Unhandled EncodingType: " + encoding.name());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.google.common.base.Preconditions;
+
+/**
+ * Scales decoded audio so that its RMS level matches a target. This is done
+ * once when a file is loaded so that streaming it costs nothing extra.
+ *
+ * <p/>
+ * The gain is limited so that the loudest sample does not exceed full
+ * scale, which means quiet audio with loud peaks may end up below the
+ * target rather than clipping.
+ *
+ * @author akroh
+ */
+public final class LoudnessNormalizer
+{
+    /**
+     * Level below which audio is treated as silence and left unchanged, so
+     * that the noise floor of a silent file is not amplified.
+     */
+    public static final double SILENCE_DBFS = -70;
+
+    /**
+     * Scales {@code data} in place so that its RMS level is
+     * {@code targetDbfs}.
+     *
+     * @param data
+     *            complete audio data in the given encoding
+     * @param encoding
+     *            encoding of the data
+     * @param targetDbfs
+     *            target RMS level in dB relative to full scale, must not be
+     *            positive
+     * @return the gain that was applied, 1 if the data is below
+     *         {@link #SILENCE_DBFS}
+     */
+    public static double normalize(byte[] data, EncodingType encoding, double targetDbfs)
+    {
+        Preconditions.checkNotNull(data, "Data cannot be null.");
+        Preconditions.checkNotNull(encoding, "Encoding type cannot be null.");
+        Preconditions.checkArgument(targetDbfs <= 0,
+                "Target level must not be above full scale.");
+
+        short[] decodeTable = LevelMeter.decodeTable(encoding);
+        int step = decodeTable == null ? 2 : 1;
+        int end = data.length - data.length % step;
+
+        double squares = 0;
+        int peak = 0;
+        for (int i = 0; i < end; i += step)
+        {
+            int sample = decodeTable == null ?
+                    LevelMeter.pcm16Sample(data, i) : decodeTable[data[i] & 0xFF];
+            squares += (double) sample * sample;
+            peak = Math.max(peak, Math.abs(sample));
+        }
+
+        double rms = end == 0 ? 0 : Math.sqrt(squares / (end / step));
+        if (LevelMeter.toDbfs(rms) < SILENCE_DBFS)
+        {
+            return 1;
+        }
+
+        double target = LevelMeter.FULL_SCALE * Math.pow(10, targetDbfs / 20);
+        double gain = Math.min(target / rms, Short.MAX_VALUE / (double) peak);
+
+        if (decodeTable == null)
+        {
+            for (int i = 0; i < end; i += 2)
+            {
+                int sample = scale(LevelMeter.pcm16Sample(data, i), gain);
+                data[i] = (byte) sample;
+                data[i + 1] = (byte) ((sample >> 8) ^ 0x80);
+            }
+        }
+        else
+        {
+            // Every G.711 code maps to one new code.
+            byte[] remap = new byte[256];
+            for (int code = 0; code < remap.length; code++)
+            {
+                int sample = scale(decodeTable[code], gain);
+                remap[code] = encoding == EncodingType.ULAW ?
+                        G711.linearToUlaw(sample) : G711.linearToAlaw(sample);
+            }
+            for (int i = 0; i < end; i++)
+            {
+                data[i] = remap[data[i] & 0xFF];
+            }
+        }
+
+        return gain;
+    }
+
+    private static int scale(int sample, double gain)
+    {
+        long scaled = Math.round(sample * gain);
+        return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled));
+    }
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private LoudnessNormalizer()
+    {
+        // Not to be instantiated.
+    }
+}
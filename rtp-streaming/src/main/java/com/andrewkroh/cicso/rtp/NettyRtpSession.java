@@ -20,6 +20,11 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
@@ -31,19 +36,62 @@ import io.netty.channel.socket.nio.NioDatagramChannel;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.andrewkroh.cicso.rtp.RtpPacketDispatcher.OverflowPolicy;
+import com.andrewkroh.cicso.rtp.RtpPacketDispatcher.Subscription;
+import com.andrewkroh.cisco.common.metrics.Counter;
+import com.andrewkroh.cisco.common.metrics.Gauge;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
 import com.google.common.base.Preconditions;
 
 /**
  * {@link RtpSession} implementation that utilizes Netty for the underlying
  * network communications.
  *
+ * <p/>
+ * Sending honors the channel's writability. Once more than the high water
+ * mark of bytes are waiting to be written the channel becomes unwritable,
+ * and datagrams are held by the session until it drops below the low water
+ * mark. Held datagrams that are older than the freshness deadline are
+ * dropped rather than sent, because late audio is worse than lost audio.
+ * See {@link #setWriteBufferWaterMarks(int, int)} and
+ * {@link #setFreshnessDeadline(long, TimeUnit)}.
+ *
+ * <p/>
+ * The session records the following metrics in its {@link MetricsRegistry},
+ * each named with the prefix returned by {@link #getMetricsPrefix()}:
+ * {@code packetsSent} and {@code bytesSent} (one per destination),
+ * {@code packetsDropped} (held longer than the freshness deadline),
+ * {@code sendFailures} and {@code sendFailures.<host>:<port>} (writes that
+ * the channel failed), the {@code queuedBytes} and {@code unwritableNanos}
+ * gauges, {@code unwritableEvents}, {@code destinationsQuarantined},
+ * {@code probesSent}, the {@code quarantinedDestinations} gauge, and the
+ * receive counters of {@link RtpPacketHandler}.
+ *
+ * <p/>
+ * A destination whose sends fail several times in a row is quarantined: it
+ * is left out of the fan-out entirely, and the packet being sent is instead
+ * sent to it as a probe at an interval that doubles after each failed probe.
+ * The first successful probe returns it to the fan-out. See
+ * {@link #setQuarantinePolicy(int, long, long, TimeUnit)}.
+ *
  * @author akroh
  */
 public class NettyRtpSession implements RtpSession, RtpPacketListener
@@ -55,12 +103,122 @@ public class NettyRtpSession implements RtpSession, RtpPacketListener
 
     private static final int NUM_THREADS = 10;
 
+    /**
+     * Default time a datagram may be held while the channel is unwritable.
+     */
+    public static final long DEFAULT_FRESHNESS_DEADLINE_MS = 100;
+
+    /**
+     * Default number of consecutive failed sends after which a destination
+     * is quarantined.
+     */
+    public static final int DEFAULT_QUARANTINE_THRESHOLD = 5;
+
+    /**
+     * Default time between the first probes of a quarantined destination.
+     */
+    public static final long DEFAULT_INITIAL_PROBE_INTERVAL_MS = 1000;
+
+    /**
+     * Default limit of the time between probes.
+     */
+    public static final long DEFAULT_MAX_PROBE_INTERVAL_MS = 60000;
+
+    /**
+     * Used to give each session's metrics a unique name.
+     */
+    private static final AtomicInteger SESSION_COUNT = new AtomicInteger();
+
     private final Bootstrap bootstrap;
 
     private final DatagramChannel channel;
 
-    private final CopyOnWriteArraySet<Destination> destinations =
-            new CopyOnWriteArraySet<Destination>();
+    /**
+     * Current destinations. Every change builds a new snapshot and swaps it
+     * in atomically, so a bulk change costs one copy and sending iterates a
+     * plain array.
+     */
+    private final AtomicReference<DestinationSnapshot> destinations =
+            new AtomicReference<DestinationSnapshot>(DestinationSnapshot.EMPTY);
+
+    /**
+     * Delivers received packets to the registered {@link RtpPacketListener}s
+     * on their own threads so that they cannot stall the event loop.
+     */
+    private final RtpPacketDispatcher dispatcher = new RtpPacketDispatcher();
+
+    private final MetricsRegistry metrics;
+
+    private final String metricsPrefix;
+
+    private final Counter packetsSent;
+
+    private final Counter bytesSent;
+
+    private final Counter sendFailures;
+
+    private final Counter packetsDropped;
+
+    private final Counter unwritableEvents;
+
+    private final Counter destinationsQuarantined;
+
+    private final Counter probesSent;
+
+    private volatile int quarantineThreshold = DEFAULT_QUARANTINE_THRESHOLD;
+
+    private volatile long initialProbeIntervalNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_INITIAL_PROBE_INTERVAL_MS);
+
+    private volatile long maxProbeIntervalNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_PROBE_INTERVAL_MS);
+
+    /**
+     * {@link System#nanoTime()} at which the next probe of a quarantined
+     * destination is due. Only checked when there are quarantined
+     * destinations.
+     */
+    private final AtomicLong earliestProbeNanos = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * Lock for everything that writes to the channel so that held datagrams
+     * are sent before newer ones. The event loop never waits for it, see
+     * {@link #drainPending(long)}.
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /**
+     * Datagrams held while the channel is unwritable, oldest first. Guarded
+     * by {@code sendLock}.
+     */
+    private final ArrayDeque<PendingDatagram> pending = new ArrayDeque<PendingDatagram>();
+
+    /**
+     * Bytes held in {@link #pending}. Guarded by {@code sendLock}.
+     */
+    private long pendingBytes;
+
+    /**
+     * Set when the channel became writable and the held datagrams must be
+     * sent by whichever thread next acquires {@code sendLock}.
+     */
+    private final AtomicBoolean drainRequested = new AtomicBoolean();
+
+    /**
+     * Bytes handed to the channel whose write has not completed.
+     */
+    private final AtomicLong outboundBytes = new AtomicLong();
+
+    private volatile long freshnessDeadlineNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_FRESHNESS_DEADLINE_MS);
+
+    /**
+     * {@link System#nanoTime()} at which the channel became unwritable, or 0
+     * while it is writable.
+     */
+    private volatile long unwritableSinceNanos;
+
+    private final AtomicLong unwritableNanos = new AtomicLong();
 
     public NettyRtpSession(final InetSocketAddress bindAddress)
     {
@@ -70,8 +228,56 @@ public class NettyRtpSession implements RtpSession, RtpPacketListener
     public NettyRtpSession(final InetSocketAddress bindAddress,
                            final NetworkInterface multicastInterface,
                            final InetAddress multicastGroup)
+    {
+        this(bindAddress, multicastInterface, multicastGroup, null);
+    }
+
+    /**
+     * Creates a session. When an SRTP master key is given all packets sent
+     * and received by the session are protected with SRTP
+     * (AES_CM_128_HMAC_SHA1_80).
+     *
+     * @param bindAddress
+     *            local address to bind to
+     * @param multicastInterface
+     *            interface used for multicast, may be {@code null}
+     * @param multicastGroup
+     *            multicast group to join, may be {@code null}
+     * @param srtpMasterKey
+     *            SRTP master key, or {@code null} to send plain RTP
+     */
+    public NettyRtpSession(final InetSocketAddress bindAddress,
+                           final NetworkInterface multicastInterface,
+                           final InetAddress multicastGroup,
+                           final SrtpMasterKey srtpMasterKey)
+    {
+        this(bindAddress, multicastInterface, multicastGroup, srtpMasterKey,
+             MetricsRegistry.getDefault());
+    }
+
+    /**
+     * Creates a session that records its metrics in the given registry.
+     *
+     * @param bindAddress
+     *            local address to bind to
+     * @param multicastInterface
+     *            interface used for multicast, may be {@code null}
+     * @param multicastGroup
+     *            multicast group to join, may be {@code null}
+     * @param srtpMasterKey
+     *            SRTP master key, or {@code null} to send plain RTP
+     * @param metrics
+     *            registry in which the session's metrics are created
+     */
+    public NettyRtpSession(final InetSocketAddress bindAddress,
+                           final NetworkInterface multicastInterface,
+                           final InetAddress multicastGroup,
+                           final SrtpMasterKey srtpMasterKey,
+                           final MetricsRegistry metrics)
     {
         Preconditions.checkNotNull(bindAddress, "Must specify a bind address.");
+        this.metrics = Preconditions.checkNotNull(metrics,
+                "MetricsRegistry cannot be null.");
 
         if (multicastGroup != null)
         {
@@ -89,6 +295,37 @@ public class NettyRtpSession implements RtpSession, RtpPacketListener
                 "Must bind to wildcard address when using multicast.");
         }
 
+        metricsPrefix = "rtp.session." + bindAddress.getPort() + "-" +
+                SESSION_COUNT.incrementAndGet() + ".";
+        packetsSent = metrics.counter(metricsPrefix + "packetsSent");
+        bytesSent = metrics.counter(metricsPrefix + "bytesSent");
+        sendFailures = metrics.counter(metricsPrefix + "sendFailures");
+        packetsDropped = metrics.counter(metricsPrefix + "packetsDropped");
+        unwritableEvents = metrics.counter(metricsPrefix + "unwritableEvents");
+        destinationsQuarantined = metrics.counter(metricsPrefix + "destinationsQuarantined");
+        probesSent = metrics.counter(metricsPrefix + "probesSent");
+        metrics.gauge(metricsPrefix + "quarantinedDestinations", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return destinations.get().quarantined.length;
+            }
+        });
+        metrics.gauge(metricsPrefix + "queuedBytes", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return getQueuedBytes();
+            }
+        });
+        metrics.gauge(metricsPrefix + "unwritableNanos", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return getUnwritableTime(TimeUnit.NANOSECONDS);
+            }
+        });
+
         EventLoopGroup workerGroup = new NioEventLoopGroup(NUM_THREADS);
 
         bootstrap = new Bootstrap();
@@ -101,9 +338,18 @@ public class NettyRtpSession implements RtpSession, RtpPacketListener
                 @Override
                 protected void initChannel(Channel ch) throws Exception
                 {
-                    ch.pipeline().addLast(new RtpPacketHandler(NettyRtpSession.this));
+                    ch.pipeline().addLast(new WritabilityHandler());
+
+                    if (srtpMasterKey != null)
+                    {
+                        ch.pipeline().addLast(new SrtpHandler(srtpMasterKey));
+                    }
+
+                    ch.pipeline().addLast(new RtpPacketHandler(
+                            NettyRtpSession.this, metrics, metricsPrefix));
                 }
             });
+        disableAutoClose(bootstrap);
 
         if (multicastGroup != null)
         {
@@ -117,7 +363,8 @@ public class NettyRtpSession implements RtpSession, RtpPacketListener
 
         channel = (DatagramChannel) bootstrap.bind().syncUninterruptibly().channel();
 
-        LOGGER.info("Session bound to: {}", channel.localAddress());
+        LOGGER.info("Session bound to: {}, metrics prefix {}",
+                channel.localAddress(), metricsPrefix);
 
         if (multicastGroup != null)
         {
@@ -157,25 +404,384 @@ public class NettyRtpSession implements RtpSession, RtpPacketListener
         finally
         {
             bootstrap.group().shutdownGracefully();
+            dispatcher.shutdown();
+            metrics.remove(metricsPrefix);
+
+            sendLock.lock();
+            try
+            {
+                for (PendingDatagram datagram : pending)
+                {
+                    datagram.packet.release();
+                }
+                pending.clear();
+                pendingBytes = 0;
+            }
+            finally
+            {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sets the number of bytes waiting to be written at which the channel
+     * becomes unwritable ({@code high}) and writable again ({@code low}).
+     *
+     * @param low
+     *            low water mark in bytes
+     * @param high
+     *            high water mark in bytes
+     */
+    public void setWriteBufferWaterMarks(int low, int high)
+    {
+        Preconditions.checkArgument(low >= 0, "Low water mark cannot be negative.");
+        Preconditions.checkArgument(high >= low,
+                "High water mark must be greater than or equal to the low water mark.");
+
+        // Netty rejects a high mark below the current low mark and vice
+        // versa, so the order depends on the direction of the change.
+        ChannelConfig config = channel.config();
+        if (high >= config.getWriteBufferLowWaterMark())
+        {
+            config.setWriteBufferHighWaterMark(high);
+            config.setWriteBufferLowWaterMark(low);
+        }
+        else
+        {
+            config.setWriteBufferLowWaterMark(low);
+            config.setWriteBufferHighWaterMark(high);
+        }
+    }
+
+    /**
+     * Sets how long a datagram may be held while the channel is unwritable
+     * before it is dropped. Zero drops every datagram that cannot be written
+     * immediately.
+     *
+     * @param deadline
+     *            maximum time to hold a datagram
+     * @param unit
+     *            unit of {@code deadline}
+     */
+    public void setFreshnessDeadline(long deadline, TimeUnit unit)
+    {
+        Preconditions.checkArgument(deadline >= 0, "Deadline cannot be negative.");
+        Preconditions.checkNotNull(unit, "TimeUnit cannot be null.");
+        freshnessDeadlineNanos = unit.toNanos(deadline);
+    }
+
+    /**
+     * Returns how long a datagram may be held while the channel is
+     * unwritable.
+     *
+     * @param unit
+     *            unit of the result
+     * @return the freshness deadline
+     */
+    public long getFreshnessDeadline(TimeUnit unit)
+    {
+        return unit.convert(freshnessDeadlineNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets when destinations are quarantined and how often they are probed.
+     *
+     * @param failureThreshold
+     *            consecutive failed sends after which a destination is
+     *            quarantined, or 0 to never quarantine
+     * @param initialProbeInterval
+     *            time between quarantining and the first probe
+     * @param maxProbeInterval
+     *            limit of the time between probes, which doubles after each
+     *            failed probe
+     * @param unit
+     *            unit of the intervals
+     */
+    public void setQuarantinePolicy(int failureThreshold,
+                                    long initialProbeInterval,
+                                    long maxProbeInterval,
+                                    TimeUnit unit)
+    {
+        Preconditions.checkArgument(failureThreshold >= 0,
+                "Failure threshold cannot be negative.");
+        Preconditions.checkArgument(initialProbeInterval > 0,
+                "Initial probe interval must be greater than 0.");
+        Preconditions.checkArgument(maxProbeInterval >= initialProbeInterval,
+                "Max probe interval must not be less than the initial interval.");
+        Preconditions.checkNotNull(unit, "TimeUnit cannot be null.");
+
+        quarantineThreshold = failureThreshold;
+        initialProbeIntervalNanos = unit.toNanos(initialProbeInterval);
+        maxProbeIntervalNanos = unit.toNanos(maxProbeInterval);
+    }
+
+    /**
+     * Returns the number of bytes held by the session or waiting in the
+     * channel to be written.
+     *
+     * @return queued bytes
+     */
+    public long getQueuedBytes()
+    {
+        sendLock.lock();
+        try
+        {
+            return pendingBytes + outboundBytes.get();
         }
+        finally
+        {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total time the channel has been unwritable, including the
+     * current period if it is unwritable now.
+     *
+     * @param unit
+     *            unit of the result
+     * @return time spent unwritable
+     */
+    public long getUnwritableTime(TimeUnit unit)
+    {
+        long total = unwritableNanos.get();
+        long since = unwritableSinceNanos;
+        if (since != 0)
+        {
+            total += System.nanoTime() - since;
+        }
+        return unit.convert(total, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the prefix of the names of this session's metrics, for example
+     * {@code rtp.session.5004-1.}.
+     *
+     * @return metric name prefix ending with a dot
+     */
+    public String getMetricsPrefix()
+    {
+        return metricsPrefix;
+    }
+
+    /**
+     * Registers a listener for packets received by this session using the
+     * dispatcher's default queue capacity and overflow policy.
+     *
+     * @param listener
+     *            listener to register
+     * @return {@code Subscription} containing the listener's counters
+     * @see RtpPacketDispatcher#addListener(RtpPacketListener)
+     */
+    public Subscription addPacketListener(RtpPacketListener listener)
+    {
+        return dispatcher.addListener(listener);
+    }
+
+    /**
+     * Registers a listener for packets received by this session. The listener
+     * is invoked from its own thread and not from the Netty event loop.
+     *
+     * @param listener
+     *            listener to register
+     * @param queueCapacity
+     *            maximum number of packets queued for the listener
+     * @param overflowPolicy
+     *            action taken when the listener's queue is full
+     * @return {@code Subscription} containing the listener's counters
+     * @see RtpPacketDispatcher#addListener(RtpPacketListener, int,
+     *      OverflowPolicy)
+     */
+    public Subscription addPacketListener(RtpPacketListener listener,
+                                          int queueCapacity,
+                                          OverflowPolicy overflowPolicy)
+    {
+        return dispatcher.addListener(listener, queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * Unregisters a listener for packets received by this session.
+     *
+     * @param listener
+     *            listener to unregister
+     * @return true if the listener was registered
+     */
+    public boolean removePacketListener(RtpPacketListener listener)
+    {
+        return dispatcher.removeListener(listener);
     }
 
     @Override
     public boolean addDestination(Destination destination)
     {
-        return destinations.add(destination);
+        Preconditions.checkNotNull(destination, "Destination cannot be null.");
+
+        while (true)
+        {
+            DestinationSnapshot current = destinations.get();
+            if (current.indexOf(destination) >= 0)
+            {
+                return false;
+            }
+            if (destinations.compareAndSet(current,
+                    current.with(new DestinationState(destination))))
+            {
+                return true;
+            }
+        }
     }
 
     @Override
     public boolean removeDestination(Destination destination)
     {
-        return destinations.remove(destination);
+        Preconditions.checkNotNull(destination, "Destination cannot be null.");
+
+        while (true)
+        {
+            DestinationSnapshot current = destinations.get();
+            int index = current.indexOf(destination);
+            if (index < 0)
+            {
+                return false;
+            }
+            if (destinations.compareAndSet(current, current.without(index)))
+            {
+                current.states[index].removeCounter();
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public int addDestinations(Collection<Destination> toAdd)
+    {
+        checkDestinations(toAdd);
+
+        while (true)
+        {
+            DestinationSnapshot current = destinations.get();
+            Map<Destination, DestinationState> updated = current.toMap();
+            for (Destination destination : toAdd)
+            {
+                if (!updated.containsKey(destination))
+                {
+                    updated.put(destination, new DestinationState(destination));
+                }
+            }
+
+            int added = updated.size() - current.states.length;
+            if (added == 0 ||
+                    destinations.compareAndSet(current, DestinationSnapshot.of(updated)))
+            {
+                return added;
+            }
+        }
     }
 
+    @Override
+    public int removeDestinations(Collection<Destination> toRemove)
+    {
+        checkDestinations(toRemove);
+
+        while (true)
+        {
+            DestinationSnapshot current = destinations.get();
+            Map<Destination, DestinationState> updated = current.toMap();
+            List<DestinationState> removed = new ArrayList<DestinationState>();
+            for (Destination destination : toRemove)
+            {
+                DestinationState state = updated.remove(destination);
+                if (state != null)
+                {
+                    removed.add(state);
+                }
+            }
+
+            if (removed.isEmpty())
+            {
+                return 0;
+            }
+            if (destinations.compareAndSet(current, DestinationSnapshot.of(updated)))
+            {
+                for (DestinationState state : removed)
+                {
+                    state.removeCounter();
+                }
+                return removed.size();
+            }
+        }
+    }
+
+    @Override
+    public void setDestinations(Collection<Destination> replacement)
+    {
+        checkDestinations(replacement);
+
+        while (true)
+        {
+            DestinationSnapshot current = destinations.get();
+            Map<Destination, DestinationState> previous = current.toMap();
+            Map<Destination, DestinationState> updated =
+                    new LinkedHashMap<Destination, DestinationState>();
+            for (Destination destination : replacement)
+            {
+                if (!updated.containsKey(destination))
+                {
+                    // Keep the failure counters of destinations that remain.
+                    DestinationState state = previous.remove(destination);
+                    updated.put(destination, state != null ?
+                            state : new DestinationState(destination));
+                }
+            }
+
+            if (destinations.compareAndSet(current, DestinationSnapshot.of(updated)))
+            {
+                for (DestinationState state : previous.values())
+                {
+                    state.removeCounter();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>
+     * This does not copy the destinations, so it is cheap to call for every
+     * iteration.
+     */
     @Override
     public Collection<Destination> getDestinations()
     {
-        return new HashSet<Destination>(destinations);
+        return destinations.get().view;
+    }
+
+    @Override
+    public Collection<Destination> getQuarantinedDestinations()
+    {
+        return destinations.get().quarantinedView;
+    }
+
+    @Override
+    public DestinationStatus getDestinationStatus(Destination destination)
+    {
+        Preconditions.checkNotNull(destination, "Destination cannot be null.");
+
+        DestinationSnapshot snapshot = destinations.get();
+        int index = snapshot.indexOf(destination);
+        return index < 0 ? null : snapshot.states[index].status(System.nanoTime());
+    }
+
+    private static void checkDestinations(Collection<Destination> collection)
+    {
+        Preconditions.checkNotNull(collection, "Destinations cannot be null.");
+        for (Destination destination : collection)
+        {
+            Preconditions.checkNotNull(destination, "Destination cannot be null.");
+        }
     }
 
     /**
@@ -190,14 +796,187 @@ public class NettyRtpSession implements RtpSession, RtpPacketListener
         Preconditions.checkNotNull(rtpPacket);
         checkNotShutdown();
 
-        for (Destination destination : destinations)
+        // Serialize once and share the bytes between all destinations. Each
+        // datagram holds its own reference to the buffer.
+        ByteBuf buffer = Unpooled.wrappedBuffer(rtpPacket.getBytes());
+        int length = buffer.readableBytes();
+        long now = System.nanoTime();
+        try
+        {
+            sendLock.lock();
+            try
+            {
+                drainRequested.set(false);
+                writePending(now);
+
+                DestinationSnapshot snapshot = destinations.get();
+                for (DestinationState state : snapshot.active)
+                {
+                    send(buffer, state, length, now, false);
+                }
+
+                if (snapshot.quarantined.length > 0 && now >= earliestProbeNanos.get())
+                {
+                    sendProbes(snapshot, buffer, length, now);
+                }
+            }
+            finally
+            {
+                sendLock.unlock();
+            }
+        }
+        finally
+        {
+            buffer.release();
+        }
+
+        // The channel may have become writable during the fan-out, while
+        // the event loop could not take the lock.
+        drainPending(System.nanoTime());
+    }
+
+    /**
+     * Sends the held datagrams if a drain was requested and the lock is
+     * free. If another thread holds the lock it sees the request after it
+     * releases the lock, so this never waits and can be called from the
+     * event loop.
+     */
+    private void drainPending(long now)
+    {
+        while (drainRequested.get() && sendLock.tryLock())
+        {
+            try
+            {
+                drainRequested.set(false);
+                writePending(now);
+            }
+            finally
+            {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffer to one destination, or holds it if the channel is
+     * not writable. Must be called while holding {@code sendLock}.
+     */
+    private void send(ByteBuf buffer, DestinationState state, int length,
+                      long now, boolean probe)
+    {
+        DatagramPacket datagram = new DatagramPacket(buffer.duplicate().retain(),
+                state.destination.getSocketAddress());
+
+        if (pending.isEmpty() && channel.isWritable())
+        {
+            write(datagram, state, length, probe);
+        }
+        else if (freshnessDeadlineNanos == 0)
+        {
+            datagram.release();
+            packetsDropped.increment();
+        }
+        else
+        {
+            pending.add(new PendingDatagram(datagram, state, length, now, probe));
+            pendingBytes += length;
+        }
+    }
+
+    /**
+     * Sends the buffer to the quarantined destinations whose probe is due.
+     * Must be called while holding {@code sendLock}.
+     */
+    private void sendProbes(DestinationSnapshot snapshot, ByteBuf buffer,
+                            int length, long now)
+    {
+        // A destination quarantined after the snapshot was taken may lower
+        // the deadline concurrently and be overwritten here. It is then
+        // probed late, at the next deadline, but never missed.
+        long earliest = Long.MAX_VALUE;
+        for (DestinationState state : snapshot.quarantined)
+        {
+            long next = state.nextProbeNanos;
+            if (now >= next)
+            {
+                next = state.probeSent(now);
+                probesSent.increment();
+                send(buffer, state, length, now, true);
+            }
+            earliest = Math.min(earliest, next);
+        }
+        earliestProbeNanos.set(earliest);
+    }
+
+    private void updateEarliestProbe(long probeNanos)
+    {
+        long current;
+        while (probeNanos < (current = earliestProbeNanos.get()))
+        {
+            if (earliestProbeNanos.compareAndSet(current, probeNanos))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replaces the destination snapshot with one whose active and
+     * quarantined arrays reflect the current quarantine state.
+     */
+    private void rebuildSnapshot()
+    {
+        while (true)
+        {
+            DestinationSnapshot current = destinations.get();
+            if (destinations.compareAndSet(current, current.rebuild()))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes held datagrams while the channel is writable, and drops those
+     * that have been held longer than the freshness deadline. Must be called
+     * while holding {@code sendLock}.
+     */
+    private void writePending(long now)
+    {
+        PendingDatagram head;
+        while ((head = pending.peek()) != null)
         {
-            ByteBuf buffer = Unpooled.copiedBuffer(rtpPacket.getBytes());
-            channel.writeAndFlush(new DatagramPacket(
-                    buffer, destination.getSocketAddress()));
+            if (now - head.enqueuedNanos > freshnessDeadlineNanos)
+            {
+                pending.poll();
+                pendingBytes -= head.length;
+                head.packet.release();
+                packetsDropped.increment();
+            }
+            else if (channel.isWritable())
+            {
+                pending.poll();
+                pendingBytes -= head.length;
+                write(head.packet, head.state, head.length, head.probe);
+            }
+            else
+            {
+                // Everything behind the head is newer so nothing else is stale.
+                break;
+            }
         }
     }
 
+    private void write(DatagramPacket datagram, DestinationState state, int length,
+                       boolean probe)
+    {
+        outboundBytes.addAndGet(length);
+        packetsSent.increment();
+        bytesSent.add(length);
+
+        channel.writeAndFlush(datagram).addListener(new WriteListener(state, length, probe));
+    }
+
     @Override
     public void packetReceived(InetSocketAddress source,
                                InetSocketAddress receiver,
@@ -205,6 +984,387 @@ public class NettyRtpSession implements RtpSession, RtpPacketListener
     {
         LOGGER.debug("RtpPacket received from {}, sent to {}: {}",
                 source, receiver, packet);
+
+        dispatcher.packetReceived(source, receiver, packet);
+    }
+
+    /**
+     * Send health and quarantine state of one destination. The
+     * per-destination failure counter is only created once a write fails so
+     * that sessions with many healthy destinations do not publish a counter
+     * for each one.
+     */
+    private final class DestinationState
+    {
+        private final Destination destination;
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        private final AtomicLong totalFailures = new AtomicLong();
+
+        private volatile boolean quarantined;
+
+        private volatile long quarantineCount;
+
+        /**
+         * Time until the next probe. Guarded by {@code this}.
+         */
+        private long probeIntervalNanos;
+
+        private volatile long nextProbeNanos;
+
+        private volatile boolean counterCreated;
+
+        DestinationState(Destination destination)
+        {
+            this.destination = destination;
+        }
+
+        void writeSucceeded(boolean probe)
+        {
+            if (consecutiveFailures.get() != 0)
+            {
+                consecutiveFailures.set(0);
+            }
+            if (probe)
+            {
+                release();
+            }
+        }
+
+        void writeFailed(Throwable cause, boolean probe)
+        {
+            totalFailures.incrementAndGet();
+            counterCreated = true;
+            metrics.counter(counterName()).increment();
+            LOGGER.debug("Failed to send to {}.", destination, cause);
+
+            int failures = consecutiveFailures.incrementAndGet();
+            if (probe)
+            {
+                probeFailed();
+            }
+            else
+            {
+                int threshold = quarantineThreshold;
+                if (threshold > 0 && failures >= threshold)
+                {
+                    quarantine();
+                }
+            }
+        }
+
+        synchronized void quarantine()
+        {
+            if (quarantined)
+            {
+                return;
+            }
+
+            probeIntervalNanos = initialProbeIntervalNanos;
+            nextProbeNanos = System.nanoTime() + probeIntervalNanos;
+            quarantineCount++;
+            quarantined = true;
+            destinationsQuarantined.increment();
+            LOGGER.warn("Quarantined {} after {} consecutive send failures.",
+                    destination, consecutiveFailures.get());
+
+            rebuildSnapshot();
+            updateEarliestProbe(nextProbeNanos);
+        }
+
+        synchronized long probeSent(long now)
+        {
+            nextProbeNanos = now + probeIntervalNanos;
+            return nextProbeNanos;
+        }
+
+        synchronized void probeFailed()
+        {
+            if (!quarantined)
+            {
+                return;
+            }
+
+            probeIntervalNanos = Math.min(probeIntervalNanos * 2, maxProbeIntervalNanos);
+            nextProbeNanos = System.nanoTime() + probeIntervalNanos;
+            updateEarliestProbe(nextProbeNanos);
+        }
+
+        synchronized void release()
+        {
+            if (!quarantined)
+            {
+                return;
+            }
+
+            quarantined = false;
+            consecutiveFailures.set(0);
+            LOGGER.info("Released {} from quarantine.", destination);
+
+            rebuildSnapshot();
+        }
+
+        DestinationStatus status(long now)
+        {
+            boolean isQuarantined = quarantined;
+            return new DestinationStatus(destination, isQuarantined,
+                    consecutiveFailures.get(), totalFailures.get(), quarantineCount,
+                    isQuarantined ? Math.max(0, nextProbeNanos - now) : 0);
+        }
+
+        void removeCounter()
+        {
+            if (counterCreated)
+            {
+                metrics.removeMetric(counterName());
+            }
+        }
+
+        private String counterName()
+        {
+            return metricsPrefix + "sendFailures." +
+                    destination.getSocketAddress().getHostString() + ":" +
+                    destination.getSocketAddress().getPort();
+        }
+    }
+
+    /**
+     * Immutable set of destinations, in the order they were added, with
+     * their states at the same positions. The destinations are also split
+     * into those that are sent to and those that are quarantined, according
+     * to their states when the snapshot was built.
+     */
+    private static final class DestinationSnapshot
+    {
+        static final DestinationSnapshot EMPTY = new DestinationSnapshot(
+                new Destination[0], new DestinationState[0]);
+
+        private final Destination[] destinations;
+
+        private final DestinationState[] states;
+
+        private final DestinationState[] active;
+
+        private final DestinationState[] quarantined;
+
+        private final Collection<Destination> view;
+
+        private final Collection<Destination> quarantinedView;
+
+        DestinationSnapshot(Destination[] destinations, DestinationState[] states)
+        {
+            this.destinations = destinations;
+            this.states = states;
+            this.view = Collections.unmodifiableList(Arrays.asList(destinations));
+
+            int quarantinedCount = 0;
+            for (DestinationState state : states)
+            {
+                if (state.quarantined)
+                {
+                    quarantinedCount++;
+                }
+            }
+
+            if (quarantinedCount == 0)
+            {
+                this.active = states;
+                this.quarantined = new DestinationState[0];
+                this.quarantinedView = Collections.emptyList();
+            }
+            else
+            {
+                this.active = new DestinationState[states.length - quarantinedCount];
+                this.quarantined = new DestinationState[quarantinedCount];
+                Destination[] quarantinedDestinations = new Destination[quarantinedCount];
+                int a = 0;
+                int q = 0;
+                for (DestinationState state : states)
+                {
+                    if (state.quarantined)
+                    {
+                        quarantinedDestinations[q] = state.destination;
+                        quarantined[q++] = state;
+                    }
+                    else
+                    {
+                        active[a++] = state;
+                    }
+                }
+                this.quarantinedView = Collections.unmodifiableList(
+                        Arrays.asList(quarantinedDestinations));
+            }
+        }
+
+        DestinationSnapshot rebuild()
+        {
+            return new DestinationSnapshot(destinations, states);
+        }
+
+        static DestinationSnapshot of(Map<Destination, DestinationState> map)
+        {
+            return new DestinationSnapshot(
+                    map.keySet().toArray(new Destination[map.size()]),
+                    map.values().toArray(new DestinationState[map.size()]));
+        }
+
+        /**
+         * Linear search, which is cheaper than building a map for a single
+         * change because {@link Destination} caches its hash code.
+         */
+        int indexOf(Destination destination)
+        {
+            int hash = destination.hashCode();
+            for (int i = 0; i < destinations.length; i++)
+            {
+                if (destinations[i].hashCode() == hash && destinations[i].equals(destination))
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        DestinationSnapshot with(DestinationState added)
+        {
+            int length = destinations.length;
+            Destination[] newDestinations = Arrays.copyOf(destinations, length + 1);
+            DestinationState[] newStates = Arrays.copyOf(states, length + 1);
+            newDestinations[length] = added.destination;
+            newStates[length] = added;
+            return new DestinationSnapshot(newDestinations, newStates);
+        }
+
+        DestinationSnapshot without(int index)
+        {
+            int length = destinations.length;
+            Destination[] newDestinations = new Destination[length - 1];
+            DestinationState[] newStates = new DestinationState[length - 1];
+            System.arraycopy(destinations, 0, newDestinations, 0, index);
+            System.arraycopy(states, 0, newStates, 0, index);
+            System.arraycopy(destinations, index + 1, newDestinations, index, length - index - 1);
+            System.arraycopy(states, index + 1, newStates, index, length - index - 1);
+            return new DestinationSnapshot(newDestinations, newStates);
+        }
+
+        Map<Destination, DestinationState> toMap()
+        {
+            Map<Destination, DestinationState> map =
+                    new LinkedHashMap<Destination, DestinationState>(states.length * 2);
+            for (DestinationState entry : states)
+            {
+                map.put(entry.destination, entry);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Completes the accounting of one datagram once the channel has written
+     * or failed it.
+     */
+    private final class WriteListener implements ChannelFutureListener
+    {
+        private final DestinationState state;
+
+        private final int length;
+
+        private final boolean probe;
+
+        WriteListener(DestinationState state, int length, boolean probe)
+        {
+            this.state = state;
+            this.length = length;
+            this.probe = probe;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future)
+        {
+            outboundBytes.addAndGet(-length);
+
+            if (future.isSuccess())
+            {
+                state.writeSucceeded(probe);
+            }
+            else
+            {
+                sendFailures.increment();
+                state.writeFailed(future.cause(), probe);
+            }
+        }
+    }
+
+    /**
+     * Datagram held while the channel is unwritable.
+     */
+    private static final class PendingDatagram
+    {
+        private final DatagramPacket packet;
+
+        private final DestinationState state;
+
+        private final int length;
+
+        private final long enqueuedNanos;
+
+        private final boolean probe;
+
+        PendingDatagram(DatagramPacket packet, DestinationState state,
+                        int length, long enqueuedNanos, boolean probe)
+        {
+            this.packet = packet;
+            this.state = state;
+            this.length = length;
+            this.enqueuedNanos = enqueuedNanos;
+            this.probe = probe;
+        }
+    }
+
+    /**
+     * Tracks the time the channel spends unwritable and sends the held
+     * datagrams when it becomes writable again.
+     */
+    private final class WritabilityHandler extends ChannelInboundHandlerAdapter
+    {
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
+        {
+            long now = System.nanoTime();
+            if (ctx.channel().isWritable())
+            {
+                long since = unwritableSinceNanos;
+                if (since != 0)
+                {
+                    unwritableNanos.addAndGet(now - since);
+                    unwritableSinceNanos = 0;
+                }
+
+                drainRequested.set(true);
+                drainPending(now);
+            }
+            else if (unwritableSinceNanos == 0)
+            {
+                unwritableSinceNanos = now;
+                unwritableEvents.increment();
+            }
+
+            super.channelWritabilityChanged(ctx);
+        }
+    }
+
+    /**
+     * Keeps the channel open when a write fails. {@code AUTO_CLOSE} is
+     * deprecated, but Netty 4.0.12 closes the channel on a write failure
+     * without it.
+     */
+    @SuppressWarnings("deprecation")
+    private static void disableAutoClose(Bootstrap bootstrap)
+    {
+        // A failed send (e.g. no route to one destination) must not close
+        // the channel that every other destination is sent through.
+        bootstrap.option(ChannelOption.AUTO_CLOSE, false);
     }
 
     /**
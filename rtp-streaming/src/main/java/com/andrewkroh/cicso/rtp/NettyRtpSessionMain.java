@@ -21,6 +21,7 @@ import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
@@ -55,6 +56,11 @@ public class NettyRtpSessionMain
                    description = "Multicast group to join. Must use " +
                    		         "with --interface.")
         private String multicastGroup;
+
+        @Parameter(names={"--record", "-r"}, required = false,
+                   description = "Directory to record each received stream " +
+                                 "to as a WAV file.")
+        private String recordDirectory;
     }
 
     /**
@@ -98,10 +104,11 @@ public class NettyRtpSessionMain
             bindAddress = new InetSocketAddress(arguments.host, arguments.port);
         }
 
+        NettyRtpSession session = null;
         if (arguments.multicastInterface == null &&
                 arguments.multicastGroup == null)
         {
-            new NettyRtpSession(bindAddress);
+            session = new NettyRtpSession(bindAddress);
         }
         else if (arguments.multicastInterface != null &&
                 arguments.multicastGroup != null)
@@ -112,12 +119,27 @@ public class NettyRtpSessionMain
             InetAddress multicastGroup =
                     InetAddress.getByName(arguments.multicastGroup);
 
-            new NettyRtpSession(bindAddress, mcastInterface, multicastGroup);
+            session = new NettyRtpSession(bindAddress, mcastInterface, multicastGroup);
         }
         else
         {
             printUsage(jcommander);
             System.exit(1);
         }
+
+        if (arguments.recordDirectory != null)
+        {
+            final WavRecorder recorder = new WavRecorder(Paths.get(arguments.recordDirectory));
+            session.addPacketListener(recorder);
+
+            // Write the headers of the streams that are still open:
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run()
+                {
+                    recorder.close();
+                }
+            });
+        }
     }
 }
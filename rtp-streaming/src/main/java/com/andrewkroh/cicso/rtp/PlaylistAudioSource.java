@@ -0,0 +1,531 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cisco.common.ExceptionHandler;
+import com.andrewkroh.cisco.common.NamedThreadFactory;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * {@link AudioSource} that plays an ordered list of audio files back-to-back
+ * as one continuous stream. Because a single {@link AudioFileStreamer} reads
+ * from this source the SSRC, sequence numbers, and timestamps continue
+ * uninterrupted across items.
+ *
+ * <p/>
+ * While an item plays the next item is decoded on a background thread so
+ * that the two can be spliced together without a gap, even within a single
+ * packet. If the next item has not finished decoding when the current item
+ * ends, silence is streamed until it is ready (a gap). Decoded items are
+ * kept in a memory cache that is bounded by the total number of decoded
+ * bytes so that short looping playlists are only decoded once.
+ *
+ * <p/>
+ * Every item must decode to the same {@link AudioFormat} as the first item.
+ * Items that fail to decode or that have a different format are skipped.
+ * Each item can be normalized to a target loudness when it is decoded (see
+ * {@link LoudnessNormalizer}), so that the cached data is already scaled.
+ *
+ * @author akroh
+ */
+public class PlaylistAudioSource implements AudioSource
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(PlaylistAudioSource.class);
+
+    /**
+     * Default limit on the number of decoded bytes held in the cache.
+     */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private final List<URL> items;
+
+    private final EncodingType outputEncoding;
+
+    private final boolean loop;
+
+    /**
+     * Target RMS level of each item in dBFS, or NaN to play the items at
+     * their own level.
+     */
+    private final double targetLoudnessDbfs;
+
+    private final AudioFormat format;
+
+    /**
+     * Decoded items keyed by the external form of the source URL (to avoid
+     * the host name resolution done by {@link URL#equals(Object)}) and
+     * weighed by their size in bytes.
+     */
+    private final Cache<String, DecodedAudio> cache;
+
+    private final ExecutorService decoder;
+
+    private final AtomicLong gaps = new AtomicLong();
+
+    private final AtomicLong skippedItems = new AtomicLong();
+
+    /**
+     * Index of the item that is currently playing, or -1 when the playlist
+     * has finished.
+     */
+    private volatile int currentIndex;
+
+    /**
+     * Index of the last item that started playing. Unlike
+     * {@link #currentIndex} this is retained after the playlist finishes so
+     * that appended items continue from where it stopped. Only accessed by
+     * the pacing thread.
+     */
+    private int lastIndex;
+
+    /**
+     * Data of the item that is currently playing. Only accessed by the
+     * pacing thread.
+     */
+    private ByteBuffer currentData;
+
+    /**
+     * Index of the item being pre-decoded. Only accessed by the pacing
+     * thread.
+     */
+    private int pendingIndex = -1;
+
+    /**
+     * Result of pre-decoding the item at {@link #pendingIndex}. Only modified
+     * by the pacing thread.
+     */
+    private volatile Future<DecodedAudio> pending;
+
+    /**
+     * Creates a new playlist source that plays the items once using the
+     * default cache size.
+     *
+     * @param items
+     *            audio files to play in order
+     * @param outputEncoding
+     *            encoding of the data returned by this source
+     * @throws UnsupportedAudioFileException
+     *             if the first item is in an unsupported format
+     * @throws IOException
+     *             if there is problem reading the first item
+     */
+    public PlaylistAudioSource(List<URL> items, EncodingType outputEncoding)
+            throws UnsupportedAudioFileException, IOException
+    {
+        this(items, outputEncoding, false, DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    /**
+     * Creates a new playlist source. The first item is decoded immediately to
+     * determine the output format. Decoding of the following item begins in
+     * the background.
+     *
+     * @param items
+     *            audio files to play in order
+     * @param outputEncoding
+     *            encoding of the data returned by this source
+     * @param loop
+     *            true to start over with the first item after the last item
+     *            has played
+     * @param maxCacheBytes
+     *            maximum number of decoded bytes to keep in memory
+     * @throws UnsupportedAudioFileException
+     *             if the first item is in an unsupported format
+     * @throws IOException
+     *             if there is problem reading the first item
+     */
+    public PlaylistAudioSource(List<URL> items,
+                               EncodingType outputEncoding,
+                               boolean loop,
+                               long maxCacheBytes)
+            throws UnsupportedAudioFileException, IOException
+    {
+        this(items, outputEncoding, loop, maxCacheBytes, Double.NaN);
+    }
+
+    /**
+     * Creates a new playlist source whose items are each scaled, after they
+     * are decoded, so that their RMS level is {@code targetLoudnessDbfs}.
+     *
+     * @param items
+     *            audio files to play in order
+     * @param outputEncoding
+     *            encoding of the data returned by this source
+     * @param loop
+     *            true to start over with the first item after the last item
+     *            has played
+     * @param maxCacheBytes
+     *            maximum number of decoded bytes to keep in memory
+     * @param targetLoudnessDbfs
+     *            target RMS level in dB relative to full scale, or
+     *            {@link Double#NaN} to play the items at their own level
+     * @throws UnsupportedAudioFileException
+     *             if the first item is in an unsupported format
+     * @throws IOException
+     *             if there is problem reading the first item
+     */
+    public PlaylistAudioSource(List<URL> items,
+                               EncodingType outputEncoding,
+                               boolean loop,
+                               long maxCacheBytes,
+                               double targetLoudnessDbfs)
+            throws UnsupportedAudioFileException, IOException
+    {
+        Preconditions.checkArgument(Double.isNaN(targetLoudnessDbfs) || targetLoudnessDbfs <= 0,
+                "Target loudness must not be above full scale.");
+        Preconditions.checkNotNull(items, "Playlist items cannot be null.");
+        Preconditions.checkArgument(!items.isEmpty(),
+                "Playlist must contain at least one item.");
+        Preconditions.checkArgument(!items.contains(null),
+                "Playlist items cannot contain null.");
+        Preconditions.checkArgument(maxCacheBytes >= 0,
+                "Max cache bytes must be non-negative.");
+        this.outputEncoding = Preconditions.checkNotNull(outputEncoding,
+                "Output encoding type cannot be null.");
+        this.items = new CopyOnWriteArrayList<URL>(items);
+        this.loop = loop;
+        this.targetLoudnessDbfs = targetLoudnessDbfs;
+
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxCacheBytes)
+                .weigher(new Weigher<String, DecodedAudio>() {
+                    @Override
+                    public int weigh(String key, DecodedAudio value)
+                    {
+                        return value.getData().length;
+                    }
+                })
+                .recordStats()
+                .build();
+
+        DecodedAudio first = decode(this.items.get(0));
+        cache.put(first.getSourceUrl().toExternalForm(), first);
+        format = first.getFormat();
+        currentIndex = 0;
+        lastIndex = 0;
+        currentData = ByteBuffer.wrap(first.getData());
+
+        decoder = Executors.newSingleThreadExecutor(
+                new NamedThreadFactory("playlist-decoder",
+                        new LoggingExceptionHandler()));
+        schedulePreDecode();
+    }
+
+    /**
+     * Appends an item to the end of the playlist. This may be called from
+     * any thread.
+     *
+     * @param item
+     *            audio file to append
+     */
+    public void addItem(URL item)
+    {
+        items.add(Preconditions.checkNotNull(item, "Item cannot be null."));
+    }
+
+    /**
+     * Returns the items in the playlist.
+     *
+     * @return unmodifiable view of the playlist items
+     */
+    public List<URL> getItems()
+    {
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * Returns the index of the item that is currently playing.
+     *
+     * @return index of the current item, or -1 if the playlist has finished
+     */
+    public int getCurrentIndex()
+    {
+        return currentIndex;
+    }
+
+    /**
+     * Returns true if every item has played and the playlist does not loop.
+     * A finished playlist streams silence.
+     *
+     * @return true if the playlist has finished
+     */
+    public boolean isFinished()
+    {
+        return currentIndex < 0;
+    }
+
+    /**
+     * Returns true if the item that plays after the current item has been
+     * decoded and is ready to be spliced in.
+     *
+     * @return true if the next item is ready
+     */
+    public boolean isNextItemReady()
+    {
+        Future<DecodedAudio> next = pending;
+        return next != null && next.isDone();
+    }
+
+    /**
+     * Returns the number of packets that contained silence because the next
+     * item had not finished decoding.
+     *
+     * @return number of gaps between items
+     */
+    public long getGapCount()
+    {
+        return gaps.get();
+    }
+
+    /**
+     * Returns the number of items that were skipped because they could not
+     * be decoded or did not match the playlist's format.
+     *
+     * @return number of skipped items
+     */
+    public long getSkippedItemCount()
+    {
+        return skippedItems.get();
+    }
+
+    /**
+     * Returns the statistics of the decoded item cache.
+     *
+     * @return cache statistics
+     */
+    public CacheStats getCacheStats()
+    {
+        return cache.stats();
+    }
+
+    @Override
+    public AudioFormat getFormat()
+    {
+        return format;
+    }
+
+    @Override
+    public void read(ByteBuffer packetData)
+    {
+        // Bound the number of items advanced through in one packet so that a
+        // looping playlist of unplayable items cannot spin here.
+        int advances = 0;
+
+        while (packetData.hasRemaining())
+        {
+            if (currentData != null && currentData.hasRemaining())
+            {
+                int length = Math.min(packetData.remaining(),
+                                      currentData.remaining());
+                packetData.put(currentData.array(),
+                               currentData.position(), length);
+                currentData.position(currentData.position() + length);
+                continue;
+            }
+
+            if (advances++ > items.size() || !advance())
+            {
+                Silence.fill(packetData, outputEncoding);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        decoder.shutdownNow();
+        cache.invalidateAll();
+    }
+
+    /**
+     * Moves to the pending item if it has been decoded.
+     *
+     * @return true if a new item is now current
+     */
+    private boolean advance()
+    {
+        if (pending == null)
+        {
+            // Items may have been appended since the playlist finished.
+            schedulePreDecode();
+
+            if (pending == null)
+            {
+                currentIndex = -1;
+                currentData = null;
+                return false;
+            }
+        }
+
+        if (!pending.isDone())
+        {
+            gaps.incrementAndGet();
+            LOGGER.debug("Item {} is not decoded yet, streaming silence.",
+                    pendingIndex);
+            return false;
+        }
+
+        DecodedAudio next = takePending();
+        currentIndex = pendingIndex;
+        lastIndex = pendingIndex;
+        currentData = null;
+
+        if (next != null)
+        {
+            if (matchesFormat(next.getFormat()))
+            {
+                currentData = ByteBuffer.wrap(next.getData());
+                LOGGER.debug("Playing item {}: {}",
+                        currentIndex, next.getSourceUrl());
+            }
+            else
+            {
+                skippedItems.incrementAndGet();
+                LOGGER.warn("Skipping <{}> because its format {} does not " +
+                        "match the playlist format {}.", next.getSourceUrl(),
+                        AudioFileStreamer.audioFormatToString(next.getFormat()),
+                        AudioFileStreamer.audioFormatToString(format));
+            }
+        }
+
+        schedulePreDecode();
+        return true;
+    }
+
+    private DecodedAudio takePending()
+    {
+        try
+        {
+            return Uninterruptibles.getUninterruptibly(pending);
+        }
+        catch (ExecutionException e)
+        {
+            skippedItems.incrementAndGet();
+            LOGGER.warn("Skipping <{}> because it could not be decoded.",
+                    items.get(pendingIndex), e.getCause());
+            return null;
+        }
+        finally
+        {
+            pending = null;
+        }
+    }
+
+    /**
+     * Begins decoding the item after the current item.
+     */
+    private void schedulePreDecode()
+    {
+        int size = items.size();
+        int next = lastIndex + 1;
+
+        if (next >= size)
+        {
+            if (!loop)
+            {
+                return;
+            }
+
+            next = 0;
+        }
+
+        final URL url = items.get(next);
+        pendingIndex = next;
+        pending = decoder.submit(new Callable<DecodedAudio>() {
+            @Override
+            public DecodedAudio call() throws Exception
+            {
+                return cache.get(url.toExternalForm(), new Callable<DecodedAudio>() {
+                    @Override
+                    public DecodedAudio call() throws Exception
+                    {
+                        return decode(url);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Decodes an item and normalizes it if a target loudness was given.
+     */
+    private DecodedAudio decode(URL url)
+            throws UnsupportedAudioFileException, IOException
+    {
+        DecodedAudio decodedAudio = DecodedAudio.decode(url, outputEncoding);
+
+        if (!Double.isNaN(targetLoudnessDbfs))
+        {
+            double gain = LoudnessNormalizer.normalize(decodedAudio.getData(),
+                    outputEncoding, targetLoudnessDbfs);
+            LOGGER.debug("Normalized <{}> to {} dBFS with a gain of {}.",
+                    url, targetLoudnessDbfs, gain);
+        }
+        return decodedAudio;
+    }
+
+    private boolean matchesFormat(AudioFormat other)
+    {
+        return format.getEncoding().equals(other.getEncoding()) &&
+               format.getSampleRate() == other.getSampleRate() &&
+               format.getSampleSizeInBits() == other.getSampleSizeInBits() &&
+               format.getChannels() == other.getChannels() &&
+               format.isBigEndian() == other.isBigEndian();
+    }
+
+    /**
+     * {@link ExceptionHandler} that logs exceptions.
+     */
+    private static class LoggingExceptionHandler implements ExceptionHandler
+    {
+        @Override
+        public void handle(Exception e, String message)
+        {
+            LOGGER.warn(message, e);
+        }
+    }
+}
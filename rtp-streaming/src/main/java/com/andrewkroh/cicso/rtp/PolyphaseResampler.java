@@ -0,0 +1,351 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Streaming rational sample rate converter for mono 16-bit audio. The ratio
+ * {@code outputRate / inputRate} is reduced to {@code L / M} and the
+ * conversion is performed as a polyphase FIR filter: conceptually the input is
+ * upsampled by {@code L}, low-pass filtered, and decimated by {@code M}, but
+ * only the filter phase needed for each output sample is evaluated.
+ *
+ * <p/>
+ * The prototype filter is a Kaiser-windowed sinc with 80 dB of stopband
+ * attenuation. Its transition band is centered on the lower of the two Nyquist
+ * frequencies and is 15% of the lower sample rate wide, so converting to
+ * 8000 Hz passes the full 300-3400 Hz telephone band.
+ *
+ * <p/>
+ * Input is processed in blocks of at most {@link #getBlockSize()} samples.
+ * The filter history carries over between calls so consecutive blocks form one
+ * continuous signal. No memory is allocated after construction. Instances are
+ * not thread-safe.
+ *
+ * @author akroh
+ */
+public final class PolyphaseResampler
+{
+    /**
+     * Default maximum number of input samples per call to
+     * {@link #process(short[], int, int, short[], int)}.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    /**
+     * Stopband attenuation of the prototype filter.
+     */
+    private static final double STOPBAND_ATTENUATION_DB = 80;
+
+    /**
+     * Width of the transition band relative to the lower sample rate.
+     */
+    private static final double TRANSITION_WIDTH = 0.15;
+
+    private final int inputRate;
+
+    private final int outputRate;
+
+    /**
+     * Interpolation factor (number of filter phases).
+     */
+    private final int upFactor;
+
+    /**
+     * Decimation factor.
+     */
+    private final int downFactor;
+
+    /**
+     * Number of filter taps in each phase.
+     */
+    private final int tapsPerPhase;
+
+    /**
+     * Filter coefficients grouped by phase. The taps for phase {@code p} are
+     * stored at {@code [p * tapsPerPhase, (p + 1) * tapsPerPhase)} with tap
+     * zero applied to the newest input sample.
+     */
+    private final float[] coefficients;
+
+    private final int blockSize;
+
+    /**
+     * Holds {@code tapsPerPhase - 1} samples of history followed by the
+     * current input block.
+     */
+    private final float[] history;
+
+    /**
+     * Number of valid samples in {@link #history}.
+     */
+    private int historyLength;
+
+    /**
+     * Index in {@link #history} of the newest input sample used by the next
+     * output sample. This may be beyond {@link #historyLength} when input
+     * samples must be skipped before the next output.
+     */
+    private int position;
+
+    /**
+     * Filter phase of the next output sample.
+     */
+    private int phase;
+
+    /**
+     * Creates a resampler that accepts blocks of up to
+     * {@link #DEFAULT_BLOCK_SIZE} samples.
+     *
+     * @param inputRate
+     *            sample rate of the input in Hz
+     * @param outputRate
+     *            sample rate of the output in Hz
+     */
+    public PolyphaseResampler(int inputRate, int outputRate)
+    {
+        this(inputRate, outputRate, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a resampler.
+     *
+     * @param inputRate
+     *            sample rate of the input in Hz
+     * @param outputRate
+     *            sample rate of the output in Hz
+     * @param blockSize
+     *            maximum number of input samples per call to
+     *            {@link #process(short[], int, int, short[], int)}
+     */
+    public PolyphaseResampler(int inputRate, int outputRate, int blockSize)
+    {
+        Preconditions.checkArgument(inputRate > 0,
+                "Input rate must be positive.");
+        Preconditions.checkArgument(outputRate > 0,
+                "Output rate must be positive.");
+        Preconditions.checkArgument(blockSize > 0,
+                "Block size must be positive.");
+
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.blockSize = blockSize;
+
+        int gcd = BigInteger.valueOf(inputRate)
+                .gcd(BigInteger.valueOf(outputRate)).intValue();
+        upFactor = outputRate / gcd;
+        downFactor = inputRate / gcd;
+
+        // Kaiser's estimate of the filter order, converted from the upsampled
+        // rate to taps per phase:
+        double lowerRate = Math.min(inputRate, outputRate);
+        double transitionHz = TRANSITION_WIDTH * lowerRate;
+        double order = (STOPBAND_ATTENUATION_DB - 8) /
+                (2.285 * 2 * Math.PI * transitionHz / inputRate);
+        tapsPerPhase = Math.max(2, (int) Math.ceil(order));
+
+        coefficients = designFilter(lowerRate / 2 / ((double) inputRate * upFactor));
+
+        history = new float[tapsPerPhase - 1 + blockSize];
+        reset();
+    }
+
+    public int getInputRate()
+    {
+        return inputRate;
+    }
+
+    public int getOutputRate()
+    {
+        return outputRate;
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * Returns the number of filter taps evaluated per output sample.
+     *
+     * @return taps per output sample
+     */
+    public int getTapsPerPhase()
+    {
+        return tapsPerPhase;
+    }
+
+    /**
+     * Returns the largest number of output samples that
+     * {@link #process(short[], int, int, short[], int)} can produce from the
+     * given number of input samples.
+     *
+     * @param inputLength
+     *            number of input samples
+     * @return required output capacity
+     */
+    public int getMaxOutputLength(int inputLength)
+    {
+        return (int) (((long) inputLength * upFactor) / downFactor) + 1;
+    }
+
+    /**
+     * Clears the filter history so the next block starts a new signal.
+     */
+    public void reset()
+    {
+        Arrays.fill(history, 0f);
+        historyLength = tapsPerPhase - 1;
+        position = tapsPerPhase - 1;
+        phase = 0;
+    }
+
+    /**
+     * Resamples one block of input.
+     *
+     * @param input
+     *            array containing the input samples
+     * @param inputOffset
+     *            index of the first input sample
+     * @param inputLength
+     *            number of input samples, at most {@link #getBlockSize()}
+     * @param output
+     *            array receiving the output samples
+     * @param outputOffset
+     *            index at which to write the first output sample; the array
+     *            must have room for {@link #getMaxOutputLength(int)} samples
+     * @return number of output samples written
+     */
+    public int process(short[] input, int inputOffset, int inputLength,
+                       short[] output, int outputOffset)
+    {
+        Preconditions.checkPositionIndexes(inputOffset,
+                inputOffset + inputLength, input.length);
+        Preconditions.checkArgument(inputLength <= blockSize,
+                "Input length <%s> exceeds the block size <%s>.",
+                inputLength, blockSize);
+
+        for (int i = 0; i < inputLength; i++)
+        {
+            history[historyLength + i] = input[inputOffset + i];
+        }
+        historyLength += inputLength;
+
+        int count = 0;
+        while (position < historyLength)
+        {
+            float sum = 0f;
+            int tap = phase * tapsPerPhase;
+            for (int i = position; i > position - tapsPerPhase; i--)
+            {
+                sum += coefficients[tap++] * history[i];
+            }
+
+            output[outputOffset + count++] = clip(sum);
+
+            phase += downFactor;
+            position += phase / upFactor;
+            phase %= upFactor;
+        }
+
+        // Retain only the history needed by the next output sample:
+        int discard = historyLength - (tapsPerPhase - 1);
+        System.arraycopy(history, discard, history, 0, tapsPerPhase - 1);
+        historyLength -= discard;
+        position -= discard;
+
+        return count;
+    }
+
+    /**
+     * Builds the polyphase coefficient table from a Kaiser-windowed sinc
+     * prototype.
+     *
+     * @param cutoff
+     *            cutoff frequency relative to the upsampled rate
+     * @return coefficients grouped by phase
+     */
+    private float[] designFilter(double cutoff)
+    {
+        int length = tapsPerPhase * upFactor;
+        double beta = 0.1102 * (STOPBAND_ATTENUATION_DB - 8.7);
+        double center = (length - 1) / 2.0;
+        double besselBeta = besselI0(beta);
+
+        float[] table = new float[length];
+        for (int n = 0; n < length; n++)
+        {
+            double x = n - center;
+            double sinc = x == 0 ? 2 * cutoff :
+                Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double ratio = x / center;
+            double window = besselI0(beta * Math.sqrt(Math.max(0, 1 - ratio * ratio))) /
+                    besselBeta;
+
+            // Prototype tap n belongs to phase n % L and is applied to the
+            // input sample n / L samples older than the newest.
+            int p = n % upFactor;
+            int k = n / upFactor;
+            table[p * tapsPerPhase + k] = (float) (sinc * window * upFactor);
+        }
+
+        return table;
+    }
+
+    /**
+     * Zeroth order modified Bessel function of the first kind.
+     */
+    private static double besselI0(double x)
+    {
+        double sum = 1;
+        double term = 1;
+        double halfX = x / 2;
+
+        for (int k = 1; k < 50; k++)
+        {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+
+            if (term < sum * 1E-12)
+            {
+                break;
+            }
+        }
+
+        return sum;
+    }
+
+    private static short clip(float sample)
+    {
+        int rounded = Math.round(sample);
+
+        if (rounded > Short.MAX_VALUE)
+        {
+            return Short.MAX_VALUE;
+        }
+        else if (rounded < Short.MIN_VALUE)
+        {
+            return Short.MIN_VALUE;
+        }
+
+        return (short) rounded;
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cisco.common.ExceptionHandler;
+import com.andrewkroh.cisco.common.NamedThreadFactory;
+import com.google.common.base.Preconditions;
+
+/**
+ * {@link RtpPacketListener} that moves packet delivery off of the calling
+ * (Netty I/O) thread. Each registered listener is given its own bounded
+ * lock-free queue and a dedicated worker thread so that a slow listener
+ * only delays itself and never the event loop or the other listeners.
+ *
+ * <p/>
+ * When a listener's queue is full the listener's {@link OverflowPolicy}
+ * decides what happens to the new packet. Every listener has its own
+ * counters that are available through its {@link Subscription}.
+ *
+ * <p/>
+ * The same {@link RtpPacket} instance is handed to every listener so
+ * listeners must not modify it.
+ *
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author akroh
+ */
+public class RtpPacketDispatcher implements RtpPacketListener
+{
+    /**
+     * Action taken when a packet arrives for a listener whose queue is full.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * Discard the oldest queued packet to make room for the new packet.
+         * This keeps the listener as close to real-time as possible.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard the new packet and keep the packets that are queued.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Block the calling thread until space is available. Use with care
+         * because this stalls the I/O thread that is delivering packets.
+         */
+        BLOCK
+    }
+
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(RtpPacketDispatcher.class);
+
+    /**
+     * Default number of packets that can be queued for each listener. At a
+     * 20 ms packetization this is about five seconds of audio.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /**
+     * Default policy used when a listener's queue is full.
+     */
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY =
+            OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * Time that a blocked producer parks before retrying the enqueue.
+     */
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Factory for the listener worker threads.
+     */
+    private final NamedThreadFactory threadFactory =
+            new NamedThreadFactory("rtp-dispatch", new LoggingExceptionHandler());
+
+    /**
+     * Active subscriptions. Registration is rare compared to packet delivery
+     * so a copy-on-write list gives lock-free iteration on the hot path.
+     */
+    private final CopyOnWriteArrayList<Subscription> subscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * Registers a listener using the {@link #DEFAULT_QUEUE_CAPACITY} and
+     * {@link #DEFAULT_OVERFLOW_POLICY}.
+     *
+     * @param listener
+     *            listener to register
+     * @return the {@code Subscription} for the listener
+     */
+    public Subscription addListener(RtpPacketListener listener)
+    {
+        return addListener(listener, DEFAULT_QUEUE_CAPACITY,
+                DEFAULT_OVERFLOW_POLICY);
+    }
+
+    /**
+     * Registers a listener and starts its worker thread. If the listener is
+     * already registered its existing {@code Subscription} is returned and
+     * the given settings are ignored.
+     *
+     * @param listener
+     *            listener to register
+     * @param queueCapacity
+     *            maximum number of packets queued for the listener, it is
+     *            rounded up to the next power of two
+     * @param overflowPolicy
+     *            action to take when the listener's queue is full
+     * @return the {@code Subscription} for the listener
+     */
+    public synchronized Subscription addListener(RtpPacketListener listener,
+                                                 int queueCapacity,
+                                                 OverflowPolicy overflowPolicy)
+    {
+        Preconditions.checkNotNull(listener, "RtpPacketListener cannot be null.");
+        Preconditions.checkNotNull(overflowPolicy, "OverflowPolicy cannot be null.");
+
+        Subscription existing = findSubscription(listener);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        Subscription subscription =
+                new Subscription(listener, queueCapacity, overflowPolicy);
+        subscription.start(threadFactory);
+        subscriptions.add(subscription);
+
+        return subscription;
+    }
+
+    /**
+     * Unregisters a listener and stops its worker thread. Packets still queued
+     * for the listener are discarded.
+     *
+     * @param listener
+     *            listener to unregister
+     * @return true if the listener was registered
+     */
+    public synchronized boolean removeListener(RtpPacketListener listener)
+    {
+        Subscription subscription = findSubscription(listener);
+
+        if (subscription == null)
+        {
+            return false;
+        }
+
+        subscriptions.remove(subscription);
+        subscription.stop();
+        return true;
+    }
+
+    /**
+     * Returns a read-only view of the active subscriptions.
+     *
+     * @return active subscriptions
+     */
+    public Collection<Subscription> getSubscriptions()
+    {
+        return Collections.unmodifiableCollection(subscriptions);
+    }
+
+    /**
+     * Unregisters all listeners and stops their worker threads.
+     */
+    public synchronized void shutdown()
+    {
+        for (Subscription subscription : subscriptions)
+        {
+            subscription.stop();
+        }
+
+        subscriptions.clear();
+    }
+
+    @Override
+    public void packetReceived(InetSocketAddress source,
+                               InetSocketAddress receiver,
+                               RtpPacket packet)
+    {
+        if (subscriptions.isEmpty())
+        {
+            return;
+        }
+
+        ReceivedPacket received =
+                new ReceivedPacket(source, receiver, packet, System.nanoTime());
+
+        for (Subscription subscription : subscriptions)
+        {
+            subscription.enqueue(received);
+        }
+    }
+
+    private Subscription findSubscription(RtpPacketListener listener)
+    {
+        for (Subscription subscription : subscriptions)
+        {
+            if (subscription.listener == listener)
+            {
+                return subscription;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Registration of a single listener. It owns the listener's queue and
+     * worker thread and exposes the listener's counters.
+     */
+    public static final class Subscription
+    {
+        private final RtpPacketListener listener;
+
+        private final OverflowPolicy overflowPolicy;
+
+        private final BoundedMpmcQueue<ReceivedPacket> queue;
+
+        private final AtomicLong enqueued = new AtomicLong();
+
+        private final AtomicLong delivered = new AtomicLong();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        /**
+         * Time between enqueue and delivery of the most recent packet.
+         * Only written by the worker thread.
+         */
+        private volatile long lastLagNanos;
+
+        /**
+         * Largest time between enqueue and delivery that has been observed.
+         * Only written by the worker thread.
+         */
+        private volatile long maxLagNanos;
+
+        /**
+         * Set by the worker before it parks so that producers know to
+         * unpark it.
+         */
+        private volatile boolean waiting;
+
+        private volatile boolean running = true;
+
+        private volatile Thread worker;
+
+        private Subscription(RtpPacketListener listener,
+                             int queueCapacity,
+                             OverflowPolicy overflowPolicy)
+        {
+            this.listener = listener;
+            this.overflowPolicy = overflowPolicy;
+            this.queue = new BoundedMpmcQueue<ReceivedPacket>(queueCapacity);
+        }
+
+        public RtpPacketListener getListener()
+        {
+            return listener;
+        }
+
+        public OverflowPolicy getOverflowPolicy()
+        {
+            return overflowPolicy;
+        }
+
+        /**
+         * Returns the number of packets that can be queued for the listener.
+         *
+         * @return capacity of the listener's queue
+         */
+        public int getQueueCapacity()
+        {
+            return queue.capacity();
+        }
+
+        /**
+         * Returns the number of packets waiting to be delivered to the
+         * listener. This is the listener's lag measured in packets.
+         *
+         * @return number of packets waiting in the listener's queue
+         */
+        public int getQueueDepth()
+        {
+            return queue.size();
+        }
+
+        /**
+         * Returns the number of packets that were accepted into the queue.
+         *
+         * @return number of packets that were accepted into the queue
+         */
+        public long getEnqueuedCount()
+        {
+            return enqueued.get();
+        }
+
+        /**
+         * Returns the number of packets that were delivered to the listener.
+         *
+         * @return number of packets delivered to the listener
+         */
+        public long getDeliveredCount()
+        {
+            return delivered.get();
+        }
+
+        /**
+         * Returns the number of packets that were discarded because the
+         * listener's queue was full.
+         *
+         * @return number of packets discarded for this listener
+         */
+        public long getDroppedCount()
+        {
+            return dropped.get();
+        }
+
+        /**
+         * Returns the time the most recently delivered packet spent in the
+         * queue.
+         *
+         * @param unit
+         *            unit of the returned value
+         * @return queueing delay of the last delivered packet
+         */
+        public long getLastLag(TimeUnit unit)
+        {
+            return unit.convert(lastLagNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the largest time any packet spent in the queue.
+         *
+         * @param unit
+         *            unit of the returned value
+         * @return maximum queueing delay observed
+         */
+        public long getMaxLag(TimeUnit unit)
+        {
+            return unit.convert(maxLagNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void start(NamedThreadFactory threadFactory)
+        {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    deliverUntilStopped();
+                }
+            });
+            thread.setDaemon(true);
+            worker = thread;
+            thread.start();
+        }
+
+        private void stop()
+        {
+            running = false;
+            LockSupport.unpark(worker);
+        }
+
+        private void enqueue(ReceivedPacket received)
+        {
+            if (!running)
+            {
+                return;
+            }
+
+            if (!queue.offer(received))
+            {
+                switch (overflowPolicy)
+                {
+                    case DROP_NEWEST:
+                        dropped.incrementAndGet();
+                        return;
+                    case DROP_OLDEST:
+                        do
+                        {
+                            if (queue.poll() != null)
+                            {
+                                dropped.incrementAndGet();
+                            }
+                        }
+                        while (!queue.offer(received));
+                        break;
+                    case BLOCK:
+                        do
+                        {
+                            if (!running)
+                            {
+                                return;
+                            }
+                            LockSupport.unpark(worker);
+                            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                        }
+                        while (!queue.offer(received));
+                        break;
+                    default:
+                        throw new IllegalStateException(
+                                "Unhandled OverflowPolicy: " + overflowPolicy);
+                }
+            }
+
+            enqueued.incrementAndGet();
+
+            if (waiting)
+            {
+                LockSupport.unpark(worker);
+            }
+        }
+
+        /**
+         * Worker loop. Delivers queued packets to the listener and parks
+         * when the queue is empty.
+         */
+        private void deliverUntilStopped()
+        {
+            while (running)
+            {
+                ReceivedPacket received = queue.poll();
+
+                if (received == null)
+                {
+                    waiting = true;
+                    if (queue.size() == 0 && running)
+                    {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+
+                long lag = System.nanoTime() - received.enqueuedNanos;
+                lastLagNanos = lag;
+                if (lag > maxLagNanos)
+                {
+                    maxLagNanos = lag;
+                }
+
+                try
+                {
+                    listener.packetReceived(received.source,
+                                            received.receiver,
+                                            received.packet);
+                }
+                catch (RuntimeException e)
+                {
+                    LOGGER.warn("RtpPacketListener threw an exception.", e);
+                }
+
+                delivered.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Packet and its addressing information as it sits in a listener queue.
+     */
+    private static final class ReceivedPacket
+    {
+        private final InetSocketAddress source;
+
+        private final InetSocketAddress receiver;
+
+        private final RtpPacket packet;
+
+        private final long enqueuedNanos;
+
+        private ReceivedPacket(InetSocketAddress source,
+                               InetSocketAddress receiver,
+                               RtpPacket packet,
+                               long enqueuedNanos)
+        {
+            this.source = source;
+            this.receiver = receiver;
+            this.packet = packet;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * Logs exceptions that escape a worker thread.
+     */
+    private static final class LoggingExceptionHandler implements ExceptionHandler
+    {
+        @Override
+        public void handle(Exception e, String errorMessage)
+        {
+            LOGGER.error(errorMessage, e);
+        }
+    }
+}
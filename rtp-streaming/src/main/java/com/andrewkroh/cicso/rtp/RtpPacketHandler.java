@@ -20,6 +20,11 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cisco.common.metrics.Counter;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
 import com.google.common.base.Preconditions;
 
 /**
@@ -30,12 +35,46 @@ import com.google.common.base.Preconditions;
  */
 public class RtpPacketHandler extends SimpleChannelInboundHandler<DatagramPacket>
 {
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(RtpPacketHandler.class);
+
     private final RtpPacketListener listener;
 
+    private final Counter packetsReceived;
+
+    private final Counter bytesReceived;
+
+    private final Counter malformedDropped;
+
     public RtpPacketHandler(RtpPacketListener listener)
+    {
+        this(listener, new MetricsRegistry(), "");
+    }
+
+    /**
+     * Creates a handler that records the {@code packetsReceived},
+     * {@code bytesReceived} and {@code malformedDropped} counters in the
+     * given registry.
+     *
+     * @param listener
+     *            listener that receives the packets
+     * @param metrics
+     *            registry in which the counters are created
+     * @param metricsPrefix
+     *            prefix of the counter names
+     */
+    public RtpPacketHandler(RtpPacketListener listener,
+                            MetricsRegistry metrics,
+                            String metricsPrefix)
     {
         this.listener = Preconditions.checkNotNull(listener,
                             "RtpPacketListener cannot be null.");
+        Preconditions.checkNotNull(metrics, "MetricsRegistry cannot be null.");
+        Preconditions.checkNotNull(metricsPrefix, "Metrics prefix cannot be null.");
+
+        packetsReceived = metrics.counter(metricsPrefix + "packetsReceived");
+        bytesReceived = metrics.counter(metricsPrefix + "bytesReceived");
+        malformedDropped = metrics.counter(metricsPrefix + "malformedDropped");
     }
 
     // NOTE: In Netty 5.0 this method will be renamed to messageRead().
@@ -43,13 +82,34 @@ public class RtpPacketHandler extends SimpleChannelInboundHandler<DatagramPacket
     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg)
             throws Exception
     {
-        if (msg.content().readableBytes() > RtpPacket.FIXED_HEADER_SIZE)
+        int length = msg.content().readableBytes();
+        packetsReceived.increment();
+        bytesReceived.add(length);
+
+        if (length > RtpPacket.FIXED_HEADER_SIZE)
         {
-            byte[] bufferCopy = new byte[msg.content().readableBytes()];
+            byte[] bufferCopy = new byte[length];
             msg.content().readBytes(bufferCopy);
-            RtpPacket packet = new RtpPacket(bufferCopy);
+
+            RtpPacket packet;
+            try
+            {
+                packet = new RtpPacket(bufferCopy);
+            }
+            catch (RuntimeException e)
+            {
+                // The header claims more CSRCs or extension data than the
+                // datagram contains.
+                malformedDropped.increment();
+                LOGGER.debug("Dropped malformed RTP packet from {}.", msg.sender(), e);
+                return;
+            }
 
             listener.packetReceived(msg.sender(), msg.recipient(), packet);
         }
+        else
+        {
+            malformedDropped.increment();
+        }
     }
 }
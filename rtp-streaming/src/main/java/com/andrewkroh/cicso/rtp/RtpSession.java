@@ -28,7 +28,61 @@ public interface RtpSession
 
     boolean removeDestination(Destination destination);
 
+    /**
+     * Adds many destinations as a single change. Destinations that are
+     * already present are ignored.
+     *
+     * @param destinations
+     *            destinations to add
+     * @return number of destinations that were added
+     */
+    int addDestinations(Collection<Destination> destinations);
+
+    /**
+     * Removes many destinations as a single change.
+     *
+     * @param destinations
+     *            destinations to remove
+     * @return number of destinations that were removed
+     */
+    int removeDestinations(Collection<Destination> destinations);
+
+    /**
+     * Replaces all of the destinations as a single change.
+     *
+     * @param destinations
+     *            the new destinations
+     */
+    void setDestinations(Collection<Destination> destinations);
+
+    /**
+     * Returns the current destinations. The returned collection is a
+     * read-only snapshot; later changes to the session are not reflected in
+     * it.
+     *
+     * @return unmodifiable snapshot of the destinations
+     */
     Collection<Destination> getDestinations();
 
+    /**
+     * Returns the destinations that are not being sent to because their
+     * sends keep failing. Quarantined destinations are still part of
+     * {@link #getDestinations()}, and are periodically probed to check
+     * whether they have recovered.
+     *
+     * @return unmodifiable snapshot of the quarantined destinations
+     */
+    Collection<Destination> getQuarantinedDestinations();
+
+    /**
+     * Returns the send health of a destination.
+     *
+     * @param destination
+     *            destination of this session
+     * @return the status, or {@code null} if it is not a destination of
+     *         this session
+     */
+    DestinationStatus getDestinationStatus(Destination destination);
+
     void sendData(RtpPacket rtpPacket);
 }
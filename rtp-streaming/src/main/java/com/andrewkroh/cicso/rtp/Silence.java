@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.nio.ByteBuffer;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+
+/**
+ * Utility for writing silence in an output {@link EncodingType}.
+ *
+ * @author akroh
+ */
+final class Silence
+{
+    /**
+     * Fills the remaining space in the buffer with silence.
+     *
+     * @param buffer
+     *            buffer to fill
+     * @param encoding
+     *            encoding of the data in the buffer
+     */
+    static void fill(ByteBuffer buffer, EncodingType encoding)
+    {
+        while (buffer.hasRemaining())
+        {
+            switch (encoding)
+            {
+                case ULAW:
+                    buffer.put(G711.ULAW_SILENCE);
+                    break;
+                case ALAW:
+                    buffer.put(G711.ALAW_SILENCE);
+                    break;
+                default:
+                    // Output PCM16 is unsigned little-endian (see
+                    // AudioFileStreamer#toPcm16Format) so zero is 0x8000.
+                    buffer.put((byte) 0x00);
+                    if (buffer.hasRemaining())
+                    {
+                        buffer.put((byte) 0x80);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private Silence()
+    {
+        // Not to be instantiated.
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Netty handler that applies SRTP to the datagrams of an RTP channel.
+ * Outbound RTP datagrams are encrypted and authenticated; inbound SRTP
+ * datagrams are verified and decrypted before they reach the
+ * {@link RtpPacketHandler}. Inbound datagrams that fail authentication are
+ * dropped.
+ *
+ * <p/>
+ * A packet that is written to several destinations is only encrypted once,
+ * see {@link SrtpTransformer}. After each write the keystream for the next
+ * packet is computed so that it is ready when that packet arrives.
+ *
+ * @author akroh
+ */
+public class SrtpHandler extends ChannelDuplexHandler
+{
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(SrtpHandler.class);
+
+    /**
+     * Only accessed from the channel's event loop.
+     */
+    private final SrtpTransformer transformer;
+
+    private final AtomicLong authenticationFailures = new AtomicLong();
+
+    public SrtpHandler(SrtpMasterKey masterKey)
+    {
+        Preconditions.checkNotNull(masterKey, "Master key cannot be null.");
+        transformer = new SrtpTransformer(masterKey);
+    }
+
+    /**
+     * Returns the number of inbound datagrams dropped because they failed
+     * authentication or were malformed.
+     *
+     * @return number of dropped inbound datagrams
+     */
+    public long getAuthenticationFailureCount()
+    {
+        return authenticationFailures.get();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+            throws Exception
+    {
+        if (!(msg instanceof DatagramPacket))
+        {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        DatagramPacket datagram = (DatagramPacket) msg;
+        ByteBuf srtpPacket;
+        try
+        {
+            srtpPacket = transformer.protect(datagram.content(), ctx.alloc());
+        }
+        finally
+        {
+            datagram.release();
+        }
+
+        ctx.write(new DatagramPacket(srtpPacket, datagram.recipient(),
+                datagram.sender()), promise);
+        transformer.precomputeNextKeystream();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg)
+            throws Exception
+    {
+        if (!(msg instanceof DatagramPacket))
+        {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        DatagramPacket datagram = (DatagramPacket) msg;
+        ByteBuf rtpPacket;
+        try
+        {
+            rtpPacket = transformer.unprotect(datagram.content(), ctx.alloc());
+        }
+        catch (IllegalArgumentException e)
+        {
+            authenticationFailures.incrementAndGet();
+            LOGGER.debug("Dropping SRTP packet from {}: {}",
+                    datagram.sender(), e.getMessage());
+            return;
+        }
+        finally
+        {
+            datagram.release();
+        }
+
+        ctx.fireChannelRead(new DatagramPacket(rtpPacket, datagram.recipient(),
+                datagram.sender()));
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+        transformer.close();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+    {
+        transformer.close();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Master key and master salt of an SRTP session using the
+ * AES_CM_128_HMAC_SHA1_80 crypto suite (RFC 3711, RFC 4568). The session
+ * encryption, authentication, and salting keys are derived from these values.
+ *
+ * <p/>
+ * Instances are immutable. The key material is never included in
+ * {@link #toString()}.
+ *
+ * @author akroh
+ */
+public final class SrtpMasterKey
+{
+    /**
+     * Length of the AES-128 master key in bytes.
+     */
+    public static final int KEY_LENGTH = 16;
+
+    /**
+     * Length of the master salt in bytes.
+     */
+    public static final int SALT_LENGTH = 14;
+
+    private final byte[] key;
+
+    private final byte[] salt;
+
+    /**
+     * Creates a master key from existing key material, for example key
+     * material exchanged through SDES.
+     *
+     * @param key
+     *            16 byte master key
+     * @param salt
+     *            14 byte master salt
+     */
+    public SrtpMasterKey(byte[] key, byte[] salt)
+    {
+        Preconditions.checkNotNull(key, "Master key cannot be null.");
+        Preconditions.checkNotNull(salt, "Master salt cannot be null.");
+        Preconditions.checkArgument(key.length == KEY_LENGTH,
+                "Master key must be %s bytes.", KEY_LENGTH);
+        Preconditions.checkArgument(salt.length == SALT_LENGTH,
+                "Master salt must be %s bytes.", SALT_LENGTH);
+
+        this.key = key.clone();
+        this.salt = salt.clone();
+    }
+
+    /**
+     * Parses the base64 encoded concatenation of the master key and master
+     * salt, as found in the {@code inline:} key parameter of an SDES
+     * {@code a=crypto} attribute. Any lifetime or MKI parameters following a
+     * {@code |} are ignored.
+     *
+     * @param inlineKey
+     *            base64 encoded key and salt
+     * @return the master key
+     * @throws IllegalArgumentException
+     *             if the decoded value is not 30 bytes long
+     */
+    public static SrtpMasterKey fromInlineKey(String inlineKey)
+    {
+        Preconditions.checkNotNull(inlineKey, "Inline key cannot be null.");
+
+        String base64 = inlineKey.trim();
+        if (base64.startsWith("inline:"))
+        {
+            base64 = base64.substring("inline:".length());
+        }
+        int separator = base64.indexOf('|');
+        if (separator >= 0)
+        {
+            base64 = base64.substring(0, separator);
+        }
+
+        byte[] keyAndSalt = DatatypeConverter.parseBase64Binary(base64);
+        Preconditions.checkArgument(keyAndSalt.length == KEY_LENGTH + SALT_LENGTH,
+                "Inline key must decode to %s bytes.", KEY_LENGTH + SALT_LENGTH);
+
+        return new SrtpMasterKey(Arrays.copyOfRange(keyAndSalt, 0, KEY_LENGTH),
+                Arrays.copyOfRange(keyAndSalt, KEY_LENGTH, keyAndSalt.length));
+    }
+
+    /**
+     * Generates a new random master key and salt.
+     *
+     * @return a new {@code SrtpMasterKey}
+     */
+    public static SrtpMasterKey generate()
+    {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[KEY_LENGTH];
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(key);
+        random.nextBytes(salt);
+
+        return new SrtpMasterKey(key, salt);
+    }
+
+    /**
+     * Returns a copy of the master key.
+     *
+     * @return master key
+     */
+    public byte[] getKey()
+    {
+        return key.clone();
+    }
+
+    /**
+     * Returns a copy of the master salt.
+     *
+     * @return master salt
+     */
+    public byte[] getSalt()
+    {
+        return salt.clone();
+    }
+
+    /**
+     * Returns the base64 encoded concatenation of the master key and master
+     * salt, suitable for the {@code inline:} parameter of an SDES
+     * {@code a=crypto} attribute.
+     *
+     * @return base64 encoded key and salt
+     */
+    public String toInlineKey()
+    {
+        byte[] keyAndSalt = Arrays.copyOf(key, KEY_LENGTH + SALT_LENGTH);
+        System.arraycopy(salt, 0, keyAndSalt, KEY_LENGTH, SALT_LENGTH);
+        return DatatypeConverter.printBase64Binary(keyAndSalt);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SrtpMasterKey[AES_CM_128_HMAC_SHA1_80]";
+    }
+}
@@ -0,0 +1,608 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Converts RTP packets to SRTP packets and back using the
+ * AES_CM_128_HMAC_SHA1_80 transform from RFC 3711. The key derivation rate is
+ * zero and MKIs are not used.
+ *
+ * <p/>
+ * Each SSRC has its own context holding the rollover counter and a
+ * {@link Cipher} and {@link Mac} that are initialized once and reused for
+ * every packet. The AES counter-mode keystream is produced by encrypting a
+ * block of counters with a single {@code AES/ECB/NoPadding} call, which
+ * HotSpot executes with its AES-NI intrinsics where the CPU supports them.
+ * Because the keystream only depends on the SSRC and packet index the
+ * keystream for the next expected packet can be computed ahead of time with
+ * {@link #precomputeNextKeystream()}.
+ *
+ * <p/>
+ * When the same packet (same SSRC and index) is protected more than once, as
+ * happens when one packet is fanned out to several destinations, the cached
+ * SRTP packet is returned instead of encrypting it again.
+ *
+ * <p/>
+ * Instances are not thread-safe. Netty guarantees that a channel's handlers
+ * are only invoked from the channel's event loop.
+ *
+ * @author akroh
+ */
+public final class SrtpTransformer
+{
+    /**
+     * Key derivation label of the session encryption key.
+     */
+    public static final int LABEL_ENCRYPTION_KEY = 0x00;
+
+    /**
+     * Key derivation label of the session authentication key.
+     */
+    public static final int LABEL_AUTHENTICATION_KEY = 0x01;
+
+    /**
+     * Key derivation label of the session salt.
+     */
+    public static final int LABEL_SALT = 0x02;
+
+    /**
+     * Number of bytes of the HMAC-SHA1 tag appended to each packet.
+     */
+    public static final int AUTH_TAG_LENGTH = 10;
+
+    private static final int SESSION_AUTH_KEY_LENGTH = 20;
+
+    private static final int BLOCK_SIZE = 16;
+
+    private static final int HMAC_SHA1_LENGTH = 20;
+
+    private static final String CIPHER_ALGORITHM = "AES/ECB/NoPadding";
+
+    private static final String MAC_ALGORITHM = "HmacSHA1";
+
+    private final SecretKeySpec encryptionKey;
+
+    private final SecretKeySpec authenticationKey;
+
+    private final byte[] sessionSalt;
+
+    private final Map<Integer, SsrcContext> contexts =
+            new HashMap<Integer, SsrcContext>();
+
+    /**
+     * Context of the most recently protected packet.
+     */
+    private SsrcContext lastProtectedContext;
+
+    private long protectedCount;
+
+    private long reusedCount;
+
+    private long precomputedHitCount;
+
+    /**
+     * Creates a transformer whose session keys are derived from the given
+     * master key.
+     *
+     * @param masterKey
+     *            SRTP master key and salt
+     */
+    public SrtpTransformer(SrtpMasterKey masterKey)
+    {
+        Preconditions.checkNotNull(masterKey, "Master key cannot be null.");
+
+        byte[] key = masterKey.getKey();
+        byte[] salt = masterKey.getSalt();
+
+        encryptionKey = new SecretKeySpec(deriveSessionKey(key, salt,
+                LABEL_ENCRYPTION_KEY, SrtpMasterKey.KEY_LENGTH), "AES");
+        authenticationKey = new SecretKeySpec(deriveSessionKey(key, salt,
+                LABEL_AUTHENTICATION_KEY, SESSION_AUTH_KEY_LENGTH), MAC_ALGORITHM);
+        sessionSalt = deriveSessionKey(key, salt, LABEL_SALT,
+                SrtpMasterKey.SALT_LENGTH);
+    }
+
+    /**
+     * Derives a session key using the AES-CM pseudo-random function with a
+     * key derivation rate of zero (RFC 3711 section 4.3).
+     *
+     * @param masterKey
+     *            16 byte master key
+     * @param masterSalt
+     *            14 byte master salt
+     * @param label
+     *            one of the {@code LABEL_*} constants
+     * @param length
+     *            number of bytes to derive
+     * @return the derived key
+     */
+    public static byte[] deriveSessionKey(byte[] masterKey, byte[] masterSalt,
+                                          int label, int length)
+    {
+        Preconditions.checkArgument(masterKey.length == SrtpMasterKey.KEY_LENGTH,
+                "Master key must be %s bytes.", SrtpMasterKey.KEY_LENGTH);
+        Preconditions.checkArgument(masterSalt.length == SrtpMasterKey.SALT_LENGTH,
+                "Master salt must be %s bytes.", SrtpMasterKey.SALT_LENGTH);
+
+        // x = (label || r) XOR master_salt where r is zero. The 7 byte
+        // key_id is aligned to the least significant end of the salt.
+        byte[] iv = new byte[BLOCK_SIZE];
+        System.arraycopy(masterSalt, 0, iv, 0, masterSalt.length);
+        iv[7] ^= (byte) label;
+
+        Cipher cipher = newCipher(new SecretKeySpec(masterKey, "AES"));
+        byte[] keystream = new byte[roundUpToBlock(length)];
+        generateKeystream(cipher, iv, keystream, keystream.length);
+
+        byte[] key = new byte[length];
+        System.arraycopy(keystream, 0, key, 0, length);
+        return key;
+    }
+
+    /**
+     * Returns the number of packets that were encrypted.
+     *
+     * @return number of encrypted packets
+     */
+    public long getProtectedCount()
+    {
+        return protectedCount;
+    }
+
+    /**
+     * Returns the number of times a previously protected packet was reused
+     * instead of being encrypted again.
+     *
+     * @return number of reused packets
+     */
+    public long getReusedCount()
+    {
+        return reusedCount;
+    }
+
+    /**
+     * Returns the number of packets whose keystream had been precomputed.
+     *
+     * @return number of packets that used a precomputed keystream
+     */
+    public long getPrecomputedHitCount()
+    {
+        return precomputedHitCount;
+    }
+
+    /**
+     * Converts an RTP packet to an SRTP packet. The readable bytes of
+     * {@code rtpPacket} must contain exactly one RTP packet; they are not
+     * modified.
+     *
+     * @param rtpPacket
+     *            RTP packet to protect
+     * @param allocator
+     *            allocator for the SRTP packet
+     * @return the SRTP packet, which the caller must release
+     * @throws IllegalArgumentException
+     *             if the packet is not a valid RTP packet
+     */
+    public ByteBuf protect(ByteBuf rtpPacket, ByteBufAllocator allocator)
+    {
+        int start = rtpPacket.readerIndex();
+        int length = rtpPacket.readableBytes();
+        int headerLength = getHeaderLength(rtpPacket);
+
+        int sequenceNumber = rtpPacket.getUnsignedShort(start + 2);
+        int ssrc = rtpPacket.getInt(start + 8);
+        SsrcContext context = getContext(ssrc);
+        lastProtectedContext = context;
+
+        long index = context.estimateIndex(sequenceNumber);
+        if (index == context.lastIndex && context.lastProtected != null)
+        {
+            reusedCount++;
+            return context.lastProtected.duplicate().retain();
+        }
+        context.commitIndex(index, sequenceNumber);
+
+        ByteBuf srtpPacket = allocator.heapBuffer(length + AUTH_TAG_LENGTH);
+        byte[] data = srtpPacket.array();
+        int offset = srtpPacket.arrayOffset() + srtpPacket.writerIndex();
+        rtpPacket.getBytes(start, data, offset, length);
+
+        int payloadLength = length - headerLength;
+        byte[] keystream = context.keystreamFor(index, payloadLength);
+        for (int i = 0, j = offset + headerLength; i < payloadLength; i++, j++)
+        {
+            data[j] ^= keystream[i];
+        }
+
+        context.authenticate(data, offset, length, context.rolloverCounter(index),
+                data, offset + length);
+        srtpPacket.writerIndex(srtpPacket.writerIndex() + length + AUTH_TAG_LENGTH);
+
+        if (context.lastProtected != null)
+        {
+            context.lastProtected.release();
+        }
+        context.lastProtected = srtpPacket.retain();
+        context.lastIndex = index;
+        protectedCount++;
+
+        return srtpPacket;
+    }
+
+    /**
+     * Converts an SRTP packet back to an RTP packet after verifying its
+     * authentication tag.
+     *
+     * @param srtpPacket
+     *            SRTP packet to unprotect
+     * @param allocator
+     *            allocator for the RTP packet
+     * @return the RTP packet, which the caller must release
+     * @throws IllegalArgumentException
+     *             if the packet is malformed or fails authentication
+     */
+    public ByteBuf unprotect(ByteBuf srtpPacket, ByteBufAllocator allocator)
+    {
+        int start = srtpPacket.readerIndex();
+        int length = srtpPacket.readableBytes() - AUTH_TAG_LENGTH;
+        Preconditions.checkArgument(length >= RtpPacket.FIXED_HEADER_SIZE,
+                "SRTP packet is too short.");
+        int headerLength = getHeaderLength(srtpPacket.slice(start, length));
+
+        int sequenceNumber = srtpPacket.getUnsignedShort(start + 2);
+        int ssrc = srtpPacket.getInt(start + 8);
+        SsrcContext context = getContext(ssrc);
+        long index = context.estimateIndex(sequenceNumber);
+
+        ByteBuf rtpPacket = allocator.heapBuffer(length);
+        byte[] data = rtpPacket.array();
+        int offset = rtpPacket.arrayOffset() + rtpPacket.writerIndex();
+        srtpPacket.getBytes(start, data, offset, length);
+
+        byte[] receivedTag = new byte[AUTH_TAG_LENGTH];
+        srtpPacket.getBytes(start + length, receivedTag);
+        byte[] expectedTag = new byte[AUTH_TAG_LENGTH];
+        context.authenticate(data, offset, length, context.rolloverCounter(index),
+                expectedTag, 0);
+
+        if (!MessageDigest.isEqual(receivedTag, expectedTag))
+        {
+            rtpPacket.release();
+            throw new IllegalArgumentException("SRTP authentication failed.");
+        }
+
+        context.commitIndex(index, sequenceNumber);
+
+        int payloadLength = length - headerLength;
+        byte[] keystream = context.keystreamFor(index, payloadLength);
+        for (int i = 0, j = offset + headerLength; i < payloadLength; i++, j++)
+        {
+            data[j] ^= keystream[i];
+        }
+
+        rtpPacket.writerIndex(rtpPacket.writerIndex() + length);
+        return rtpPacket;
+    }
+
+    /**
+     * Computes the keystream for the packet following the most recently
+     * protected packet so that the work is done before that packet is sent.
+     */
+    void precomputeNextKeystream()
+    {
+        if (lastProtectedContext != null)
+        {
+            lastProtectedContext.precompute();
+        }
+    }
+
+    /**
+     * Releases the cached SRTP packets.
+     */
+    public void close()
+    {
+        for (SsrcContext context : contexts.values())
+        {
+            if (context.lastProtected != null)
+            {
+                context.lastProtected.release();
+                context.lastProtected = null;
+            }
+        }
+        contexts.clear();
+        lastProtectedContext = null;
+    }
+
+    private SsrcContext getContext(int ssrc)
+    {
+        SsrcContext context = contexts.get(ssrc);
+        if (context == null)
+        {
+            context = new SsrcContext(ssrc);
+            contexts.put(ssrc, context);
+        }
+        return context;
+    }
+
+    /**
+     * Returns the length of the RTP header including CSRCs and the header
+     * extension.
+     */
+    private static int getHeaderLength(ByteBuf packet)
+    {
+        int start = packet.readerIndex();
+        int length = packet.readableBytes();
+        Preconditions.checkArgument(length >= RtpPacket.FIXED_HEADER_SIZE,
+                "RTP packet is too short.");
+
+        int firstByte = packet.getUnsignedByte(start);
+        int headerLength = RtpPacket.FIXED_HEADER_SIZE + 4 * (firstByte & 0x0F);
+
+        if ((firstByte & 0x10) != 0)
+        {
+            Preconditions.checkArgument(length >= headerLength + 4,
+                    "RTP header extension is truncated.");
+            headerLength += 4 + 4 * packet.getUnsignedShort(start + headerLength + 2);
+        }
+
+        Preconditions.checkArgument(headerLength <= length,
+                "RTP header is truncated.");
+        return headerLength;
+    }
+
+    private static Cipher newCipher(SecretKeySpec key)
+    {
+        try
+        {
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            return cipher;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(
+                    CIPHER_ALGORITHM + " is not available.", e);
+        }
+    }
+
+    /**
+     * Fills {@code keystream} with AES counter-mode output starting at the
+     * given initial counter block. The low 16 bits of the counter are
+     * incremented for each block.
+     */
+    private static void generateKeystream(Cipher cipher, byte[] iv,
+                                          byte[] keystream, int length)
+    {
+        for (int block = 0, offset = 0; offset < length; block++, offset += BLOCK_SIZE)
+        {
+            System.arraycopy(iv, 0, keystream, offset, BLOCK_SIZE - 2);
+            keystream[offset + BLOCK_SIZE - 2] = (byte) (block >>> 8);
+            keystream[offset + BLOCK_SIZE - 1] = (byte) block;
+        }
+
+        try
+        {
+            // ECB over the counter blocks, in place:
+            cipher.update(keystream, 0, length, keystream, 0);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("AES encryption failed.", e);
+        }
+    }
+
+    private static int roundUpToBlock(int length)
+    {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    /**
+     * Cryptographic state of one SSRC.
+     */
+    private final class SsrcContext
+    {
+        private final int ssrc;
+
+        private final Cipher cipher;
+
+        private final Mac mac;
+
+        private final byte[] iv = new byte[BLOCK_SIZE];
+
+        private final byte[] tag = new byte[HMAC_SHA1_LENGTH];
+
+        private final byte[] rolloverCounterBytes = new byte[4];
+
+        private int rolloverCounter;
+
+        /**
+         * Highest sequence number seen, or -1 before the first packet.
+         */
+        private int highestSequenceNumber = -1;
+
+        private long lastIndex = -1;
+
+        private ByteBuf lastProtected;
+
+        private byte[] keystream = new byte[0];
+
+        /**
+         * Packet index and length of the data in {@link #keystream}.
+         */
+        private long keystreamIndex = -1;
+
+        private int keystreamLength;
+
+        SsrcContext(int ssrc)
+        {
+            this.ssrc = ssrc;
+            cipher = newCipher(encryptionKey);
+
+            try
+            {
+                mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(authenticationKey);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException(
+                        MAC_ALGORITHM + " is not available.", e);
+            }
+        }
+
+        /**
+         * Estimates the 48-bit packet index from a sequence number
+         * (RFC 3711 appendix A).
+         */
+        long estimateIndex(int sequenceNumber)
+        {
+            if (highestSequenceNumber < 0)
+            {
+                return sequenceNumber;
+            }
+
+            long roc = rolloverCounter;
+            if (highestSequenceNumber < 0x8000)
+            {
+                if (sequenceNumber - highestSequenceNumber > 0x8000 && roc > 0)
+                {
+                    roc--;
+                }
+            }
+            else if (highestSequenceNumber - 0x8000 > sequenceNumber)
+            {
+                roc++;
+            }
+
+            return (roc << 16) | sequenceNumber;
+        }
+
+        void commitIndex(long index, int sequenceNumber)
+        {
+            int roc = rolloverCounter(index);
+            if (roc > rolloverCounter)
+            {
+                rolloverCounter = roc;
+                highestSequenceNumber = sequenceNumber;
+            }
+            else if (roc == rolloverCounter && sequenceNumber > highestSequenceNumber)
+            {
+                highestSequenceNumber = sequenceNumber;
+            }
+        }
+
+        int rolloverCounter(long index)
+        {
+            return (int) (index >>> 16);
+        }
+
+        /**
+         * Returns the keystream for the given packet, using the precomputed
+         * keystream if it matches.
+         */
+        byte[] keystreamFor(long index, int length)
+        {
+            if (index == keystreamIndex && length <= keystreamLength)
+            {
+                precomputedHitCount++;
+            }
+            else
+            {
+                generate(index, length);
+            }
+
+            return keystream;
+        }
+
+        /**
+         * Computes the keystream of the next packet assuming it has the
+         * same payload length as the last one.
+         */
+        void precompute()
+        {
+            if (lastIndex >= 0 && keystreamIndex != lastIndex + 1)
+            {
+                generate(lastIndex + 1, keystreamLength);
+            }
+        }
+
+        private void generate(long index, int length)
+        {
+            // IV = (k_s * 2^16) XOR (SSRC * 2^64) XOR (i * 2^16)
+            System.arraycopy(sessionSalt, 0, iv, 0, sessionSalt.length);
+            iv[4] ^= (byte) (ssrc >>> 24);
+            iv[5] ^= (byte) (ssrc >>> 16);
+            iv[6] ^= (byte) (ssrc >>> 8);
+            iv[7] ^= (byte) ssrc;
+            for (int i = 0; i < 6; i++)
+            {
+                iv[13 - i] ^= (byte) (index >>> (8 * i));
+            }
+
+            int blocksLength = roundUpToBlock(length);
+            if (keystream.length < blocksLength)
+            {
+                keystream = new byte[blocksLength];
+            }
+
+            generateKeystream(cipher, iv, keystream, blocksLength);
+            keystreamIndex = index;
+            keystreamLength = length;
+        }
+
+        /**
+         * Computes the truncated HMAC-SHA1 over the packet and the rollover
+         * counter.
+         */
+        void authenticate(byte[] packet, int offset, int length, int roc,
+                          byte[] output, int outputOffset)
+        {
+            rolloverCounterBytes[0] = (byte) (roc >>> 24);
+            rolloverCounterBytes[1] = (byte) (roc >>> 16);
+            rolloverCounterBytes[2] = (byte) (roc >>> 8);
+            rolloverCounterBytes[3] = (byte) roc;
+
+            mac.update(packet, offset, length);
+            mac.update(rolloverCounterBytes);
+
+            try
+            {
+                mac.doFinal(tag, 0);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("HMAC computation failed.", e);
+            }
+
+            System.arraycopy(tag, 0, output, outputOffset, AUTH_TAG_LENGTH);
+        }
+    }
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cicso.rtp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cisco.common.ExceptionHandler;
+import com.andrewkroh.cisco.common.NamedThreadFactory;
+import com.google.common.base.Preconditions;
+
+/**
+ * {@link RtpPacketListener} that records each received stream (SSRC) to its
+ * own WAV file of 16-bit mono PCM.
+ *
+ * <p/>
+ * Payloads are decoded according to their payload type: PCMU (0), PCMA (8)
+ * and the {@link EncodingType#PCM16} type (96). Packets with any other
+ * payload type are ignored. Samples are collected in a buffer holding at
+ * most {@link #BUFFER_MS} of audio per stream and written to a
+ * {@link FileChannel} each time it fills, so memory use does not grow with
+ * the length of a call. Lost packets are replaced with silence (up to
+ * {@link #MAX_GAP_MS}) so that the recording keeps its timing; late and
+ * duplicate packets are dropped. A timestamp that jumps by more than
+ * {@link #MAX_GAP_MS} in either direction, for example because the sender
+ * restarted, is a discontinuity: the recording continues from the new
+ * timestamp without inserting silence.
+ *
+ * <p/>
+ * A stream is complete when no packet has arrived for the idle timeout
+ * (checked once a second by a background thread, so that the last stream on
+ * a quiet group is completed too) or when the recorder is closed. The RIFF
+ * header, which contains the length of the data, is written at that point.
+ * Files are named {@code <ssrc>-<yyyyMMdd-HHmmss>-<n>.wav}. A stream that
+ * reaches the 4 GB limit of the format continues in a new file.
+ *
+ * <p/>
+ * Register the recorder with
+ * {@link NettyRtpSession#addPacketListener(RtpPacketListener)} so that file
+ * I/O happens on a dispatcher thread rather than the event loop.
+ *
+ * @author akroh
+ */
+public class WavRecorder implements RtpPacketListener, Closeable
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(WavRecorder.class);
+
+    /**
+     * Maximum amount of audio buffered in memory for each stream.
+     */
+    public static final int BUFFER_MS = 200;
+
+    /**
+     * Longest run of lost packets that is replaced with silence. A larger
+     * jump in the RTP timestamp, forwards or backwards, is treated as a
+     * discontinuity.
+     */
+    public static final int MAX_GAP_MS = 10000;
+
+    /**
+     * Default time without packets after which a stream is complete.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 5000;
+
+    private static final int PCMU_PAYLOAD_TYPE = EncodingType.ULAW.getPayloadType();
+
+    private static final int PCMA_PAYLOAD_TYPE = EncodingType.ALAW.getPayloadType();
+
+    private static final int PCM16_PAYLOAD_TYPE = EncodingType.PCM16.getPayloadType();
+
+    private static final int WAV_HEADER_SIZE = 44;
+
+    /**
+     * Largest data chunk that the 32-bit RIFF sizes can describe.
+     */
+    private static final long MAX_DATA_BYTES = 0xFFFFFFFFL - (WAV_HEADER_SIZE - 8);
+
+    /**
+     * Time between checks for idle streams.
+     */
+    private static final long IDLE_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final short[] ULAW_TABLE = LevelMeter.decodeTable(EncodingType.ULAW);
+
+    private static final short[] ALAW_TABLE = LevelMeter.decodeTable(EncodingType.ALAW);
+
+    private final Path directory;
+
+    private final int pcm16SampleRate;
+
+    private final long idleTimeoutNanos;
+
+    /**
+     * Recordings keyed by SSRC. Guarded by {@code this}.
+     */
+    private final Map<Integer, Recording> recordings = new HashMap<Integer, Recording>();
+
+    private final AtomicLong filesCompleted = new AtomicLong();
+
+    private final AtomicLong packetsIgnored = new AtomicLong();
+
+    private long fileSequence;
+
+    private long lastIdleCheckNanos = System.nanoTime();
+
+    private boolean closed;
+
+    /**
+     * Completes idle recordings when no packets arrive.
+     */
+    private final ScheduledExecutorService idleChecker;
+
+    /**
+     * Creates a recorder that writes to the given directory using the
+     * {@link #DEFAULT_IDLE_TIMEOUT_MS} and 8000 Hz for PCM16 streams.
+     *
+     * @param directory
+     *            existing directory to write the WAV files to
+     */
+    public WavRecorder(Path directory)
+    {
+        this(directory, DecodedAudio.NARROWBAND_RATE_HZ,
+                DEFAULT_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a recorder that writes to the given directory.
+     *
+     * @param directory
+     *            existing directory to write the WAV files to
+     * @param pcm16SampleRate
+     *            sample rate of PCM16 streams, which is not carried by the
+     *            dynamic payload type (G.711 is always 8000 Hz)
+     * @param idleTimeout
+     *            time without packets after which a stream is complete
+     * @param unit
+     *            unit of the idle timeout
+     */
+    public WavRecorder(Path directory, int pcm16SampleRate, long idleTimeout, TimeUnit unit)
+    {
+        this.directory = Preconditions.checkNotNull(directory, "Directory cannot be null.");
+        Preconditions.checkArgument(Files.isDirectory(directory),
+                "%s is not a directory.", directory);
+        Preconditions.checkArgument(pcm16SampleRate > 0,
+                "Sample rate must be greater than 0.");
+        Preconditions.checkArgument(idleTimeout > 0,
+                "Idle timeout must be greater than 0.");
+        Preconditions.checkNotNull(unit, "TimeUnit cannot be null.");
+
+        this.pcm16SampleRate = pcm16SampleRate;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+
+        final NamedThreadFactory threadFactory = new NamedThreadFactory(
+                "wav-recorder-idle", new ExceptionHandler() {
+                    @Override
+                    public void handle(Exception e, String message)
+                    {
+                        LOGGER.warn(message, e);
+                    }
+                });
+        idleChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = threadFactory.newThread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        idleChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run()
+            {
+                checkIdleRecordings();
+            }
+        }, IDLE_CHECK_INTERVAL_NANOS, IDLE_CHECK_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the number of streams that are being recorded.
+     *
+     * @return number of open recordings
+     */
+    public synchronized int getActiveRecordingCount()
+    {
+        return recordings.size();
+    }
+
+    /**
+     * Returns the number of WAV files that have been completed.
+     *
+     * @return number of completed files
+     */
+    public long getCompletedFileCount()
+    {
+        return filesCompleted.get();
+    }
+
+    /**
+     * Returns the number of packets that were not recorded because their
+     * payload type is not supported or they arrived late.
+     *
+     * @return number of ignored packets
+     */
+    public long getIgnoredPacketCount()
+    {
+        return packetsIgnored.get();
+    }
+
+    @Override
+    public synchronized void packetReceived(InetSocketAddress source,
+                                            InetSocketAddress receiver,
+                                            RtpPacket packet)
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (now - lastIdleCheckNanos >= IDLE_CHECK_INTERVAL_NANOS)
+        {
+            lastIdleCheckNanos = now;
+            finishIdleRecordings(now);
+        }
+
+        int payloadType = packet.getPayloadType();
+        if (payloadType != PCMU_PAYLOAD_TYPE && payloadType != PCMA_PAYLOAD_TYPE &&
+                payloadType != PCM16_PAYLOAD_TYPE)
+        {
+            packetsIgnored.incrementAndGet();
+            return;
+        }
+
+        Recording recording = recordings.get(packet.getSSRC());
+        try
+        {
+            if (recording == null)
+            {
+                recording = new Recording(packet.getSSRC(), payloadType, source);
+                recordings.put(packet.getSSRC(), recording);
+            }
+
+            if (!recording.write(packet, now))
+            {
+                packetsIgnored.incrementAndGet();
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to record stream {} from {}.",
+                    ssrcToString(packet.getSSRC()), source, e);
+            if (recording != null)
+            {
+                recordings.remove(packet.getSSRC());
+                recording.abort();
+            }
+        }
+    }
+
+    /**
+     * Completes every recording and stops recording. Packets received after
+     * this are ignored.
+     */
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+        idleChecker.shutdownNow();
+
+        for (Recording recording : recordings.values())
+        {
+            finish(recording);
+        }
+        recordings.clear();
+    }
+
+    private synchronized void checkIdleRecordings()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        long now = System.nanoTime();
+        lastIdleCheckNanos = now;
+        finishIdleRecordings(now);
+    }
+
+    private void finishIdleRecordings(long now)
+    {
+        Iterator<Recording> iterator = recordings.values().iterator();
+        while (iterator.hasNext())
+        {
+            Recording recording = iterator.next();
+            if (now - recording.lastPacketNanos >= idleTimeoutNanos)
+            {
+                iterator.remove();
+                finish(recording);
+            }
+        }
+    }
+
+    private void finish(Recording recording)
+    {
+        try
+        {
+            recording.finish();
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to complete {}.", recording.file, e);
+            recording.abort();
+        }
+    }
+
+    private Path nextFile(int ssrc)
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+        return directory.resolve(ssrcToString(ssrc) + "-" +
+                format.format(new Date()) + "-" + (++fileSequence) + ".wav");
+    }
+
+    private static String ssrcToString(int ssrc)
+    {
+        return String.format("%08x", ssrc);
+    }
+
+    /**
+     * Writes the 44 byte header of a 16-bit mono PCM WAV file.
+     */
+    private static ByteBuffer wavHeader(int sampleRate, long dataBytes)
+    {
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII));
+        header.putInt((int) (dataBytes + WAV_HEADER_SIZE - 8));
+        header.put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        header.put("fmt ".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(16);
+        header.putShort((short) 1);
+        header.putShort((short) 1);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * 2);
+        header.putShort((short) 2);
+        header.putShort((short) 16);
+        header.put("data".getBytes(StandardCharsets.US_ASCII));
+        header.putInt((int) dataBytes);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * One stream being written to a file.
+     */
+    private final class Recording
+    {
+        private final int ssrc;
+
+        private final int payloadType;
+
+        private final int sampleRate;
+
+        private final InetSocketAddress source;
+
+        /**
+         * Samples waiting to be written, at most {@link #BUFFER_MS} of
+         * audio.
+         */
+        private final ByteBuffer buffer;
+
+        private final int maxGapSamples;
+
+        private Path file;
+
+        private FileChannel channel;
+
+        private long dataBytes;
+
+        /**
+         * RTP timestamp expected in the next packet.
+         */
+        private int nextTimestamp;
+
+        private boolean started;
+
+        private long lastPacketNanos;
+
+        Recording(int ssrc, int payloadType, InetSocketAddress source) throws IOException
+        {
+            this.ssrc = ssrc;
+            this.payloadType = payloadType;
+            this.source = source;
+            this.sampleRate = payloadType == PCM16_PAYLOAD_TYPE ?
+                    pcm16SampleRate : DecodedAudio.NARROWBAND_RATE_HZ;
+            this.buffer = ByteBuffer.allocate(sampleRate * 2 * BUFFER_MS / 1000)
+                                    .order(ByteOrder.LITTLE_ENDIAN);
+            this.maxGapSamples = sampleRate / 1000 * MAX_GAP_MS;
+            open();
+        }
+
+        private void open() throws IOException
+        {
+            file = nextFile(ssrc);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            channel.position(WAV_HEADER_SIZE);
+            dataBytes = 0;
+            LOGGER.info("Recording stream {} from {} to {}.",
+                    ssrcToString(ssrc), source, file);
+        }
+
+        /**
+         * Appends the packet's samples.
+         *
+         * @return false if the packet was late or a duplicate
+         */
+        boolean write(RtpPacket packet, long now) throws IOException
+        {
+            byte[] payload = packet.getRtpPayloadData();
+            int timestamp = packet.getTimestamp();
+
+            if (started)
+            {
+                // Wrap-around safe difference of the 32-bit timestamps.
+                int gap = timestamp - nextTimestamp;
+                if (gap < 0 && gap >= -maxGapSamples)
+                {
+                    return false;
+                }
+                if (gap >= 0 && gap <= maxGapSamples)
+                {
+                    writeSilence(gap);
+                }
+                // Otherwise the timeline restarts at this packet.
+            }
+            started = true;
+            lastPacketNanos = now;
+
+            int samples;
+            if (payloadType == PCM16_PAYLOAD_TYPE)
+            {
+                samples = payload.length / 2;
+                for (int i = 0; i < samples; i++)
+                {
+                    ensureRemaining();
+                    buffer.putShort((short) LevelMeter.pcm16Sample(payload, 2 * i));
+                }
+            }
+            else
+            {
+                short[] table = payloadType == PCMU_PAYLOAD_TYPE ? ULAW_TABLE : ALAW_TABLE;
+                samples = payload.length;
+                for (int i = 0; i < samples; i++)
+                {
+                    ensureRemaining();
+                    buffer.putShort(table[payload[i] & 0xFF]);
+                }
+            }
+
+            nextTimestamp = timestamp + samples;
+            return true;
+        }
+
+        private void writeSilence(int samples) throws IOException
+        {
+            for (int i = 0; i < samples; i++)
+            {
+                ensureRemaining();
+                buffer.putShort((short) 0);
+            }
+        }
+
+        private void ensureRemaining() throws IOException
+        {
+            if (!buffer.hasRemaining())
+            {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            buffer.flip();
+            if (dataBytes + buffer.remaining() > MAX_DATA_BYTES)
+            {
+                // The file is full, continue the stream in a new file.
+                finishFile();
+                open();
+            }
+
+            dataBytes += buffer.remaining();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void finish() throws IOException
+        {
+            flush();
+            finishFile();
+        }
+
+        private void finishFile() throws IOException
+        {
+            try
+            {
+                ByteBuffer header = wavHeader(sampleRate, dataBytes);
+                while (header.hasRemaining())
+                {
+                    channel.write(header, header.position());
+                }
+            }
+            finally
+            {
+                channel.close();
+            }
+
+            filesCompleted.incrementAndGet();
+            LOGGER.info("Completed {} ({} seconds).", file,
+                    dataBytes / 2 / sampleRate);
+        }
+
+        void abort()
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.debug("Failed to close {}.", file, e);
+            }
+        }
+    }
+}
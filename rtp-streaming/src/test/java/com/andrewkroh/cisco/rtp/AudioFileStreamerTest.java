@@ -9,17 +9,24 @@ import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.internal.util.reflection.Whitebox;
 
 import com.andrewkroh.cicso.rtp.AudioFileStreamer;
@@ -37,6 +44,9 @@ public class AudioFileStreamerTest
     private static final URL SONAR_8K_PCM_WAV =
             AudioFileStreamerTest.class.getResource("/wavs/sonar_8kHz_pcm.wav");
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private AudioFileStreamer streamer;
 
     private RtpSession mockRtpSession;
@@ -92,6 +102,31 @@ public class AudioFileStreamerTest
                               mockRtpSession);
     }
 
+    @Test
+    public void constructor_with44kSourceAndUlaw_resamplesTo8k()
+            throws UnsupportedAudioFileException, IOException
+    {
+        AudioFileStreamer resampled = new AudioFileStreamer(
+                silentWav(44100f, 2, 44100), EncodingType.ULAW, 20, mockRtpSession);
+
+        assertThat(resampled.getOutputFormat().getSampleRate(), equalTo(8000f));
+        assertThat(resampled.getOutputFormat().getChannels(), equalTo(1));
+        assertThat((Integer) Whitebox.getInternalState(resampled, "payloadSizeBytes"),
+                equalTo(160));
+    }
+
+    @Test
+    public void constructor_with44kSourceAndPcm16_resamplesTo16k()
+            throws UnsupportedAudioFileException, IOException
+    {
+        AudioFileStreamer resampled = new AudioFileStreamer(
+                silentWav(44100f, 1, 44100), EncodingType.PCM16, 20, mockRtpSession);
+
+        assertThat(resampled.getOutputFormat().getSampleRate(), equalTo(16000f));
+        assertThat((Integer) Whitebox.getInternalState(resampled, "payloadSizeBytes"),
+                equalTo(640));
+    }
+
     @Test(expected = NullPointerException.class)
     public void constructor_willNullUrl_throwsException()
             throws UnsupportedAudioFileException, IOException
@@ -133,6 +168,17 @@ public class AudioFileStreamerTest
         getNumberOfSamplesPerTimePeriodTest(8000f, 1000, 8000);
     }
 
+    private URL silentWav(float sampleRate, int channels, int frames) throws IOException
+    {
+        AudioFormat format = new AudioFormat(sampleRate, 16, channels, true, false);
+        byte[] data = new byte[frames * format.getFrameSize()];
+
+        File file = temporaryFolder.newFile();
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), format, frames),
+                          AudioFileFormat.Type.WAVE, file);
+        return file.toURI().toURL();
+    }
+
     private void getNumberOfSamplesPerTimePeriodTest(float sampleRateHz, int timeMs, int expectedNumSamples)
     {
         AudioFormat mockAudioFormat = mock(AudioFormat.class);
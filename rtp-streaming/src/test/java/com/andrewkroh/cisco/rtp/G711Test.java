@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.rtp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.junit.Test;
+
+import com.andrewkroh.cicso.rtp.G711;
+
+/**
+ * Test for {@link G711}.
+ *
+ * @author akroh
+ */
+public class G711Test
+{
+    @Test
+    public void linearToUlaw_zero_returnsSilence()
+    {
+        assertThat(G711.linearToUlaw(0), equalTo(G711.ULAW_SILENCE));
+    }
+
+    @Test
+    public void linearToAlaw_zero_returnsSilence()
+    {
+        assertThat(G711.linearToAlaw(0), equalTo(G711.ALAW_SILENCE));
+    }
+
+    @Test
+    public void ulaw_allCodes_roundTrip()
+    {
+        for (int code = 0; code < 256; code++)
+        {
+            short linear = G711.ulawToLinear((byte) code);
+            byte encoded = G711.linearToUlaw(linear);
+
+            // 0x7F and 0xFF both decode to zero.
+            assertThat(G711.ulawToLinear(encoded), equalTo(linear));
+        }
+    }
+
+    @Test
+    public void alaw_allCodes_roundTrip()
+    {
+        for (int code = 0; code < 256; code++)
+        {
+            assertThat(G711.linearToAlaw(G711.alawToLinear((byte) code)),
+                       equalTo((byte) code));
+        }
+    }
+
+    @Test
+    public void ulaw_quantizationError_isWithinSegmentStep()
+    {
+        for (int sample = -32768; sample <= 32767; sample += 7)
+        {
+            int decoded = G711.ulawToLinear(G711.linearToUlaw(sample));
+            int step = Math.max(8, Math.abs(sample) / 16);
+            assertThat(Math.abs(decoded - Math.max(-32635, Math.min(32635, sample))),
+                       lessThanOrEqualTo(step));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cicso.rtp.G711;
+import com.andrewkroh.cicso.rtp.LevelMeter;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+
+/**
+ * Test for {@link LevelMeter}.
+ *
+ * @author akroh
+ */
+public class LevelMeterTest
+{
+    private MetricsRegistry metrics;
+
+    @Before
+    public void beforeTest()
+    {
+        metrics = new MetricsRegistry();
+    }
+
+    @Test
+    public void analyze_silence_hasNoLevel()
+    {
+        LevelMeter meter = new LevelMeter(EncodingType.ULAW, metrics, "");
+        byte[] packet = new byte[160];
+        Arrays.fill(packet, G711.ULAW_SILENCE);
+
+        meter.analyze(packet, 0, packet.length);
+
+        assertEquals(1, meter.getPacketCount());
+        assertEquals(Double.NEGATIVE_INFINITY, meter.getLoudnessDbfs(), 0);
+        assertEquals(0, meter.getClippedSampleCount());
+    }
+
+    @Test
+    public void analyze_fullScaleSquareWave_isClipped()
+    {
+        LevelMeter meter = new LevelMeter(EncodingType.PCM16, metrics, "level.");
+        byte[] packet = pcm16(new short[] {Short.MAX_VALUE, Short.MIN_VALUE,
+                                           Short.MAX_VALUE, Short.MIN_VALUE});
+
+        meter.analyze(packet, 0, packet.length);
+
+        assertEquals(0, meter.getLoudnessDbfs(), 0.01);
+        assertEquals(0, meter.getPeakDbfs(), 0.01);
+        assertEquals(4, meter.getClippedSampleCount());
+        assertEquals(1, meter.getClippedPacketCount());
+        assertEquals(4, metrics.counter("level.clippedSamples").getCount());
+        assertEquals(1, metrics.histogram("level.packetRms").snapshot().getCount());
+    }
+
+    @Test
+    public void analyze_halfScaleUlaw_isSixDbBelowFullScale()
+    {
+        LevelMeter meter = new LevelMeter(EncodingType.ULAW, metrics, "");
+        byte[] packet = new byte[160];
+        for (int i = 0; i < packet.length; i++)
+        {
+            packet[i] = G711.linearToUlaw(i % 2 == 0 ? 16384 : -16384);
+        }
+
+        meter.analyze(packet, 0, packet.length);
+
+        assertEquals(-6.02, meter.getLoudnessDbfs(), 0.2);
+        assertEquals(0, meter.getClippedSampleCount());
+    }
+
+    @Test
+    public void analyze_maximumAlawCode_isClipped()
+    {
+        LevelMeter meter = new LevelMeter(EncodingType.ALAW, metrics, "");
+        byte[] packet = new byte[] {G711.linearToAlaw(Short.MAX_VALUE), G711.ALAW_SILENCE};
+
+        meter.analyze(packet, 0, packet.length);
+
+        assertEquals(1, meter.getClippedSampleCount());
+        assertTrue(meter.getPeakDbfs() > -0.2);
+    }
+
+    /**
+     * Encodes samples as unsigned little-endian PCM16.
+     */
+    static byte[] pcm16(short[] samples)
+    {
+        byte[] data = new byte[2 * samples.length];
+        for (int i = 0; i < samples.length; i++)
+        {
+            data[2 * i] = (byte) samples[i];
+            data[2 * i + 1] = (byte) ((samples[i] >> 8) ^ 0x80);
+        }
+        return data;
+    }
+}
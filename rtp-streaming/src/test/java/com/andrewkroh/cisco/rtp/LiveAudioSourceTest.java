@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.rtp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cicso.rtp.G711;
+import com.andrewkroh.cicso.rtp.LiveAudioSource;
+
+/**
+ * Test for {@link LiveAudioSource}.
+ *
+ * @author akroh
+ */
+public class LiveAudioSourceTest
+{
+    private static final int PACKET_SIZE = 160;
+
+    private static final long TARGET_LATENCY_MS = 40;
+
+    private Pipe pipe;
+
+    private LiveAudioSource source;
+
+    @Before
+    public void beforeTest() throws IOException
+    {
+        pipe = Pipe.open();
+    }
+
+    @After
+    public void afterTest() throws IOException
+    {
+        if (source != null)
+        {
+            source.close();
+        }
+
+        pipe.sink().close();
+    }
+
+    @Test
+    public void read_beforeTargetLatency_returnsSilence() throws Exception
+    {
+        source = LiveAudioSource.fromChannel(pipe.source(),
+                EncodingType.ULAW, EncodingType.ULAW, TARGET_LATENCY_MS);
+
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        source.read(packet);
+
+        assertThat(packet.remaining(), equalTo(0));
+        for (byte b : packet.array())
+        {
+            assertThat(b, equalTo(G711.ULAW_SILENCE));
+        }
+        assertThat(source.getUnderrunCount(), equalTo(0L));
+    }
+
+    @Test
+    public void read_afterTargetLatency_returnsData() throws Exception
+    {
+        source = LiveAudioSource.fromChannel(pipe.source(),
+                EncodingType.ULAW, EncodingType.ULAW, TARGET_LATENCY_MS);
+
+        writeAndWait(filled((byte) 0x12, 2 * PACKET_SIZE), 2 * PACKET_SIZE);
+
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        source.read(packet);
+        assertThat(packet.array()[0], equalTo((byte) 0x12));
+        assertThat(packet.array()[PACKET_SIZE - 1], equalTo((byte) 0x12));
+    }
+
+    @Test
+    public void read_whenStarved_countsUnderrunAndFillsSilence() throws Exception
+    {
+        source = LiveAudioSource.fromChannel(pipe.source(),
+                EncodingType.ULAW, EncodingType.ULAW, TARGET_LATENCY_MS);
+
+        writeAndWait(filled((byte) 0x12, 2 * PACKET_SIZE + 10), 2 * PACKET_SIZE + 10);
+
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        source.read(packet);
+        packet.clear();
+        source.read(packet);
+        packet.clear();
+        source.read(packet);
+
+        assertThat(packet.array()[9], equalTo((byte) 0x12));
+        assertThat(packet.array()[10], equalTo(G711.ULAW_SILENCE));
+        assertThat(source.getUnderrunCount(), equalTo(1L));
+    }
+
+    @Test
+    public void read_whenProducerIsAhead_discardsOldAudio() throws Exception
+    {
+        source = LiveAudioSource.fromChannel(pipe.source(),
+                EncodingType.ULAW, EncodingType.ULAW, TARGET_LATENCY_MS);
+
+        // Twice the target latency is the maximum. Write three times that.
+        int bytes = (int) (TARGET_LATENCY_MS * 8 * 3);
+        writeAndWait(filled((byte) 0x12, bytes), bytes);
+
+        source.read(ByteBuffer.allocate(PACKET_SIZE));
+
+        assertThat(source.getOverrunCount(), equalTo(1L));
+        assertThat(source.getDiscardedByteCount(), greaterThan(0L));
+        assertThat(source.getBufferedMillis(),
+                   equalTo(TARGET_LATENCY_MS - PACKET_SIZE / 8));
+    }
+
+    @Test
+    public void read_pcm16ToUlaw_encodesSamples() throws Exception
+    {
+        source = LiveAudioSource.fromChannel(pipe.source(),
+                EncodingType.PCM16, EncodingType.ULAW, TARGET_LATENCY_MS);
+
+        int samples = 2 * PACKET_SIZE;
+        ByteBuffer pcm = ByteBuffer.allocate(samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        while (pcm.hasRemaining())
+        {
+            pcm.putShort((short) 1000);
+        }
+        writeAndWait(pcm.array(), samples);
+
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        source.read(packet);
+        assertThat(packet.array()[0], equalTo(G711.linearToUlaw(1000)));
+    }
+
+    @Test
+    public void fromNamedPipe_missingPipe_backsOffBeforeReopening() throws Exception
+    {
+        Path directory = Files.createTempDirectory("live-audio");
+        try
+        {
+            source = LiveAudioSource.fromNamedPipe(directory.resolve("missing"),
+                    EncodingType.ULAW, EncodingType.ULAW, TARGET_LATENCY_MS);
+
+            // Opened at 0, 100, 300, and 700 ms:
+            Thread.sleep(500);
+            assertThat(source.getInputErrorCount(), greaterThan(0L));
+            assertThat(source.getInputErrorCount(), lessThanOrEqualTo(3L));
+
+            ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+            source.read(packet);
+            assertThat(packet.array()[0], equalTo(G711.ULAW_SILENCE));
+        }
+        finally
+        {
+            Files.delete(directory);
+        }
+    }
+
+    private void writeAndWait(byte[] data, int expectedOutputBytes)
+            throws IOException, InterruptedException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining())
+        {
+            pipe.sink().write(buffer);
+        }
+
+        // Wait for the reader thread to move the data into the ring:
+        long expectedMs = expectedOutputBytes / 8;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (source.getBufferedMillis() + source.getDiscardedByteCount() / 8 < expectedMs &&
+                System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+    }
+
+    private static byte[] filled(byte value, int length)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = value;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.rtp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cicso.rtp.G711;
+import com.andrewkroh.cicso.rtp.LevelMeter;
+import com.andrewkroh.cicso.rtp.LoudnessNormalizer;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+
+/**
+ * Test for {@link LoudnessNormalizer}.
+ *
+ * @author akroh
+ */
+public class LoudnessNormalizerTest
+{
+    @Test
+    public void normalize_quietUlaw_reachesTarget()
+    {
+        byte[] data = new byte[8000];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = G711.linearToUlaw((int) (1000 * Math.sin(i * 2 * Math.PI / 80)));
+        }
+
+        LoudnessNormalizer.normalize(data, EncodingType.ULAW, -20);
+
+        assertEquals(-20, loudness(data, EncodingType.ULAW), 0.5);
+    }
+
+    @Test
+    public void normalize_pcm16_reachesTarget()
+    {
+        short[] samples = new short[8000];
+        for (int i = 0; i < samples.length; i++)
+        {
+            samples[i] = (short) (500 * Math.sin(i * 2 * Math.PI / 80));
+        }
+        byte[] data = LevelMeterTest.pcm16(samples);
+
+        LoudnessNormalizer.normalize(data, EncodingType.PCM16, -12);
+
+        assertEquals(-12, loudness(data, EncodingType.PCM16), 0.1);
+    }
+
+    @Test
+    public void normalize_loudPeaks_limitsGainToFullScale()
+    {
+        short[] samples = new short[1000];
+        samples[0] = 16384;
+        byte[] data = LevelMeterTest.pcm16(samples);
+
+        double gain = LoudnessNormalizer.normalize(data, EncodingType.PCM16, -3);
+
+        assertEquals(Short.MAX_VALUE / 16384.0, gain, 0.001);
+    }
+
+    @Test
+    public void normalize_silence_isUnchanged()
+    {
+        byte[] data = new byte[160];
+        Arrays.fill(data, G711.ALAW_SILENCE);
+
+        assertEquals(1, LoudnessNormalizer.normalize(data, EncodingType.ALAW, -20), 0);
+        assertEquals(G711.ALAW_SILENCE, data[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void normalize_targetAboveFullScale_throwsException()
+    {
+        LoudnessNormalizer.normalize(new byte[2], EncodingType.PCM16, 1);
+    }
+
+    private static double loudness(byte[] data, EncodingType encoding)
+    {
+        LevelMeter meter = new LevelMeter(encoding, new MetricsRegistry(), "");
+        meter.analyze(data, 0, data.length);
+        return meter.getLoudnessDbfs();
+    }
+}
@@ -17,9 +17,13 @@
 package com.andrewkroh.cisco.rtp;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -33,6 +37,9 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -43,9 +50,11 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.andrewkroh.cicso.rtp.Destination;
+import com.andrewkroh.cicso.rtp.DestinationStatus;
 import com.andrewkroh.cicso.rtp.NettyRtpSession;
 import com.andrewkroh.cicso.rtp.RtpPacket;
 import com.andrewkroh.cisco.common.TestUtils;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
 
 /**
  * Test for {@link NettyRtpSession}.
@@ -73,6 +82,8 @@ public class NettyRtpSessionTest
 
     private static final String IPV4_MULTICAST_ADDRESS = "225.168.168.168";
 
+    private static final int BURST_SIZE = 200;
+
     /**
      * {@link Bootstrap} for the test client.
      */
@@ -204,6 +215,278 @@ public class NettyRtpSessionTest
         assertThatPayloadDataMatches(clientHandler.getOnlyReceivedPacket());
     }
 
+    @Test
+    public void sendData_toUnicastDestination_countsPacketsAndBytes() throws Exception
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()),
+                                      null, null, null, metrics);
+        session.addDestination(new Destination(NetUtil.LOCALHOST4.getHostAddress(),
+                                               clientChannel.localAddress().getPort()));
+        session.sendData(rtpPacket);
+        assertNotNull(clientHandler.getOnlyReceivedPacket());
+
+        String prefix = session.getMetricsPrefix();
+        assertEquals(1, metrics.counter(prefix + "packetsSent").getCount());
+        assertEquals(rtpPacket.getBytes().length,
+                     metrics.counter(prefix + "bytesSent").getCount());
+        assertEquals(0, metrics.counter(prefix + "sendFailures").getCount());
+    }
+
+    @Test
+    public void receive_datagramShorterThanHeader_countsMalformedDrop() throws Exception
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        int port = TestUtils.getFreePort();
+        session = new NettyRtpSession(new InetSocketAddress(port),
+                                      null, null, null, metrics);
+
+        clientChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(new byte[4]),
+                new InetSocketAddress(NetUtil.LOCALHOST4, port))).sync();
+
+        String prefix = session.getMetricsPrefix();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (metrics.counter(prefix + "malformedDropped").getCount() == 0 &&
+                System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, metrics.counter(prefix + "packetsReceived").getCount());
+        assertEquals(4, metrics.counter(prefix + "bytesReceived").getCount());
+        assertEquals(1, metrics.counter(prefix + "malformedDropped").getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setWriteBufferWaterMarks_lowAboveHigh_throwsException()
+    {
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()));
+        session.setWriteBufferWaterMarks(2048, 1024);
+    }
+
+    @Test
+    public void sendData_unwritableWithZeroDeadline_dropsPackets() throws Exception
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()),
+                                      null, null, null, metrics);
+        session.setWriteBufferWaterMarks(0, 1);
+        session.setFreshnessDeadline(0, TimeUnit.MILLISECONDS);
+        session.addDestination(new Destination(NetUtil.LOCALHOST4.getHostAddress(),
+                                               clientChannel.localAddress().getPort()));
+
+        for (int i = 0; i < BURST_SIZE; i++)
+        {
+            session.sendData(rtpPacket);
+        }
+
+        String prefix = session.getMetricsPrefix();
+        long sent = metrics.counter(prefix + "packetsSent").getCount();
+        long dropped = metrics.counter(prefix + "packetsDropped").getCount();
+        assertTrue("Expected drops while unwritable.", dropped > 0);
+        assertEquals(BURST_SIZE, sent + dropped);
+    }
+
+    @Test
+    public void sendData_unwritableWithinDeadline_deliversEveryPacket() throws Exception
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()),
+                                      null, null, null, metrics);
+        session.setWriteBufferWaterMarks(0, 1);
+        session.setFreshnessDeadline(10, TimeUnit.SECONDS);
+        session.addDestination(new Destination(NetUtil.LOCALHOST4.getHostAddress(),
+                                               clientChannel.localAddress().getPort()));
+
+        for (int i = 0; i < BURST_SIZE; i++)
+        {
+            session.sendData(rtpPacket);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (clientHandler.numberReceived.get() < BURST_SIZE &&
+                System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        String prefix = session.getMetricsPrefix();
+        assertEquals(BURST_SIZE, clientHandler.numberReceived.get());
+        assertEquals(BURST_SIZE, metrics.counter(prefix + "packetsSent").getCount());
+        assertEquals(0, metrics.counter(prefix + "packetsDropped").getCount());
+        assertTrue(metrics.counter(prefix + "unwritableEvents").getCount() > 0);
+        assertEquals(0, session.getQueuedBytes());
+    }
+
+    @Test
+    public void shutdown_removesSessionMetrics()
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()),
+                                      null, null, null, metrics);
+        session.shutdown();
+
+        assertEquals(0, metrics.snapshot().getCounters().size());
+        assertEquals(0, metrics.snapshot().getGauges().size());
+    }
+
+    @Test
+    public void addDestinations_ignoresDuplicates()
+    {
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()));
+
+        assertEquals(2, session.addDestinations(Arrays.asList(
+                destination(1), destination(2), destination(1))));
+        assertEquals(1, session.addDestinations(Arrays.asList(
+                destination(2), destination(3))));
+        assertEquals(Arrays.asList(destination(1), destination(2), destination(3)),
+                     new ArrayList<Destination>(session.getDestinations()));
+    }
+
+    @Test
+    public void removeDestinations_returnsNumberRemoved()
+    {
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()));
+        session.addDestinations(Arrays.asList(destination(1), destination(2), destination(3)));
+
+        assertEquals(2, session.removeDestinations(Arrays.asList(
+                destination(1), destination(3), destination(4))));
+        assertEquals(Arrays.asList(destination(2)),
+                     new ArrayList<Destination>(session.getDestinations()));
+        assertFalse(session.removeDestination(destination(1)));
+        assertTrue(session.removeDestination(destination(2)));
+        assertTrue(session.getDestinations().isEmpty());
+    }
+
+    @Test
+    public void setDestinations_replacesAll()
+    {
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()));
+        session.addDestinations(Arrays.asList(destination(1), destination(2)));
+
+        session.setDestinations(Arrays.asList(destination(2), destination(3)));
+
+        assertEquals(Arrays.asList(destination(2), destination(3)),
+                     new ArrayList<Destination>(session.getDestinations()));
+    }
+
+    @Test
+    public void getDestinations_isUnchangedBySubsequentChanges()
+    {
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()));
+        session.addDestination(destination(1));
+
+        Collection<Destination> snapshot = session.getDestinations();
+        session.addDestination(destination(2));
+
+        assertEquals(1, snapshot.size());
+        assertEquals(2, session.getDestinations().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void getDestinations_isReadOnly()
+    {
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()));
+        session.getDestinations().add(destination(1));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void addDestinations_withNullElement_throwsException()
+    {
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()));
+        session.addDestinations(Arrays.asList(destination(1), null));
+    }
+
+    @Test
+    public void getDestinationStatus_healthyDestination_isNotQuarantined()
+    {
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()));
+        session.addDestination(destination(1));
+
+        DestinationStatus status = session.getDestinationStatus(destination(1));
+        assertEquals(destination(1), status.getDestination());
+        assertFalse(status.isQuarantined());
+        assertEquals(0, status.getConsecutiveFailures());
+        assertEquals(0, status.getTotalFailures());
+        assertNull(session.getDestinationStatus(destination(2)));
+        assertTrue(session.getQuarantinedDestinations().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setQuarantinePolicy_maxBelowInitial_throwsException()
+    {
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()));
+        session.setQuarantinePolicy(5, 10, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends to the limited broadcast address, which fails because the
+     * session's socket does not enable {@code SO_BROADCAST}.
+     */
+    @Test
+    public void sendData_failingDestination_isQuarantined() throws Exception
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()),
+                                      null, null, null, metrics);
+        session.setQuarantinePolicy(2, 1, 1, TimeUnit.HOURS);
+        Destination failing = new Destination("255.255.255.255",
+                                              clientChannel.localAddress().getPort());
+        Destination healthy = new Destination(NetUtil.LOCALHOST4.getHostAddress(),
+                                              clientChannel.localAddress().getPort());
+        session.addDestinations(Arrays.asList(failing, healthy));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (session.getQuarantinedDestinations().isEmpty() &&
+                System.nanoTime() < deadline)
+        {
+            session.sendData(rtpPacket);
+            Thread.sleep(10);
+        }
+
+        assertEquals(Arrays.asList(failing),
+                     new ArrayList<Destination>(session.getQuarantinedDestinations()));
+        DestinationStatus status = session.getDestinationStatus(failing);
+        assertTrue(status.isQuarantined());
+        assertEquals(1, status.getQuarantineCount());
+        assertTrue(status.getNextProbeDelay(TimeUnit.MINUTES) > 0);
+        assertFalse(session.getDestinationStatus(healthy).isQuarantined());
+
+        String prefix = session.getMetricsPrefix();
+        long sent = metrics.counter(prefix + "packetsSent").getCount();
+        session.sendData(rtpPacket);
+        assertEquals(sent + 1, metrics.counter(prefix + "packetsSent").getCount());
+        assertEquals(1, metrics.counter(prefix + "destinationsQuarantined").getCount());
+        assertEquals(0, metrics.counter(prefix + "probesSent").getCount());
+    }
+
+    @Test
+    public void sendData_quarantinedDestination_isProbed() throws Exception
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        session = new NettyRtpSession(new InetSocketAddress(TestUtils.getFreePort()),
+                                      null, null, null, metrics);
+        session.setQuarantinePolicy(1, 10, 1000, TimeUnit.MILLISECONDS);
+        Destination failing = new Destination("255.255.255.255",
+                                              clientChannel.localAddress().getPort());
+        session.addDestination(failing);
+
+        String prefix = session.getMetricsPrefix();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (metrics.counter(prefix + "probesSent").getCount() < 2 &&
+                System.nanoTime() < deadline)
+        {
+            session.sendData(rtpPacket);
+            Thread.sleep(5);
+        }
+
+        assertTrue(metrics.counter(prefix + "probesSent").getCount() >= 2);
+        DestinationStatus status = session.getDestinationStatus(failing);
+        assertTrue(status.isQuarantined());
+        assertEquals(1, status.getQuarantineCount());
+        assertTrue(status.getTotalFailures() >= 2);
+    }
+
     @Test(expected = IllegalStateException.class)
     public void sendData_afterShutdown_throwsException()
     {
@@ -220,6 +503,11 @@ public class NettyRtpSessionTest
         session.shutdown();
     }
 
+    private static Destination destination(int port)
+    {
+        return new Destination("127.0.0.1", port);
+    }
+
     /**
      * Returns and IPv4 multicast {@link InetAddress}.
      */
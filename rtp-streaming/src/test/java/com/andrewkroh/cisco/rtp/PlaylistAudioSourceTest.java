@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.rtp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cicso.rtp.G711;
+import com.andrewkroh.cicso.rtp.PlaylistAudioSource;
+
+/**
+ * Test for {@link PlaylistAudioSource}.
+ *
+ * @author akroh
+ */
+public class PlaylistAudioSourceTest
+{
+    private static final int PACKET_SIZE = 160;
+
+    private static final int ITEM_SAMPLES = 100;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private PlaylistAudioSource source;
+
+    @After
+    public void afterTest()
+    {
+        if (source != null)
+        {
+            source.close();
+        }
+    }
+
+    @Test
+    public void read_acrossItemBoundary_splicesWithoutGap() throws Exception
+    {
+        source = new PlaylistAudioSource(
+                Arrays.asList(wav(1000), wav(-1000)), EncodingType.ULAW);
+        awaitNextItem();
+
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        source.read(packet);
+
+        assertThat(packet.array()[ITEM_SAMPLES - 1], equalTo(G711.linearToUlaw(1000)));
+        assertThat(packet.array()[ITEM_SAMPLES], equalTo(G711.linearToUlaw(-1000)));
+        assertThat(source.getCurrentIndex(), equalTo(1));
+        assertThat(source.getGapCount(), equalTo(0L));
+    }
+
+    @Test
+    public void read_afterLastItem_streamsSilence() throws Exception
+    {
+        source = new PlaylistAudioSource(
+                Arrays.asList(wav(1000)), EncodingType.ULAW);
+
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        source.read(packet);
+
+        assertThat(packet.array()[ITEM_SAMPLES], equalTo(G711.ULAW_SILENCE));
+        assertThat(packet.array()[PACKET_SIZE - 1], equalTo(G711.ULAW_SILENCE));
+        assertTrue(source.isFinished());
+    }
+
+    @Test
+    public void read_withLoop_replaysFromCache() throws Exception
+    {
+        source = new PlaylistAudioSource(Arrays.asList(wav(1000)),
+                EncodingType.ULAW, true, PlaylistAudioSource.DEFAULT_MAX_CACHE_BYTES);
+        awaitNextItem();
+
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        source.read(packet);
+
+        assertThat(packet.array()[PACKET_SIZE - 1], equalTo(G711.linearToUlaw(1000)));
+        assertFalse(source.isFinished());
+        assertThat(source.getCacheStats().hitCount(), greaterThan(0L));
+    }
+
+    @Test
+    public void read_withTargetLoudness_normalizesEveryItem() throws Exception
+    {
+        // A constant signal is at -20 dBFS when its level is 0.1 of full scale.
+        source = new PlaylistAudioSource(Arrays.asList(wav(1000), wav(-1000)),
+                EncodingType.ULAW, false, PlaylistAudioSource.DEFAULT_MAX_CACHE_BYTES,
+                -20);
+        awaitNextItem();
+
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        source.read(packet);
+
+        assertThat((double) G711.ulawToLinear(packet.array()[0]),
+                   closeTo(3277, 200));
+        assertThat((double) G711.ulawToLinear(packet.array()[ITEM_SAMPLES]),
+                   closeTo(-3277, 200));
+    }
+
+    @Test
+    public void read_withUndecodableItem_skipsItem() throws Exception
+    {
+        File bogus = temporaryFolder.newFile("bogus.wav");
+        FileOutputStream out = new FileOutputStream(bogus);
+        try
+        {
+            out.write(new byte[] {1, 2, 3, 4});
+        }
+        finally
+        {
+            out.close();
+        }
+
+        source = new PlaylistAudioSource(Arrays.asList(wav(1000),
+                bogus.toURI().toURL(), wav(-1000)), EncodingType.ULAW);
+
+        // Read until the item after the bogus one is heard:
+        byte lastItemSample = G711.linearToUlaw(-1000);
+        boolean heardLastItem = false;
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        for (int i = 0; i < 500 && !heardLastItem; i++)
+        {
+            packet.clear();
+            source.read(packet);
+            heardLastItem = packet.array()[0] == lastItemSample ||
+                    packet.array()[ITEM_SAMPLES] == lastItemSample;
+            Thread.sleep(5);
+        }
+
+        assertTrue(heardLastItem);
+        assertThat(source.getSkippedItemCount(), equalTo(1L));
+    }
+
+    private void awaitNextItem() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!source.isNextItemReady() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Writes a WAV file containing {@link #ITEM_SAMPLES} 8 kHz signed 16-bit
+     * samples of the given value.
+     */
+    private URL wav(int sampleValue) throws IOException
+    {
+        AudioFormat format = new AudioFormat(8000f, 16, 1, true, false);
+        ByteBuffer data = ByteBuffer.allocate(ITEM_SAMPLES * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (data.hasRemaining())
+        {
+            data.putShort((short) sampleValue);
+        }
+
+        File file = temporaryFolder.newFile();
+        AudioInputStream stream = new AudioInputStream(
+                new ByteArrayInputStream(data.array()), format, ITEM_SAMPLES);
+        AudioSystem.write(stream, AudioFileFormat.Type.WAVE, file);
+        return file.toURI().toURL();
+    }
+}
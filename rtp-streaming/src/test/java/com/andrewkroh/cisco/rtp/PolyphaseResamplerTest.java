@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.rtp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.andrewkroh.cicso.rtp.PolyphaseResampler;
+
+/**
+ * Quality test for {@link PolyphaseResampler}.
+ *
+ * @author akroh
+ */
+public class PolyphaseResamplerTest
+{
+    private static final double AMPLITUDE = 16000;
+
+    @Test
+    public void process_44100To8000_preservesPassbandTone()
+    {
+        short[] output = resample(tone(44100, 1000, 44100), 44100, 8000, 1024);
+
+        assertThat(output.length, equalTo(8000));
+        assertThat(signalToNoiseDb(output, 8000, 1000), greaterThan(60.0));
+    }
+
+    @Test
+    public void process_48000To16000_preservesPassbandTone()
+    {
+        short[] output = resample(tone(48000, 3000, 48000), 48000, 16000, 1024);
+
+        assertThat(signalToNoiseDb(output, 16000, 3000), greaterThan(60.0));
+    }
+
+    @Test
+    public void process_44100To8000_rejectsAliases()
+    {
+        // 5 kHz is above the 4 kHz output Nyquist and would alias to 3 kHz.
+        short[] output = resample(tone(44100, 5000, 44100), 44100, 8000, 1024);
+
+        assertThat(rmsDb(steadyState(output)), lessThan(-60.0));
+    }
+
+    @Test
+    public void process_upsampling_preservesPassbandTone()
+    {
+        short[] output = resample(tone(6000, 1000, 6000), 6000, 8000, 1024);
+
+        assertThat(signalToNoiseDb(output, 8000, 1000), greaterThan(60.0));
+    }
+
+    @Test
+    public void process_blockSize_doesNotChangeOutput()
+    {
+        short[] input = tone(22050, 440, 22050);
+
+        assertThat(resample(input, 22050, 8000, 97),
+                   equalTo(resample(input, 22050, 8000, 1024)));
+    }
+
+    private static short[] resample(short[] input, int inputRate,
+                                    int outputRate, int blockSize)
+    {
+        PolyphaseResampler resampler =
+                new PolyphaseResampler(inputRate, outputRate, blockSize);
+        short[] output = new short[resampler.getMaxOutputLength(input.length) + 1];
+        int count = 0;
+
+        for (int offset = 0; offset < input.length; offset += blockSize)
+        {
+            int length = Math.min(blockSize, input.length - offset);
+            count += resampler.process(input, offset, length, output, count);
+        }
+
+        return Arrays.copyOf(output, count);
+    }
+
+    private static short[] tone(int sampleRate, double frequency, int samples)
+    {
+        short[] data = new short[samples];
+        for (int i = 0; i < samples; i++)
+        {
+            data[i] = (short) Math.round(
+                    AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+        }
+        return data;
+    }
+
+    /**
+     * Drops the filter's start-up and tail transients.
+     */
+    private static short[] steadyState(short[] samples)
+    {
+        int skip = samples.length / 10;
+        return Arrays.copyOfRange(samples, skip, samples.length - skip);
+    }
+
+    /**
+     * Fits a sinusoid of the given frequency to the steady-state output and
+     * returns the ratio of its power to the power of the residual.
+     */
+    private static double signalToNoiseDb(short[] samples, int sampleRate,
+                                          double frequency)
+    {
+        short[] steady = steadyState(samples);
+
+        double ss = 0, cc = 0, sc = 0, sy = 0, cy = 0;
+        for (int i = 0; i < steady.length; i++)
+        {
+            double w = 2 * Math.PI * frequency * i / sampleRate;
+            double s = Math.sin(w);
+            double c = Math.cos(w);
+            ss += s * s;
+            cc += c * c;
+            sc += s * c;
+            sy += s * steady[i];
+            cy += c * steady[i];
+        }
+
+        double det = ss * cc - sc * sc;
+        double a = (sy * cc - cy * sc) / det;
+        double b = (cy * ss - sy * sc) / det;
+
+        double signal = 0, noise = 0;
+        for (int i = 0; i < steady.length; i++)
+        {
+            double w = 2 * Math.PI * frequency * i / sampleRate;
+            double fit = a * Math.sin(w) + b * Math.cos(w);
+            signal += fit * fit;
+            noise += (steady[i] - fit) * (steady[i] - fit);
+        }
+
+        return 10 * Math.log10(signal / noise);
+    }
+
+    /**
+     * Returns the RMS level relative to the test tone amplitude.
+     */
+    private static double rmsDb(short[] samples)
+    {
+        double sum = 0;
+        for (short sample : samples)
+        {
+            sum += (double) sample * sample;
+        }
+
+        double rms = Math.sqrt(sum / samples.length);
+        return 20 * Math.log10(Math.max(rms, 1E-9) / (AMPLITUDE / Math.sqrt(2)));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.rtp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.andrewkroh.cicso.rtp.RtpPacket;
+import com.andrewkroh.cicso.rtp.RtpPacketDispatcher;
+import com.andrewkroh.cicso.rtp.RtpPacketDispatcher.OverflowPolicy;
+import com.andrewkroh.cicso.rtp.RtpPacketDispatcher.Subscription;
+import com.andrewkroh.cicso.rtp.RtpPacketListener;
+
+/**
+ * Test for {@link RtpPacketDispatcher}.
+ *
+ * @author akroh
+ */
+public class RtpPacketDispatcherTest
+{
+    private static final InetSocketAddress SOURCE =
+            new InetSocketAddress("127.0.0.1", 10000);
+
+    private static final InetSocketAddress RECEIVER =
+            new InetSocketAddress("127.0.0.1", 20000);
+
+    private final RtpPacketDispatcher dispatcher = new RtpPacketDispatcher();
+
+    @After
+    public void afterTest()
+    {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void packetReceived_deliversOnWorkerThread() throws InterruptedException
+    {
+        RecordingListener listener = new RecordingListener(1);
+        dispatcher.addListener(listener);
+
+        dispatcher.packetReceived(SOURCE, RECEIVER, packet(1));
+
+        assertTrue(listener.await());
+        assertThat(listener.thread, not(sameInstance(Thread.currentThread())));
+        assertThat(listener.sequenceNumbers, equalTo(Collections.singletonList(1)));
+    }
+
+    @Test
+    public void packetReceived_withDropNewest_keepsQueuedPackets() throws InterruptedException
+    {
+        BlockedListener listener = new BlockedListener();
+        Subscription subscription =
+                dispatcher.addListener(listener, 4, OverflowPolicy.DROP_NEWEST);
+
+        // First packet is taken by the worker which then blocks:
+        dispatcher.packetReceived(SOURCE, RECEIVER, packet(0));
+        assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+
+        for (int i = 1; i <= 10; i++)
+        {
+            dispatcher.packetReceived(SOURCE, RECEIVER, packet(i));
+        }
+
+        assertThat(subscription.getQueueDepth(), equalTo(4));
+        assertThat(subscription.getDroppedCount(), equalTo(6L));
+
+        listener.release.countDown();
+        waitForDelivery(subscription, 5);
+        assertThat(listener.sequenceNumbers.subList(1, 5),
+                   equalTo(list(1, 2, 3, 4)));
+    }
+
+    @Test
+    public void packetReceived_withDropOldest_keepsNewestPackets() throws InterruptedException
+    {
+        BlockedListener listener = new BlockedListener();
+        Subscription subscription =
+                dispatcher.addListener(listener, 4, OverflowPolicy.DROP_OLDEST);
+
+        dispatcher.packetReceived(SOURCE, RECEIVER, packet(0));
+        assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+
+        for (int i = 1; i <= 10; i++)
+        {
+            dispatcher.packetReceived(SOURCE, RECEIVER, packet(i));
+        }
+
+        assertThat(subscription.getDroppedCount(), equalTo(6L));
+
+        listener.release.countDown();
+        waitForDelivery(subscription, 5);
+        assertThat(listener.sequenceNumbers.subList(1, 5),
+                   equalTo(list(7, 8, 9, 10)));
+    }
+
+    @Test
+    public void packetReceived_withBlock_dropsNothing() throws InterruptedException
+    {
+        RecordingListener listener = new RecordingListener(100);
+        Subscription subscription =
+                dispatcher.addListener(listener, 2, OverflowPolicy.BLOCK);
+
+        for (int i = 0; i < 100; i++)
+        {
+            dispatcher.packetReceived(SOURCE, RECEIVER, packet(i));
+        }
+
+        assertTrue(listener.await());
+        assertThat(subscription.getDroppedCount(), equalTo(0L));
+        assertThat(subscription.getEnqueuedCount(), equalTo(100L));
+    }
+
+    @Test
+    public void addListener_sameListenerTwice_returnsSameSubscription()
+    {
+        RecordingListener listener = new RecordingListener(1);
+
+        assertThat(dispatcher.addListener(listener),
+                   sameInstance(dispatcher.addListener(listener)));
+        assertThat(dispatcher.getSubscriptions().size(), equalTo(1));
+    }
+
+    @Test
+    public void removeListener_stopsDelivery()
+    {
+        RecordingListener listener = new RecordingListener(1);
+        dispatcher.addListener(listener);
+
+        assertTrue(dispatcher.removeListener(listener));
+        assertFalse(dispatcher.removeListener(listener));
+        assertTrue(dispatcher.getSubscriptions().isEmpty());
+    }
+
+    private static RtpPacket packet(int sequenceNumber)
+    {
+        RtpPacket packet = new RtpPacket();
+        packet.setSequenceNumber(sequenceNumber);
+        return packet;
+    }
+
+    private static List<Integer> list(Integer... values)
+    {
+        List<Integer> list = new ArrayList<Integer>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    private static void waitForDelivery(Subscription subscription, long count)
+            throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (subscription.getDeliveredCount() < count && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertThat(subscription.getDeliveredCount(), equalTo(count));
+    }
+
+    /**
+     * Listener that records the sequence numbers it receives.
+     */
+    private static class RecordingListener implements RtpPacketListener
+    {
+        protected final List<Integer> sequenceNumbers =
+                Collections.synchronizedList(new ArrayList<Integer>());
+
+        private final CountDownLatch latch;
+
+        private volatile Thread thread;
+
+        RecordingListener(int expectedPackets)
+        {
+            latch = new CountDownLatch(expectedPackets);
+        }
+
+        @Override
+        public void packetReceived(InetSocketAddress source,
+                                   InetSocketAddress receiver,
+                                   RtpPacket packet)
+        {
+            thread = Thread.currentThread();
+            sequenceNumbers.add(packet.getSequenceNumber());
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException
+        {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Listener that blocks on the first packet until released.
+     */
+    private static class BlockedListener extends RecordingListener
+    {
+        private final CountDownLatch entered = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        BlockedListener()
+        {
+            super(1);
+        }
+
+        @Override
+        public void packetReceived(InetSocketAddress source,
+                                   InetSocketAddress receiver,
+                                   RtpPacket packet)
+        {
+            super.packetReceived(source, receiver, packet);
+            entered.countDown();
+
+            try
+            {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.rtp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.andrewkroh.cicso.rtp.Destination;
+import com.andrewkroh.cicso.rtp.NettyRtpSession;
+import com.andrewkroh.cicso.rtp.RtpPacket;
+import com.andrewkroh.cicso.rtp.RtpPacketListener;
+import com.andrewkroh.cicso.rtp.SrtpMasterKey;
+import com.andrewkroh.cicso.rtp.SrtpTransformer;
+import com.andrewkroh.cisco.common.TestUtils;
+
+/**
+ * Test for {@link SrtpTransformer} and the SRTP support in
+ * {@link NettyRtpSession}.
+ *
+ * @author akroh
+ */
+public class SrtpTransformerTest
+{
+    private static final int RTP_HEADER_SIZE = 12;
+
+    private static final ByteBufAllocator ALLOCATOR = UnpooledByteBufAllocator.DEFAULT;
+
+    // Key derivation test vectors from RFC 3711 appendix B.3.
+    private static final byte[] MASTER_KEY = hex("E1F97A0D3E018BE0D64FA32C06DE4139");
+
+    private static final byte[] MASTER_SALT = hex("0EC675AD498AFEEBB6960B3AABE6");
+
+    private static final SrtpMasterKey KEY = new SrtpMasterKey(MASTER_KEY, MASTER_SALT);
+
+    private NettyRtpSession sender;
+
+    private NettyRtpSession receiver;
+
+    @After
+    public void afterTest()
+    {
+        if (sender != null)
+        {
+            sender.shutdown();
+        }
+        if (receiver != null)
+        {
+            receiver.shutdown();
+        }
+    }
+
+    @Test
+    public void deriveSessionKey_matchesRfc3711TestVectors()
+    {
+        assertThat(SrtpTransformer.deriveSessionKey(MASTER_KEY, MASTER_SALT,
+                        SrtpTransformer.LABEL_ENCRYPTION_KEY, 16),
+                   equalTo(hex("C61E7A93744F39EE10734AFE3FF7A087")));
+        assertThat(SrtpTransformer.deriveSessionKey(MASTER_KEY, MASTER_SALT,
+                        SrtpTransformer.LABEL_SALT, 14),
+                   equalTo(hex("30CBBC08863D8C85D49DB34A9AE1")));
+        assertThat(SrtpTransformer.deriveSessionKey(MASTER_KEY, MASTER_SALT,
+                        SrtpTransformer.LABEL_AUTHENTICATION_KEY, 20),
+                   equalTo(hex("CEBE321F6FF7716B6FD4AB49AF256A156D38BAA4")));
+    }
+
+    @Test
+    public void protect_thenUnprotect_returnsOriginalPacket()
+    {
+        byte[] rtp = rtpPacket(100, 160);
+
+        ByteBuf srtp = new SrtpTransformer(KEY).protect(Unpooled.wrappedBuffer(rtp), ALLOCATOR);
+        assertThat(srtp.readableBytes(), equalTo(rtp.length + SrtpTransformer.AUTH_TAG_LENGTH));
+        assertThat(bytes(srtp.slice(RTP_HEADER_SIZE, 160)),
+                   not(equalTo(Arrays.copyOfRange(rtp, RTP_HEADER_SIZE, rtp.length))));
+
+        ByteBuf plain = new SrtpTransformer(KEY).unprotect(srtp, ALLOCATOR);
+        assertThat(bytes(plain), equalTo(rtp));
+    }
+
+    @Test
+    public void protect_acrossSequenceRollover_staysDecryptable()
+    {
+        SrtpTransformer protector = new SrtpTransformer(KEY);
+        SrtpTransformer unprotector = new SrtpTransformer(KEY);
+
+        for (int sequenceNumber : new int[] {65534, 65535, 0, 1})
+        {
+            byte[] rtp = rtpPacket(sequenceNumber, 20);
+            ByteBuf srtp = protector.protect(Unpooled.wrappedBuffer(rtp), ALLOCATOR);
+            assertThat(bytes(unprotector.unprotect(srtp, ALLOCATOR)), equalTo(rtp));
+        }
+    }
+
+    @Test
+    public void protect_samePacketTwice_encryptsOnce()
+    {
+        SrtpTransformer transformer = new SrtpTransformer(KEY);
+        byte[] rtp = rtpPacket(7, 160);
+
+        ByteBuf first = transformer.protect(Unpooled.wrappedBuffer(rtp), ALLOCATOR);
+        ByteBuf second = transformer.protect(Unpooled.wrappedBuffer(rtp), ALLOCATOR);
+
+        assertThat(bytes(second), equalTo(bytes(first)));
+        assertThat(transformer.getProtectedCount(), equalTo(1L));
+        assertThat(transformer.getReusedCount(), equalTo(1L));
+        transformer.close();
+    }
+
+    @Test
+    public void unprotect_withModifiedPayload_fails()
+    {
+        ByteBuf srtp = new SrtpTransformer(KEY).protect(
+                Unpooled.wrappedBuffer(rtpPacket(1, 160)), ALLOCATOR);
+        srtp.setByte(20, srtp.getByte(20) ^ 0x01);
+
+        try
+        {
+            new SrtpTransformer(KEY).unprotect(srtp, ALLOCATOR);
+            fail("Expected authentication to fail.");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void inlineKey_roundTrips()
+    {
+        SrtpMasterKey parsed = SrtpMasterKey.fromInlineKey(
+                "inline:" + KEY.toInlineKey() + "|2^20|1:4");
+
+        assertThat(parsed.getKey(), equalTo(MASTER_KEY));
+        assertThat(parsed.getSalt(), equalTo(MASTER_SALT));
+    }
+
+    @Test
+    public void nettyRtpSession_withSrtp_deliversDecryptedPackets() throws Exception
+    {
+        InetSocketAddress receiverAddress =
+                new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        receiver = new NettyRtpSession(receiverAddress, null, null, KEY);
+        sender = new NettyRtpSession(
+                new InetSocketAddress("127.0.0.1", TestUtils.getFreePort()), null, null, KEY);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<RtpPacket> received = new AtomicReference<RtpPacket>();
+        receiver.addPacketListener(new RtpPacketListener() {
+            @Override
+            public void packetReceived(InetSocketAddress source,
+                                       InetSocketAddress destination,
+                                       RtpPacket packet)
+            {
+                received.set(packet);
+                latch.countDown();
+            }
+        });
+
+        sender.addDestination(new Destination(
+                receiverAddress.getHostString(), receiverAddress.getPort()));
+        RtpPacket packet = new RtpPacket(rtpPacket(42, 160));
+        sender.sendData(packet);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertThat(received.get().getSequenceNumber(), equalTo(42));
+        assertThat(received.get().getRtpPayloadData(), equalTo(packet.getRtpPayloadData()));
+    }
+
+    private static byte[] rtpPacket(int sequenceNumber, int payloadLength)
+    {
+        byte[] payload = new byte[payloadLength];
+        for (int i = 0; i < payload.length; i++)
+        {
+            payload[i] = (byte) i;
+        }
+
+        RtpPacket packet = new RtpPacket();
+        packet.setPayloadType(0);
+        packet.setSequenceNumber(sequenceNumber);
+        packet.setTimestamp(sequenceNumber * payloadLength);
+        packet.setSSRC(0x12345678);
+        packet.setRtpPayloadData(payload);
+        return packet.getBytes();
+    }
+
+    private static byte[] bytes(ByteBuf buffer)
+    {
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+    private static byte[] hex(String hex)
+    {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.andrewkroh.cicso.rtp.AudioFileStreamer.EncodingType;
+import com.andrewkroh.cicso.rtp.G711;
+import com.andrewkroh.cicso.rtp.RtpPacket;
+import com.andrewkroh.cicso.rtp.WavRecorder;
+
+/**
+ * Test for {@link WavRecorder}.
+ *
+ * @author akroh
+ */
+public class WavRecorderTest
+{
+    private static final InetSocketAddress SOURCE = new InetSocketAddress("127.0.0.1", 5000);
+
+    private static final InetSocketAddress RECEIVER = new InetSocketAddress("127.0.0.1", 6000);
+
+    private static final int SAMPLES_PER_PACKET = 160;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private WavRecorder recorder;
+
+    @Before
+    public void beforeTest()
+    {
+        recorder = new WavRecorder(temporaryFolder.getRoot().toPath());
+    }
+
+    @Test
+    public void close_ulawStream_writesPlayableWav() throws Exception
+    {
+        for (int i = 0; i < 50; i++)
+        {
+            recorder.packetReceived(SOURCE, RECEIVER,
+                    packet(1, EncodingType.ULAW, i * SAMPLES_PER_PACKET, ulaw(1000)));
+        }
+        recorder.close();
+
+        AudioInputStream wav = onlyRecording();
+        assertEquals(8000f, wav.getFormat().getSampleRate(), 0);
+        assertEquals(16, wav.getFormat().getSampleSizeInBits());
+        assertEquals(AudioFormat.Encoding.PCM_SIGNED, wav.getFormat().getEncoding());
+        assertEquals(50 * SAMPLES_PER_PACKET, wav.getFrameLength());
+
+        byte[] first = new byte[2];
+        wav.read(first);
+        assertEquals(G711.ulawToLinear(G711.linearToUlaw(1000)),
+                     (short) ((first[0] & 0xFF) | (first[1] << 8)));
+        wav.close();
+    }
+
+    @Test
+    public void packetReceived_lostPacket_isReplacedWithSilence() throws Exception
+    {
+        recorder.packetReceived(SOURCE, RECEIVER, packet(1, EncodingType.ALAW, 0, alaw()));
+        recorder.packetReceived(SOURCE, RECEIVER,
+                packet(1, EncodingType.ALAW, 2 * SAMPLES_PER_PACKET, alaw()));
+        recorder.close();
+
+        AudioInputStream wav = onlyRecording();
+        assertEquals(3 * SAMPLES_PER_PACKET, wav.getFrameLength());
+        wav.close();
+    }
+
+    @Test
+    public void packetReceived_latePacket_isIgnored() throws Exception
+    {
+        recorder.packetReceived(SOURCE, RECEIVER,
+                packet(1, EncodingType.ALAW, SAMPLES_PER_PACKET, alaw()));
+        recorder.packetReceived(SOURCE, RECEIVER, packet(1, EncodingType.ALAW, 0, alaw()));
+        recorder.close();
+
+        assertEquals(1, recorder.getIgnoredPacketCount());
+        AudioInputStream wav = onlyRecording();
+        assertEquals(SAMPLES_PER_PACKET, wav.getFrameLength());
+        wav.close();
+    }
+
+    @Test
+    public void packetReceived_timestampJumpsBack_continuesRecording() throws Exception
+    {
+        int start = 1000000;
+        recorder.packetReceived(SOURCE, RECEIVER, packet(1, EncodingType.ALAW, start, alaw()));
+
+        // The sender restarts with a much lower timestamp:
+        for (int i = 0; i < 3; i++)
+        {
+            recorder.packetReceived(SOURCE, RECEIVER,
+                    packet(1, EncodingType.ALAW, i * SAMPLES_PER_PACKET, alaw()));
+        }
+        recorder.close();
+
+        assertEquals(0, recorder.getIgnoredPacketCount());
+        AudioInputStream wav = onlyRecording();
+        assertEquals(4 * SAMPLES_PER_PACKET, wav.getFrameLength());
+        wav.close();
+    }
+
+    @Test
+    public void packetReceived_twoStreams_writesTwoFiles()
+    {
+        recorder.packetReceived(SOURCE, RECEIVER, packet(1, EncodingType.ULAW, 0, ulaw(0)));
+        recorder.packetReceived(SOURCE, RECEIVER, packet(2, EncodingType.ULAW, 0, ulaw(0)));
+        assertEquals(2, recorder.getActiveRecordingCount());
+
+        recorder.close();
+
+        assertEquals(2, recorder.getCompletedFileCount());
+        assertEquals(2, temporaryFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void packetReceived_idleStream_isCompleted() throws Exception
+    {
+        recorder = new WavRecorder(temporaryFolder.getRoot().toPath(), 16000,
+                1, TimeUnit.MILLISECONDS);
+        recorder.packetReceived(SOURCE, RECEIVER,
+                packet(1, EncodingType.PCM16, 0, new byte[2 * SAMPLES_PER_PACKET]));
+
+        // Idle streams are checked at most once a second.
+        Thread.sleep(1100);
+        recorder.packetReceived(SOURCE, RECEIVER,
+                packet(2, EncodingType.PCM16, 0, new byte[2 * SAMPLES_PER_PACKET]));
+
+        assertEquals(1, recorder.getCompletedFileCount());
+        assertEquals(1, recorder.getActiveRecordingCount());
+        recorder.close();
+    }
+
+    @Test
+    public void idleStream_withoutFurtherPackets_isCompleted() throws Exception
+    {
+        recorder = new WavRecorder(temporaryFolder.getRoot().toPath(), 16000,
+                1, TimeUnit.MILLISECONDS);
+        recorder.packetReceived(SOURCE, RECEIVER,
+                packet(1, EncodingType.PCM16, 0, new byte[2 * SAMPLES_PER_PACKET]));
+
+        // Completed by the background check, without closing the recorder:
+        for (int i = 0; recorder.getCompletedFileCount() == 0; i++)
+        {
+            assertTrue("Idle stream was not completed.", i < 300);
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, recorder.getActiveRecordingCount());
+        AudioInputStream wav = onlyRecording();
+        assertEquals(SAMPLES_PER_PACKET, wav.getFrameLength());
+        wav.close();
+        recorder.close();
+    }
+
+    @Test
+    public void packetReceived_unknownPayloadType_isIgnored()
+    {
+        RtpPacket packet = packet(1, EncodingType.ULAW, 0, ulaw(0));
+        packet.setPayloadType(18);
+        recorder.packetReceived(SOURCE, RECEIVER, packet);
+
+        assertEquals(0, recorder.getActiveRecordingCount());
+        assertEquals(1, recorder.getIgnoredPacketCount());
+    }
+
+    private AudioInputStream onlyRecording()
+            throws UnsupportedAudioFileException, IOException
+    {
+        File[] files = temporaryFolder.getRoot().listFiles();
+        assertEquals(Arrays.toString(files), 1, files.length);
+        return AudioSystem.getAudioInputStream(files[0]);
+    }
+
+    private static RtpPacket packet(int ssrc, EncodingType encoding, int timestamp, byte[] payload)
+    {
+        RtpPacket packet = new RtpPacket();
+        packet.setSSRC(ssrc);
+        packet.setPayloadType(encoding.getPayloadType());
+        packet.setTimestamp(timestamp);
+        packet.setRtpPayloadData(payload);
+        return packet;
+    }
+
+    private static byte[] ulaw(int sample)
+    {
+        byte[] payload = new byte[SAMPLES_PER_PACKET];
+        Arrays.fill(payload, G711.linearToUlaw(sample));
+        return payload;
+    }
+
+    private static byte[] alaw()
+    {
+        byte[] payload = new byte[SAMPLES_PER_PACKET];
+        Arrays.fill(payload, G711.ALAW_SILENCE);
+        return payload;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cisco.xmlservices.XmlMarshaller;
+import com.cisco.xmlservices.generated.CiscoIPPhoneExecute;
+import com.cisco.xmlservices.generated.CiscoIPPhoneExecuteItemType;
+import com.google.common.base.Charsets;
+import com.rits.cloning.Cloner;
+
+/**
+ * Measures building the HTTP requests of a broadcast to many phones.
+ * {@code perPhone} is the previous implementation, which cloned, marshaled
+ * and encoded the command for every phone, {@code marshalOnce} encodes the
+ * body once and gives each phone a {@link PushRequest} sharing it, and
+ * {@code compiledTemplate} splices the callback URL into a
+ * {@link CommandTemplate} that was compiled ahead of time. Run with
+ * {@code -prof gc} to see the allocation of each.
+ *
+ * @author akroh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastEncodingBenchmark
+{
+    private static final String BASE_CALLBACK_URL =
+            "http://10.0.0.10:8080/phones/rest/callback/0b6f6b2c-5d1e-4e52-9a0b-0f3c1d2e4a5b";
+
+    private static final Cloner CLONER = new Cloner();
+
+    @Param({"1000"})
+    private int phoneCount;
+
+    private CiscoIPPhoneExecute command;
+
+    private CommandTemplate template;
+
+    private List<String> hostnames;
+
+    private String authorization;
+
+    @Setup
+    public void setUp()
+    {
+        command = new CiscoIPPhoneExecute();
+        for (String path : new String[] {"/page", "/display?id=42", "/tone"})
+        {
+            CiscoIPPhoneExecuteItemType item = new CiscoIPPhoneExecuteItemType();
+            item.setPriority((short) 0);
+            item.setURL("$BASEURL" + path);
+            command.getExecuteItem().add(item);
+        }
+
+        template = CommandTemplate.compile(command);
+
+        hostnames = new ArrayList<String>(phoneCount);
+        for (int i = 0; i < phoneCount; i++)
+        {
+            hostnames.add("10.1." + (i / 250) + "." + (i % 250 + 1));
+        }
+
+        authorization = Base64.encodeBase64String("admin:secret".getBytes(Charsets.UTF_8));
+    }
+
+    @Benchmark
+    public void perPhone(Blackhole blackhole)
+    {
+        for (String hostname : hostnames)
+        {
+            CiscoIPPhoneExecute copy = CLONER.deepClone(command);
+            for (CiscoIPPhoneExecuteItemType item : copy.getExecuteItem())
+            {
+                item.setURL(item.getURL().replaceAll("\\$BASEURL", BASE_CALLBACK_URL));
+            }
+
+            byte[] body = ("XML=" + urlEncode(XmlMarshaller.marshalToXml(copy)))
+                    .getBytes(Charsets.UTF_8);
+            FullHttpRequest request = new DefaultFullHttpRequest(
+                    HttpVersion.HTTP_1_1, HttpMethod.POST, "/CGI/Execute",
+                    Unpooled.wrappedBuffer(body));
+            request.headers().set(HttpHeaders.Names.HOST, hostname);
+            request.headers().set(HttpHeaders.Names.AUTHORIZATION, authorization);
+            request.headers().set(HttpHeaders.Names.CONNECTION,
+                    HttpHeaders.Values.KEEP_ALIVE);
+            request.headers().set(HttpHeaders.Names.CONTENT_TYPE,
+                    HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED);
+            request.headers().set(HttpHeaders.Names.CONTENT_LENGTH, body.length);
+
+            blackhole.consume(request);
+            request.release();
+        }
+    }
+
+    @Benchmark
+    public void marshalOnce(Blackhole blackhole)
+    {
+        broadcast(CommandTemplate.compile(command).encode(BASE_CALLBACK_URL),
+                  blackhole);
+    }
+
+    @Benchmark
+    public void compiledTemplate(Blackhole blackhole)
+    {
+        broadcast(template.encode(BASE_CALLBACK_URL), blackhole);
+    }
+
+    private void broadcast(ByteBuf body, Blackhole blackhole)
+    {
+        try
+        {
+            for (String hostname : hostnames)
+            {
+                PushRequest pushRequest = new PushRequest(body.retain(),
+                        hostname, authorization, true);
+                FullHttpRequest request = pushRequest.newHttpRequest();
+
+                blackhole.consume(request);
+                request.release();
+                pushRequest.release();
+            }
+        }
+        finally
+        {
+            body.release();
+        }
+    }
+
+    private static String urlEncode(String source)
+    {
+        try
+        {
+            return URLEncoder.encode(source, Charsets.UTF_8.name());
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cisco.xmlservices.XmlMarshaller;
+import com.cisco.xmlservices.generated.CiscoIPPhoneResponse;
+
+/**
+ * Measures decoding the body of a phone's push response. {@code jaxb} is the
+ * previous implementation, which decoded the body to a String and
+ * unmarshaled it with a new schema validating {@code Unmarshaller}, and
+ * {@code stream} is {@link CiscoIPPhoneResponseDecoder}. Run with
+ * {@code -prof gc} to see the allocation of each.
+ *
+ * @author akroh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseDecodingBenchmark
+{
+    private static final String RESPONSE =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n" +
+            "<CiscoIPPhoneResponse>\r\n" +
+            "<ResponseItem URL=\"http://10.0.0.10:8080/phones/rest/callback/" +
+            "0b6f6b2c-5d1e-4e52-9a0b-0f3c1d2e4a5b/page\" Data=\"Success\" Status=\"0\"/>\r\n" +
+            "<ResponseItem URL=\"Play:Classic1.raw\" Data=\"Success\" Status=\"0\"/>\r\n" +
+            "</CiscoIPPhoneResponse>\r\n";
+
+    private ByteBuf content;
+
+    @Setup
+    public void setUp()
+    {
+        content = Unpooled.copiedBuffer(RESPONSE, CharsetUtil.ISO_8859_1);
+    }
+
+    @Benchmark
+    public CiscoIPPhoneResponse jaxb()
+    {
+        return XmlMarshaller.unmarshal(content.toString(CharsetUtil.ISO_8859_1),
+                                       CiscoIPPhoneResponse.class);
+    }
+
+    @Benchmark
+    public CiscoIPPhoneResponse stream()
+    {
+        return CiscoIPPhoneResponseDecoder.decode(content);
+    }
+}
@@ -0,0 +1,625 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.andrewkroh.cisco.common.metrics.Counter;
+import com.andrewkroh.cisco.common.metrics.Gauge;
+import com.andrewkroh.cisco.common.metrics.Histogram;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.andrewkroh.cisco.phoneinventory.IpPhone;
+import com.google.common.base.Preconditions;
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Limits the number of commands that are in flight at once, both in total
+ * and per subnet, so that a push to a large fleet of phones does not open a
+ * socket to every phone in the same instant.
+ *
+ * <p/>
+ * A command is started as soon as it is within both limits and no command of
+ * the same or a higher {@link CommandPriority} waits for its subnet.
+ * Otherwise it waits in the queue of its priority. When a slot frees up a
+ * startable {@link CommandPriority#EMERGENCY} command is started first.
+ * Otherwise the priority to start is chosen by smooth weighted round robin
+ * among the priorities with a startable command, using the weights of
+ * {@link CommandPriority}. Within a priority commands are started in the
+ * order they were submitted, except that a command whose subnet is at its
+ * limit does not hold up commands to other subnets. A command stays in
+ * flight until its completion future is done. A command whose future is
+ * done (for example, cancelled by the caller) before it is started is
+ * removed from its queue without being started, and no longer counts
+ * toward the queue depth.
+ *
+ * <p/>
+ * Phones are grouped by the first {@code subnetPrefixLength} bits of their
+ * IPv4 address, or the first 64 bits of their IPv6 address. A phone
+ * configured by hostname rather than address is its own group, because
+ * resolving the name here would block.
+ *
+ * <p/>
+ * The controller records the {@code admissionWaitTime} histogram
+ * (microseconds from submission to start), the {@code commandsQueued}
+ * counter (commands that had to wait), and the {@code admissionQueueDepth}
+ * and {@code inFlightCommands} gauges. The queue depth of each priority is
+ * also recorded as {@code admissionQueueDepth.<priority>}, for example
+ * {@code admissionQueueDepth.emergency}.
+ *
+ * @author akroh
+ */
+class AdmissionController
+{
+    /**
+     * Prefix length used to group IPv6 addresses.
+     */
+    private static final int IPV6_PREFIX_LENGTH = 64;
+
+    private static final CommandPriority[] PRIORITIES = CommandPriority.values();
+
+    /**
+     * A command waiting to be started.
+     */
+    private static final class Waiter
+    {
+        private final long sequence;
+
+        private final long submitNanos;
+
+        private final ListenableFuture<?> completion;
+
+        private final Runnable task;
+
+        Waiter(long sequence, long submitNanos,
+               ListenableFuture<?> completion, Runnable task)
+        {
+            this.sequence = sequence;
+            this.submitNanos = submitNanos;
+            this.completion = completion;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Commands to one subnet. Guarded by the controller's monitor.
+     */
+    private static final class Subnet
+    {
+        private final String key;
+
+        /**
+         * Waiting commands, indexed by priority ordinal.
+         */
+        private final List<ArrayDeque<Waiter>> waiters =
+                new ArrayList<ArrayDeque<Waiter>>(PRIORITIES.length);
+
+        /**
+         * Whether the subnet is in the controller's {@code ready} queue of
+         * each priority, indexed by priority ordinal.
+         */
+        private final boolean[] ready = new boolean[PRIORITIES.length];
+
+        private int waiting;
+
+        private int inFlight;
+
+        Subnet(String key)
+        {
+            this.key = key;
+            for (int i = 0; i < PRIORITIES.length; i++)
+            {
+                waiters.add(new ArrayDeque<Waiter>());
+            }
+        }
+
+        /**
+         * Returns whether a command of {@code priority} or more urgent
+         * waits.
+         */
+        boolean hasWaiters(CommandPriority priority)
+        {
+            for (int i = 0; i <= priority.ordinal(); i++)
+            {
+                if (!waiters.get(i).isEmpty())
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final int maxInFlight;
+
+    private final int maxInFlightPerSubnet;
+
+    private final int subnetPrefixLength;
+
+    /**
+     * Subnets with commands in flight or waiting.
+     */
+    private final Map<String, Subnet> subnets = new HashMap<String, Subnet>();
+
+    /**
+     * Subnets with waiting commands of each priority, indexed by priority
+     * ordinal and ordered by the sequence of their oldest waiter of that
+     * priority. A subnet that reached its limit after it was added is only
+     * removed once it comes to the head of the queue.
+     */
+    private final List<PriorityQueue<Subnet>> ready =
+            new ArrayList<PriorityQueue<Subnet>>(PRIORITIES.length);
+
+    private final Histogram waitTime;
+
+    private final Counter commandsQueued;
+
+    private int inFlight;
+
+    private int queued;
+
+    /**
+     * Number of waiting commands, indexed by priority ordinal.
+     */
+    private final int[] queuedByPriority = new int[PRIORITIES.length];
+
+    /**
+     * Current weights of the smooth weighted round robin, indexed by
+     * priority ordinal.
+     */
+    private final long[] credits = new long[PRIORITIES.length];
+
+    private long nextSequence;
+
+    /**
+     * Creates a controller with the given limits.
+     *
+     * @param maxInFlight
+     *            maximum number of commands in flight
+     * @param maxInFlightPerSubnet
+     *            maximum number of commands in flight to a single subnet
+     * @param subnetPrefixLength
+     *            number of leading bits of an IPv4 address that identify its
+     *            subnet
+     * @param metrics
+     *            registry to record the metrics in
+     * @param metricsPrefix
+     *            prefix of the metric names
+     */
+    AdmissionController(int maxInFlight, int maxInFlightPerSubnet,
+                        int subnetPrefixLength,
+                        MetricsRegistry metrics, String metricsPrefix)
+    {
+        Preconditions.checkArgument(maxInFlight > 0,
+                "Max in-flight commands must be greater than 0.");
+        Preconditions.checkArgument(maxInFlightPerSubnet > 0,
+                "Max in-flight commands per subnet must be greater than 0.");
+        Preconditions.checkArgument(subnetPrefixLength >= 0 && subnetPrefixLength <= 32,
+                "Subnet prefix length must be between 0 and 32.");
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerSubnet = maxInFlightPerSubnet;
+        this.subnetPrefixLength = subnetPrefixLength;
+
+        for (int i = 0; i < PRIORITIES.length; i++)
+        {
+            final int p = i;
+            ready.add(new PriorityQueue<Subnet>(16, new Comparator<Subnet>() {
+                @Override
+                public int compare(Subnet a, Subnet b)
+                {
+                    long sequenceA = a.waiters.get(p).peek().sequence;
+                    long sequenceB = b.waiters.get(p).peek().sequence;
+                    return sequenceA < sequenceB ? -1 : (sequenceA == sequenceB ? 0 : 1);
+                }
+            }));
+        }
+
+        waitTime = metrics.histogram(metricsPrefix + "admissionWaitTime");
+        commandsQueued = metrics.counter(metricsPrefix + "commandsQueued");
+        metrics.gauge(metricsPrefix + "admissionQueueDepth", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return getQueueDepth();
+            }
+        });
+        metrics.gauge(metricsPrefix + "inFlightCommands", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return getInFlightCount();
+            }
+        });
+        for (final CommandPriority priority : PRIORITIES)
+        {
+            metrics.gauge(metricsPrefix + "admissionQueueDepth." +
+                          priority.name().toLowerCase(Locale.ENGLISH),
+                          new Gauge() {
+                @Override
+                public long getValue()
+                {
+                    return getQueueDepth(priority);
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts a command of {@link CommandPriority#NORMAL} priority now if it
+     * is within the limits, otherwise queues it.
+     *
+     * @param phone
+     *            phone the command is sent to
+     * @param completion
+     *            future that is done when the command has finished
+     * @param task
+     *            starts the command, run on the calling thread or on the
+     *            thread that completes an earlier command
+     */
+    void submit(IpPhone phone, ListenableFuture<?> completion, Runnable task)
+    {
+        submit(phone, CommandPriority.NORMAL, completion, task);
+    }
+
+    /**
+     * Starts a command now if it is within the limits, otherwise queues it.
+     *
+     * @param phone
+     *            phone the command is sent to
+     * @param priority
+     *            priority of the command
+     * @param completion
+     *            future that is done when the command has finished
+     * @param task
+     *            starts the command, run on the calling thread or on the
+     *            thread that completes an earlier command
+     */
+    void submit(IpPhone phone, CommandPriority priority,
+                ListenableFuture<?> completion, Runnable task)
+    {
+        Preconditions.checkNotNull(priority, "CommandPriority cannot be null.");
+        String key = subnetKey(phone.getHostname(), subnetPrefixLength);
+        long now = System.nanoTime();
+
+        final Subnet subnet;
+        final Waiter waiter;
+        boolean start;
+        synchronized (this)
+        {
+            Subnet existing = subnets.get(key);
+            if (existing == null)
+            {
+                existing = new Subnet(key);
+                subnets.put(key, existing);
+            }
+            subnet = existing;
+
+            waiter = new Waiter(nextSequence++, now, completion, task);
+            start = inFlight < maxInFlight &&
+                    subnet.inFlight < maxInFlightPerSubnet &&
+                    !subnet.hasWaiters(priority);
+            if (start)
+            {
+                inFlight++;
+                subnet.inFlight++;
+            }
+            else
+            {
+                subnet.waiters.get(priority.ordinal()).add(waiter);
+                subnet.waiting++;
+                queued++;
+                queuedByPriority[priority.ordinal()]++;
+                addReady(subnet, priority.ordinal());
+            }
+        }
+
+        if (start)
+        {
+            start(subnet, waiter);
+        }
+        else
+        {
+            commandsQueued.increment();
+            final int p = priority.ordinal();
+            completion.addListener(new Runnable() {
+                @Override
+                public void run()
+                {
+                    removeWaiter(subnet, p, waiter);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    }
+
+    /**
+     * Returns the number of commands waiting to be started.
+     *
+     * @return queue depth
+     */
+    synchronized int getQueueDepth()
+    {
+        return queued;
+    }
+
+    /**
+     * Returns the number of commands of a priority waiting to be started.
+     *
+     * @param priority
+     *            priority of the commands
+     * @return queue depth
+     */
+    synchronized int getQueueDepth(CommandPriority priority)
+    {
+        return queuedByPriority[priority.ordinal()];
+    }
+
+    /**
+     * Returns the number of commands that have been started and have not
+     * finished.
+     *
+     * @return number of commands in flight
+     */
+    synchronized int getInFlightCount()
+    {
+        return inFlight;
+    }
+
+    /**
+     * Returns the key of the group that the phone at {@code hostname}
+     * belongs to, which is the masked address and prefix length for an IP
+     * address or the hostname itself otherwise.
+     *
+     * @param hostname
+     *            hostname or IP address of the phone
+     * @param ipv4PrefixLength
+     *            number of leading bits that identify an IPv4 subnet
+     * @return subnet key
+     */
+    static String subnetKey(String hostname, int ipv4PrefixLength)
+    {
+        if (!InetAddresses.isInetAddress(hostname))
+        {
+            return hostname;
+        }
+
+        byte[] address = InetAddresses.forString(hostname).getAddress();
+        int prefixLength = address.length == 4 ? ipv4PrefixLength : IPV6_PREFIX_LENGTH;
+        for (int bit = prefixLength; bit < address.length * 8; bit++)
+        {
+            address[bit / 8] &= ~(0x80 >>> (bit % 8));
+        }
+
+        try
+        {
+            return InetAddresses.toAddrString(InetAddress.getByAddress(address)) +
+                    "/" + prefixLength;
+        }
+        catch (UnknownHostException e)
+        {
+            // Only thrown for an address of illegal length.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void start(final Subnet subnet, Waiter waiter)
+    {
+        waitTime.record(TimeUnit.NANOSECONDS.toMicros(
+                System.nanoTime() - waiter.submitNanos));
+
+        waiter.completion.addListener(new Runnable() {
+            @Override
+            public void run()
+            {
+                finished(subnet);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        waiter.task.run();
+    }
+
+    /**
+     * Releases the slots of a finished command and starts the waiting
+     * commands that now fit within the limits.
+     */
+    private void finished(Subnet subnet)
+    {
+        List<Waiter> startable = new ArrayList<Waiter>();
+        List<Subnet> startableSubnets = new ArrayList<Subnet>();
+
+        synchronized (this)
+        {
+            inFlight--;
+            subnet.inFlight--;
+            for (int p = 0; p < PRIORITIES.length; p++)
+            {
+                addReady(subnet, p);
+            }
+
+            Waiter[] next = new Waiter[PRIORITIES.length];
+            while (inFlight < maxInFlight && queued > 0)
+            {
+                // The oldest waiter of each priority among the subnets below
+                // their limit:
+                boolean found = false;
+                for (int p = 0; p < PRIORITIES.length; p++)
+                {
+                    Subnet candidate = peekReady(p);
+                    next[p] = candidate == null ? null : candidate.waiters.get(p).peek();
+                    found |= candidate != null;
+                }
+
+                if (!found)
+                {
+                    break;
+                }
+
+                int p = choosePriority(next);
+                Waiter waiter = next[p];
+                Subnet waiterSubnet = ready.get(p).poll();
+                waiterSubnet.ready[p] = false;
+
+                waiterSubnet.waiters.get(p).poll();
+                waiterSubnet.waiting--;
+                queued--;
+                queuedByPriority[p]--;
+                if (waiter.completion.isDone())
+                {
+                    addReady(waiterSubnet, p);
+                    if (waiterSubnet.inFlight == 0 && waiterSubnet.waiting == 0)
+                    {
+                        subnets.remove(waiterSubnet.key);
+                    }
+                    continue;
+                }
+
+                inFlight++;
+                waiterSubnet.inFlight++;
+                addReady(waiterSubnet, p);
+                startable.add(waiter);
+                startableSubnets.add(waiterSubnet);
+            }
+
+            if (subnet.inFlight == 0 && subnet.waiting == 0)
+            {
+                subnets.remove(subnet.key);
+            }
+        }
+
+        for (int i = 0; i < startable.size(); i++)
+        {
+            start(startableSubnets.get(i), startable.get(i));
+        }
+    }
+
+    /**
+     * Removes a waiter whose future is done from its queue, if it has not
+     * already been taken from it.
+     */
+    private synchronized void removeWaiter(Subnet subnet, int priority, Waiter waiter)
+    {
+        ArrayDeque<Waiter> waiters = subnet.waiters.get(priority);
+        if (waiters.peek() == waiter)
+        {
+            // The ready queue is ordered by the head waiter, so the subnet
+            // must leave it before its head changes.
+            if (subnet.ready[priority])
+            {
+                ready.get(priority).remove(subnet);
+                subnet.ready[priority] = false;
+            }
+            waiters.poll();
+            addReady(subnet, priority);
+        }
+        else if (!waiters.removeFirstOccurrence(waiter))
+        {
+            return;
+        }
+
+        subnet.waiting--;
+        queued--;
+        queuedByPriority[priority]--;
+        if (subnet.inFlight == 0 && subnet.waiting == 0)
+        {
+            subnets.remove(subnet.key);
+        }
+    }
+
+    /**
+     * Adds the subnet to the {@code ready} queue of a priority if it has
+     * waiters of that priority, is below its limit, and is not already in
+     * the queue. Must be called while holding the monitor.
+     */
+    private void addReady(Subnet subnet, int priority)
+    {
+        if (!subnet.ready[priority] && subnet.inFlight < maxInFlightPerSubnet &&
+                !subnet.waiters.get(priority).isEmpty())
+        {
+            subnet.ready[priority] = true;
+            ready.get(priority).add(subnet);
+        }
+    }
+
+    /**
+     * Returns the subnet with the oldest waiter of a priority among the
+     * subnets below their limit, or null. Subnets that reached their limit
+     * are removed from the head of the queue. Must be called while holding
+     * the monitor.
+     */
+    private Subnet peekReady(int priority)
+    {
+        PriorityQueue<Subnet> queue = ready.get(priority);
+        Subnet head;
+        while ((head = queue.peek()) != null && head.inFlight >= maxInFlightPerSubnet)
+        {
+            queue.poll();
+            head.ready[priority] = false;
+        }
+        return head;
+    }
+
+    /**
+     * Chooses the priority to start a command from. A priority with weight 0
+     * and a candidate is chosen outright. Otherwise the choice is made by
+     * smooth weighted round robin: each priority with a candidate earns its
+     * weight in credit, and the one with the most credit is chosen and pays
+     * the total weight of the candidates. Must be called while holding the
+     * monitor.
+     *
+     * @param candidates
+     *            startable waiter of each priority, null if there is none
+     * @return ordinal of the chosen priority
+     */
+    private int choosePriority(Waiter[] candidates)
+    {
+        int chosen = -1;
+        long totalWeight = 0;
+        for (int p = 0; p < PRIORITIES.length; p++)
+        {
+            if (candidates[p] == null)
+            {
+                continue;
+            }
+
+            if (PRIORITIES[p].getWeight() == 0)
+            {
+                return p;
+            }
+
+            credits[p] += PRIORITIES[p].getWeight();
+            totalWeight += PRIORITIES[p].getWeight();
+            // Ties go to the more urgent priority, which has the lower ordinal.
+            if (chosen < 0 || credits[p] > credits[chosen])
+            {
+                chosen = p;
+            }
+        }
+
+        credits[chosen] -= totalWeight;
+        return chosen;
+    }
+}
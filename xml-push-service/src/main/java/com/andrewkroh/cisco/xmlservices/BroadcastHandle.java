@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import com.andrewkroh.cisco.common.metrics.HistogramSnapshot;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tracks the progress of a command that was sent to many phones.
+ *
+ * <p/>
+ * The counts are updated as the result of each phone arrives and can be
+ * read at any time. The connect and response times of the phones that
+ * responded are collected in histograms. When every phone is done the
+ * {@link #getSummary() summary} future completes.
+ *
+ * @author akroh
+ * @see XmlPushService#broadcastCommand(ImmutableList, CommandTemplate,
+ *      XmlPushCallback, BroadcastListener)
+ */
+public interface BroadcastHandle
+{
+    /**
+     * Gets the futures of the individual phones, in the order of the phones
+     * the command was sent to.
+     *
+     * @return futures of each phone's response
+     */
+    ImmutableList<ListenableFuture<XmlPushResponse>> getFutures();
+
+    /**
+     * Gets the number of phones the command was sent to.
+     *
+     * @return number of phones
+     */
+    int getPhoneCount();
+
+    /**
+     * Gets the number of phones that responded.
+     *
+     * @return number of responses
+     */
+    int getSuccessCount();
+
+    /**
+     * Gets the number of phones that the command could not be delivered to.
+     *
+     * @return number of failures, not including timeouts
+     */
+    int getFailureCount();
+
+    /**
+     * Gets the number of phones that did not respond in time. Commands that
+     * were cancelled are also counted here.
+     *
+     * @return number of timeouts
+     */
+    int getTimeoutCount();
+
+    /**
+     * Gets the number of phones whose result is not known yet.
+     *
+     * @return number of pending phones
+     */
+    int getPendingCount();
+
+    /**
+     * Gets the connect times, in microseconds, of the phones that have
+     * responded so far.
+     *
+     * @return snapshot of the connect times
+     * @see XmlPushResponse#getConnectTime(java.util.concurrent.TimeUnit)
+     */
+    HistogramSnapshot getConnectTimes();
+
+    /**
+     * Gets the response times, in microseconds, of the phones that have
+     * responded so far.
+     *
+     * @return snapshot of the response times
+     * @see XmlPushResponse#getRequestTime(java.util.concurrent.TimeUnit)
+     */
+    HistogramSnapshot getResponseTimes();
+
+    /**
+     * Gets a future that completes with the summary of the broadcast once
+     * every phone has responded, failed, or timed out. The future never
+     * fails.
+     *
+     * @return future of the summary
+     */
+    ListenableFuture<BroadcastSummary> getSummary();
+}
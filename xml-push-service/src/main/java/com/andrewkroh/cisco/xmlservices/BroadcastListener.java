@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import com.andrewkroh.cisco.phoneinventory.IpPhone;
+
+/**
+ * Receives the result of each phone of a broadcast as soon as it is known.
+ *
+ * <p/>
+ * The methods are invoked on the service's I/O threads, possibly
+ * concurrently for different phones, so implementations must be
+ * thread-safe and must not block.
+ *
+ * @author akroh
+ * @see XmlPushService#broadcastCommand(com.google.common.collect.ImmutableList,
+ *      CommandTemplate, XmlPushCallback, BroadcastListener)
+ */
+public interface BroadcastListener
+{
+    /**
+     * Invoked when a phone responded to the command.
+     *
+     * @param response
+     *            the phone's response
+     */
+    void onResponse(XmlPushResponse response);
+
+    /**
+     * Invoked when the command could not be delivered to a phone, or the
+     * phone did not respond in time.
+     *
+     * @param phone
+     *            phone that the command was sent to
+     * @param cause
+     *            reason of the failure, a
+     *            {@link java.util.concurrent.CancellationException} if the
+     *            command timed out or was cancelled
+     */
+    void onFailure(IpPhone phone, Throwable cause);
+}
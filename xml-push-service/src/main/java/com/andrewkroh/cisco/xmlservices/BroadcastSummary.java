@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import java.util.concurrent.TimeUnit;
+
+import com.andrewkroh.cisco.common.metrics.HistogramSnapshot;
+import com.google.common.base.Preconditions;
+
+/**
+ * Final results of a broadcast, see {@link BroadcastHandle#getSummary()}.
+ * This class is immutable.
+ *
+ * @author akroh
+ */
+public final class BroadcastSummary
+{
+    private final int phoneCount;
+
+    private final int successCount;
+
+    private final int failureCount;
+
+    private final int timeoutCount;
+
+    private final long elapsedNanos;
+
+    private final HistogramSnapshot connectTimes;
+
+    private final HistogramSnapshot responseTimes;
+
+    /**
+     * Constructs a new {@code BroadcastSummary}.
+     *
+     * @param phoneCount
+     *            number of phones the command was sent to
+     * @param successCount
+     *            number of phones that responded
+     * @param failureCount
+     *            number of phones the command could not be delivered to
+     * @param timeoutCount
+     *            number of phones that did not respond in time
+     * @param elapsedNanos
+     *            time from the submission of the broadcast until the last
+     *            phone was done, in nanoseconds
+     * @param connectTimes
+     *            connect times of the responses, in microseconds
+     * @param responseTimes
+     *            response times of the responses, in microseconds
+     */
+    BroadcastSummary(int phoneCount, int successCount, int failureCount,
+                     int timeoutCount, long elapsedNanos,
+                     HistogramSnapshot connectTimes,
+                     HistogramSnapshot responseTimes)
+    {
+        this.phoneCount = phoneCount;
+        this.successCount = successCount;
+        this.failureCount = failureCount;
+        this.timeoutCount = timeoutCount;
+        this.elapsedNanos = elapsedNanos;
+        this.connectTimes = Preconditions.checkNotNull(connectTimes);
+        this.responseTimes = Preconditions.checkNotNull(responseTimes);
+    }
+
+    /**
+     * Number of phones the command was sent to.
+     *
+     * @return number of phones
+     */
+    public int getPhoneCount()
+    {
+        return phoneCount;
+    }
+
+    /**
+     * Number of phones that responded.
+     *
+     * @return number of responses
+     */
+    public int getSuccessCount()
+    {
+        return successCount;
+    }
+
+    /**
+     * Number of phones that the command could not be delivered to.
+     *
+     * @return number of failures, not including timeouts
+     */
+    public int getFailureCount()
+    {
+        return failureCount;
+    }
+
+    /**
+     * Number of phones that did not respond in time, or whose command was
+     * cancelled.
+     *
+     * @return number of timeouts
+     */
+    public int getTimeoutCount()
+    {
+        return timeoutCount;
+    }
+
+    /**
+     * Time from the submission of the broadcast until the last phone was
+     * done.
+     *
+     * @param unit
+     *            unit of the result
+     * @return the elapsed time
+     */
+    public long getElapsedTime(TimeUnit unit)
+    {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Connect times, in microseconds, of the phones that responded.
+     *
+     * @return snapshot of the connect times
+     */
+    public HistogramSnapshot getConnectTimes()
+    {
+        return connectTimes;
+    }
+
+    /**
+     * Response times, in microseconds, of the phones that responded.
+     *
+     * @return snapshot of the response times
+     */
+    public HistogramSnapshot getResponseTimes()
+    {
+        return responseTimes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BroadcastSummary[phones=" + phoneCount +
+                ", success=" + successCount +
+                ", failure=" + failureCount +
+                ", timeout=" + timeoutCount +
+                ", elapsedMs=" + getElapsedTime(TimeUnit.MILLISECONDS) +
+                ", connectTimeUs={" + connectTimes +
+                "}, responseTimeUs={" + responseTimes + "}]";
+    }
+}
@@ -19,11 +19,11 @@ package com.andrewkroh.cisco.xmlservices;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.util.AttributeKey;
 
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -34,7 +34,8 @@ import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * Listens for successful client channel connection and then writes the
- * {@link HttpRequest} to the channel.
+ * {@link HttpRequest} to the channel. The channel may be a new connection or
+ * a keep-alive connection handed out again by the {@link PhoneChannelPool}.
  *
  * @author akroh
  */
@@ -47,9 +48,9 @@ class ChannelConnectListener<T> implements ChannelFutureListener
             LoggerFactory.getLogger(ChannelConnectListener.class);
 
     /**
-     * HTTP request to write to the channel after it is connected.
+     * Builds the HTTP request to write to the channel after it is connected.
      */
-    private final HttpRequest httpRequest;
+    private final PushRequest pushRequest;
 
     /**
      * {@code AttributeKey} used to put the {@code IpPhone} object into the
@@ -62,6 +63,17 @@ class ChannelConnectListener<T> implements ChannelFutureListener
      */
     private final IpPhone phone;
 
+    /**
+     * Informed whether the phone could be reached, may be null.
+     */
+    private final PhoneCircuitBreaker circuitBreaker;
+
+    /**
+     * Pool that a reused channel is returned to if the command finished
+     * before it was sent, may be null.
+     */
+    private final PhoneChannelPool channelPool;
+
     /**
      * {@code AttributeKey} used to put the {@link SettableFuture} object into
      * the {@code Channel} using {@link Channel#attr(AttributeKey)}. The
@@ -80,11 +92,27 @@ class ChannelConnectListener<T> implements ChannelFutureListener
     private final SettableFuture<T> responseFuture;
 
     /**
-     * {@link ScheduledExecutorService} used to schedule the timeout of the
+     * {@code AttributeKey} used to put the {@link RequestTiming} of the
+     * request into the {@code Channel}.
+     */
+    private final AttributeKey<RequestTiming> timingAttributeKey;
+
+    /**
+     * {@link System#nanoTime()} at which the command was submitted.
+     */
+    private final long submitNanos;
+
+    /**
+     * Number of the attempt to send the command, starting at 1.
+     */
+    private final int attempt;
+
+    /**
+     * {@link TimeoutScheduler} used to schedule the timeout of the
      * {@code responseFuture} and close the {@code Channel} if the response
      * has not been received.
      */
-    private final ScheduledExecutorService eventLoopExecutor;
+    private final TimeoutScheduler timeoutScheduler;
 
     /**
      * Amount of time to wait before timing out the {@code responseFuture} and
@@ -102,42 +130,69 @@ class ChannelConnectListener<T> implements ChannelFutureListener
      * Upon completion of the {@code connect} this will submit the HTTP request
      * using {@link Channel#writeAndFlush(Object)}.
      *
-     * @param httpRequest
-     *            {@code HttpRequest} to write to the channel after the channel
-     *            is connected
+     * @param pushRequest
+     *            builds the {@code HttpRequest} to write to the channel after
+     *            the channel is connected
      * @param phoneAttributeKey
      *            {@code AttributeKey} used to store the {@code IpPhone}
      *            with the channel
      * @param phone
      *            {@code IpPhone} to store with the channel
+     * @param circuitBreaker
+     *            {@code PhoneCircuitBreaker} to inform of connect successes,
+     *            or null; connect failures and timeouts are only reported
+     *            for the first attempt so that retries of one command
+     *            cannot open the phone's circuit
+     * @param channelPool
+     *            {@code PhoneChannelPool} that handed out the channel, or
+     *            null; a reused channel is returned to it if the command
+     *            finished before it was sent
      * @param responseFutureAttributeKey
      *            {@code AttributeKey} used to store the {@code SettableFuture}
      *            with the channel
      * @param responseFuture
      *            {@code SettableFuture} to store with the channel
-     * @param eventLoopExecutor
-     *            {@code ScheduledExecutorService} that will be used to schedule
-     *            an automatic timeout if the response hasn't been received,
-     *            this should be the {@link EventLoopGroup}
+     * @param timingAttributeKey
+     *            {@code AttributeKey} used to store the {@code RequestTiming}
+     *            with the channel
+     * @param submitNanos
+     *            {@link System#nanoTime()} at which the command was submitted,
+     *            used to measure the connect time
+     * @param attempt
+     *            number of the attempt to send the command, starting at 1
+     * @param timeoutScheduler
+     *            {@code TimeoutScheduler} that will be used to schedule an
+     *            automatic timeout if the response hasn't been received, the
+     *            timeout is cancelled when the response arrives
      * @param responseTimeoutMs
      *            amount of time in milliseconds before the
      *            {@code responseFuture} will be timed out and the
      *            {@code Channel} closed
      */
-    public ChannelConnectListener(HttpRequest httpRequest,
+    public ChannelConnectListener(PushRequest pushRequest,
                                   AttributeKey<IpPhone> phoneAttributeKey,
                                   IpPhone phone,
+                                  PhoneCircuitBreaker circuitBreaker,
+                                  PhoneChannelPool channelPool,
                                   AttributeKey<SettableFuture<T>> responseFutureAttributeKey,
                                   SettableFuture<T> responseFuture,
-                                  ScheduledExecutorService eventLoopExecutor,
+                                  AttributeKey<RequestTiming> timingAttributeKey,
+                                  long submitNanos,
+                                  int attempt,
+                                  TimeoutScheduler timeoutScheduler,
                                   long responseTimeoutMs)
     {
-        this.httpRequest = httpRequest;
+        this.pushRequest = pushRequest;
         this.phoneAttributeKey = phoneAttributeKey;
         this.phone = phone;
+        this.circuitBreaker = circuitBreaker;
+        this.channelPool = channelPool;
         this.responseFutureAttributeKey = responseFutureAttributeKey;
         this.responseFuture = responseFuture;
-        this.eventLoopExecutor = eventLoopExecutor;
+        this.timingAttributeKey = timingAttributeKey;
+        this.submitNanos = submitNanos;
+        this.attempt = attempt;
+        this.timeoutScheduler = timeoutScheduler;
         this.responseTimeoutMs = responseTimeoutMs;
     }
 
@@ -148,25 +203,57 @@ class ChannelConnectListener<T> implements ChannelFutureListener
 
         if (responseFuture.isCancelled())
         {
-            future.channel().close();
+            discard(future);
             return;
         }
 
         if (future.isSuccess())
         {
             final Channel channel = future.channel();
+
+            // Null if the command finished while the channel was connecting.
+            FullHttpRequest httpRequest = pushRequest.newHttpRequest();
+            if (httpRequest == null)
+            {
+                discard(future);
+                return;
+            }
+
             channel.attr(phoneAttributeKey).set(phone);
             channel.attr(responseFutureAttributeKey).set(responseFuture);
 
-            // Timeout the task if it does not complete:
-            eventLoopExecutor.schedule(new Runnable() {
+            if (circuitBreaker != null)
+            {
+                circuitBreaker.recordSuccess(phone);
+            }
+
+            long now = System.nanoTime();
+            channel.attr(timingAttributeKey).set(new RequestTiming(
+                    now - submitNanos, now, PhoneChannelPool.isReused(channel),
+                    attempt));
+
+            // Timeout the task if it does not complete. The timeout is moved
+            // to the channel's event loop so that it cannot run while the
+            // response is being handled:
+            final Runnable timeout = new Runnable() {
+                @Override
+                public void run()
+                {
+                    timeout(channel);
+                }
+            };
+            timeoutScheduler.schedule(responseFuture, new Runnable() {
                 @Override
                 public void run()
                 {
-                    if (!responseFuture.isDone())
+                    try
                     {
-                        responseFuture.cancel(false);
-                        channel.close();
+                        channel.eventLoop().execute(timeout);
+                    }
+                    catch (RejectedExecutionException e)
+                    {
+                        // The event loop is shutting down.
+                        timeout.run();
                     }
                 }
             }, responseTimeoutMs, TimeUnit.MILLISECONDS);
@@ -176,8 +263,55 @@ class ChannelConnectListener<T> implements ChannelFutureListener
         }
         else
         {
+            if (circuitBreaker != null && attempt == 1)
+            {
+                circuitBreaker.recordFailure(phone);
+            }
             responseFuture.setException(future.cause());
             future.channel().close();
         }
     }
+
+    /**
+     * Gives up a channel that will not be used because the command finished
+     * first. A healthy kept-alive channel from the pool is returned to it;
+     * a new connection is closed.
+     */
+    private void discard(ChannelFuture future)
+    {
+        Channel channel = future.channel();
+        if (channelPool != null && future.isSuccess() &&
+                PhoneChannelPool.isReused(channel))
+        {
+            channelPool.release(channel);
+        }
+        else
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Cancels the response future if the response has not been received and
+     * closes the channel, unless it has already been handed to another
+     * command.
+     */
+    private void timeout(Channel channel)
+    {
+        if (responseFuture.isDone())
+        {
+            return;
+        }
+
+        if (circuitBreaker != null && attempt == 1)
+        {
+            circuitBreaker.recordFailure(phone);
+        }
+        responseFuture.cancel(false);
+
+        if (channel.attr(responseFutureAttributeKey).get() == responseFuture)
+        {
+            channel.close();
+        }
+    }
 }
\ No newline at end of file
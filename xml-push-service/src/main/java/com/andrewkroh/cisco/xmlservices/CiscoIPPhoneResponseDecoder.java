@@ -0,0 +1,278 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.util.CharsetUtil;
+
+import java.io.InputStreamReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cisco.xmlservices.XmlMarshaller;
+import com.cisco.xmlservices.generated.CiscoIPPhoneResponse;
+import com.cisco.xmlservices.generated.CiscoIPPhoneResponseItemType;
+
+/**
+ * Decodes the {@link CiscoIPPhoneResponse} that a phone returns for a push.
+ *
+ * <p/>
+ * The response is small and always has the same shape, so it is read with a
+ * StAX stream reader directly from the {@link ByteBuf} instead of being
+ * decoded to a String and unmarshaled by a new schema validating JAXB
+ * {@code Unmarshaller}. Any document that the stream reader does not fully
+ * understand, or that would not pass schema validation, is handed to
+ * {@link XmlMarshaller#unmarshal(String, Class)} so that the result, and the
+ * exception for invalid responses, is the same as before.
+ *
+ * @author akroh
+ */
+final class CiscoIPPhoneResponseDecoder
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(CiscoIPPhoneResponseDecoder.class);
+
+    private static final String RESPONSE_ELEMENT = "CiscoIPPhoneResponse";
+
+    private static final String ITEM_ELEMENT = "ResponseItem";
+
+    private static final String STATUS_ATTRIBUTE = "Status";
+
+    private static final String DATA_ATTRIBUTE = "Data";
+
+    private static final String URL_ATTRIBUTE = "URL";
+
+    /**
+     * Limits from the CiscoIPPhone.xsd schema.
+     */
+    private static final int MAX_ITEMS = 3;
+    private static final int MAX_DATA_LENGTH = 32;
+    private static final int MAX_URL_LENGTH = 256;
+
+    /**
+     * Factory for the stream readers. It is configured once and is safe to
+     * share between threads.
+     */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    static {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    }
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private CiscoIPPhoneResponseDecoder() {}
+
+    /**
+     * Decodes the response contained in {@code content}. The reader index of
+     * {@code content} is not modified.
+     *
+     * @param content
+     *            body of the phone's HTTP response
+     * @return the decoded response
+     *
+     * @throws RuntimeException
+     *             if the XML is not a valid {@code CiscoIPPhoneResponse}
+     * @throws ClassCastException
+     *             if the XML is a different Cisco IP Phone object
+     */
+    static CiscoIPPhoneResponse decode(ByteBuf content)
+    {
+        CiscoIPPhoneResponse response = null;
+        try
+        {
+            response = parse(content);
+        }
+        catch (XMLStreamException e)
+        {
+            LOGGER.debug("Stream parsing of response failed.", e);
+        }
+
+        if (response != null)
+        {
+            return response;
+        }
+
+        // The default charset for HTTP is ISO-8859-1. None
+        // of the Cisco phones I've seen to date were actually
+        // setting the charset so use the default. We could
+        // improve here by checking the header for the value.
+        return XmlMarshaller.unmarshal(
+                content.toString(CharsetUtil.ISO_8859_1),
+                CiscoIPPhoneResponse.class);
+    }
+
+    /**
+     * Parses the response with a stream reader.
+     *
+     * @return the response, or null if the document must be unmarshaled by
+     *         JAXB instead
+     */
+    static CiscoIPPhoneResponse parse(ByteBuf content)
+            throws XMLStreamException
+    {
+        // Decode as ISO-8859-1 regardless of the XML declaration to read
+        // the content the same way as the JAXB path.
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(
+                new InputStreamReader(new ByteBufInputStream(content.duplicate()),
+                                      CharsetUtil.ISO_8859_1));
+        try
+        {
+            if (nextElementOrEnd(reader) != XMLStreamConstants.START_ELEMENT ||
+                    !isElement(reader, RESPONSE_ELEMENT) ||
+                    reader.getAttributeCount() != 0)
+            {
+                return null;
+            }
+
+            CiscoIPPhoneResponse response = new CiscoIPPhoneResponse();
+            while (nextElementOrEnd(reader) == XMLStreamConstants.START_ELEMENT)
+            {
+                if (!isElement(reader, ITEM_ELEMENT) ||
+                        response.getResponseItem().size() == MAX_ITEMS)
+                {
+                    return null;
+                }
+
+                CiscoIPPhoneResponseItemType item = parseItem(reader);
+                if (item == null ||
+                        nextElementOrEnd(reader) != XMLStreamConstants.END_ELEMENT)
+                {
+                    return null;
+                }
+                response.getResponseItem().add(item);
+            }
+
+            // At the end of the root element, which must have had at least
+            // one item and be the last element of the document:
+            if (response.getResponseItem().isEmpty() ||
+                    nextElementOrEnd(reader) != XMLStreamConstants.END_DOCUMENT)
+            {
+                return null;
+            }
+            return response;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the attributes of the ResponseItem the reader is positioned at.
+     *
+     * @return the item, or null if it has unknown or invalid attributes
+     */
+    private static CiscoIPPhoneResponseItemType parseItem(XMLStreamReader reader)
+    {
+        CiscoIPPhoneResponseItemType item = new CiscoIPPhoneResponseItemType();
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+        {
+            String namespace = reader.getAttributeNamespace(i);
+            if (namespace != null && !namespace.isEmpty())
+            {
+                return null;
+            }
+
+            String name = reader.getAttributeLocalName(i);
+            String value = reader.getAttributeValue(i);
+            if (STATUS_ATTRIBUTE.equals(name))
+            {
+                try
+                {
+                    item.setStatus(Short.valueOf(value.trim()));
+                }
+                catch (NumberFormatException e)
+                {
+                    return null;
+                }
+            }
+            else if (DATA_ATTRIBUTE.equals(name) &&
+                    value.length() <= MAX_DATA_LENGTH)
+            {
+                item.setData(value);
+            }
+            else if (URL_ATTRIBUTE.equals(name) &&
+                    value.length() <= MAX_URL_LENGTH)
+            {
+                item.setURL(value);
+            }
+            else
+            {
+                return null;
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Advances to the next start element, end element, or the end of the
+     * document, skipping whitespace, comments, and processing instructions.
+     *
+     * @return the event type, or -1 for any other content (such as text)
+     */
+    private static int nextElementOrEnd(XMLStreamReader reader)
+            throws XMLStreamException
+    {
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            switch (event)
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                case XMLStreamConstants.END_ELEMENT:
+                case XMLStreamConstants.END_DOCUMENT:
+                    return event;
+                case XMLStreamConstants.COMMENT:
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                case XMLStreamConstants.SPACE:
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                    if (!reader.isWhiteSpace())
+                    {
+                        return -1;
+                    }
+                    break;
+                default:
+                    return -1;
+            }
+        }
+        return XMLStreamConstants.END_DOCUMENT;
+    }
+
+    private static boolean isElement(XMLStreamReader reader, String localName)
+    {
+        String namespace = reader.getNamespaceURI();
+        return localName.equals(reader.getLocalName()) &&
+                (namespace == null || namespace.isEmpty());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+/**
+ * Urgency of a push command, which decides the order in which commands that
+ * wait for admission are started.
+ *
+ * <p/>
+ * A waiting {@link #EMERGENCY} command is always started before any waiting
+ * command of another priority. The other priorities are started by weighted
+ * round robin: while commands of both wait, out of every 5 commands started
+ * 4 are {@link #NORMAL} and 1 is {@link #BULK}, so normal commands overtake
+ * queued bulk work without stopping it entirely. Commands of the same
+ * priority are started in submission order.
+ *
+ * @author akroh
+ */
+public enum CommandPriority
+{
+    /**
+     * Commands that must reach the phones as soon as possible, such as
+     * emergency pages.
+     */
+    EMERGENCY(0),
+
+    /**
+     * Commands without special urgency. This is the priority of commands
+     * submitted without one.
+     */
+    NORMAL(4),
+
+    /**
+     * Background work, such as refreshing directories on every phone.
+     */
+    BULK(1);
+
+    private final int weight;
+
+    private CommandPriority(int weight)
+    {
+        this.weight = weight;
+    }
+
+    /**
+     * Gets the share of admissions given to this priority relative to the
+     * others, or 0 if its commands are started ahead of all others.
+     *
+     * @return scheduling weight
+     */
+    int getWeight()
+    {
+        return weight;
+    }
+}
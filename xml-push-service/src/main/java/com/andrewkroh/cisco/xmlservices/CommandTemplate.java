@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+
+import com.cisco.xmlservices.XmlMarshaller;
+import com.cisco.xmlservices.generated.CiscoIPPhoneExecute;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link CiscoIPPhoneExecute} command that has been marshaled to XML and
+ * URL encoded as the body of a push ({@code XML=<url encoded XML>}) ahead of
+ * time.
+ *
+ * <p/>
+ * The positions of the {@code $BASEURL} placeholders in the encoded body are
+ * recorded when the template is compiled, so sending the command only
+ * requires copying the encoded body with the encoded callback URL spliced in
+ * at those positions. Commands that are sent often, such as the pages and
+ * menus pushed to every phone, should be compiled once and submitted with
+ * {@link XmlPushService#submitCommand(com.andrewkroh.cisco.phoneinventory.IpPhone,
+ * CommandTemplate, XmlPushCallback)}.
+ *
+ * <p/>
+ * Templates are immutable. Changes made to the command after it was
+ * compiled do not affect the template.
+ *
+ * @author akroh
+ */
+public final class CommandTemplate
+{
+    /**
+     * The callback URL placeholder as it appears in the encoded body.
+     */
+    private static final byte[] ENCODED_PLACEHOLDER =
+            urlEncode("$BASEURL").getBytes(Charsets.US_ASCII);
+
+    /**
+     * Encoded POST body containing the placeholders.
+     */
+    private final byte[] body;
+
+    /**
+     * Offsets of the placeholders within {@code body}, in ascending order.
+     */
+    private final int[] placeholderOffsets;
+
+    private CommandTemplate(byte[] body, int[] placeholderOffsets)
+    {
+        this.body = body;
+        this.placeholderOffsets = placeholderOffsets;
+    }
+
+    /**
+     * Marshals and encodes a command.
+     *
+     * @param command
+     *            command to compile, it is not modified
+     * @return the compiled template
+     */
+    public static CommandTemplate compile(CiscoIPPhoneExecute command)
+    {
+        Preconditions.checkNotNull(command,
+                "CiscoIPPhoneExecute object cannot be null.");
+
+        // Marshal object to XML and escape the XML:
+        String objectAsXml = XmlMarshaller.marshalToXml(command);
+        byte[] body = ("XML=" + urlEncode(objectAsXml)).getBytes(Charsets.US_ASCII);
+
+        int[] offsets = new int[4];
+        int count = 0;
+        for (int i = indexOf(body, 0); i >= 0;
+                i = indexOf(body, i + ENCODED_PLACEHOLDER.length))
+        {
+            if (count == offsets.length)
+            {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = i;
+        }
+
+        return new CommandTemplate(body, Arrays.copyOf(offsets, count));
+    }
+
+    /**
+     * Returns the number of {@code $BASEURL} placeholders in the command.
+     *
+     * @return number of placeholders
+     */
+    public int getPlaceholderCount()
+    {
+        return placeholderOffsets.length;
+    }
+
+    /**
+     * Returns the encoded POST body with {@code $BASEURL} replaced.
+     *
+     * @param baseCallbackUrl
+     *            base URL of the callback resource that replaces $BASEURL, or
+     *            null to leave the placeholders in place. It cannot end with
+     *            '/'.
+     * @return buffer containing the body, which the caller must release
+     */
+    ByteBuf encode(String baseCallbackUrl)
+    {
+        if (baseCallbackUrl == null || placeholderOffsets.length == 0)
+        {
+            return Unpooled.wrappedBuffer(body);
+        }
+
+        checkArgument(!baseCallbackUrl.endsWith("/"),
+                "Base callback URL cannot end with '/'");
+
+        // Escape the URL the same way the marshaler and the URL encoding
+        // escaped the rest of the attribute value:
+        byte[] url = urlEncode(escapeXmlAttribute(baseCallbackUrl))
+                .getBytes(Charsets.US_ASCII);
+
+        int length = body.length + placeholderOffsets.length *
+                (url.length - ENCODED_PLACEHOLDER.length);
+        ByteBuf encoded = PooledByteBufAllocator.DEFAULT.buffer(length);
+
+        int start = 0;
+        for (int offset : placeholderOffsets)
+        {
+            encoded.writeBytes(body, start, offset - start);
+            encoded.writeBytes(url);
+            start = offset + ENCODED_PLACEHOLDER.length;
+        }
+        encoded.writeBytes(body, start, body.length - start);
+
+        return encoded;
+    }
+
+    /**
+     * Returns the offset of the first placeholder at or after
+     * {@code fromIndex}, or -1 if there is none.
+     */
+    private static int indexOf(byte[] array, int fromIndex)
+    {
+        outer:
+        for (int i = fromIndex; i <= array.length - ENCODED_PLACEHOLDER.length; i++)
+        {
+            for (int j = 0; j < ENCODED_PLACEHOLDER.length; j++)
+            {
+                if (array[i + j] != ENCODED_PLACEHOLDER[j])
+                {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Escapes the characters that the marshaler escapes in attribute values.
+     */
+    private static String escapeXmlAttribute(String value)
+    {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++)
+        {
+            String replacement;
+            switch (value.charAt(i))
+            {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                default:
+                    replacement = null;
+            }
+
+            if (replacement != null && escaped == null)
+            {
+                escaped = new StringBuilder(value.length() + 16);
+                escaped.append(value, 0, i);
+            }
+            if (escaped != null)
+            {
+                if (replacement != null)
+                {
+                    escaped.append(replacement);
+                }
+                else
+                {
+                    escaped.append(value.charAt(i));
+                }
+            }
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+
+    /**
+     * Translates a string into <code>application/x-www-form-urlencoded</code>
+     * format using UTF-8, to be compliant with the <a href=
+     * "http://www.w3.org/TR/html40/appendix/notes.html#non-ascii-chars"> World
+     * Wide Web Consortium Recommendation</a> recommendation.
+     *
+     * @param source
+     *            <code>String</code> to be translated.
+     * @return the translated <code>String</code>.
+     */
+    private static String urlEncode(String source)
+    {
+        try
+        {
+            // Must use UTF-8 to be W3C complaint.
+            return URLEncoder.encode(source, Charsets.UTF_8.name());
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException("Unsupported charset (UTF-8).", e);
+        }
+    }
+}
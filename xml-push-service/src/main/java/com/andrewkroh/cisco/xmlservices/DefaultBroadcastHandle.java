@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cisco.common.metrics.Histogram;
+import com.andrewkroh.cisco.common.metrics.HistogramSnapshot;
+import com.andrewkroh.cisco.phoneinventory.IpPhone;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * {@link BroadcastHandle} that follows the futures of a broadcast's phones.
+ *
+ * <p/>
+ * A callback is added to each phone's future. It updates the atomic counts
+ * and the histograms, none of which take a lock, notifies the
+ * {@link BroadcastListener}, and completes the summary when it finds that
+ * it was the last phone.
+ *
+ * @author akroh
+ */
+class DefaultBroadcastHandle implements BroadcastHandle
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(DefaultBroadcastHandle.class);
+
+    private final ImmutableList<ListenableFuture<XmlPushResponse>> futures;
+
+    /**
+     * Receives each result, may be null.
+     */
+    private final BroadcastListener listener;
+
+    /**
+     * {@link System#nanoTime()} at which the broadcast was submitted.
+     */
+    private final long startNanos;
+
+    private final AtomicInteger successCount = new AtomicInteger();
+
+    private final AtomicInteger failureCount = new AtomicInteger();
+
+    private final AtomicInteger timeoutCount = new AtomicInteger();
+
+    private final AtomicInteger pendingCount;
+
+    private final Histogram connectTimes = new Histogram();
+
+    private final Histogram responseTimes = new Histogram();
+
+    private final SettableFuture<BroadcastSummary> summary =
+            SettableFuture.create();
+
+    /**
+     * Creates a handle and starts following the futures.
+     *
+     * @param phones
+     *            phones the command was sent to
+     * @param futures
+     *            future of each phone, in the same order as {@code phones}
+     * @param listener
+     *            listener to notify of each result, or null
+     * @param startNanos
+     *            {@link System#nanoTime()} at which the broadcast was
+     *            submitted
+     */
+    DefaultBroadcastHandle(ImmutableList<IpPhone> phones,
+                           ImmutableList<ListenableFuture<XmlPushResponse>> futures,
+                           BroadcastListener listener,
+                           long startNanos)
+    {
+        Preconditions.checkArgument(phones.size() == futures.size(),
+                "There must be one future per phone.");
+        this.futures = futures;
+        this.listener = listener;
+        this.startNanos = startNanos;
+        this.pendingCount = new AtomicInteger(futures.size());
+
+        if (futures.isEmpty())
+        {
+            completeSummary();
+        }
+
+        for (int i = 0; i < futures.size(); i++)
+        {
+            final IpPhone phone = phones.get(i);
+            Futures.addCallback(futures.get(i),
+                                new FutureCallback<XmlPushResponse>() {
+                @Override
+                public void onSuccess(XmlPushResponse response)
+                {
+                    responseReceived(response);
+                }
+
+                @Override
+                public void onFailure(Throwable t)
+                {
+                    commandFailed(phone, t);
+                }
+            });
+        }
+    }
+
+    @Override
+    public ImmutableList<ListenableFuture<XmlPushResponse>> getFutures()
+    {
+        return futures;
+    }
+
+    @Override
+    public int getPhoneCount()
+    {
+        return futures.size();
+    }
+
+    @Override
+    public int getSuccessCount()
+    {
+        return successCount.get();
+    }
+
+    @Override
+    public int getFailureCount()
+    {
+        return failureCount.get();
+    }
+
+    @Override
+    public int getTimeoutCount()
+    {
+        return timeoutCount.get();
+    }
+
+    @Override
+    public int getPendingCount()
+    {
+        return pendingCount.get();
+    }
+
+    @Override
+    public HistogramSnapshot getConnectTimes()
+    {
+        return connectTimes.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getResponseTimes()
+    {
+        return responseTimes.snapshot();
+    }
+
+    @Override
+    public ListenableFuture<BroadcastSummary> getSummary()
+    {
+        return summary;
+    }
+
+    private void responseReceived(XmlPushResponse response)
+    {
+        connectTimes.record(response.getConnectTime(TimeUnit.MICROSECONDS));
+        responseTimes.record(response.getRequestTime(TimeUnit.MICROSECONDS));
+        successCount.incrementAndGet();
+
+        if (listener != null)
+        {
+            try
+            {
+                listener.onResponse(response);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.warn("BroadcastListener threw an exception.", e);
+            }
+        }
+
+        phoneDone();
+    }
+
+    private void commandFailed(IpPhone phone, Throwable cause)
+    {
+        if (cause instanceof CancellationException)
+        {
+            timeoutCount.incrementAndGet();
+        }
+        else
+        {
+            failureCount.incrementAndGet();
+        }
+
+        if (listener != null)
+        {
+            try
+            {
+                listener.onFailure(phone, cause);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.warn("BroadcastListener threw an exception.", e);
+            }
+        }
+
+        phoneDone();
+    }
+
+    private void phoneDone()
+    {
+        if (pendingCount.decrementAndGet() == 0)
+        {
+            completeSummary();
+        }
+    }
+
+    private void completeSummary()
+    {
+        summary.set(new BroadcastSummary(futures.size(),
+                successCount.get(), failureCount.get(), timeoutCount.get(),
+                System.nanoTime() - startNanos,
+                connectTimes.snapshot(), responseTimes.snapshot()));
+    }
+}
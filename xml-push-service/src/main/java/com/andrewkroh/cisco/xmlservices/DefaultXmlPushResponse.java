@@ -16,6 +16,8 @@
 
 package com.andrewkroh.cisco.xmlservices;
 
+import java.util.concurrent.TimeUnit;
+
 import com.andrewkroh.cisco.phoneinventory.IpPhone;
 import com.cisco.xmlservices.generated.CiscoIPPhoneResponse;
 import com.google.common.base.Preconditions;
@@ -38,6 +40,14 @@ class DefaultXmlPushResponse implements XmlPushResponse
      */
     private final CiscoIPPhoneResponse response;
 
+    private final long connectNanos;
+
+    private final long requestNanos;
+
+    private final boolean connectionReused;
+
+    private final int attemptCount;
+
     /**
      * Constructs a new {@code DefaultCiscoXmlPushResponse}.
      *
@@ -45,13 +55,28 @@ class DefaultXmlPushResponse implements XmlPushResponse
      *            {@code IpPhone} that generated the response
      * @param response
      *            {@code CiscoIPPhoneResponse} generated by the phone
+     * @param connectNanos
+     *            time taken to obtain a connection, in nanoseconds
+     * @param requestNanos
+     *            time from writing the request until the response was
+     *            received, in nanoseconds
+     * @param connectionReused
+     *            true if the request was sent on a reused connection
+     * @param attemptCount
+     *            number of times the command was sent
      */
-    DefaultXmlPushResponse(IpPhone phone, CiscoIPPhoneResponse response)
+    DefaultXmlPushResponse(IpPhone phone, CiscoIPPhoneResponse response,
+                           long connectNanos, long requestNanos,
+                           boolean connectionReused, int attemptCount)
     {
         this.phone = Preconditions.checkNotNull(phone,
                 "IpPhone cannot be null.");
         this.response = Preconditions.checkNotNull(response,
                 "CiscoIPPhoneResponse cannot be null.");
+        this.connectNanos = connectNanos;
+        this.requestNanos = requestNanos;
+        this.connectionReused = connectionReused;
+        this.attemptCount = attemptCount;
     }
 
     @Override
@@ -65,4 +90,28 @@ class DefaultXmlPushResponse implements XmlPushResponse
     {
         return response;
     }
+
+    @Override
+    public long getConnectTime(TimeUnit unit)
+    {
+        return unit.convert(connectNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public long getRequestTime(TimeUnit unit)
+    {
+        return unit.convert(requestNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean isConnectionReused()
+    {
+        return connectionReused;
+    }
+
+    @Override
+    public int getAttemptCount()
+    {
+        return attemptCount;
+    }
 }
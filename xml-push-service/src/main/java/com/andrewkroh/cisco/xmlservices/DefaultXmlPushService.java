@@ -16,31 +16,26 @@
 
 package com.andrewkroh.cisco.xmlservices;
 
-import static com.google.common.base.Preconditions.checkArgument;
-
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInboundHandler;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.http.DefaultFullHttpRequest;
-import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpHeaders;
-import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.HttpVersion;
 import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.GenericFutureListener;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.enterprise.inject.Default;
 import javax.inject.Inject;
@@ -49,24 +44,95 @@ import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.andrewkroh.cisco.common.metrics.Counter;
+import com.andrewkroh.cisco.common.metrics.Histogram;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
 import com.andrewkroh.cisco.phoneinventory.IpPhone;
-import com.cisco.xmlservices.XmlMarshaller;
 import com.cisco.xmlservices.generated.CiscoIPPhoneExecute;
-import com.cisco.xmlservices.generated.CiscoIPPhoneExecuteItemType;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.SettableFuture;
-import com.rits.cloning.Cloner;
 
 /**
  * Implementation of the {@link XmlPushService} that uses Netty under the
  * hood to issue the requests to phones.
  *
+ * <p/>
+ * Requests ask the phone to keep the connection alive. If the phone's
+ * response allows it, the connection is kept in a per-phone pool and reused
+ * by the next command to that phone, which saves a TCP handshake with the
+ * phone's slow CPU on every push. Idle connections are closed after a
+ * timeout and the number of connections to each phone is limited, see
+ * {@link #setConnectionPoolPolicy(int, long, TimeUnit)}. A connection that
+ * closes before the response fails the command at once with a
+ * {@code ClosedChannelException}. If it was a reused connection, which the
+ * phone most likely closed as the request was written, the command is first
+ * sent again once on a new connection.
+ *
+ * <p/>
+ * The number of commands in flight is limited, in total and per subnet, by
+ * an {@link AdmissionController}. Commands beyond the limits wait in a
+ * queue per {@link CommandPriority}, so a push to thousands of phones does
+ * not open thousands of sockets at once. Emergency commands are started
+ * ahead of all others, normal commands are started more often than bulk
+ * commands by weighted round robin, and commands of the same priority are
+ * started in the order they were submitted. See
+ * {@link #setAdmissionPolicy(int, int, int)}. The response timeout starts
+ * when a command leaves the queue, but the deadline of its
+ * {@link RetryPolicy} starts when it is submitted, so a command still
+ * waiting at its deadline is cancelled without being sent.
+ *
+ * <p/>
+ * A command sent to a list of phones is marshaled and URL encoded once into
+ * a buffer that every phone's {@link PushRequest} shares; only the Host and
+ * Authorization headers differ between phones. Commands that are sent
+ * repeatedly can be compiled into a {@link CommandTemplate} so that they are
+ * not marshaled at all when submitted.
+ *
+ * <p/>
+ * Phones that fail to accept connections, or to respond, several times in a
+ * row are marked unreachable by a {@link PhoneCircuitBreaker}. Commands to
+ * an unreachable phone fail immediately with a
+ * {@link PhoneUnreachableException} instead of waiting for the connect
+ * timeout, and the phone is probed in the background with increasing
+ * intervals until it accepts a connection again. See
+ * {@link #setCircuitBreakerPolicy(int, long, long, TimeUnit)}.
+ *
+ * <p/>
+ * Commands that fail because the phone refused the connection, the
+ * connection failed, or the phone did not respond in time can be sent again
+ * according to a {@link RetryPolicy}, see
+ * {@link #setRetryPolicy(RetryPolicy)}. Retries are scheduled on the event
+ * loop and keep the command's admission slot while they wait. Only a
+ * command's first attempt counts toward marking the phone unreachable. A
+ * retry to a phone that is marked unreachable waits for the next probe if
+ * the command's deadline leaves time for it, and otherwise fails with a
+ * {@link PhoneUnreachableException}.
+ *
+ * <p/>
+ * Response timeouts and command deadlines are kept in a hashed wheel timer
+ * by a {@link TimeoutScheduler} and are cancelled when the command
+ * completes, see {@link #getPendingTimeoutCount()}.
+ *
+ * <p/>
+ * The service records the following metrics in its {@link MetricsRegistry},
+ * each named with the prefix returned by {@link #getMetricsPrefix()}: the
+ * {@code connectTime} and {@code requestTime} histograms (microseconds,
+ * see {@link XmlPushResponse#getConnectTime(TimeUnit)} and
+ * {@link XmlPushResponse#getRequestTime(TimeUnit)}), the
+ * {@code commandsRetried} counter, and the connection
+ * metrics of {@link PhoneChannelPool}, {@link AdmissionController},
+ * {@link PhoneCircuitBreaker} and {@link TimeoutScheduler}.
+ *
  * @author akroh
  */
 @Default
@@ -90,6 +156,68 @@ public class DefaultXmlPushService extends AbstractService
      */
     private static final int DEFAULT_RESPONSE_TIMEOUT_MS =
             (int) TimeUnit.SECONDS.toMillis(20);
+
+    /**
+     * Default maximum number of connections to a single phone.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_PHONE = 2;
+
+    /**
+     * Default time that an idle keep-alive connection is kept open.
+     */
+    private static final long DEFAULT_IDLE_TIMEOUT_MS =
+            TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Default maximum number of commands in flight.
+     */
+    private static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    /**
+     * Default maximum number of commands in flight to a single subnet.
+     */
+    private static final int DEFAULT_MAX_IN_FLIGHT_PER_SUBNET = 64;
+
+    /**
+     * Default prefix length of the IPv4 subnets that phones are grouped by.
+     */
+    private static final int DEFAULT_SUBNET_PREFIX_LENGTH = 24;
+
+    /**
+     * Default number of consecutive failures after which a phone is
+     * considered unreachable.
+     */
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /**
+     * Default time before an unreachable phone is first probed.
+     */
+    private static final long DEFAULT_CIRCUIT_COOLDOWN_MS =
+            TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Default upper bound of the time between probes of an unreachable
+     * phone.
+     */
+    private static final long DEFAULT_MAX_CIRCUIT_COOLDOWN_MS =
+            TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Interval at which unreachable phones are checked for being due for a
+     * probe.
+     */
+    private static final long PROBE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Tick duration of the timer of the response timeouts and deadlines.
+     */
+    private static final long TIMEOUT_TICK_MS = 10;
+
+    /**
+     * Used to give each service's metrics a unique name.
+     */
+    private static final AtomicInteger SERVICE_COUNT = new AtomicInteger();
+
     /**
      * {@code AttributeKey} used to obtain the {@link IpPhone} object from
      * its associated {@code Channel} using {@link Channel#attr(AttributeKey)}.
@@ -107,21 +235,18 @@ public class DefaultXmlPushService extends AbstractService
             AttributeKey.valueOf("PUSH_RESP_KEY");
 
     /**
-     * The target URL of a phone push (HTTP POST) requests.
+     * {@code AttributeKey} used to obtain the {@link RequestTiming} of the
+     * request in progress from its associated {@code Channel} using
+     * {@link Channel#attr(AttributeKey)}.
      */
-    private static final String CISCO_CGI_EXECUTE_PATH = "/CGI/Execute";
+    private static final AttributeKey<RequestTiming> TIMING_KEY =
+            AttributeKey.valueOf("TIMING_KEY");
 
     /**
      * Type used for encoding for the content in the HTTP POST request.
      */
     private static final Charset ENCODING = Charsets.UTF_8;
 
-    /**
-     * Utility for deep cloning objects. Used on the mutable
-     * JAXB objects.
-     */
-    private static final Cloner CLONER = new Cloner();
-
     private final XmlPushCallbackManager callbackManager;
 
     /**
@@ -135,11 +260,112 @@ public class DefaultXmlPushService extends AbstractService
      */
     private final long responseTimeoutMs;
 
+    private final MetricsRegistry metrics;
+
+    private final String metricsPrefix;
+
+    private final Histogram connectTime;
+
+    private final Histogram requestTime;
+
+    private final Counter commandsRetried;
+
+    /**
+     * Source of the retry jitter.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Policy for retrying the commands that are submitted.
+     */
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+    /**
+     * Maximum number of connections to a single phone.
+     */
+    private volatile int maxConnectionsPerPhone = DEFAULT_MAX_CONNECTIONS_PER_PHONE;
+
+    /**
+     * Time that an idle keep-alive connection is kept open, 0 disables
+     * keep-alive.
+     */
+    private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    /**
+     * Maximum number of commands in flight.
+     */
+    private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /**
+     * Maximum number of commands in flight to a single subnet.
+     */
+    private volatile int maxInFlightPerSubnet = DEFAULT_MAX_IN_FLIGHT_PER_SUBNET;
+
+    /**
+     * Prefix length of the IPv4 subnets that phones are grouped by.
+     */
+    private volatile int subnetPrefixLength = DEFAULT_SUBNET_PREFIX_LENGTH;
+
+    /**
+     * Consecutive failures after which a phone is considered unreachable.
+     */
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    /**
+     * Time before an unreachable phone is first probed.
+     */
+    private volatile long circuitCooldownMs = DEFAULT_CIRCUIT_COOLDOWN_MS;
+
+    /**
+     * Upper bound of the time between probes of an unreachable phone.
+     */
+    private volatile long maxCircuitCooldownMs = DEFAULT_MAX_CIRCUIT_COOLDOWN_MS;
+
     /**
      * Netty {@link Bootstrap} used for client connections.
      */
     private Bootstrap bootstrap;
 
+    /**
+     * Pool of the connections to phones, created when the service starts.
+     */
+    private PhoneChannelPool channelPool;
+
+    /**
+     * Limits the commands in flight, created when the service starts.
+     */
+    private AdmissionController admissionController;
+
+    /**
+     * Tracks which phones are reachable, created when the service starts.
+     */
+    private PhoneCircuitBreaker circuitBreaker;
+
+    /**
+     * Schedules the response timeouts and deadlines, created when the
+     * service starts.
+     */
+    private TimeoutScheduler timeoutScheduler;
+
+    /**
+     * Records the connect and request times of each successful response.
+     */
+    private final FutureCallback<XmlPushResponse> timingRecorder =
+            new FutureCallback<XmlPushResponse>() {
+        @Override
+        public void onSuccess(XmlPushResponse response)
+        {
+            connectTime.record(response.getConnectTime(TimeUnit.MICROSECONDS));
+            requestTime.record(response.getRequestTime(TimeUnit.MICROSECONDS));
+        }
+
+        @Override
+        public void onFailure(Throwable t)
+        {
+            // Failures are reported through the returned future.
+        }
+    };
+
     @Inject
     public DefaultXmlPushService(XmlPushCallbackManager callbackManager)
     {
@@ -149,25 +375,240 @@ public class DefaultXmlPushService extends AbstractService
 
     public DefaultXmlPushService(XmlPushCallbackManager callbackManager,
             int connectTimeoutMs, int responseTimeoutMs)
+    {
+        this(callbackManager, connectTimeoutMs, responseTimeoutMs,
+                MetricsRegistry.getDefault());
+    }
+
+    /**
+     * Creates a service that records its metrics in the given registry.
+     *
+     * @param callbackManager
+     *            manager used to register command callbacks
+     * @param connectTimeoutMs
+     *            amount of time to wait for a connection to a phone
+     * @param responseTimeoutMs
+     *            amount of time to wait for a phone's response once
+     *            connected
+     * @param metrics
+     *            registry in which the service's metrics are created
+     */
+    public DefaultXmlPushService(XmlPushCallbackManager callbackManager,
+            int connectTimeoutMs, int responseTimeoutMs,
+            MetricsRegistry metrics)
     {
         this.callbackManager = callbackManager;
         this.connectTimeoutMs = connectTimeoutMs;
         this.responseTimeoutMs = responseTimeoutMs;
+        this.metrics = Preconditions.checkNotNull(metrics,
+                "MetricsRegistry cannot be null.");
+
+        metricsPrefix = "xmlpush.service." + SERVICE_COUNT.incrementAndGet() + ".";
+        connectTime = metrics.histogram(metricsPrefix + "connectTime");
+        requestTime = metrics.histogram(metricsPrefix + "requestTime");
+        commandsRetried = metrics.counter(metricsPrefix + "commandsRetried");
+    }
+
+    /**
+     * Sets how connections to phones are pooled. This must be called before
+     * the service is started.
+     *
+     * @param maxConnectionsPerPhone
+     *            maximum number of connections to a single phone, commands
+     *            beyond this wait for a connection to become free
+     * @param idleTimeout
+     *            time that an idle keep-alive connection is kept open, or 0
+     *            to close every connection after its response
+     * @param unit
+     *            unit of {@code idleTimeout}
+     * @throws IllegalStateException
+     *             if the service has already been started
+     */
+    public void setConnectionPoolPolicy(int maxConnectionsPerPhone,
+                                        long idleTimeout,
+                                        TimeUnit unit)
+    {
+        Preconditions.checkArgument(maxConnectionsPerPhone > 0,
+                "Max connections per phone must be greater than 0.");
+        Preconditions.checkArgument(idleTimeout >= 0,
+                "Idle timeout cannot be negative.");
+        Preconditions.checkNotNull(unit, "TimeUnit cannot be null.");
+        Preconditions.checkState(state() == State.NEW,
+                "The connection pool policy must be set before starting.");
+
+        this.maxConnectionsPerPhone = maxConnectionsPerPhone;
+        this.idleTimeoutMs = unit.toMillis(idleTimeout);
+    }
+
+    /**
+     * Sets how many commands may be in flight at once. This must be called
+     * before the service is started.
+     *
+     * @param maxInFlight
+     *            maximum number of commands in flight
+     * @param maxInFlightPerSubnet
+     *            maximum number of commands in flight to phones in the same
+     *            subnet
+     * @param subnetPrefixLength
+     *            number of leading bits of a phone's IPv4 address that
+     *            identify its subnet (IPv6 addresses are grouped by /64)
+     * @throws IllegalStateException
+     *             if the service has already been started
+     */
+    public void setAdmissionPolicy(int maxInFlight,
+                                   int maxInFlightPerSubnet,
+                                   int subnetPrefixLength)
+    {
+        Preconditions.checkArgument(maxInFlight > 0,
+                "Max in-flight commands must be greater than 0.");
+        Preconditions.checkArgument(maxInFlightPerSubnet > 0,
+                "Max in-flight commands per subnet must be greater than 0.");
+        Preconditions.checkArgument(subnetPrefixLength >= 0 && subnetPrefixLength <= 32,
+                "Subnet prefix length must be between 0 and 32.");
+        Preconditions.checkState(state() == State.NEW,
+                "The admission policy must be set before starting.");
+
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerSubnet = maxInFlightPerSubnet;
+        this.subnetPrefixLength = subnetPrefixLength;
+    }
+
+    /**
+     * Sets when phones are considered unreachable and how often they are
+     * probed. This must be called before the service is started.
+     *
+     * @param failureThreshold
+     *            number of consecutive connect failures or response timeouts
+     *            after which commands to the phone fail immediately
+     * @param cooldown
+     *            time before an unreachable phone is first probed
+     * @param maxCooldown
+     *            upper bound of the time between probes, which doubles after
+     *            every failed probe
+     * @param unit
+     *            unit of {@code cooldown} and {@code maxCooldown}
+     * @throws IllegalStateException
+     *             if the service has already been started
+     */
+    public void setCircuitBreakerPolicy(int failureThreshold,
+                                        long cooldown,
+                                        long maxCooldown,
+                                        TimeUnit unit)
+    {
+        Preconditions.checkArgument(failureThreshold > 0,
+                "Failure threshold must be greater than 0.");
+        Preconditions.checkArgument(cooldown > 0,
+                "Cool-down must be greater than 0.");
+        Preconditions.checkArgument(maxCooldown >= cooldown,
+                "Max cool-down cannot be less than the cool-down.");
+        Preconditions.checkNotNull(unit, "TimeUnit cannot be null.");
+        Preconditions.checkState(state() == State.NEW,
+                "The circuit breaker policy must be set before starting.");
+
+        this.failureThreshold = failureThreshold;
+        this.circuitCooldownMs = unit.toMillis(cooldown);
+        this.maxCircuitCooldownMs = unit.toMillis(maxCooldown);
+    }
+
+    /**
+     * Sets the policy for retrying commands that fail because the phone
+     * could not be reached or did not respond in time. Commands that were
+     * already submitted keep their policy. By default commands are not
+     * retried ({@link RetryPolicy#NONE}).
+     *
+     * @param retryPolicy
+     *            policy for the commands submitted from now on
+     */
+    @Override
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        this.retryPolicy = Preconditions.checkNotNull(retryPolicy,
+                "RetryPolicy cannot be null.");
+    }
+
+    /**
+     * Returns whether commands are currently sent to the phone. A phone is
+     * unreachable after repeated connect failures or timeouts, until a
+     * background probe connects to it again.
+     *
+     * @param phone
+     *            phone to check
+     * @return false if commands to the phone fail immediately
+     */
+    public boolean isPhoneReachable(IpPhone phone)
+    {
+        PhoneCircuitBreaker breaker = circuitBreaker;
+        return breaker == null ||
+                breaker.getState(phone) == PhoneCircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Returns the number of response timeouts and command deadlines that
+     * are scheduled and have not yet expired or been cancelled by the
+     * completion of their command.
+     *
+     * @return pending timeout count
+     */
+    public int getPendingTimeoutCount()
+    {
+        TimeoutScheduler scheduler = timeoutScheduler;
+        return scheduler == null ? 0 : scheduler.getPendingCount();
+    }
+
+    /**
+     * Returns the number of commands waiting for their turn to be sent.
+     *
+     * @return admission queue depth
+     */
+    public int getQueuedCommandCount()
+    {
+        AdmissionController controller = admissionController;
+        return controller == null ? 0 : controller.getQueueDepth();
+    }
+
+    /**
+     * Returns the prefix of the names of this service's metrics, for example
+     * {@code xmlpush.service.1.}.
+     *
+     * @return metric name prefix
+     */
+    public String getMetricsPrefix()
+    {
+        return metricsPrefix;
     }
 
     @Override
     protected void doStart()
     {
+        bootstrap = new Bootstrap();
+        channelPool = new PhoneChannelPool(bootstrap, maxConnectionsPerPhone,
+                idleTimeoutMs, TimeUnit.MILLISECONDS, metrics, metricsPrefix);
+        admissionController = new AdmissionController(maxInFlight,
+                maxInFlightPerSubnet, subnetPrefixLength, metrics, metricsPrefix);
+        circuitBreaker = new PhoneCircuitBreaker(failureThreshold,
+                circuitCooldownMs, maxCircuitCooldownMs, TimeUnit.MILLISECONDS,
+                Ticker.systemTicker(), metrics, metricsPrefix);
+        timeoutScheduler = new TimeoutScheduler(new HashedWheelTimer(
+                new DefaultThreadFactory("xmlpush-timeout", true),
+                TIMEOUT_TICK_MS, TimeUnit.MILLISECONDS), metrics, metricsPrefix);
+
         ChannelInboundHandler handler = new XmlResponseChannelHandler(
-                                                PHONE_KEY, PUSH_RESP_KEY);
+                PHONE_KEY, PUSH_RESP_KEY, TIMING_KEY, channelPool);
 
-        bootstrap = new Bootstrap();
         bootstrap.group(new NioEventLoopGroup())
                  .channel(NioSocketChannel.class)
                  .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeoutMs)
                  .handler(new HttpClientInitializer(handler))
                  .validate();
 
+        bootstrap.group().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run()
+            {
+                probeUnreachablePhones();
+            }
+        }, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
         notifyStarted();
 
         LOGGER.info("Service is now STARTED.");
@@ -197,34 +638,30 @@ public class DefaultXmlPushService extends AbstractService
             IpPhone phone, CiscoIPPhoneExecute command,
             XmlPushCallback commandCallback)
     {
-        checkRunning();
-
-        String callbackUrl = null;
-        if (commandCallback != null)
-        {
-            callbackUrl = callbackManager.registerCallback(commandCallback);
-        }
-
-        final CiscoIPPhoneExecute commandCopy = CLONER.deepClone(command);
-
-        final HttpRequest httpRequest = buildRequest(phone.getHostname(),
-                phone.getUsername(), phone.getPassword(),
-                commandCopy, callbackUrl);
+        return submitCommand(phone, CommandTemplate.compile(command),
+                             commandCallback);
+    }
 
-        final SettableFuture<XmlPushResponse> responseFuture =
-                SettableFuture.create();
+    @Override
+    public ListenableFuture<XmlPushResponse> submitCommand(
+            IpPhone phone, CommandTemplate template,
+            XmlPushCallback commandCallback)
+    {
+        return submitCommand(phone, template, commandCallback,
+                             CommandPriority.NORMAL);
+    }
 
-        ChannelFuture channelFuture = bootstrap.connect(phone.getHostname(),
-                                                        phone.getPort());
-        channelFuture.addListener(
-                new ChannelConnectListener<XmlPushResponse>(
-                        httpRequest,
-                        PHONE_KEY, phone,
-                        PUSH_RESP_KEY, responseFuture,
-                        bootstrap.group(),
-                        responseTimeoutMs));
+    @Override
+    public ListenableFuture<XmlPushResponse> submitCommand(
+            IpPhone phone, CommandTemplate template,
+            XmlPushCallback commandCallback, CommandPriority priority)
+    {
+        checkRunning();
+        Preconditions.checkNotNull(template, "CommandTemplate cannot be null.");
+        Preconditions.checkNotNull(priority, "CommandPriority cannot be null.");
 
-        return responseFuture;
+        ByteBuf body = template.encode(registerCallback(commandCallback));
+        return submit(phone, body, priority);
     }
 
     @Override
@@ -239,15 +676,68 @@ public class DefaultXmlPushService extends AbstractService
             ImmutableList<IpPhone> phones, CiscoIPPhoneExecute command,
             XmlPushCallback commandCallback)
     {
-        Builder<ListenableFuture<XmlPushResponse>> listBuilder =
-                ImmutableList.builder();
+        return submitCommand(phones, CommandTemplate.compile(command),
+                             commandCallback);
+    }
+
+    @Override
+    public ImmutableList<ListenableFuture<XmlPushResponse>> submitCommand(
+            ImmutableList<IpPhone> phones, CommandTemplate template,
+            XmlPushCallback commandCallback)
+    {
+        return submitCommand(phones, template, commandCallback,
+                             CommandPriority.NORMAL);
+    }
+
+    @Override
+    public ImmutableList<ListenableFuture<XmlPushResponse>> submitCommand(
+            ImmutableList<IpPhone> phones, CommandTemplate template,
+            XmlPushCallback commandCallback, CommandPriority priority)
+    {
+        checkRunning();
+        Preconditions.checkNotNull(template, "CommandTemplate cannot be null.");
+        Preconditions.checkNotNull(priority, "CommandPriority cannot be null.");
+
+        // Only the headers differ between phones, so the body is encoded
+        // once and every phone's request shares it.
+        ByteBuf body = template.encode(registerCallback(commandCallback));
+        try
+        {
+            Builder<ListenableFuture<XmlPushResponse>> listBuilder =
+                    ImmutableList.builder();
+
+            for (IpPhone phone : phones)
+            {
+                listBuilder.add(submit(phone, body.retain(), priority));
+            }
 
-        for (IpPhone phone : phones)
+            return listBuilder.build();
+        }
+        finally
         {
-            listBuilder.add(submitCommand(phone, command, commandCallback));
+            body.release();
         }
+    }
 
-        return listBuilder.build();
+    @Override
+    public BroadcastHandle broadcastCommand(
+            ImmutableList<IpPhone> phones, CommandTemplate template,
+            XmlPushCallback commandCallback, BroadcastListener listener)
+    {
+        return broadcastCommand(phones, template, commandCallback, listener,
+                                CommandPriority.NORMAL);
+    }
+
+    @Override
+    public BroadcastHandle broadcastCommand(
+            ImmutableList<IpPhone> phones, CommandTemplate template,
+            XmlPushCallback commandCallback, BroadcastListener listener,
+            CommandPriority priority)
+    {
+        long startNanos = System.nanoTime();
+        return new DefaultBroadcastHandle(phones,
+                submitCommand(phones, template, commandCallback, priority),
+                listener, startNanos);
     }
 
     @Override
@@ -257,86 +747,119 @@ public class DefaultXmlPushService extends AbstractService
     }
 
     /**
-     * Asserts that the service is in the {@code RUNNING} state.
+     * Registers the callback, if there is one, and returns its URL.
      *
-     * @throws IllegalStateException
-     *             if the service in not in the {@code RUNNING} state
-     * @see Service#isRunning()
+     * @param commandCallback
+     *            callback to register, may be null
+     * @return base callback URL, or null if there is no callback
      */
-    private void checkRunning()
+    private String registerCallback(XmlPushCallback commandCallback)
     {
-        Preconditions.checkState(isRunning(),
-                "The service is not RUNNING.");
+        return commandCallback == null ?
+                null : callbackManager.registerCallback(commandCallback);
     }
 
     /**
-     * Builds a HTTP POST request containing the marshaled CiscoIPPhoneExecute
-     * object in the body.
-     *
-     * <p/>
-     * The phones require authentication in order to execute the commands. The
-     * specified {@code username} and {@code password} will be included in the
-     * request using HTTP Basic Authentication.
+     * Submits a command, whose encoded POST body is given, to a phone.
      *
-     * @param hostname
-     *            hostname of the server where the request will be sent
-     * @param username
-     *            username for authentiation to the phone
-     * @param password
-     *            password for authentication to the phone
-     * @param command
-     *            command to execute, this will be marshaled to XML
-     * @param baseCallbackUrl
-     *            optional base URL to the callback resource, any URLs in the
-     *            outgoing command will have $BASEURL replaced with this value.
-     *            {@code callbackUrl} cannot not end with '/'.
-     * @return a fully-populated HTTP request
-     */
-    private static HttpRequest buildRequest(String hostname, String username,
-            String password, CiscoIPPhoneExecute command, String baseCallbackUrl)
+     * @param phone
+     *            phone to send the command to
+     * @param body
+     *            encoded POST body, the caller's reference to it is
+     *            transferred to this method
+     * @param priority
+     *            priority of the command while it waits for admission
+     * @return future containing the phone's response
+     */
+    private ListenableFuture<XmlPushResponse> submit(final IpPhone phone,
+                                                     ByteBuf body,
+                                                     CommandPriority priority)
     {
-        Preconditions.checkNotNull(username, "Username cannot be null.");
-        Preconditions.checkNotNull(password, "Password cannot be null.");
-        Preconditions.checkNotNull(command,
-                "CiscoIPPhoneExecute object cannot be null.");
+        final PushRequest pushRequest;
+        try
+        {
+            Preconditions.checkNotNull(phone.getUsername(),
+                    "Username cannot be null.");
+            Preconditions.checkNotNull(phone.getPassword(),
+                    "Password cannot be null.");
+
+            if (!circuitBreaker.allowRequest(phone))
+            {
+                body.release();
+                return Futures.immediateFailedFuture(new PhoneUnreachableException(
+                        phone.getHostname() + ":" + phone.getPort() +
+                        " is unreachable after repeated failures."));
+            }
+
+            pushRequest = new PushRequest(body, phone.getHostname(),
+                    base64EncodeCredentials(phone.getUsername(), phone.getPassword()),
+                    idleTimeoutMs > 0);
+        }
+        catch (RuntimeException e)
+        {
+            body.release();
+            throw e;
+        }
 
-        if (baseCallbackUrl != null)
+        final SettableFuture<XmlPushResponse> responseFuture =
+                SettableFuture.create();
+        Futures.addCallback(responseFuture, timingRecorder);
+        responseFuture.addListener(new Runnable() {
+            @Override
+            public void run()
+            {
+                pushRequest.release();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        PushCommand command =
+                new PushCommand(phone, pushRequest, responseFuture, retryPolicy);
+        command.scheduleDeadline();
+        admissionController.submit(phone, priority, responseFuture, command);
+
+        return responseFuture;
+    }
+
+    /**
+     * Connects to each unreachable phone that is due for a probe. A phone
+     * that accepts the connection is reachable again.
+     */
+    private void probeUnreachablePhones()
+    {
+        for (final IpPhone phone : circuitBreaker.phonesToProbe())
         {
-            replaceBaseUrlPlaceholder(command, baseCallbackUrl);
+            LOGGER.debug("Probing {}:{}.", phone.getHostname(), phone.getPort());
+
+            bootstrap.connect(phone.getHostname(), phone.getPort())
+                     .addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future)
+                {
+                    if (future.isSuccess())
+                    {
+                        circuitBreaker.recordSuccess(phone);
+                    }
+                    else
+                    {
+                        circuitBreaker.recordFailure(phone);
+                    }
+                    future.channel().close();
+                }
+            });
         }
+    }
 
-        // Marshal object to XML and escape the XML:
-        String objectAsXml = XmlMarshaller.marshalToXml(command);
-        String urlEncodedXml = urlEncode(objectAsXml);
-
-        // Build the content of the POST body:
-        StringBuilder postContent = new StringBuilder();
-        postContent.append("XML=");
-        postContent.append(urlEncodedXml);
-
-        // Encode the POST body to bytes:
-        byte[] encodedPostContent =
-                postContent.toString().getBytes(ENCODING);
-        ByteBuf postContentByteBuf = Unpooled.wrappedBuffer(encodedPostContent);
-
-        // Encode credentials:
-        String encodedCredentials = base64EncodeCredentials(username, password);
-
-        // Build the HTTP request:
-        FullHttpRequest request = new DefaultFullHttpRequest(
-                HttpVersion.HTTP_1_1, HttpMethod.POST,
-                CISCO_CGI_EXECUTE_PATH, postContentByteBuf);
-        request.headers().set(HttpHeaders.Names.HOST, hostname);
-        request.headers().set(HttpHeaders.Names.AUTHORIZATION,
-                encodedCredentials);
-        request.headers().set(HttpHeaders.Names.CONNECTION,
-                HttpHeaders.Values.CLOSE);
-        request.headers().set(HttpHeaders.Names.CONTENT_TYPE,
-                HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED);
-        request.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
-                encodedPostContent.length);
-
-        return request;
+    /**
+     * Asserts that the service is in the {@code RUNNING} state.
+     *
+     * @throws IllegalStateException
+     *             if the service in not in the {@code RUNNING} state
+     * @see Service#isRunning()
+     */
+    private void checkRunning()
+    {
+        Preconditions.checkState(isRunning(),
+                "The service is not RUNNING.");
     }
 
     /**
@@ -363,50 +886,262 @@ public class DefaultXmlPushService extends AbstractService
     }
 
     /**
-     * Replaces $BASEURL contained in any URLs within the {@code command} with
-     * {@code baseCallbackUrl}.
-     *
-     * @param command
-     *            command containing URLs
-     * @param baseCallbackUrl
-     *            value to replace $BASEURL with
+     * The attempts to send one command. The first attempt is made when the
+     * command is admitted by the {@link AdmissionController}, and each
+     * retry is scheduled on the event loop after the backoff of the
+     * {@link RetryPolicy}. Attempts never overlap.
      */
-    private static void replaceBaseUrlPlaceholder(CiscoIPPhoneExecute command,
-                                                  String baseCallbackUrl)
+    private final class PushCommand implements Runnable
     {
-        checkArgument(!baseCallbackUrl.endsWith("/"),
-                "Base callback URL cannot end with '/'");
+        private final IpPhone phone;
+
+        private final PushRequest pushRequest;
+
+        /**
+         * Future returned to the caller, completed by the last attempt.
+         */
+        private final SettableFuture<XmlPushResponse> responseFuture;
+
+        private final RetryPolicy retryPolicy;
+
+        /**
+         * {@link System#nanoTime()} by which the command must be complete,
+         * valid if {@code hasDeadline}.
+         */
+        private final long deadlineNanos;
+
+        private final boolean hasDeadline;
 
-        for (CiscoIPPhoneExecuteItemType item : command.getExecuteItem())
+        /**
+         * Number of attempts started. Only modified by the attempt that is
+         * starting, which happens after the previous attempt completed.
+         */
+        private volatile int attempt;
+
+        /**
+         * Future of the current attempt, cancelled when the caller cancels
+         * the command.
+         */
+        private volatile SettableFuture<XmlPushResponse> attemptFuture;
+
+        /**
+         * Whether the command has been sent again because a reused
+         * connection was closed by the phone.
+         */
+        private volatile boolean staleConnectionRetried;
+
+        PushCommand(IpPhone phone, PushRequest pushRequest,
+                    SettableFuture<XmlPushResponse> responseFuture,
+                    RetryPolicy retryPolicy)
+        {
+            this.phone = phone;
+            this.pushRequest = pushRequest;
+            this.responseFuture = responseFuture;
+            this.retryPolicy = retryPolicy;
+
+            long deadline = retryPolicy.getDeadline(TimeUnit.NANOSECONDS);
+            this.hasDeadline = deadline > 0;
+            this.deadlineNanos = System.nanoTime() + deadline;
+        }
+
+        /**
+         * Schedules the cancellation of the command at its deadline, if it
+         * has one. Invoked when the command is submitted, so a command that
+         * waits in the admission queue past its deadline is cancelled and
+         * leaves the queue without being sent.
+         */
+        void scheduleDeadline()
         {
-            if (item.getURL() != null)
+            if (hasDeadline)
             {
-                item.setURL(item.getURL().replaceAll("\\$BASEURL", baseCallbackUrl));
+                timeoutScheduler.schedule(responseFuture, new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        responseFuture.cancel(false);
+                    }
+                }, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
             }
         }
-    }
 
-    /**
-     * Translates a string into <code>application/x-www-form-urlencoded</code>
-     * format using a specific encoding scheme. This method uses UTF-8 to be
-     * compliant with the <a href=
-     * "http://www.w3.org/TR/html40/appendix/notes.html#non-ascii-chars"> World
-     * Wide Web Consortium Recommendation</a> recommendation.
-     *
-     * @param s
-     *            <code>String</code> to be translated.
-     * @return the translated <code>String</code>.
-     */
-    private static String urlEncode(String source)
-    {
-        try
+        /**
+         * Makes the first attempt, invoked when the command is admitted.
+         */
+        @Override
+        public void run()
+        {
+            responseFuture.addListener(new Runnable() {
+                @Override
+                public void run()
+                {
+                    SettableFuture<XmlPushResponse> current = attemptFuture;
+                    if (responseFuture.isCancelled() && current != null)
+                    {
+                        current.cancel(false);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+
+            attempt();
+        }
+
+        private void attempt()
+        {
+            if (responseFuture.isDone())
+            {
+                return;
+            }
+
+            if (attempt > 0 && circuitBreaker.getState(phone) !=
+                    PhoneCircuitBreaker.State.CLOSED && awaitCircuit())
+            {
+                return;
+            }
+
+            if (attempt > 0 && !circuitBreaker.allowRequest(phone))
+            {
+                responseFuture.setException(new PhoneUnreachableException(
+                        phone.getHostname() + ":" + phone.getPort() +
+                        " became unreachable after " + attempt +
+                        " attempts."));
+                return;
+            }
+
+            send(++attempt, false);
+        }
+
+        /**
+         * Schedules the next attempt for after the phone's open circuit has
+         * been probed, or the next backoff if that is later. The wait does
+         * not use up an attempt.
+         *
+         * @return false if the command has no deadline or the deadline
+         *         passes before then
+         */
+        private boolean awaitCircuit()
         {
-            // Must use UTF-8 to be W3C complaint.
-            return URLEncoder.encode(source, Charsets.UTF_8.name());
+            long delayNanos = Math.max(circuitBreaker.getProbeDelayNanos(phone),
+                    retryPolicy.getBackoffNanos(attempt + 1, random));
+            if (!hasDeadline || deadlineNanos - System.nanoTime() <= delayNanos)
+            {
+                return false;
+            }
+
+            LOGGER.debug("Circuit to {} is open, retrying in {} ms.",
+                    phone.getHostname(), TimeUnit.NANOSECONDS.toMillis(delayNanos));
+            bootstrap.group().schedule(new Runnable() {
+                @Override
+                public void run()
+                {
+                    attempt();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+            return true;
         }
-        catch (UnsupportedEncodingException e)
+
+        /**
+         * Sends the command as the given attempt.
+         *
+         * @param number
+         *            number of the attempt
+         * @param newConnection
+         *            true to close the phone's idle connections and send
+         *            the command on a new one
+         */
+        private void send(int number, boolean newConnection)
         {
-            throw new RuntimeException("Unsupported charset (UTF-8).", e);
+            final SettableFuture<XmlPushResponse> future = SettableFuture.create();
+            attemptFuture = future;
+            if (responseFuture.isCancelled())
+            {
+                future.cancel(false);
+                return;
+            }
+
+            Futures.addCallback(future, new FutureCallback<XmlPushResponse>() {
+                @Override
+                public void onSuccess(XmlPushResponse response)
+                {
+                    responseFuture.set(response);
+                }
+
+                @Override
+                public void onFailure(Throwable t)
+                {
+                    attemptFailed(future, t);
+                }
+            });
+
+            ChannelConnectListener<XmlPushResponse> listener =
+                    new ChannelConnectListener<XmlPushResponse>(
+                            pushRequest,
+                            PHONE_KEY, phone, circuitBreaker, channelPool,
+                            PUSH_RESP_KEY, future,
+                            TIMING_KEY, System.nanoTime(), number,
+                            timeoutScheduler,
+                            responseTimeoutMs);
+            if (newConnection)
+            {
+                channelPool.acquireNew(phone, listener);
+            }
+            else
+            {
+                channelPool.acquire(phone, listener);
+            }
+        }
+
+        private void attemptFailed(SettableFuture<XmlPushResponse> future,
+                                   Throwable cause)
+        {
+            if (responseFuture.isDone())
+            {
+                return;
+            }
+
+            // The phone most likely closed the kept-alive connection as the
+            // request was written. Send the command again at once on a new
+            // connection, without counting it as an attempt:
+            if (cause instanceof StaleConnectionException && !staleConnectionRetried)
+            {
+                staleConnectionRetried = true;
+                LOGGER.debug("Reused connection to {} was closed, sending again " +
+                        "on a new connection.", phone.getHostname());
+                send(attempt, true);
+                return;
+            }
+
+            // A cancelled attempt that the caller did not cancel timed out.
+            boolean timedOut = future.isCancelled();
+            if ((timedOut || cause instanceof IOException) &&
+                    attempt < retryPolicy.getMaxAttempts())
+            {
+                long backoffNanos = retryPolicy.getBackoffNanos(attempt + 1, random);
+                if (!hasDeadline || deadlineNanos - System.nanoTime() > backoffNanos)
+                {
+                    LOGGER.debug("Attempt {} to {} failed, retrying in {} ms.",
+                            attempt, phone.getHostname(),
+                            TimeUnit.NANOSECONDS.toMillis(backoffNanos));
+
+                    commandsRetried.increment();
+                    bootstrap.group().schedule(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            attempt();
+                        }
+                    }, backoffNanos, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+
+            if (timedOut)
+            {
+                responseFuture.cancel(false);
+            }
+            else
+            {
+                responseFuture.setException(cause);
+            }
         }
     }
 
@@ -425,6 +1160,9 @@ public class DefaultXmlPushService extends AbstractService
         public void operationComplete(io.netty.util.concurrent.Future<T> future)
                 throws Exception
         {
+            timeoutScheduler.stop();
+            metrics.remove(metricsPrefix);
+
             // Transition to service from STOPPING --> STOPPED.
             notifyStopped();
 
@@ -0,0 +1,582 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cisco.common.metrics.Counter;
+import com.andrewkroh.cisco.common.metrics.Gauge;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.andrewkroh.cisco.phoneinventory.IpPhone;
+import com.google.common.base.Preconditions;
+
+/**
+ * Pool of HTTP connections to phones, keyed by the phone's hostname and
+ * port.
+ *
+ * <p/>
+ * A channel is handed out by {@link #acquire(IpPhone, ChannelFutureListener)}
+ * and is either given back with {@link #release(Channel)}, once a response
+ * that allows the connection to be kept alive has been read, or simply
+ * closed. Released channels are reused by the next request to the same
+ * phone, most recently released first, and are closed if they stay idle
+ * longer than the idle timeout. At most {@code maxConnectionsPerPhone}
+ * channels to a phone are open or connecting at once; further requests wait
+ * in FIFO order for one of them to be released or closed.
+ *
+ * <p/>
+ * The pool records the {@code connectionsOpened}, {@code connectionsReused}
+ * and {@code idleConnectionsEvicted} counters and the
+ * {@code openConnections} and {@code idleConnections} gauges.
+ *
+ * @author akroh
+ */
+class PhoneChannelPool
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(PhoneChannelPool.class);
+
+    /**
+     * {@code AttributeKey} of the {@link PhonePool} that a channel belongs to.
+     */
+    private static final AttributeKey<PhonePool> POOL_KEY =
+            AttributeKey.valueOf("POOL_KEY");
+
+    /**
+     * {@code AttributeKey} of the number of times a channel has been handed
+     * out by the pool.
+     */
+    private static final AttributeKey<Integer> LEASES_KEY =
+            AttributeKey.valueOf("LEASES_KEY");
+
+    /**
+     * {@code AttributeKey} set while a channel is about to be released, see
+     * {@link PhoneChannelPool#willRelease(Channel)}.
+     */
+    private static final AttributeKey<Boolean> RELEASING_KEY =
+            AttributeKey.valueOf("RELEASING_KEY");
+
+    /**
+     * Connections to one phone. All fields are guarded by the instance's
+     * monitor.
+     */
+    private static final class PhonePool
+    {
+        private final String hostname;
+
+        private final int port;
+
+        /**
+         * Idle channels, most recently released first.
+         */
+        private final ArrayDeque<IdleChannel> idle = new ArrayDeque<IdleChannel>();
+
+        /**
+         * Requests waiting for a connection.
+         */
+        private final ArrayDeque<ChannelFutureListener> waiters =
+                new ArrayDeque<ChannelFutureListener>();
+
+        /**
+         * Number of channels that are connecting or open, idle or not.
+         */
+        private int open;
+
+        /**
+         * Number of channels that are about to be released. Requests wait
+         * for them instead of opening new connections.
+         */
+        private int releasing;
+
+        PhonePool(String hostname, int port)
+        {
+            this.hostname = hostname;
+            this.port = port;
+        }
+    }
+
+    /**
+     * Entry of an idle channel. Identity is used to tell whether the channel
+     * is still idle when its eviction task runs.
+     */
+    private static final class IdleChannel
+    {
+        private final Channel channel;
+
+        /**
+         * Closes the channel when its idle timeout expires. Cancelled when
+         * the channel leaves the pool. Guarded by the pool's monitor.
+         */
+        private ScheduledFuture<?> eviction;
+
+        IdleChannel(Channel channel)
+        {
+            this.channel = channel;
+        }
+    }
+
+    private final Bootstrap bootstrap;
+
+    private final int maxConnectionsPerPhone;
+
+    private final long idleTimeoutNanos;
+
+    private final ConcurrentMap<String, PhonePool> pools =
+            new ConcurrentHashMap<String, PhonePool>();
+
+    private final AtomicInteger openCount = new AtomicInteger();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final Counter connectionsOpened;
+
+    private final Counter connectionsReused;
+
+    private final Counter idleConnectionsEvicted;
+
+    /**
+     * Creates a pool that opens its connections using the given
+     * {@code Bootstrap}.
+     *
+     * @param bootstrap
+     *            bootstrap used to connect to phones
+     * @param maxConnectionsPerPhone
+     *            maximum number of connections to a single phone
+     * @param idleTimeout
+     *            time a released channel is kept open, or 0 to never reuse
+     *            channels
+     * @param unit
+     *            unit of {@code idleTimeout}
+     * @param metrics
+     *            registry to record the metrics in
+     * @param metricsPrefix
+     *            prefix of the metric names
+     */
+    PhoneChannelPool(Bootstrap bootstrap, int maxConnectionsPerPhone,
+                     long idleTimeout, TimeUnit unit,
+                     MetricsRegistry metrics, String metricsPrefix)
+    {
+        this.bootstrap = Preconditions.checkNotNull(bootstrap,
+                "Bootstrap cannot be null.");
+        Preconditions.checkArgument(maxConnectionsPerPhone > 0,
+                "Max connections per phone must be greater than 0.");
+        Preconditions.checkArgument(idleTimeout >= 0,
+                "Idle timeout cannot be negative.");
+        this.maxConnectionsPerPhone = maxConnectionsPerPhone;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+
+        connectionsOpened = metrics.counter(metricsPrefix + "connectionsOpened");
+        connectionsReused = metrics.counter(metricsPrefix + "connectionsReused");
+        idleConnectionsEvicted = metrics.counter(metricsPrefix + "idleConnectionsEvicted");
+        metrics.gauge(metricsPrefix + "openConnections", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return openCount.get();
+            }
+        });
+        metrics.gauge(metricsPrefix + "idleConnections", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return idleCount.get();
+            }
+        });
+    }
+
+    /**
+     * Obtains a connected channel to the phone and notifies the listener with
+     * a {@code ChannelFuture} for it. An idle channel is reused if there is
+     * one, otherwise a new connection is opened, or, if the phone already
+     * has the maximum number of connections, the listener is notified once
+     * one of them is released or closed.
+     *
+     * <p/>
+     * The listener is always notified on the channel's event loop. If the
+     * connect fails the future contains the cause, and the listener should
+     * close the channel.
+     *
+     * @param phone
+     *            phone to connect to
+     * @param listener
+     *            listener to notify with the channel
+     */
+    void acquire(IpPhone phone, ChannelFutureListener listener)
+    {
+        PhonePool pool = poolFor(phone);
+
+        Channel reused = null;
+        boolean connect = false;
+        synchronized (pool)
+        {
+            IdleChannel entry;
+            while ((entry = pool.idle.pollFirst()) != null)
+            {
+                idleCount.decrementAndGet();
+                entry.eviction.cancel(false);
+
+                // A channel closed by the phone is discarded here if its
+                // close listener has not run yet.
+                if (entry.channel.isActive())
+                {
+                    reused = entry.channel;
+                    break;
+                }
+            }
+
+            if (reused == null)
+            {
+                if (pool.open < maxConnectionsPerPhone && pool.releasing == 0)
+                {
+                    pool.open++;
+                    connect = true;
+                }
+                else
+                {
+                    pool.waiters.add(listener);
+                }
+            }
+        }
+
+        if (reused != null)
+        {
+            handOut(reused, listener);
+        }
+        else if (connect)
+        {
+            connect(pool, listener);
+        }
+    }
+
+    /**
+     * Obtains a channel to the phone like
+     * {@link #acquire(IpPhone, ChannelFutureListener)}, but first closes the
+     * phone's idle channels. Used after a reused channel turned out to be
+     * closed by the phone, which makes the other idle channels suspect too.
+     *
+     * @param phone
+     *            phone to connect to
+     * @param listener
+     *            listener to notify with the channel
+     */
+    void acquireNew(IpPhone phone, ChannelFutureListener listener)
+    {
+        PhonePool pool = poolFor(phone);
+
+        List<Channel> stale = new ArrayList<Channel>();
+        synchronized (pool)
+        {
+            IdleChannel entry;
+            while ((entry = pool.idle.pollFirst()) != null)
+            {
+                idleCount.decrementAndGet();
+                entry.eviction.cancel(false);
+                stale.add(entry.channel);
+            }
+        }
+
+        // Closing frees their slots, so the listener waits for a new
+        // connection if the phone is at its connection limit:
+        for (Channel channel : stale)
+        {
+            channel.close();
+        }
+
+        acquire(phone, listener);
+    }
+
+    /**
+     * Announces that a channel will be released as soon as its response
+     * future has been completed. Until {@link #release(Channel)} is called,
+     * requests to the phone wait for the channel rather than opening a new
+     * connection, so that a command submitted when the response completes
+     * can still reuse it.
+     *
+     * @param channel
+     *            channel that is about to be released
+     */
+    void willRelease(Channel channel)
+    {
+        PhonePool pool = channel.attr(POOL_KEY).get();
+        if (pool == null || idleTimeoutNanos == 0)
+        {
+            return;
+        }
+
+        channel.attr(RELEASING_KEY).set(Boolean.TRUE);
+        synchronized (pool)
+        {
+            pool.releasing++;
+        }
+    }
+
+    /**
+     * Returns a channel whose response has been completely read to the pool.
+     * The channel is closed instead if reuse is disabled or it did not come
+     * from this pool.
+     *
+     * @param channel
+     *            channel to release
+     */
+    void release(Channel channel)
+    {
+        PhonePool pool = channel.attr(POOL_KEY).get();
+        boolean announced = channel.attr(RELEASING_KEY).getAndSet(null) != null;
+        if (pool == null || idleTimeoutNanos == 0 || !channel.isActive())
+        {
+            if (announced)
+            {
+                synchronized (pool)
+                {
+                    pool.releasing--;
+                }
+                connectWaiters(pool);
+            }
+            channel.close();
+            return;
+        }
+
+        ChannelFutureListener waiter;
+        final PhonePool owner = pool;
+        final IdleChannel entry = new IdleChannel(channel);
+        synchronized (pool)
+        {
+            if (announced)
+            {
+                pool.releasing--;
+            }
+
+            waiter = pool.waiters.poll();
+            if (waiter == null)
+            {
+                entry.eviction = channel.eventLoop().schedule(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        evict(owner, entry);
+                    }
+                }, idleTimeoutNanos, TimeUnit.NANOSECONDS);
+                pool.idle.addFirst(entry);
+                idleCount.incrementAndGet();
+            }
+        }
+
+        if (waiter != null)
+        {
+            handOut(channel, waiter);
+            if (announced)
+            {
+                connectWaiters(pool);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the channel had already been used for a previous
+     * request when it was handed out.
+     *
+     * @param channel
+     *            channel obtained from the pool
+     * @return true if the connection was reused
+     */
+    static boolean isReused(Channel channel)
+    {
+        Integer leases = channel.attr(LEASES_KEY).get();
+        return leases != null && leases > 1;
+    }
+
+    /**
+     * Returns the number of channels that are connecting or open.
+     *
+     * @return number of connections
+     */
+    int getOpenConnectionCount()
+    {
+        return openCount.get();
+    }
+
+    /**
+     * Returns the number of open channels waiting in the pool to be reused.
+     *
+     * @return number of idle connections
+     */
+    int getIdleConnectionCount()
+    {
+        return idleCount.get();
+    }
+
+    private PhonePool poolFor(IpPhone phone)
+    {
+        String key = phone.getHostname() + ":" + phone.getPort();
+        PhonePool pool = pools.get(key);
+        if (pool == null)
+        {
+            PhonePool newPool = new PhonePool(phone.getHostname(), phone.getPort());
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null)
+            {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Opens a new connection for the listener. The caller must have already
+     * counted it in {@code pool.open}.
+     */
+    private void connect(final PhonePool pool, ChannelFutureListener listener)
+    {
+        ChannelFuture connectFuture = bootstrap.connect(pool.hostname, pool.port);
+        final Channel channel = connectFuture.channel();
+        channel.attr(POOL_KEY).set(pool);
+        channel.attr(LEASES_KEY).set(1);
+        openCount.incrementAndGet();
+        connectionsOpened.increment();
+
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future)
+            {
+                closed(pool, channel);
+            }
+        });
+
+        connectFuture.addListener(listener);
+    }
+
+    /**
+     * Hands a channel that has already been connected to a listener.
+     */
+    private void handOut(Channel channel, ChannelFutureListener listener)
+    {
+        channel.attr(LEASES_KEY).set(channel.attr(LEASES_KEY).get() + 1);
+        connectionsReused.increment();
+        channel.newSucceededFuture().addListener(listener);
+    }
+
+    /**
+     * Removes a closed channel from the pool and lets the next waiter, if
+     * any, open a connection in its place.
+     */
+    private void closed(PhonePool pool, Channel channel)
+    {
+        openCount.decrementAndGet();
+
+        ChannelFutureListener waiter;
+        synchronized (pool)
+        {
+            for (Iterator<IdleChannel> it = pool.idle.iterator(); it.hasNext();)
+            {
+                IdleChannel entry = it.next();
+                if (entry.channel == channel)
+                {
+                    it.remove();
+                    idleCount.decrementAndGet();
+                    entry.eviction.cancel(false);
+                    break;
+                }
+            }
+
+            pool.open--;
+            waiter = pool.waiters.poll();
+            if (waiter != null)
+            {
+                pool.open++;
+            }
+        }
+
+        if (waiter != null)
+        {
+            connect(pool, waiter);
+        }
+    }
+
+    /**
+     * Opens connections for waiting requests while the phone is below its
+     * connection limit and no channel is about to be released. Requests
+     * that waited for a released channel that was handed to another request
+     * or closed are connected here.
+     */
+    private void connectWaiters(PhonePool pool)
+    {
+        List<ChannelFutureListener> toConnect = null;
+        synchronized (pool)
+        {
+            while (pool.releasing == 0 && pool.open < maxConnectionsPerPhone &&
+                    !pool.waiters.isEmpty())
+            {
+                if (toConnect == null)
+                {
+                    toConnect = new ArrayList<ChannelFutureListener>();
+                }
+                pool.open++;
+                toConnect.add(pool.waiters.poll());
+            }
+        }
+
+        if (toConnect != null)
+        {
+            for (ChannelFutureListener waiter : toConnect)
+            {
+                connect(pool, waiter);
+            }
+        }
+    }
+
+    /**
+     * Closes a channel if it is still idle when its idle timeout expires.
+     */
+    private void evict(PhonePool pool, IdleChannel entry)
+    {
+        // The longest idle channels are at the end of the deque.
+        boolean removed;
+        synchronized (pool)
+        {
+            removed = pool.idle.removeLastOccurrence(entry);
+        }
+
+        if (removed)
+        {
+            idleCount.decrementAndGet();
+            idleConnectionsEvicted.increment();
+            LOGGER.debug("Closing idle connection to {}:{}.",
+                    pool.hostname, pool.port);
+            entry.channel.close();
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.andrewkroh.cisco.common.metrics.Counter;
+import com.andrewkroh.cisco.common.metrics.Gauge;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.andrewkroh.cisco.phoneinventory.IpPhone;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Tracks whether phones are reachable so that commands to a phone that is
+ * known to be down fail immediately instead of waiting for the connect
+ * timeout.
+ *
+ * <p/>
+ * Each phone, keyed by hostname and port, has a circuit that is
+ * <i>closed</i> while the phone is reachable. After
+ * {@code failureThreshold} consecutive connect failures or response timeouts
+ * the circuit <i>opens</i> and {@link #allowRequest(IpPhone)} returns false
+ * until the phone is seen again. When the open circuit's cool-down has
+ * elapsed, {@link #phonesToProbe()} moves it to <i>half-open</i> and returns
+ * the phone so that a single probe can be made. A successful probe closes
+ * the circuit; a failed probe opens it again with twice the cool-down, up to
+ * {@code maxCooldown}. A half-open circuit whose probe never reports back is
+ * probed again after another cool-down.
+ *
+ * <p/>
+ * The breaker records the {@code circuitsOpened} and
+ * {@code commandsRejected} counters and the {@code openCircuits} gauge.
+ *
+ * @author akroh
+ */
+class PhoneCircuitBreaker
+{
+    /**
+     * SLF4J logger for this class.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(PhoneCircuitBreaker.class);
+
+    /**
+     * State of a phone's circuit.
+     */
+    enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Health of one phone. All fields are guarded by the instance's monitor.
+     */
+    private static final class Circuit
+    {
+        private final IpPhone phone;
+
+        private State state = State.CLOSED;
+
+        private int consecutiveFailures;
+
+        /**
+         * Cool-down of the current or most recent opening.
+         */
+        private long cooldownNanos;
+
+        /**
+         * Time at which an open or half-open circuit is due to be probed.
+         */
+        private long probeAtNanos;
+
+        Circuit(IpPhone phone)
+        {
+            this.phone = phone;
+        }
+    }
+
+    private final int failureThreshold;
+
+    private final long baseCooldownNanos;
+
+    private final long maxCooldownNanos;
+
+    private final Ticker ticker;
+
+    private final ConcurrentMap<String, Circuit> circuits =
+            new ConcurrentHashMap<String, Circuit>();
+
+    private final AtomicInteger openCount = new AtomicInteger();
+
+    private final Counter circuitsOpened;
+
+    private final Counter commandsRejected;
+
+    /**
+     * Creates a circuit breaker.
+     *
+     * @param failureThreshold
+     *            number of consecutive failures that open a phone's circuit
+     * @param baseCooldown
+     *            time a circuit stays open before the phone is first probed
+     * @param maxCooldown
+     *            upper bound of the cool-down, which doubles with every
+     *            failed probe
+     * @param unit
+     *            unit of {@code baseCooldown} and {@code maxCooldown}
+     * @param ticker
+     *            source of the current time
+     * @param metrics
+     *            registry to record the metrics in
+     * @param metricsPrefix
+     *            prefix of the metric names
+     */
+    PhoneCircuitBreaker(int failureThreshold, long baseCooldown,
+                        long maxCooldown, TimeUnit unit, Ticker ticker,
+                        MetricsRegistry metrics, String metricsPrefix)
+    {
+        Preconditions.checkArgument(failureThreshold > 0,
+                "Failure threshold must be greater than 0.");
+        Preconditions.checkArgument(baseCooldown > 0,
+                "Cool-down must be greater than 0.");
+        Preconditions.checkArgument(maxCooldown >= baseCooldown,
+                "Max cool-down cannot be less than the cool-down.");
+        this.failureThreshold = failureThreshold;
+        this.baseCooldownNanos = unit.toNanos(baseCooldown);
+        this.maxCooldownNanos = unit.toNanos(maxCooldown);
+        this.ticker = Preconditions.checkNotNull(ticker,
+                "Ticker cannot be null.");
+
+        circuitsOpened = metrics.counter(metricsPrefix + "circuitsOpened");
+        commandsRejected = metrics.counter(metricsPrefix + "commandsRejected");
+        metrics.gauge(metricsPrefix + "openCircuits", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return openCount.get();
+            }
+        });
+    }
+
+    /**
+     * Returns whether a command may be sent to the phone. Commands are only
+     * refused while the phone's circuit is open or half-open.
+     *
+     * @param phone
+     *            phone the command is for
+     * @return true if the command may be sent
+     */
+    boolean allowRequest(IpPhone phone)
+    {
+        Circuit circuit = circuits.get(key(phone));
+        if (circuit == null)
+        {
+            return true;
+        }
+
+        synchronized (circuit)
+        {
+            if (circuit.state == State.CLOSED)
+            {
+                return true;
+            }
+        }
+
+        commandsRejected.increment();
+        return false;
+    }
+
+    /**
+     * Records that the phone was reached, which closes its circuit.
+     *
+     * @param phone
+     *            phone that was reached
+     */
+    void recordSuccess(IpPhone phone)
+    {
+        Circuit circuit = circuits.get(key(phone));
+        if (circuit == null)
+        {
+            return;
+        }
+
+        synchronized (circuit)
+        {
+            if (circuit.state != State.CLOSED)
+            {
+                LOGGER.info("Circuit to {}:{} is closed, the phone is reachable.",
+                        phone.getHostname(), phone.getPort());
+                openCount.decrementAndGet();
+            }
+            circuit.state = State.CLOSED;
+            circuit.consecutiveFailures = 0;
+            circuit.cooldownNanos = 0;
+        }
+    }
+
+    /**
+     * Records that a connect to the phone failed or that it did not respond
+     * in time.
+     *
+     * @param phone
+     *            phone that could not be reached
+     */
+    void recordFailure(IpPhone phone)
+    {
+        Circuit circuit = circuitFor(phone);
+
+        synchronized (circuit)
+        {
+            circuit.consecutiveFailures++;
+
+            switch (circuit.state)
+            {
+                case CLOSED:
+                    if (circuit.consecutiveFailures >= failureThreshold)
+                    {
+                        open(circuit, baseCooldownNanos);
+                        openCount.incrementAndGet();
+                        circuitsOpened.increment();
+                    }
+                    break;
+                case HALF_OPEN:
+                    open(circuit, Math.min(circuit.cooldownNanos * 2,
+                                           maxCooldownNanos));
+                    break;
+                default:
+                    // Already open, for example a command that was sent
+                    // before the circuit opened.
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Moves the open circuits whose cool-down has elapsed to half-open and
+     * returns their phones. The caller must probe each phone and report the
+     * result with {@link #recordSuccess(IpPhone)} or
+     * {@link #recordFailure(IpPhone)}.
+     *
+     * @return phones to probe
+     */
+    List<IpPhone> phonesToProbe()
+    {
+        List<IpPhone> phones = new ArrayList<IpPhone>();
+        if (openCount.get() == 0)
+        {
+            return phones;
+        }
+
+        long now = ticker.read();
+        for (Circuit circuit : circuits.values())
+        {
+            synchronized (circuit)
+            {
+                if (circuit.state != State.CLOSED &&
+                        now - circuit.probeAtNanos >= 0)
+                {
+                    // Probe again after another cool-down if this probe
+                    // never reports back:
+                    circuit.state = State.HALF_OPEN;
+                    circuit.probeAtNanos = now + circuit.cooldownNanos;
+                    phones.add(circuit.phone);
+                }
+            }
+        }
+        return phones;
+    }
+
+    /**
+     * Returns the state of the phone's circuit.
+     *
+     * @param phone
+     *            phone to check
+     * @return circuit state
+     */
+    State getState(IpPhone phone)
+    {
+        Circuit circuit = circuits.get(key(phone));
+        if (circuit == null)
+        {
+            return State.CLOSED;
+        }
+
+        synchronized (circuit)
+        {
+            return circuit.state;
+        }
+    }
+
+    /**
+     * Returns the time until the phone's open circuit is due to be probed.
+     * Zero if the circuit is closed, or half-open because a probe is already
+     * in progress.
+     *
+     * @param phone
+     *            phone to check
+     * @return delay in nanoseconds
+     */
+    long getProbeDelayNanos(IpPhone phone)
+    {
+        Circuit circuit = circuits.get(key(phone));
+        if (circuit == null)
+        {
+            return 0;
+        }
+
+        synchronized (circuit)
+        {
+            if (circuit.state != State.OPEN)
+            {
+                return 0;
+            }
+            return Math.max(circuit.probeAtNanos - ticker.read(), 0);
+        }
+    }
+
+    /**
+     * Returns the number of phones whose circuit is open or half-open.
+     *
+     * @return number of unreachable phones
+     */
+    int getOpenCircuitCount()
+    {
+        return openCount.get();
+    }
+
+    private void open(Circuit circuit, long cooldownNanos)
+    {
+        LOGGER.info("Circuit to {}:{} is open for {} ms after {} failures.",
+                circuit.phone.getHostname(), circuit.phone.getPort(),
+                TimeUnit.NANOSECONDS.toMillis(cooldownNanos),
+                circuit.consecutiveFailures);
+
+        circuit.state = State.OPEN;
+        circuit.cooldownNanos = cooldownNanos;
+        circuit.probeAtNanos = ticker.read() + cooldownNanos;
+    }
+
+    private Circuit circuitFor(IpPhone phone)
+    {
+        String key = key(phone);
+        Circuit circuit = circuits.get(key);
+        if (circuit == null)
+        {
+            Circuit newCircuit = new Circuit(phone);
+            circuit = circuits.putIfAbsent(key, newCircuit);
+            if (circuit == null)
+            {
+                circuit = newCircuit;
+            }
+        }
+        return circuit;
+    }
+
+    private static String key(IpPhone phone)
+    {
+        return phone.getHostname() + ':' + phone.getPort();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import java.io.IOException;
+
+/**
+ * Signals that a command was not sent because recent attempts to reach the
+ * phone failed. The phone is probed in the background and commands are sent
+ * again once it is reachable.
+ *
+ * @author akroh
+ */
+public class PhoneUnreachableException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a new exception.
+     *
+     * @param message
+     *            detail message
+     */
+    public PhoneUnreachableException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The HTTP POST of a command to one phone.
+ *
+ * <p/>
+ * The encoded body is held as a reference counted {@link ByteBuf} that may
+ * be shared with the requests of other phones, for example by every phone
+ * of a broadcast. Each call to {@link #newHttpRequest()} returns a new
+ * request whose content is a retained duplicate of the body, so writing it
+ * to a channel (which releases it) leaves the shared body intact. The
+ * request's own reference to the body is given up by {@link #release()}
+ * once the command is finished.
+ *
+ * @author akroh
+ */
+class PushRequest
+{
+    /**
+     * The target URL of a phone push (HTTP POST) requests.
+     */
+    private static final String CISCO_CGI_EXECUTE_PATH = "/CGI/Execute";
+
+    private final String hostname;
+
+    private final String authorization;
+
+    private final boolean keepAlive;
+
+    /**
+     * Encoded POST body, or null once released. Guarded by this.
+     */
+    private ByteBuf body;
+
+    /**
+     * Creates a request. The caller's reference to {@code body} is
+     * transferred to the request.
+     *
+     * @param body
+     *            encoded POST body, which is not modified
+     * @param hostname
+     *            value of the Host header
+     * @param authorization
+     *            value of the Authorization header
+     * @param keepAlive
+     *            true to ask the phone to keep the connection open after its
+     *            response
+     */
+    PushRequest(ByteBuf body, String hostname, String authorization,
+                boolean keepAlive)
+    {
+        this.body = Preconditions.checkNotNull(body, "Body cannot be null.");
+        this.hostname = hostname;
+        this.authorization = authorization;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Builds a request ready to be written to a channel.
+     *
+     * @return a new request, or null if this request has been released
+     */
+    synchronized FullHttpRequest newHttpRequest()
+    {
+        if (body == null)
+        {
+            return null;
+        }
+
+        FullHttpRequest request = new DefaultFullHttpRequest(
+                HttpVersion.HTTP_1_1, HttpMethod.POST,
+                CISCO_CGI_EXECUTE_PATH, body.duplicate().retain());
+        request.headers().set(HttpHeaders.Names.HOST, hostname);
+        request.headers().set(HttpHeaders.Names.AUTHORIZATION, authorization);
+        request.headers().set(HttpHeaders.Names.CONNECTION, keepAlive ?
+                HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+        request.headers().set(HttpHeaders.Names.CONTENT_TYPE,
+                HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED);
+        request.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
+                body.readableBytes());
+        return request;
+    }
+
+    /**
+     * Gives up this request's reference to the body. Requests that were
+     * already built are not affected.
+     */
+    synchronized void release()
+    {
+        if (body != null)
+        {
+            body.release();
+            body = null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+/**
+ * Timing of the request that is in progress on a channel. Stored with the
+ * channel when the request is written so that the connect and request
+ * times, and the attempt number, can be reported with the response.
+ *
+ * @author akroh
+ */
+class RequestTiming
+{
+    /**
+     * Time taken to obtain a connected channel, including any time spent
+     * waiting for a pooled connection.
+     */
+    private final long connectNanos;
+
+    /**
+     * {@link System#nanoTime()} at which the request was written.
+     */
+    private final long requestStartNanos;
+
+    /**
+     * True if the channel had been used by a previous request.
+     */
+    private final boolean connectionReused;
+
+    /**
+     * Number of the attempt to send the command, starting at 1.
+     */
+    private final int attempt;
+
+    RequestTiming(long connectNanos, long requestStartNanos,
+                  boolean connectionReused, int attempt)
+    {
+        this.connectNanos = connectNanos;
+        this.requestStartNanos = requestStartNanos;
+        this.connectionReused = connectionReused;
+        this.attempt = attempt;
+    }
+
+    long getConnectNanos()
+    {
+        return connectNanos;
+    }
+
+    long getRequestStartNanos()
+    {
+        return requestStartNanos;
+    }
+
+    boolean isConnectionReused()
+    {
+        return connectionReused;
+    }
+
+    int getAttempt()
+    {
+        return attempt;
+    }
+}
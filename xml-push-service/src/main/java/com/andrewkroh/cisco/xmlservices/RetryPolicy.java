@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Describes how often and how soon a push command is sent again after the
+ * phone could not be reached or did not respond in time. This class is
+ * immutable and thread-safe.
+ *
+ * <p/>
+ * The delay before the n-th retry is {@code initialBackoff * 2^(n-1)},
+ * capped at {@code maxBackoff}, of which a random part up to half is
+ * subtracted (jitter) so that the retries of a broadcast to many phones that
+ * rebooted together do not arrive at the same time. No retry is scheduled
+ * beyond the command's deadline, which is measured from the submission of
+ * the command, and a command that is still in progress at its deadline is
+ * cancelled.
+ *
+ * @author akroh
+ */
+public final class RetryPolicy
+{
+    /**
+     * Policy that sends every command exactly once.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0,
+            TimeUnit.MILLISECONDS);
+
+    private final int maxAttempts;
+
+    private final long initialBackoffNanos;
+
+    private final long maxBackoffNanos;
+
+    private final long deadlineNanos;
+
+    /**
+     * Creates a retry policy.
+     *
+     * @param maxAttempts
+     *            maximum number of times a command is sent, including the
+     *            first attempt
+     * @param initialBackoff
+     *            delay before the first retry
+     * @param maxBackoff
+     *            upper bound of the delay between retries
+     * @param deadline
+     *            time after the submission of a command by which it must be
+     *            complete, or 0 for no deadline other than the response
+     *            timeout of each attempt
+     * @param unit
+     *            unit of {@code initialBackoff}, {@code maxBackoff} and
+     *            {@code deadline}
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff,
+                       long deadline, TimeUnit unit)
+    {
+        Preconditions.checkArgument(maxAttempts > 0,
+                "Max attempts must be greater than 0.");
+        Preconditions.checkArgument(initialBackoff >= 0,
+                "Initial backoff cannot be negative.");
+        Preconditions.checkArgument(maxBackoff >= initialBackoff,
+                "Max backoff cannot be less than the initial backoff.");
+        Preconditions.checkArgument(deadline >= 0,
+                "Deadline cannot be negative.");
+        Preconditions.checkNotNull(unit, "TimeUnit cannot be null.");
+
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+        this.deadlineNanos = unit.toNanos(deadline);
+    }
+
+    /**
+     * Gets the maximum number of times a command is sent.
+     *
+     * @return maximum number of attempts
+     */
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    /**
+     * Gets the time after submission by which a command must be complete.
+     *
+     * @param unit
+     *            unit of the result
+     * @return the deadline, 0 if there is none
+     */
+    public long getDeadline(TimeUnit unit)
+    {
+        return unit.convert(deadlineNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the delay before an attempt.
+     *
+     * @param attempt
+     *            number of the attempt that is about to be made, starting
+     *            with 2 for the first retry
+     * @param random
+     *            source of the jitter
+     * @return delay in nanoseconds
+     */
+    long getBackoffNanos(int attempt, Random random)
+    {
+        long backoff = initialBackoffNanos;
+        for (int i = 2; i < attempt && backoff < maxBackoffNanos; i++)
+        {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxBackoffNanos);
+
+        long halfBackoff = backoff / 2;
+        if (halfBackoff == 0)
+        {
+            return backoff;
+        }
+        return backoff - (long) (random.nextDouble() * halfBackoff);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RetryPolicy[maxAttempts=" + maxAttempts +
+                ", initialBackoffMs=" + TimeUnit.NANOSECONDS.toMillis(initialBackoffNanos) +
+                ", maxBackoffMs=" + TimeUnit.NANOSECONDS.toMillis(maxBackoffNanos) +
+                ", deadlineMs=" + TimeUnit.NANOSECONDS.toMillis(deadlineNanos) + "]";
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Signals that a kept-alive connection taken from the
+ * {@link PhoneChannelPool} was closed before the phone responded. This is
+ * most likely because the phone closed the idle connection as the request
+ * was written, so the command is sent again once on a new connection.
+ *
+ * @author akroh
+ */
+class StaleConnectionException extends ClosedChannelException
+{
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.andrewkroh.cisco.common.metrics.Counter;
+import com.andrewkroh.cisco.common.metrics.Gauge;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Schedules the timeouts of futures on a {@link Timer}, normally a
+ * {@link io.netty.util.HashedWheelTimer}, and cancels each timeout as soon
+ * as its future completes.
+ *
+ * <p/>
+ * A hashed wheel timer adds and cancels a timeout in constant time, and a
+ * cancelled timeout is removed from the wheel, so the timeouts of commands
+ * that were answered do not accumulate the way uncancelled tasks in the
+ * event loop's scheduled task queue did. Timeout tasks run on the timer's
+ * thread and must be short.
+ *
+ * <p/>
+ * The scheduler records the {@code pendingTimeouts} gauge and the
+ * {@code timeoutsExpired} counter.
+ *
+ * @author akroh
+ */
+class TimeoutScheduler
+{
+    private final Timer timer;
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final Counter timeoutsExpired;
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param timer
+     *            timer to schedule the timeouts on, which is stopped by
+     *            {@link #stop()}
+     * @param metrics
+     *            registry to record the metrics in
+     * @param metricsPrefix
+     *            prefix of the metric names
+     */
+    TimeoutScheduler(Timer timer, MetricsRegistry metrics, String metricsPrefix)
+    {
+        this.timer = Preconditions.checkNotNull(timer, "Timer cannot be null.");
+
+        timeoutsExpired = metrics.counter(metricsPrefix + "timeoutsExpired");
+        metrics.gauge(metricsPrefix + "pendingTimeouts", new Gauge() {
+            @Override
+            public long getValue()
+            {
+                return pendingCount.get();
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} after the delay unless {@code future} completes
+     * first.
+     *
+     * @param future
+     *            future whose completion cancels the timeout
+     * @param task
+     *            task to run when the timeout expires
+     * @param delay
+     *            time until the timeout expires
+     * @param unit
+     *            unit of {@code delay}
+     */
+    void schedule(ListenableFuture<?> future, final Runnable task,
+                  long delay, TimeUnit unit)
+    {
+        pendingCount.incrementAndGet();
+        final Timeout timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout)
+            {
+                pendingCount.decrementAndGet();
+                timeoutsExpired.increment();
+                task.run();
+            }
+        }, delay, unit);
+
+        future.addListener(new Runnable() {
+            @Override
+            public void run()
+            {
+                // Only one of cancel() and expiry succeeds:
+                if (timeout.cancel())
+                {
+                    pendingCount.decrementAndGet();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Returns the number of timeouts that have neither expired nor been
+     * cancelled.
+     *
+     * @return pending timeout count
+     */
+    int getPendingCount()
+    {
+        return pendingCount.get();
+    }
+
+    /**
+     * Stops the timer. Pending timeouts never expire.
+     */
+    void stop()
+    {
+        for (Timeout timeout : timer.stop())
+        {
+            if (timeout.cancel())
+            {
+                pendingCount.decrementAndGet();
+            }
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.andrewkroh.cisco.xmlservices;
 
+import java.util.concurrent.TimeUnit;
+
 import com.andrewkroh.cisco.phoneinventory.IpPhone;
 import com.cisco.xmlservices.generated.CiscoIPPhoneResponse;
 
@@ -39,4 +41,42 @@ public interface XmlPushResponse
      * @return the response object from the phone
      */
     CiscoIPPhoneResponse getResponse();
+
+    /**
+     * Time taken to obtain a connection to the phone, including the time
+     * spent waiting for a pooled connection. This is close to zero when an
+     * idle keep-alive connection was reused.
+     *
+     * @param unit
+     *            unit of the result
+     * @return the connect time
+     */
+    long getConnectTime(TimeUnit unit);
+
+    /**
+     * Time from writing the request to the phone until its response was
+     * received.
+     *
+     * @param unit
+     *            unit of the result
+     * @return the request time
+     */
+    long getRequestTime(TimeUnit unit);
+
+    /**
+     * Whether the request was sent on a keep-alive connection that had
+     * been used by an earlier request.
+     *
+     * @return true if the connection was reused
+     */
+    boolean isConnectionReused();
+
+    /**
+     * Number of times the command was sent before this response was
+     * received. This is greater than 1 if earlier attempts were retried
+     * according to the service's {@link RetryPolicy}.
+     *
+     * @return the attempt count, starting at 1
+     */
+    int getAttemptCount();
 }
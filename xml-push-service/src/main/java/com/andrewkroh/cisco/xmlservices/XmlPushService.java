@@ -121,6 +121,159 @@ public interface XmlPushService extends Service
             CiscoIPPhoneExecute command,
             XmlPushCallback commandCallback);
 
+    /**
+     * Submits a compiled command to a single phone. The command is not
+     * marshaled again, which makes this the cheapest way to send a command
+     * that is sent repeatedly.
+     *
+     * @param phone
+     *            {@link IpPhone} to send the command to
+     * @param template
+     *            compiled command to send
+     * @param commandCallback
+     *            {@link XmlPushCallback} that hosts the callback URLs, or
+     *            {@code null} if the command does not expect a callback. If
+     *            {@code commandCallback} is not already registered as a
+     *            callback it will be registered and have its
+     *            {@link XmlPushCallback#setCallbackUrl(String)} method invoked.
+     * @return {@link ListenableFuture} that will return a
+     *         {@link XmlPushResponse} containing the phone's
+     *         {@link CiscoIPPhoneResponse}. The future will automatically
+     *         timeout if no response is received.
+     */
+    ListenableFuture<XmlPushResponse> submitCommand(
+            IpPhone phone,
+            CommandTemplate template,
+            XmlPushCallback commandCallback);
+
+    /**
+     * Submits a compiled command to a single phone with the given priority.
+     * Commands waiting for admission are started ahead of less urgent ones,
+     * for example an emergency page ahead of a directory refresh that is
+     * queued for every phone. Commands submitted without a priority are
+     * {@link CommandPriority#NORMAL}.
+     *
+     * @param phone
+     *            {@link IpPhone} to send the command to
+     * @param template
+     *            compiled command to send
+     * @param commandCallback
+     *            {@link XmlPushCallback} that hosts the callback URLs, or
+     *            {@code null} if the command does not expect a callback
+     * @param priority
+     *            {@link CommandPriority} of the command
+     * @return {@link ListenableFuture} that will return a
+     *         {@link XmlPushResponse} containing the phone's
+     *         {@link CiscoIPPhoneResponse}. The future will automatically
+     *         timeout if no response is received.
+     */
+    ListenableFuture<XmlPushResponse> submitCommand(
+            IpPhone phone,
+            CommandTemplate template,
+            XmlPushCallback commandCallback,
+            CommandPriority priority);
+
+    /**
+     * Submits a compiled command to multiple IP phones.
+     *
+     * @param phones
+     *            {@link IpPhone}s to send the command to
+     * @param template
+     *            compiled command to send
+     * @param commandCallback
+     *            {@link XmlPushCallback} that hosts the callback URLs, or
+     *            {@code null} if the command does not expect a callback. If
+     *            {@code commandCallback} is not already registered as a
+     *            callback it will be registered and have its
+     *            {@link XmlPushCallback#setCallbackUrl(String)} method invoked.
+     * @return list of {@link ListenableFuture}s that will return a
+     *         {@link XmlPushResponse} containing the phone's
+     *         {@link CiscoIPPhoneResponse}. The future will automatically
+     *         timeout if no response is received.
+     */
+    ImmutableList<ListenableFuture<XmlPushResponse>> submitCommand(
+            ImmutableList<IpPhone> phones,
+            CommandTemplate template,
+            XmlPushCallback commandCallback);
+
+    /**
+     * Submits a compiled command to multiple IP phones with the given
+     * priority.
+     *
+     * @param phones
+     *            {@link IpPhone}s to send the command to
+     * @param template
+     *            compiled command to send
+     * @param commandCallback
+     *            {@link XmlPushCallback} that hosts the callback URLs, or
+     *            {@code null} if the command does not expect a callback
+     * @param priority
+     *            {@link CommandPriority} of the commands
+     * @return list of {@link ListenableFuture}s that will return a
+     *         {@link XmlPushResponse} containing the phone's
+     *         {@link CiscoIPPhoneResponse}. The future will automatically
+     *         timeout if no response is received.
+     * @see #submitCommand(IpPhone, CommandTemplate, XmlPushCallback,
+     *      CommandPriority)
+     */
+    ImmutableList<ListenableFuture<XmlPushResponse>> submitCommand(
+            ImmutableList<IpPhone> phones,
+            CommandTemplate template,
+            XmlPushCallback commandCallback,
+            CommandPriority priority);
+
+    /**
+     * Submits a compiled command to multiple IP phones and returns a handle
+     * that reports the progress of the broadcast, delivers each phone's
+     * result to a listener as soon as it is known, and summarizes the
+     * results when every phone is done.
+     *
+     * @param phones
+     *            {@link IpPhone}s to send the command to
+     * @param template
+     *            compiled command to send
+     * @param commandCallback
+     *            {@link XmlPushCallback} that hosts the callback URLs, or
+     *            {@code null} if the command does not expect a callback
+     * @param listener
+     *            {@link BroadcastListener} that receives each result, or
+     *            {@code null}
+     * @return {@link BroadcastHandle} of the broadcast
+     */
+    BroadcastHandle broadcastCommand(
+            ImmutableList<IpPhone> phones,
+            CommandTemplate template,
+            XmlPushCallback commandCallback,
+            BroadcastListener listener);
+
+    /**
+     * Submits a compiled command to multiple IP phones with the given
+     * priority and returns a handle that reports the progress of the
+     * broadcast.
+     *
+     * @param phones
+     *            {@link IpPhone}s to send the command to
+     * @param template
+     *            compiled command to send
+     * @param commandCallback
+     *            {@link XmlPushCallback} that hosts the callback URLs, or
+     *            {@code null} if the command does not expect a callback
+     * @param listener
+     *            {@link BroadcastListener} that receives each result, or
+     *            {@code null}
+     * @param priority
+     *            {@link CommandPriority} of the commands
+     * @return {@link BroadcastHandle} of the broadcast
+     * @see #broadcastCommand(ImmutableList, CommandTemplate, XmlPushCallback,
+     *      BroadcastListener)
+     */
+    BroadcastHandle broadcastCommand(
+            ImmutableList<IpPhone> phones,
+            CommandTemplate template,
+            XmlPushCallback commandCallback,
+            BroadcastListener listener,
+            CommandPriority priority);
+
     /**
      * Unregisters a {@link XmlPushCallback}.
      *
@@ -129,4 +282,14 @@ public interface XmlPushService extends Service
      * @return true if {@code commandCallback} has been unregistered
      */
     boolean unregisterCallback(XmlPushCallback commandCallback);
+
+    /**
+     * Sets the policy for retrying commands that fail because the phone
+     * could not be reached or did not respond in time. Commands that were
+     * already submitted keep their policy.
+     *
+     * @param retryPolicy
+     *            policy for the commands submitted from now on
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy);
 }
@@ -20,16 +20,17 @@ import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.util.AttributeKey;
-import io.netty.util.CharsetUtil;
+
+import java.nio.channels.ClosedChannelException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.andrewkroh.cisco.phoneinventory.IpPhone;
-import com.cisco.xmlservices.XmlMarshaller;
 import com.cisco.xmlservices.generated.CiscoIPPhoneResponse;
 import com.google.common.util.concurrent.SettableFuture;
 
@@ -37,6 +38,12 @@ import com.google.common.util.concurrent.SettableFuture;
  * Inbound channel handler that is responsible for unmarshaling the
  * XML response from the phone.
  *
+ * <p/>
+ * When the handler was given a {@link PhoneChannelPool} and the phone's
+ * response allows the connection to be kept alive, the channel is released
+ * to the pool after the response future is completed. Otherwise it is
+ * closed.
+ *
  * @author akroh
  */
 @Sharable
@@ -61,6 +68,17 @@ public class XmlResponseChannelHandler extends
      */
     private final AttributeKey<SettableFuture<XmlPushResponse>> responseAttributeKey;
 
+    /**
+     * {@link AttributeKey} for reading the {@link RequestTiming} object
+     * from the {@code Channel}, may be null.
+     */
+    private final AttributeKey<RequestTiming> timingAttributeKey;
+
+    /**
+     * Pool to release kept-alive channels to, may be null.
+     */
+    private final PhoneChannelPool channelPool;
+
     /**
      * Constructs a new CiscoXmlResponseChannelHandler.
      *
@@ -74,9 +92,37 @@ public class XmlResponseChannelHandler extends
     public XmlResponseChannelHandler(
             AttributeKey<IpPhone> phoneAttributeKey,
             AttributeKey<SettableFuture<XmlPushResponse>> responseAttributeKey)
+    {
+        this(phoneAttributeKey, responseAttributeKey, null, null);
+    }
+
+    /**
+     * Constructs a new CiscoXmlResponseChannelHandler that releases
+     * kept-alive channels to a pool.
+     *
+     * @param phoneAttributeKey
+     *            {@code AttributeKey} for reading the {@code IpPhone}
+     *            object from the {@code Channel}
+     * @param responseAttributeKey
+     *            {@code AttributeKey} for reading the {@code SettableFuture}
+     *            object form the {@code Channel}
+     * @param timingAttributeKey
+     *            {@code AttributeKey} for reading the {@code RequestTiming}
+     *            object from the {@code Channel}, or null
+     * @param channelPool
+     *            pool that the channels were acquired from, or null to close
+     *            every channel after its response
+     */
+    XmlResponseChannelHandler(
+            AttributeKey<IpPhone> phoneAttributeKey,
+            AttributeKey<SettableFuture<XmlPushResponse>> responseAttributeKey,
+            AttributeKey<RequestTiming> timingAttributeKey,
+            PhoneChannelPool channelPool)
     {
         this.phoneAttributeKey = phoneAttributeKey;
         this.responseAttributeKey = responseAttributeKey;
+        this.timingAttributeKey = timingAttributeKey;
+        this.channelPool = channelPool;
     }
 
     @Override
@@ -120,21 +166,72 @@ public class XmlResponseChannelHandler extends
             SettableFuture<XmlPushResponse> responseFuture =
                     ctx.channel().attr(responseAttributeKey).get();
 
-            // The default charset for HTTP is ISO-8859-1. None
-            // of the Cisco phones I've seen to date were actually
-            // setting the charset so use the default. We could
-            // improve here by checking the header for the value.
-            String xmlContent = content.content().toString(
-                    CharsetUtil.ISO_8859_1);
-
             CiscoIPPhoneResponse xmlResponse =
-                XmlMarshaller.unmarshal(xmlContent, CiscoIPPhoneResponse.class);
-            responseFuture.set(new DefaultXmlPushResponse(phone, xmlResponse));
+                CiscoIPPhoneResponseDecoder.decode(content.content());
+
+            RequestTiming timing = timingAttributeKey == null ?
+                    null : ctx.channel().attr(timingAttributeKey).get();
+            XmlPushResponse pushResponse;
+            if (timing != null)
+            {
+                pushResponse = new DefaultXmlPushResponse(phone, xmlResponse,
+                        timing.getConnectNanos(),
+                        System.nanoTime() - timing.getRequestStartNanos(),
+                        timing.isConnectionReused(), timing.getAttempt());
+            }
+            else
+            {
+                pushResponse = new DefaultXmlPushResponse(phone, xmlResponse,
+                        0, 0, false, 1);
+            }
+
+            // Complete the future before releasing the channel so that the
+            // command is never seen as pending once the channel may carry
+            // the next command. A command submitted when the future
+            // completes waits for the announced release and reuses the
+            // channel:
+            boolean keepAlive = channelPool != null && msg instanceof HttpResponse &&
+                    HttpHeaders.isKeepAlive((HttpResponse) msg);
+            if (keepAlive)
+            {
+                channelPool.willRelease(ctx.channel());
+            }
+
+            responseFuture.set(pushResponse);
+
+            if (keepAlive)
+            {
+                channelPool.release(ctx.channel());
+            }
+            else
+            {
+                ctx.channel().close();
+            }
+        }
+    }
+
+    /**
+     * Fails the pending response, if there is one, when the phone closes
+     * the connection before responding so that the command does not wait
+     * for its response timeout.
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+        SettableFuture<XmlPushResponse> responseFuture = ctx.channel()
+                .attr(responseAttributeKey).get();
+        if (responseFuture != null && !responseFuture.isDone())
+        {
+            IpPhone phone = ctx.channel().attr(phoneAttributeKey).get();
+            LOGGER.debug("Connection to {} closed before the response.",
+                    phone.getHostname());
 
-            // Cleanup:
-            ctx.close();
-            ctx.channel().close();
+            responseFuture.setException(channelPool != null &&
+                    PhoneChannelPool.isReused(ctx.channel()) ?
+                    new StaleConnectionException() : new ClosedChannelException());
         }
+
+        super.channelInactive(ctx);
     }
 
     @Override
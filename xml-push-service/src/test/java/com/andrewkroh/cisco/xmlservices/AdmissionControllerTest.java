@@ -0,0 +1,320 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.andrewkroh.cisco.common.metrics.MetricsSnapshot;
+import com.andrewkroh.cisco.phoneinventory.IpPhone;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Test for {@link AdmissionController}.
+ *
+ * @author akroh
+ */
+public class AdmissionControllerTest
+{
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private final List<String> started = new ArrayList<String>();
+
+    @Test
+    public void submit_withinLimits_startsImmediately()
+    {
+        AdmissionController controller = newController(2, 2);
+
+        submit(controller, "a", "10.0.0.1");
+        submit(controller, "b", "10.0.0.2");
+
+        assertThat(started, contains("a", "b"));
+        assertThat(controller.getInFlightCount(), equalTo(2));
+        assertThat(controller.getQueueDepth(), equalTo(0));
+    }
+
+    @Test
+    public void submit_beyondGlobalLimit_waitsInFifoOrder()
+    {
+        AdmissionController controller = newController(1, 10);
+
+        SettableFuture<Object> a = submit(controller, "a", "10.0.0.1");
+        SettableFuture<Object> b = submit(controller, "b", "10.0.1.1");
+        submit(controller, "c", "10.0.2.1");
+
+        assertThat(started, contains("a"));
+        assertThat(controller.getQueueDepth(), equalTo(2));
+
+        a.set(null);
+        assertThat(started, contains("a", "b"));
+
+        b.set(null);
+        assertThat(started, contains("a", "b", "c"));
+        assertThat(controller.getQueueDepth(), equalTo(0));
+        assertThat(controller.getInFlightCount(), equalTo(1));
+    }
+
+    @Test
+    public void submit_beyondSubnetLimit_doesNotBlockOtherSubnets()
+    {
+        AdmissionController controller = newController(10, 1);
+
+        SettableFuture<Object> a = submit(controller, "a", "10.0.0.1");
+        submit(controller, "b", "10.0.0.2");
+        submit(controller, "c", "10.0.1.1");
+
+        assertThat(started, contains("a", "c"));
+
+        a.setException(new Exception());
+        assertThat(started, contains("a", "c", "b"));
+    }
+
+    @Test
+    public void submit_subnetsReachLimit_startsOldestWaiterBelowLimit()
+    {
+        AdmissionController controller = newController(2, 1);
+
+        SettableFuture<Object> a = submit(controller, "a", "10.0.0.1");
+        SettableFuture<Object> b = submit(controller, "b", "10.0.1.1");
+        SettableFuture<Object> c = submit(controller, "c", "10.0.0.2");
+        SettableFuture<Object> d = submit(controller, "d", "10.0.2.1");
+        submit(controller, "e", "10.0.0.3");
+        submit(controller, "f", "10.0.1.2");
+
+        b.set(null);
+        assertThat(started, contains("a", "b", "d"));
+
+        a.set(null);
+        assertThat(started, contains("a", "b", "d", "c"));
+
+        d.set(null);
+        c.set(null);
+        assertThat(started, contains("a", "b", "d", "c", "f", "e"));
+        assertThat(controller.getQueueDepth(), equalTo(0));
+    }
+
+    @Test
+    public void submit_cancelledWhileQueued_isNotStarted()
+    {
+        AdmissionController controller = newController(1, 1);
+
+        SettableFuture<Object> a = submit(controller, "a", "10.0.0.1");
+        SettableFuture<Object> b = submit(controller, "b", "10.0.0.1");
+        submit(controller, "c", "10.0.0.1");
+
+        b.cancel(false);
+        a.set(null);
+
+        assertThat(started, contains("a", "c"));
+        assertThat(controller.getInFlightCount(), equalTo(1));
+    }
+
+    @Test
+    public void submit_cancelledWhileQueued_leavesQueue()
+    {
+        AdmissionController controller = newController(1, 1);
+
+        submit(controller, "a", "10.0.0.1");
+        SettableFuture<Object> b = submit(controller, "b", "10.0.0.1");
+        submit(controller, "c", "10.0.0.1");
+        SettableFuture<Object> d = submit(controller, "d", "10.0.0.2");
+
+        b.cancel(false);
+        d.cancel(false);
+
+        assertThat(controller.getQueueDepth(), equalTo(1));
+        assertThat(controller.getQueueDepth(CommandPriority.NORMAL), equalTo(1));
+        assertThat(metrics.snapshot().getGauges().get("test.admissionQueueDepth"),
+                   equalTo(1L));
+    }
+
+    @Test
+    public void submit_recordsQueueMetrics()
+    {
+        AdmissionController controller = newController(1, 1);
+
+        SettableFuture<Object> a = submit(controller, "a", "10.0.0.1");
+        submit(controller, "b", "10.0.0.1");
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getGauges().get("test.admissionQueueDepth"), equalTo(1L));
+        assertThat(snapshot.getCounters().get("test.commandsQueued"), equalTo(1L));
+
+        a.set(null);
+        snapshot = metrics.snapshot();
+        assertThat(snapshot.getGauges().get("test.admissionQueueDepth"), equalTo(0L));
+        assertThat(snapshot.getHistograms().get("test.admissionWaitTime").getCount(),
+                   equalTo(2L));
+    }
+
+    @Test
+    public void submit_emergency_startsAheadOfQueuedBulk()
+    {
+        AdmissionController controller = newController(1, 10);
+
+        SettableFuture<Object> a = submit(controller, "a", "10.0.0.1",
+                                          CommandPriority.BULK);
+        submit(controller, "b", "10.0.1.1", CommandPriority.BULK);
+        submit(controller, "c", "10.0.2.1", CommandPriority.NORMAL);
+        submit(controller, "d", "10.0.3.1", CommandPriority.EMERGENCY);
+
+        assertThat(controller.getQueueDepth(CommandPriority.BULK), equalTo(1));
+        assertThat(controller.getQueueDepth(CommandPriority.EMERGENCY), equalTo(1));
+
+        a.set(null);
+        assertThat(started, contains("a", "d"));
+        assertThat(metrics.snapshot().getGauges()
+                   .get("test.admissionQueueDepth.emergency"), equalTo(0L));
+    }
+
+    @Test
+    public void submit_emergency_startsWhenOnlyBulkWaitsForSubnet()
+    {
+        AdmissionController controller = newController(10, 1);
+
+        SettableFuture<Object> a = submit(controller, "a", "10.0.0.1",
+                                          CommandPriority.BULK);
+        submit(controller, "b", "10.0.0.2", CommandPriority.BULK);
+        submit(controller, "c", "10.0.0.3", CommandPriority.EMERGENCY);
+
+        a.set(null);
+        assertThat(started, contains("a", "c"));
+    }
+
+    @Test
+    public void submit_emergency_startsAheadOfAllQueuedBulk()
+    {
+        AdmissionController controller = newController(1, 100);
+        Map<String, SettableFuture<Object>> futures =
+                new HashMap<String, SettableFuture<Object>>();
+
+        futures.put("first", submit(controller, "first", "10.0.0.1",
+                                    CommandPriority.BULK));
+        for (int i = 0; i < 10; i++)
+        {
+            String name = "b" + i;
+            futures.put(name, submit(controller, name, "10.0.1.1",
+                                     CommandPriority.BULK));
+        }
+        for (int i = 0; i < 20; i++)
+        {
+            String name = "e" + i;
+            futures.put(name, submit(controller, name, "10.0.2.1",
+                                     CommandPriority.EMERGENCY));
+        }
+
+        while (started.size() < futures.size())
+        {
+            futures.get(started.get(started.size() - 1)).set(null);
+        }
+
+        // More emergency commands than a weight of 16 to 1 would start
+        // before the first bulk command:
+        assertThat(started.get(1), equalTo("e0"));
+        assertThat(started.get(20), equalTo("e19"));
+        assertThat(started.get(21), equalTo("b0"));
+    }
+
+    @Test
+    public void submit_bulkUnderNormalLoad_isNotStarved()
+    {
+        AdmissionController controller = newController(1, 100);
+        Map<String, SettableFuture<Object>> futures =
+                new HashMap<String, SettableFuture<Object>>();
+
+        futures.put("first", submit(controller, "first", "10.0.0.1",
+                                    CommandPriority.NORMAL));
+        futures.put("bulk", submit(controller, "bulk", "10.0.1.1",
+                                   CommandPriority.BULK));
+        for (int i = 0; i < 40; i++)
+        {
+            String name = "n" + i;
+            futures.put(name, submit(controller, name, "10.0.2.1",
+                                     CommandPriority.NORMAL));
+        }
+
+        while (started.size() < futures.size())
+        {
+            futures.get(started.get(started.size() - 1)).set(null);
+        }
+
+        // With weights 4 to 1 the bulk command gets one of the first 5
+        // slots, after the normal commands that are ahead of it.
+        int bulkIndex = started.indexOf("bulk");
+        assertThat(started.get(1), equalTo("n0"));
+        assertThat(bulkIndex, greaterThan(1));
+        assertThat(bulkIndex, lessThanOrEqualTo(5));
+    }
+
+    @Test
+    public void subnetKey_masksAddress()
+    {
+        assertThat(AdmissionController.subnetKey("192.168.1.77", 24),
+                   equalTo("192.168.1.0/24"));
+        assertThat(AdmissionController.subnetKey("192.168.1.77", 16),
+                   equalTo("192.168.0.0/16"));
+        assertThat(AdmissionController.subnetKey("192.168.1.77", 27),
+                   equalTo("192.168.1.64/27"));
+        assertThat(AdmissionController.subnetKey("2001:db8::1:2:3:4", 24),
+                   equalTo("2001:db8::/64"));
+        assertThat(AdmissionController.subnetKey("phone.example.com", 24),
+                   equalTo("phone.example.com"));
+    }
+
+    private AdmissionController newController(int maxInFlight, int maxPerSubnet)
+    {
+        return new AdmissionController(maxInFlight, maxPerSubnet, 24,
+                                       metrics, "test.");
+    }
+
+    private SettableFuture<Object> submit(AdmissionController controller,
+                                          String name, String address)
+    {
+        return submit(controller, name, address, CommandPriority.NORMAL);
+    }
+
+    private SettableFuture<Object> submit(AdmissionController controller,
+                                          final String name, String address,
+                                          CommandPriority priority)
+    {
+        IpPhone phone = mock(IpPhone.class);
+        when(phone.getHostname()).thenReturn(address);
+
+        SettableFuture<Object> completion = SettableFuture.create();
+        controller.submit(phone, priority, completion, new Runnable() {
+            @Override
+            public void run()
+            {
+                started.add(name);
+            }
+        });
+        return completion;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import org.junit.Test;
+
+import com.andrewkroh.cisco.phoneinventory.IpPhone;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Test for {@link ChannelConnectListener}.
+ *
+ * @author akroh
+ */
+public class ChannelConnectListenerTest
+{
+    private final PhoneChannelPool channelPool = mock(PhoneChannelPool.class);
+
+    private final Channel channel = mock(Channel.class);
+
+    private final SettableFuture<XmlPushResponse> responseFuture =
+            SettableFuture.create();
+
+    @Test
+    public void operationComplete_cancelledOnReusedChannel_releasesChannel()
+            throws Exception
+    {
+        responseFuture.cancel(false);
+
+        newListener().operationComplete(connectFuture(2));
+
+        verify(channelPool).release(channel);
+        verify(channel, never()).close();
+    }
+
+    @Test
+    public void operationComplete_cancelledOnNewChannel_closesChannel()
+            throws Exception
+    {
+        responseFuture.cancel(false);
+
+        newListener().operationComplete(connectFuture(1));
+
+        verify(channel).close();
+        verify(channelPool, never()).release(channel);
+    }
+
+    private ChannelConnectListener<XmlPushResponse> newListener()
+    {
+        return new ChannelConnectListener<XmlPushResponse>(null, null,
+                mock(IpPhone.class), null, channelPool, null, responseFuture,
+                null, System.nanoTime(), 1, null, 1000);
+    }
+
+    /**
+     * Returns a successful connect future of a channel that has been handed
+     * out {@code leases} times by the pool.
+     */
+    @SuppressWarnings("unchecked")
+    private ChannelFuture connectFuture(int leases)
+    {
+        Attribute<Integer> attribute = mock(Attribute.class);
+        when(attribute.get()).thenReturn(leases);
+        doReturn(attribute).when(channel).attr(any(AttributeKey.class));
+
+        ChannelFuture future = mock(ChannelFuture.class);
+        when(future.channel()).thenReturn(channel);
+        when(future.isSuccess()).thenReturn(true);
+        return future;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+import com.cisco.xmlservices.XmlMarshaller;
+import com.cisco.xmlservices.generated.CiscoIPPhoneResponse;
+import com.cisco.xmlservices.generated.CiscoIPPhoneResponseItemType;
+
+/**
+ * Test for {@link CiscoIPPhoneResponseDecoder}.
+ *
+ * @author akroh
+ */
+public class CiscoIPPhoneResponseDecoderTest
+{
+    @Test
+    public void decode_marshaledResponse_matchesJaxb() throws Exception
+    {
+        CiscoIPPhoneResponse expected = new CiscoIPPhoneResponse();
+        expected.getResponseItem().add(item((short) 0, "Success", "http://host/a?b=1&c=\"2\""));
+        expected.getResponseItem().add(item((short) -3, "", "Key:Line1"));
+        expected.getResponseItem().add(item(null, null, null));
+        ByteBuf content = buffer(XmlMarshaller.marshalToXml(expected, true));
+
+        assertThat(CiscoIPPhoneResponseDecoder.parse(content), notNullValue());
+        assertResponseEquals(CiscoIPPhoneResponseDecoder.decode(content),
+                             expected);
+        assertThat(content.readerIndex(), equalTo(0));
+    }
+
+    @Test
+    public void decode_phoneResponse_isStreamParsed() throws Exception
+    {
+        ByteBuf content = buffer("<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n" +
+                "<!-- response -->\r\n<CiscoIPPhoneResponse>\r\n" +
+                "<ResponseItem URL=\"Play:Classic1.raw\" Data=\"Success\" Status=\" 0 \"/>\r\n" +
+                "</CiscoIPPhoneResponse>\r\n");
+
+        CiscoIPPhoneResponse response = CiscoIPPhoneResponseDecoder.parse(content);
+
+        assertThat(response.getResponseItem().size(), equalTo(1));
+        assertThat(response.getResponseItem().get(0).getStatus(), equalTo((short) 0));
+        assertThat(response.getResponseItem().get(0).getData(), equalTo("Success"));
+        assertThat(response.getResponseItem().get(0).getURL(),
+                   equalTo("Play:Classic1.raw"));
+    }
+
+    @Test
+    public void parse_unexpectedContent_defersToJaxb() throws Exception
+    {
+        assertThat(parse("<CiscoIPPhoneError Number=\"4\"/>"), nullValue());
+        assertThat(parse("<CiscoIPPhoneResponse/>"), nullValue());
+        assertThat(parse("<CiscoIPPhoneResponse><ResponseItem Foo=\"1\"/>" +
+                         "</CiscoIPPhoneResponse>"), nullValue());
+        assertThat(parse("<CiscoIPPhoneResponse><ResponseItem Status=\"x\"/>" +
+                         "</CiscoIPPhoneResponse>"), nullValue());
+        assertThat(parse("<CiscoIPPhoneResponse><ResponseItem>text</ResponseItem>" +
+                         "</CiscoIPPhoneResponse>"), nullValue());
+        assertThat(parse("<CiscoIPPhoneResponse><ResponseItem Data=\"" +
+                         "0123456789012345678901234567890123456789\"/>" +
+                         "</CiscoIPPhoneResponse>"), nullValue());
+        assertThat(parse("<CiscoIPPhoneResponse><ResponseItem/><ResponseItem/>" +
+                         "<ResponseItem/><ResponseItem/></CiscoIPPhoneResponse>"),
+                   nullValue());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void decode_invalidResponse_throwsException()
+    {
+        CiscoIPPhoneResponseDecoder.decode(buffer(
+                "<CiscoIPPhoneResponse><ResponseItem Status=\"x\"/>" +
+                "</CiscoIPPhoneResponse>"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void decode_malformedXml_throwsException()
+    {
+        CiscoIPPhoneResponseDecoder.decode(buffer("<CiscoIPPhoneResponse><Resp"));
+    }
+
+    private static CiscoIPPhoneResponse parse(String xml) throws Exception
+    {
+        return CiscoIPPhoneResponseDecoder.parse(buffer(xml));
+    }
+
+    private static ByteBuf buffer(String xml)
+    {
+        return Unpooled.copiedBuffer(xml, CharsetUtil.ISO_8859_1);
+    }
+
+    private static CiscoIPPhoneResponseItemType item(Short status, String data,
+                                                     String url)
+    {
+        CiscoIPPhoneResponseItemType item = new CiscoIPPhoneResponseItemType();
+        item.setStatus(status);
+        item.setData(data);
+        item.setURL(url);
+        return item;
+    }
+
+    private static void assertResponseEquals(CiscoIPPhoneResponse observed,
+                                             CiscoIPPhoneResponse expected)
+    {
+        assertThat(observed.getResponseItem().size(),
+                   equalTo(expected.getResponseItem().size()));
+        for (int i = 0; i < expected.getResponseItem().size(); i++)
+        {
+            CiscoIPPhoneResponseItemType e = expected.getResponseItem().get(i);
+            CiscoIPPhoneResponseItemType o = observed.getResponseItem().get(i);
+            assertThat(o.getStatus(), equalTo(e.getStatus()));
+            assertThat(o.getData(), equalTo(e.getData()));
+            assertThat(o.getURL(), equalTo(e.getURL()));
+        }
+    }
+}
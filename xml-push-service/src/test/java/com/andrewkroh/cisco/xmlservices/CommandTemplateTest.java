@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+import com.cisco.xmlservices.generated.CiscoIPPhoneExecute;
+import com.cisco.xmlservices.generated.CiscoIPPhoneExecuteItemType;
+
+/**
+ * Test for {@link CommandTemplate}.
+ *
+ * @author akroh
+ */
+public class CommandTemplateTest
+{
+    @Test
+    public void encode_replacesEveryPlaceholder()
+    {
+        assertEncodedAsIfSubstituted("http://10.0.0.10:8080/callback/1234");
+    }
+
+    @Test
+    public void encode_escapesUrlLikeTheMarshaler()
+    {
+        assertEncodedAsIfSubstituted("http://host/cb?a=1&b=\"2\"&c=<$3>");
+    }
+
+    @Test
+    public void encode_withoutUrl_leavesPlaceholders()
+    {
+        CommandTemplate template = CommandTemplate.compile(command("$BASEURL"));
+
+        assertThat(template.getPlaceholderCount(), equalTo(3));
+        assertThat(toString(template.encode(null)),
+                   containsString("%24BASEURL%2Fdisplay%3Fid%3D42"));
+    }
+
+    @Test
+    public void compile_doesNotKeepReferenceToCommand()
+    {
+        CiscoIPPhoneExecute command = command("$BASEURL");
+        CommandTemplate template = CommandTemplate.compile(command);
+        String before = toString(template.encode("http://host"));
+
+        command.getExecuteItem().clear();
+
+        assertThat(toString(template.encode("http://host")), equalTo(before));
+        assertThat(command("$BASEURL").getExecuteItem().get(0).getURL(),
+                   equalTo("$BASEURL/page"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_urlWithTrailingSlash_throwsException()
+    {
+        CommandTemplate.compile(command("$BASEURL")).encode("http://host/");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void compile_nullCommand_throwsException()
+    {
+        CommandTemplate.compile(null);
+    }
+
+    /**
+     * Asserts that splicing {@code url} into the compiled template gives the
+     * same body as marshaling a command that contained the URL all along.
+     */
+    private static void assertEncodedAsIfSubstituted(String url)
+    {
+        CommandTemplate template = CommandTemplate.compile(command("$BASEURL"));
+        String expected = toString(CommandTemplate.compile(command(url)).encode(null));
+
+        assertThat(toString(template.encode(url)), equalTo(expected));
+    }
+
+    private static CiscoIPPhoneExecute command(String baseUrl)
+    {
+        CiscoIPPhoneExecute command = new CiscoIPPhoneExecute();
+        for (String path : new String[] {"/page", "/display?id=42", "/tone"})
+        {
+            CiscoIPPhoneExecuteItemType item = new CiscoIPPhoneExecuteItemType();
+            item.setURL(baseUrl + path);
+            command.getExecuteItem().add(item);
+        }
+        return command;
+    }
+
+    private static String toString(ByteBuf buffer)
+    {
+        try
+        {
+            return buffer.toString(CharsetUtil.US_ASCII);
+        }
+        finally
+        {
+            buffer.release();
+        }
+    }
+}
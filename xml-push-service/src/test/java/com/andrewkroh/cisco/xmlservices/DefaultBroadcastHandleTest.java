@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.andrewkroh.cisco.phoneinventory.IpPhone;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Test for {@link DefaultBroadcastHandle}.
+ *
+ * @author akroh
+ */
+public class DefaultBroadcastHandleTest
+{
+    private final IpPhone phone1 = mock(IpPhone.class);
+
+    private final IpPhone phone2 = mock(IpPhone.class);
+
+    private final IpPhone phone3 = mock(IpPhone.class);
+
+    private final SettableFuture<XmlPushResponse> future1 = SettableFuture.create();
+
+    private final SettableFuture<XmlPushResponse> future2 = SettableFuture.create();
+
+    private final SettableFuture<XmlPushResponse> future3 = SettableFuture.create();
+
+    private final BroadcastListener listener = mock(BroadcastListener.class);
+
+    private final DefaultBroadcastHandle handle = new DefaultBroadcastHandle(
+            ImmutableList.of(phone1, phone2, phone3),
+            ImmutableList.<ListenableFuture<XmlPushResponse>>of(future1, future2, future3),
+            listener, System.nanoTime());
+
+    @Test
+    public void results_areCountedAndDeliveredAsTheyComplete() throws Exception
+    {
+        XmlPushResponse response = response(phone1, 1500, 300);
+        future1.set(response);
+
+        verify(listener).onResponse(response);
+        assertThat(handle.getSuccessCount(), equalTo(1));
+        assertThat(handle.getPendingCount(), equalTo(2));
+        assertThat(handle.getConnectTimes().getMax(), equalTo(1500L));
+        assertThat(handle.getResponseTimes().getMax(), equalTo(300L));
+        assertThat(handle.getSummary().isDone(), equalTo(false));
+
+        IOException cause = new IOException();
+        future2.setException(cause);
+        verify(listener).onFailure(same(phone2), same(cause));
+
+        future3.cancel(false);
+        assertThat(handle.getFailureCount(), equalTo(1));
+        assertThat(handle.getTimeoutCount(), equalTo(1));
+
+        BroadcastSummary summary = handle.getSummary().get(0, TimeUnit.SECONDS);
+        assertThat(summary.getPhoneCount(), equalTo(3));
+        assertThat(summary.getSuccessCount(), equalTo(1));
+        assertThat(summary.getFailureCount(), equalTo(1));
+        assertThat(summary.getTimeoutCount(), equalTo(1));
+        assertThat(summary.getResponseTimes().getCount(), equalTo(1L));
+    }
+
+    @Test
+    public void listenerException_doesNotStopTheBroadcast() throws Exception
+    {
+        doThrow(new IllegalStateException()).when(listener)
+                .onResponse(any(XmlPushResponse.class));
+
+        future1.set(response(phone1, 1, 1));
+        future2.set(response(phone2, 1, 1));
+        future3.set(response(phone3, 1, 1));
+
+        assertThat(handle.getSummary().get(0, TimeUnit.SECONDS).getSuccessCount(),
+                   equalTo(3));
+    }
+
+    @Test
+    public void noPhones_summaryIsComplete() throws Exception
+    {
+        DefaultBroadcastHandle empty = new DefaultBroadcastHandle(
+                ImmutableList.<IpPhone>of(),
+                ImmutableList.<ListenableFuture<XmlPushResponse>>of(),
+                null, System.nanoTime());
+
+        assertThat(empty.getSummary().get(0, TimeUnit.SECONDS).getPhoneCount(),
+                   equalTo(0));
+    }
+
+    private static XmlPushResponse response(IpPhone phone, long connectMicros,
+                                            long requestMicros)
+    {
+        XmlPushResponse response = mock(XmlPushResponse.class);
+        when(response.getPhone()).thenReturn(phone);
+        when(response.getConnectTime(TimeUnit.MICROSECONDS)).thenReturn(connectMicros);
+        when(response.getRequestTime(TimeUnit.MICROSECONDS)).thenReturn(requestMicros);
+        return response;
+    }
+}
@@ -18,15 +18,19 @@ package com.andrewkroh.cisco.xmlservices;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import io.netty.bootstrap.ServerBootstrap;
@@ -38,10 +42,13 @@ import io.netty.util.NetUtil;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Rule;
@@ -49,6 +56,8 @@ import org.junit.Test;
 import org.junit.rules.Timeout;
 
 import com.andrewkroh.cisco.common.TestUtils;
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.andrewkroh.cisco.common.metrics.MetricsSnapshot;
 import com.andrewkroh.cisco.phoneinventory.IpPhone;
 import com.cisco.xmlservices.XmlMarshaller;
 import com.cisco.xmlservices.generated.CiscoIPPhoneExecute;
@@ -59,6 +68,8 @@ import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * Test for {@link DefaultXmlPushService}.
@@ -84,11 +95,15 @@ public class DefaultXmlPushServiceTest
         private final Channel channel;
 
         public TestServer() throws InterruptedException
+        {
+            this(TestUtils.getFreePort());
+        }
+
+        public TestServer(int port) throws InterruptedException
         {
             bootstrap = new ServerBootstrap()
             .group(bossGroup, workerGroup)
-            .localAddress(new InetSocketAddress(NetUtil.LOCALHOST,
-                                                TestUtils.getFreePort()))
+            .localAddress(new InetSocketAddress(NetUtil.LOCALHOST, port))
             .channel(NioServerSocketChannel.class)
             .childHandler(new HttpTestServerInitializer(testServerHandler));
 
@@ -112,6 +127,26 @@ public class DefaultXmlPushServiceTest
             testServerHandler.setResponse(ciscoJaxbObject);
         }
 
+        public void setKeepAlive(boolean keepAlive)
+        {
+            testServerHandler.setKeepAlive(keepAlive);
+        }
+
+        public void dropRequests(int count)
+        {
+            testServerHandler.dropRequests(count);
+        }
+
+        public int getConnectionCount()
+        {
+            return testServerHandler.getConnectionCount();
+        }
+
+        public int getRequestCount()
+        {
+            return testServerHandler.getRequestCount();
+        }
+
         public ListenableFuture<CiscoIPPhoneExecute> getCiscoIPPhoneExecute()
         {
             Function<String, CiscoIPPhoneExecute> transformFunc =
@@ -186,7 +221,32 @@ public class DefaultXmlPushServiceTest
         // Validate response:
         assertThat(receivedResponse, notNullValue());
         assertThat(receivedResponse.getPhone(), equalTo(phone));
+        assertThat(receivedResponse.getAttemptCount(), equalTo(1));
         assertResponseEquals(serverResponse, receivedResponse.getResponse());
+
+        // The response timeout is cancelled with the response, instead of
+        // staying scheduled until it would have expired (after 1 s):
+        for (int i = 0; pushService.getPendingTimeoutCount() != 0; i++)
+        {
+            assertThat(i, lessThan(50));
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void submitCommand_withPriority_returnedFutureContainsResponse()
+            throws InterruptedException, ExecutionException, TimeoutException
+    {
+        final CiscoIPPhoneResponse serverResponse =
+                buildCiscoIPPhoneResponse(5, TEST_URL);
+        testServer.setResponse(serverResponse);
+
+        ListenableFuture<XmlPushResponse> receivedFuture =
+                pushService.submitCommand(mockPhone(testServer),
+                        CommandTemplate.compile(buildCiscoIPPhoneExecute(TEST_URL)),
+                        null, CommandPriority.EMERGENCY);
+
+        assertResponseEquals(serverResponse, receivedFuture.get().getResponse());
     }
 
     @Test
@@ -279,6 +339,593 @@ public class DefaultXmlPushServiceTest
         secondServer.shutdown();
     }
 
+    @Test
+    public void submitCommands_withCallback_sendsSameBodyToEveryPhone()
+            throws Exception
+    {
+        testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+        TestServer secondServer = new TestServer();
+        try
+        {
+            secondServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+            CiscoIPPhoneExecute command = buildCiscoIPPhoneExecute(CALLBACK_URL_TEMPLATE);
+
+            Futures.allAsList(pushService.submitCommand(
+                    ImmutableList.of(mockPhone(testServer), mockPhone(secondServer)),
+                    command, callback)).get();
+
+            verify(callbackManager, times(1)).registerCallback(callback);
+            assertThat(testServer.getCiscoIPPhoneExecute().get()
+                               .getExecuteItem().get(0).getURL(),
+                       equalTo(BASE_CALLBACK_URL + "/get"));
+            assertThat(secondServer.getCiscoIPPhoneExecute().get()
+                               .getExecuteItem().get(0).getURL(),
+                       equalTo(BASE_CALLBACK_URL + "/get"));
+
+            // The caller's command is not modified:
+            assertThat(command.getExecuteItem().get(0).getURL(),
+                       equalTo(CALLBACK_URL_TEMPLATE));
+        }
+        finally
+        {
+            secondServer.shutdown();
+        }
+    }
+
+    @Test
+    public void broadcastCommand_summarizesResults()
+            throws Exception
+    {
+        testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+        BroadcastListener listener = mock(BroadcastListener.class);
+        IpPhone badPhone = mockPhoneWithWrongPort();
+
+        BroadcastHandle handle = pushService.broadcastCommand(
+                ImmutableList.of(mockPhone(testServer), badPhone),
+                CommandTemplate.compile(buildCiscoIPPhoneExecute(TEST_URL)),
+                null, listener);
+        BroadcastSummary summary = handle.getSummary().get();
+
+        assertThat(summary.getPhoneCount(), equalTo(2));
+        assertThat(summary.getSuccessCount(), equalTo(1));
+        assertThat(summary.getFailureCount(), equalTo(1));
+        assertThat(summary.getConnectTimes().getCount(), equalTo(1L));
+        assertThat(handle.getPendingCount(), equalTo(0));
+        verify(listener).onResponse(any(XmlPushResponse.class));
+        verify(listener).onFailure(eq(badPhone), any(IOException.class));
+    }
+
+    @Test
+    public void broadcastCommand_withPriority_summarizesResults()
+            throws Exception
+    {
+        testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+
+        BroadcastHandle handle = pushService.broadcastCommand(
+                ImmutableList.of(mockPhone(testServer)),
+                CommandTemplate.compile(buildCiscoIPPhoneExecute(TEST_URL)),
+                null, null, CommandPriority.EMERGENCY);
+        BroadcastSummary summary = handle.getSummary().get();
+
+        assertThat(summary.getPhoneCount(), equalTo(1));
+        assertThat(summary.getSuccessCount(), equalTo(1));
+    }
+
+    @Test
+    public void submitCommand_template_substitutesCallbackUrl()
+            throws Exception
+    {
+        testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+        CommandTemplate template = CommandTemplate.compile(
+                buildCiscoIPPhoneExecute(CALLBACK_URL_TEMPLATE));
+
+        pushService.submitCommand(mockPhone(testServer), template, callback).get();
+
+        verify(callbackManager).registerCallback(callback);
+        assertThat(testServer.getCiscoIPPhoneExecute().get()
+                           .getExecuteItem().get(0).getURL(),
+                   equalTo(BASE_CALLBACK_URL + "/get"));
+    }
+
+    @Test
+    public void submitCommand_keepAlive_reusesConnection()
+            throws InterruptedException, ExecutionException
+    {
+        testServer.setKeepAlive(true);
+        testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+        final IpPhone phone = mockPhone(testServer);
+
+        XmlPushResponse first = pushService.submitCommand(phone,
+                buildCiscoIPPhoneExecute(TEST_URL)).get();
+        XmlPushResponse second = pushService.submitCommand(phone,
+                buildCiscoIPPhoneExecute(TEST_URL)).get();
+
+        assertThat(first.isConnectionReused(), equalTo(false));
+        assertThat(second.isConnectionReused(), equalTo(true));
+        assertThat(testServer.getRequestCount(), equalTo(2));
+        assertThat(testServer.getConnectionCount(), equalTo(1));
+    }
+
+    @Test
+    public void submitCommand_whenResponseCompletes_reusesReleasedConnection()
+            throws Exception
+    {
+        testServer.setKeepAlive(true);
+        testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+        final IpPhone phone = mockPhone(testServer);
+
+        // Each command is submitted by the previous one's listener, before
+        // the previous channel has been released:
+        final SettableFuture<ListenableFuture<XmlPushResponse>> last =
+                SettableFuture.create();
+        final AtomicInteger remaining = new AtomicInteger(5);
+        Runnable sendNext = new Runnable() {
+            @Override
+            public void run()
+            {
+                final ListenableFuture<XmlPushResponse> future =
+                        pushService.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL));
+                final Runnable self = this;
+                future.addListener(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        if (remaining.decrementAndGet() > 0)
+                        {
+                            self.run();
+                        }
+                        else
+                        {
+                            last.set(future);
+                        }
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+        };
+        sendNext.run();
+
+        assertThat(last.get().get().isConnectionReused(), equalTo(true));
+        assertThat(testServer.getRequestCount(), equalTo(5));
+        assertThat(testServer.getConnectionCount(), equalTo(1));
+    }
+
+    @Test
+    public void submitCommand_reusedConnectionClosed_sendsAgainOnNewConnection()
+            throws InterruptedException, ExecutionException
+    {
+        testServer.setKeepAlive(true);
+        testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+        final IpPhone phone = mockPhone(testServer);
+
+        pushService.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL)).get();
+        testServer.dropRequests(1);
+        XmlPushResponse second = pushService.submitCommand(phone,
+                buildCiscoIPPhoneExecute(TEST_URL)).get();
+
+        assertThat(second.isConnectionReused(), equalTo(false));
+        assertThat(second.getAttemptCount(), equalTo(1));
+        assertThat(testServer.getRequestCount(), equalTo(3));
+        assertThat(testServer.getConnectionCount(), equalTo(2));
+    }
+
+    @Test
+    public void submitCommand_connectionClosedBeforeResponse_failsImmediately()
+            throws InterruptedException
+    {
+        testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+        testServer.dropRequests(1);
+
+        long start = System.nanoTime();
+        try
+        {
+            pushService.submitCommand(mockPhone(testServer),
+                    buildCiscoIPPhoneExecute(TEST_URL)).get();
+            fail("Expected ExecutionException.");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause(), instanceOf(ClosedChannelException.class));
+        }
+
+        // Well before the response timeout of 1 s:
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                   lessThan(500L));
+    }
+
+    @Test
+    public void submitCommand_connectionClose_opensNewConnection()
+            throws InterruptedException, ExecutionException
+    {
+        testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+        final IpPhone phone = mockPhone(testServer);
+
+        pushService.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL)).get();
+        XmlPushResponse second = pushService.submitCommand(phone,
+                buildCiscoIPPhoneExecute(TEST_URL)).get();
+
+        assertThat(second.isConnectionReused(), equalTo(false));
+        assertThat(testServer.getConnectionCount(), equalTo(2));
+    }
+
+    @Test
+    public void submitCommands_maxConnectionsPerPhone_limitsConnections()
+            throws Exception
+    {
+        DefaultXmlPushService service = startService(1, 10000, new MetricsRegistry());
+        try
+        {
+            testServer.setKeepAlive(true);
+            testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+            final IpPhone phone = mockPhone(testServer);
+
+            ImmutableList<ListenableFuture<XmlPushResponse>> futures =
+                    service.submitCommand(ImmutableList.of(phone, phone, phone),
+                                          buildCiscoIPPhoneExecute(TEST_URL));
+            Futures.allAsList(futures).get();
+
+            assertThat(testServer.getRequestCount(), equalTo(3));
+            assertThat(testServer.getConnectionCount(), equalTo(1));
+        }
+        finally
+        {
+            service.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void submitCommand_afterIdleTimeout_opensNewConnection()
+            throws Exception
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        DefaultXmlPushService service = startService(2, 50, metrics);
+        try
+        {
+            testServer.setKeepAlive(true);
+            testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+            final IpPhone phone = mockPhone(testServer);
+
+            service.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL)).get();
+            Thread.sleep(300);
+            XmlPushResponse second = service.submitCommand(phone,
+                    buildCiscoIPPhoneExecute(TEST_URL)).get();
+
+            assertThat(second.isConnectionReused(), equalTo(false));
+            assertThat(testServer.getConnectionCount(), equalTo(2));
+            assertThat(metrics.snapshot().getCounters().get(
+                    service.getMetricsPrefix() + "idleConnectionsEvicted"),
+                    equalTo(1L));
+        }
+        finally
+        {
+            service.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void submitCommand_recordsConnectAndRequestTimes()
+            throws Exception
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        DefaultXmlPushService service = startService(2, 10000, metrics);
+        try
+        {
+            testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+            ListenableFuture<XmlPushResponse> future = service.submitCommand(
+                    mockPhone(testServer), buildCiscoIPPhoneExecute(TEST_URL));
+            XmlPushResponse response = future.get();
+            awaitListeners(future);
+
+            assertThat(response.getConnectTime(TimeUnit.NANOSECONDS), greaterThan(0L));
+            assertThat(response.getRequestTime(TimeUnit.NANOSECONDS), greaterThan(0L));
+
+            MetricsSnapshot snapshot = metrics.snapshot();
+            String prefix = service.getMetricsPrefix();
+            assertThat(snapshot.getHistograms().get(prefix + "connectTime").getCount(),
+                       equalTo(1L));
+            assertThat(snapshot.getHistograms().get(prefix + "requestTime").getCount(),
+                       equalTo(1L));
+            assertThat(snapshot.getCounters().get(prefix + "connectionsOpened"),
+                       equalTo(1L));
+        }
+        finally
+        {
+            service.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setConnectionPoolPolicy_afterStart_throwsException()
+    {
+        pushService.setConnectionPoolPolicy(1, 1, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setConnectionPoolPolicy_zeroMaxConnections_throwsException()
+    {
+        new DefaultXmlPushService(callbackManager, 1000, 1000)
+                .setConnectionPoolPolicy(0, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void submitCommands_maxInFlight_queuesExcessCommands()
+            throws Exception
+    {
+        DefaultXmlPushService service =
+                new DefaultXmlPushService(callbackManager, 1000, 1000,
+                                          new MetricsRegistry());
+        service.setAdmissionPolicy(1, 1, 24);
+        service.startAsync().awaitRunning(10, TimeUnit.SECONDS);
+        try
+        {
+            testServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+            final IpPhone phone = mockPhone(testServer);
+
+            ImmutableList<ListenableFuture<XmlPushResponse>> futures =
+                    service.submitCommand(ImmutableList.of(phone, phone, phone),
+                                          buildCiscoIPPhoneExecute(TEST_URL));
+            assertThat(service.getQueuedCommandCount(), greaterThan(0));
+
+            Futures.allAsList(futures).get();
+            assertThat(testServer.getRequestCount(), equalTo(3));
+            assertThat(service.getQueuedCommandCount(), equalTo(0));
+        }
+        finally
+        {
+            service.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void submitCommand_queuedPastDeadline_isCancelledWithoutBeingSent()
+            throws Exception
+    {
+        DefaultXmlPushService service =
+                new DefaultXmlPushService(callbackManager, 1000, 1000);
+        service.setAdmissionPolicy(1, 1, 24);
+        service.startAsync().awaitRunning(10, TimeUnit.SECONDS);
+        try
+        {
+            // The server does not respond, so the first command holds the
+            // only slot until its response timeout of 1 s.
+            final IpPhone phone = mockPhone(testServer);
+            ListenableFuture<XmlPushResponse> first =
+                    service.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL));
+            service.setRetryPolicy(
+                    new RetryPolicy(1, 0, 0, 100, TimeUnit.MILLISECONDS));
+            ListenableFuture<XmlPushResponse> second =
+                    service.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL));
+
+            try
+            {
+                second.get(500, TimeUnit.MILLISECONDS);
+                fail("Expected CancellationException.");
+            }
+            catch (CancellationException e)
+            {
+                // Expected.
+            }
+            awaitListeners(second);
+            assertThat(first.isDone(), equalTo(false));
+            assertThat(service.getQueuedCommandCount(), equalTo(0));
+
+            awaitListeners(first);
+            assertThat(testServer.getRequestCount(), equalTo(1));
+        }
+        finally
+        {
+            service.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setAdmissionPolicy_afterStart_throwsException()
+    {
+        pushService.setAdmissionPolicy(1, 1, 24);
+    }
+
+    @Test
+    public void submitCommand_afterRepeatedFailures_failsFast()
+            throws Exception
+    {
+        final IpPhone phone = mockPhoneWithWrongPort();
+        DefaultXmlPushService service =
+                new DefaultXmlPushService(callbackManager, 1000, 1000);
+        service.setCircuitBreakerPolicy(2, 100, 200, TimeUnit.MILLISECONDS);
+        service.startAsync().awaitRunning(10, TimeUnit.SECONDS);
+        TestServer phoneServer = null;
+        try
+        {
+            for (int i = 0; i < 2; i++)
+            {
+                awaitListeners(service.submitCommand(phone,
+                        buildCiscoIPPhoneExecute(TEST_URL)));
+            }
+            assertThat(service.isPhoneReachable(phone), equalTo(false));
+
+            ListenableFuture<XmlPushResponse> future =
+                    service.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL));
+            assertThat(future.isDone(), equalTo(true));
+            try
+            {
+                future.get();
+                fail("Expected ExecutionException");
+            }
+            catch (ExecutionException e)
+            {
+                assertThat(e.getCause(), instanceOf(PhoneUnreachableException.class));
+            }
+
+            // The background probe notices when the phone comes back:
+            phoneServer = new TestServer(phone.getPort());
+            while (!service.isPhoneReachable(phone))
+            {
+                Thread.sleep(50);
+            }
+        }
+        finally
+        {
+            service.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+            if (phoneServer != null)
+            {
+                phoneServer.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void submitCommand_withRetryPolicy_retriesUntilPhoneIsUp()
+            throws Exception
+    {
+        final IpPhone phone = mockPhoneWithWrongPort();
+        pushService.setRetryPolicy(
+                new RetryPolicy(10, 100, 100, 0, TimeUnit.MILLISECONDS));
+
+        ListenableFuture<XmlPushResponse> future =
+                pushService.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL));
+        Thread.sleep(20);
+        TestServer phoneServer = new TestServer(phone.getPort());
+        try
+        {
+            phoneServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+
+            assertThat(future.get().getAttemptCount(), greaterThan(1));
+        }
+        finally
+        {
+            phoneServer.shutdown();
+        }
+    }
+
+    @Test
+    public void submitCommand_withRetryPolicy_failsAfterMaxAttempts()
+            throws Exception
+    {
+        MetricsRegistry metrics = new MetricsRegistry();
+        DefaultXmlPushService service = startService(2, 5000, metrics);
+        try
+        {
+            service.setRetryPolicy(
+                    new RetryPolicy(3, 10, 10, 0, TimeUnit.MILLISECONDS));
+            ListenableFuture<XmlPushResponse> future = service.submitCommand(
+                    mockPhoneWithWrongPort(), buildCiscoIPPhoneExecute(TEST_URL));
+
+            try
+            {
+                future.get();
+                fail("Expected ExecutionException");
+            }
+            catch (ExecutionException e)
+            {
+                assertThat(e.getCause(), instanceOf(IOException.class));
+            }
+            assertThat(metrics.snapshot().getCounters().get(
+                    service.getMetricsPrefix() + "commandsRetried"), equalTo(2L));
+        }
+        finally
+        {
+            service.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void submitCommand_withRetryPolicy_retriesDoNotOpenCircuit()
+            throws Exception
+    {
+        final IpPhone phone = mockPhoneWithWrongPort();
+        DefaultXmlPushService service =
+                new DefaultXmlPushService(callbackManager, 1000, 1000);
+        service.setCircuitBreakerPolicy(2, 10, 10, TimeUnit.SECONDS);
+        service.setRetryPolicy(
+                new RetryPolicy(4, 10, 10, 0, TimeUnit.MILLISECONDS));
+        service.startAsync().awaitRunning(10, TimeUnit.SECONDS);
+        try
+        {
+            ListenableFuture<XmlPushResponse> future =
+                    service.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL));
+            try
+            {
+                future.get();
+                fail("Expected ExecutionException");
+            }
+            catch (ExecutionException e)
+            {
+                assertThat(e.getCause(), instanceOf(IOException.class));
+            }
+            assertThat(service.isPhoneReachable(phone), equalTo(true));
+        }
+        finally
+        {
+            service.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void submitCommand_withRetryPolicy_waitsForOpenCircuit()
+            throws Exception
+    {
+        final IpPhone phone = mockPhoneWithWrongPort();
+        DefaultXmlPushService service =
+                new DefaultXmlPushService(callbackManager, 1000, 1000);
+        service.setCircuitBreakerPolicy(1, 100, 100, TimeUnit.MILLISECONDS);
+        service.setRetryPolicy(
+                new RetryPolicy(2, 10, 10, 5000, TimeUnit.MILLISECONDS));
+        service.startAsync().awaitRunning(10, TimeUnit.SECONDS);
+        TestServer phoneServer = null;
+        try
+        {
+            ListenableFuture<XmlPushResponse> future =
+                    service.submitCommand(phone, buildCiscoIPPhoneExecute(TEST_URL));
+            while (service.isPhoneReachable(phone))
+            {
+                Thread.sleep(10);
+            }
+
+            // The retry waits for the probe that notices the phone is back:
+            phoneServer = new TestServer(phone.getPort());
+            phoneServer.setResponse(buildCiscoIPPhoneResponse(5, TEST_URL));
+
+            assertThat(future.get().getAttemptCount(), equalTo(2));
+        }
+        finally
+        {
+            service.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+            if (phoneServer != null)
+            {
+                phoneServer.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void submitCommand_withRetryPolicy_completesByDeadline()
+            throws Exception
+    {
+        // The test server does not respond, so each attempt times out:
+        pushService.setRetryPolicy(
+                new RetryPolicy(5, 10, 10, 300, TimeUnit.MILLISECONDS));
+        long start = System.nanoTime();
+
+        ListenableFuture<XmlPushResponse> future = pushService.submitCommand(
+                mockPhone(testServer), buildCiscoIPPhoneExecute(TEST_URL));
+
+        try
+        {
+            future.get();
+            fail("Expected CancellationException");
+        }
+        catch (CancellationException e)
+        {
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                       lessThan(900L));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setCircuitBreakerPolicy_afterStart_throwsException()
+    {
+        pushService.setCircuitBreakerPolicy(3, 1, 10, TimeUnit.SECONDS);
+    }
+
     @Test
     public void unregisterCallback_invokesCallbackManager()
     {
@@ -286,6 +933,35 @@ public class DefaultXmlPushServiceTest
         verify(callbackManager).unregisterCallback(callback);
     }
 
+    /**
+     * Waits until the listeners that the service added to the future have
+     * run. Listeners run in the order they were added.
+     */
+    private void awaitListeners(ListenableFuture<?> future)
+            throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        future.addListener(new Runnable() {
+            @Override
+            public void run()
+            {
+                latch.countDown();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        latch.await();
+    }
+
+    private DefaultXmlPushService startService(int maxConnectionsPerPhone,
+            long idleTimeoutMs, MetricsRegistry metrics) throws TimeoutException
+    {
+        DefaultXmlPushService service =
+                new DefaultXmlPushService(callbackManager, 1000, 1000, metrics);
+        service.setConnectionPoolPolicy(maxConnectionsPerPhone, idleTimeoutMs,
+                                        TimeUnit.MILLISECONDS);
+        service.startAsync().awaitRunning(10, TimeUnit.SECONDS);
+        return service;
+    }
+
     private IpPhone mockPhoneWithWrongPort()
     {
         IpPhone phone = mock(IpPhone.class);
@@ -20,6 +20,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
@@ -31,6 +32,7 @@ import io.netty.util.CharsetUtil;
 
 import java.net.URLDecoder;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.codec.Charsets;
@@ -41,19 +43,36 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 /**
- * Inbound channel handler for simulating a Cisco IP phone. This handler is
- * <strong>not</strong> sharable because it contains state.
+ * Inbound channel handler for simulating a Cisco IP phone. The handler is
+ * shared by every connection to the test server, so its state is
+ * thread-safe.
  *
  * @author akroh
  */
+@Sharable
 public class HttpTestServerHandler extends SimpleChannelInboundHandler<Object>
 {
     private final SettableFuture<String> httpRequestFuture =
             SettableFuture.create();
 
-    private final AtomicReference<HttpResponse> httpResponseRef =
+    private final AtomicReference<byte[]> responseBodyRef =
             Atomics.newReference();
 
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private volatile boolean keepAlive;
+
+    private final AtomicInteger requestsToDrop = new AtomicInteger();
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception
+    {
+        connectionCount.incrementAndGet();
+        super.channelActive(ctx);
+    }
+
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception
     {
@@ -74,12 +93,19 @@ public class HttpTestServerHandler extends SimpleChannelInboundHandler<Object>
 
             // Store the received request:
             httpRequestFuture.set(content);
+            requestCount.incrementAndGet();
+
+            if (requestsToDrop.get() > 0 && requestsToDrop.getAndDecrement() > 0)
+            {
+                ctx.close();
+                return;
+            }
 
             // Write the given response:
-            HttpResponse response = httpResponseRef.get();
-            if (response != null)
+            byte[] body = responseBodyRef.get();
+            if (body != null)
             {
-                ctx.writeAndFlush(response).sync();
+                ctx.writeAndFlush(buildResponse(body)).sync();
             }
         }
     }
@@ -89,14 +115,51 @@ public class HttpTestServerHandler extends SimpleChannelInboundHandler<Object>
         return httpRequestFuture;
     }
 
+    /**
+     * Returns the number of connections that have been accepted.
+     */
+    public int getConnectionCount()
+    {
+        return connectionCount.get();
+    }
+
+    /**
+     * Returns the number of requests that have been received.
+     */
+    public int getRequestCount()
+    {
+        return requestCount.get();
+    }
+
+    /**
+     * Sets whether responses allow the client to keep the connection open.
+     * By default they ask the client to close it.
+     */
+    public void setKeepAlive(boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Closes the connection instead of responding to the next {@code count}
+     * requests.
+     */
+    public void dropRequests(int count)
+    {
+        requestsToDrop.set(count);
+    }
+
     public void setResponse(Object ciscoJaxbObject)
     {
         // Marshal object to XML:
         String objectAsXml = XmlMarshaller.marshalToXml(ciscoJaxbObject);
 
         // Build the content of the response body:
-        byte[] bodyContent =
-                objectAsXml.toString().getBytes(Charsets.ISO_8859_1);
+        responseBodyRef.set(objectAsXml.toString().getBytes(Charsets.ISO_8859_1));
+    }
+
+    private HttpResponse buildResponse(byte[] bodyContent)
+    {
         ByteBuf bodyContentByteBuf = Unpooled.wrappedBuffer(bodyContent);
 
         // Build the HTTP response:
@@ -105,13 +168,13 @@ public class HttpTestServerHandler extends SimpleChannelInboundHandler<Object>
         response.headers().set(HttpHeaders.Names.CACHE_CONTROL,
                 Arrays.asList(HttpHeaders.Values.MUST_REVALIDATE,
                               HttpHeaders.Values.NO_STORE));
-        response.headers().set(HttpHeaders.Names.CONNECTION,
-                HttpHeaders.Values.CLOSE);
+        response.headers().set(HttpHeaders.Names.CONNECTION, keepAlive ?
+                HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
         response.headers().set(HttpHeaders.Names.CONTENT_TYPE,
                                "text/html");
         response.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
                                bodyContent.length);
 
-        httpResponseRef.set(response);
+        return response;
     }
 }
\ No newline at end of file
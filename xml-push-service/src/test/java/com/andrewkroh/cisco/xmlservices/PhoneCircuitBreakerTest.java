@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.andrewkroh.cisco.common.metrics.MetricsSnapshot;
+import com.andrewkroh.cisco.phoneinventory.IpPhone;
+import com.andrewkroh.cisco.xmlservices.PhoneCircuitBreaker.State;
+import com.google.common.base.Ticker;
+
+/**
+ * Test for {@link PhoneCircuitBreaker}.
+ *
+ * @author akroh
+ */
+public class PhoneCircuitBreakerTest
+{
+    /**
+     * Ticker whose time only changes when the test advances it.
+     */
+    private static class FakeTicker extends Ticker
+    {
+        private long nanos;
+
+        @Override
+        public long read()
+        {
+            return nanos;
+        }
+
+        void advance(long time, TimeUnit unit)
+        {
+            nanos += unit.toNanos(time);
+        }
+    }
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private final PhoneCircuitBreaker breaker = new PhoneCircuitBreaker(
+            3, 1, 4, TimeUnit.SECONDS, ticker, metrics, "test.");
+
+    private final IpPhone phone = mockPhone("10.0.0.1");
+
+    @Test
+    public void recordFailure_belowThreshold_allowsRequests()
+    {
+        breaker.recordFailure(phone);
+        breaker.recordFailure(phone);
+        breaker.recordSuccess(phone);
+        breaker.recordFailure(phone);
+        breaker.recordFailure(phone);
+
+        assertThat(breaker.allowRequest(phone), equalTo(true));
+        assertThat(breaker.getState(phone), equalTo(State.CLOSED));
+    }
+
+    @Test
+    public void recordFailure_atThreshold_rejectsRequests()
+    {
+        openCircuit();
+
+        assertThat(breaker.allowRequest(phone), equalTo(false));
+        assertThat(breaker.allowRequest(mockPhone("10.0.0.2")), equalTo(true));
+        assertThat(breaker.getOpenCircuitCount(), equalTo(1));
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getCounters().get("test.circuitsOpened"), equalTo(1L));
+        assertThat(snapshot.getCounters().get("test.commandsRejected"), equalTo(1L));
+        assertThat(snapshot.getGauges().get("test.openCircuits"), equalTo(1L));
+    }
+
+    @Test
+    public void phonesToProbe_afterCooldown_returnsPhoneOnce()
+    {
+        openCircuit();
+        assertThat(breaker.phonesToProbe(), empty());
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        assertThat(breaker.phonesToProbe(), contains(phone));
+        assertThat(breaker.getState(phone), equalTo(State.HALF_OPEN));
+        assertThat(breaker.phonesToProbe(), empty());
+        assertThat(breaker.allowRequest(phone), equalTo(false));
+    }
+
+    @Test
+    public void recordSuccess_afterProbe_closesCircuit()
+    {
+        openCircuit();
+        ticker.advance(1, TimeUnit.SECONDS);
+        breaker.phonesToProbe();
+
+        breaker.recordSuccess(phone);
+
+        assertThat(breaker.allowRequest(phone), equalTo(true));
+        assertThat(breaker.getOpenCircuitCount(), equalTo(0));
+
+        // The threshold applies again after recovering:
+        breaker.recordFailure(phone);
+        assertThat(breaker.allowRequest(phone), equalTo(true));
+    }
+
+    @Test
+    public void recordFailure_afterProbe_doublesCooldownUpToMax()
+    {
+        openCircuit();
+
+        long[] expectedCooldowns = {1, 2, 4, 4};
+        for (long cooldown : expectedCooldowns)
+        {
+            ticker.advance(cooldown - 1, TimeUnit.SECONDS);
+            assertThat(breaker.phonesToProbe(), empty());
+            ticker.advance(1, TimeUnit.SECONDS);
+            assertThat(breaker.phonesToProbe(), contains(phone));
+            breaker.recordFailure(phone);
+            assertThat(breaker.getState(phone), equalTo(State.OPEN));
+        }
+        assertThat(breaker.getOpenCircuitCount(), equalTo(1));
+    }
+
+    @Test
+    public void getProbeDelayNanos_openCircuit_returnsRemainingCooldown()
+    {
+        assertThat(breaker.getProbeDelayNanos(phone), equalTo(0L));
+
+        openCircuit();
+        ticker.advance(400, TimeUnit.MILLISECONDS);
+        assertThat(breaker.getProbeDelayNanos(phone),
+                   equalTo(TimeUnit.MILLISECONDS.toNanos(600)));
+
+        ticker.advance(600, TimeUnit.MILLISECONDS);
+        breaker.phonesToProbe();
+        assertThat(breaker.getProbeDelayNanos(phone), equalTo(0L));
+    }
+
+    @Test
+    public void phonesToProbe_probeNeverReports_probesAgain()
+    {
+        openCircuit();
+        ticker.advance(1, TimeUnit.SECONDS);
+        breaker.phonesToProbe();
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        assertThat(breaker.phonesToProbe(), contains(phone));
+    }
+
+    private void openCircuit()
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            breaker.recordFailure(phone);
+        }
+        assertThat(breaker.getState(phone), equalTo(State.OPEN));
+    }
+
+    private static IpPhone mockPhone(String address)
+    {
+        IpPhone phone = mock(IpPhone.class);
+        when(phone.getHostname()).thenReturn(address);
+        when(phone.getPort()).thenReturn(80);
+        return phone;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link PushRequest}.
+ *
+ * @author akroh
+ */
+public class PushRequestTest
+{
+    private static final String BODY = "XML=%3CCiscoIPPhoneExecute%2F%3E";
+
+    @Test
+    public void newHttpRequest_sharesBodyWithoutConsumingIt()
+    {
+        ByteBuf body = Unpooled.copiedBuffer(BODY, CharsetUtil.US_ASCII);
+        PushRequest first = new PushRequest(body.retain(), "10.0.0.1", "auth1", true);
+        PushRequest second = new PushRequest(body.retain(), "10.0.0.2", "auth2", false);
+        body.release();
+
+        FullHttpRequest firstRequest = first.newHttpRequest();
+        FullHttpRequest secondRequest = second.newHttpRequest();
+
+        // Reading (writing) one request does not affect the other:
+        assertThat(firstRequest.content().toString(CharsetUtil.US_ASCII), equalTo(BODY));
+        firstRequest.content().skipBytes(firstRequest.content().readableBytes());
+        assertThat(secondRequest.content().toString(CharsetUtil.US_ASCII), equalTo(BODY));
+
+        assertThat(firstRequest.headers().get(HttpHeaders.Names.HOST), equalTo("10.0.0.1"));
+        assertThat(secondRequest.headers().get(HttpHeaders.Names.AUTHORIZATION),
+                   equalTo("auth2"));
+        assertThat(HttpHeaders.isKeepAlive(firstRequest), equalTo(true));
+        assertThat(HttpHeaders.isKeepAlive(secondRequest), equalTo(false));
+        assertThat(HttpHeaders.getContentLength(secondRequest), equalTo((long) BODY.length()));
+
+        firstRequest.release();
+        secondRequest.release();
+        first.release();
+        second.release();
+        assertThat(body.refCnt(), equalTo(0));
+    }
+
+    @Test
+    public void newHttpRequest_afterRelease_returnsNull()
+    {
+        ByteBuf body = Unpooled.copiedBuffer(BODY, CharsetUtil.US_ASCII);
+        PushRequest request = new PushRequest(body, "10.0.0.1", "auth", true);
+
+        FullHttpRequest httpRequest = request.newHttpRequest();
+        request.release();
+        request.release();
+
+        assertThat(request.newHttpRequest(), nullValue());
+        assertThat(body.refCnt(), equalTo(1));
+        httpRequest.release();
+        assertThat(body.refCnt(), equalTo(0));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link RetryPolicy}.
+ *
+ * @author akroh
+ */
+public class RetryPolicyTest
+{
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RetryPolicy policy =
+            new RetryPolicy(5, 100, 350, 0, TimeUnit.MILLISECONDS);
+
+    @Test
+    public void getBackoffNanos_doublesUpToMax()
+    {
+        Random noJitter = new Random() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public double nextDouble()
+            {
+                return 0;
+            }
+        };
+
+        assertThat(policy.getBackoffNanos(2, noJitter), equalTo(100 * MS));
+        assertThat(policy.getBackoffNanos(3, noJitter), equalTo(200 * MS));
+        assertThat(policy.getBackoffNanos(4, noJitter), equalTo(350 * MS));
+        assertThat(policy.getBackoffNanos(50, noJitter), equalTo(350 * MS));
+    }
+
+    @Test
+    public void getBackoffNanos_jitterIsAtMostHalf()
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++)
+        {
+            long backoff = policy.getBackoffNanos(3, random);
+            assertThat(backoff, lessThanOrEqualTo(200 * MS));
+            assertThat(backoff, greaterThan(100 * MS));
+        }
+    }
+
+    @Test
+    public void none_makesOneAttempt()
+    {
+        assertThat(RetryPolicy.NONE.getMaxAttempts(), equalTo(1));
+        assertThat(RetryPolicy.NONE.getDeadline(TimeUnit.MILLISECONDS), equalTo(0L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_maxBackoffBelowInitial_throwsException()
+    {
+        new RetryPolicy(3, 100, 50, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_zeroAttempts_throwsException()
+    {
+        new RetryPolicy(0, 100, 100, 0, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 Andrew Kroh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.andrewkroh.cisco.xmlservices;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import io.netty.util.HashedWheelTimer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.andrewkroh.cisco.common.metrics.MetricsRegistry;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Test for {@link TimeoutScheduler}.
+ *
+ * @author akroh
+ */
+public class TimeoutSchedulerTest
+{
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private final TimeoutScheduler scheduler = new TimeoutScheduler(
+            new HashedWheelTimer(10, TimeUnit.MILLISECONDS), metrics, "test.");
+
+    @After
+    public void cleanup()
+    {
+        scheduler.stop();
+    }
+
+    @Test
+    public void schedule_futureCompletes_cancelsTimeout() throws Exception
+    {
+        SettableFuture<Object> future = SettableFuture.create();
+        final AtomicBoolean expired = new AtomicBoolean();
+
+        scheduler.schedule(future, new Runnable() {
+            @Override
+            public void run()
+            {
+                expired.set(true);
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        assertThat(scheduler.getPendingCount(), equalTo(1));
+        assertThat(metrics.snapshot().getGauges().get("test.pendingTimeouts"),
+                   equalTo(1L));
+
+        future.set(null);
+        assertThat(scheduler.getPendingCount(), equalTo(0));
+
+        Thread.sleep(150);
+        assertThat(expired.get(), equalTo(false));
+        assertThat(metrics.snapshot().getCounters().get("test.timeoutsExpired"),
+                   equalTo(0L));
+    }
+
+    @Test(timeout = 5000)
+    public void schedule_futureDoesNotComplete_runsTask() throws Exception
+    {
+        SettableFuture<Object> future = SettableFuture.create();
+        final CountDownLatch expired = new CountDownLatch(1);
+
+        scheduler.schedule(future, new Runnable() {
+            @Override
+            public void run()
+            {
+                expired.countDown();
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+
+        expired.await();
+        assertThat(scheduler.getPendingCount(), equalTo(0));
+
+        // Completing the future afterwards has no effect:
+        future.set(null);
+        assertThat(scheduler.getPendingCount(), equalTo(0));
+        assertThat(metrics.snapshot().getCounters().get("test.timeoutsExpired"),
+                   equalTo(1L));
+    }
+
+    @Test
+    public void stop_discardsPendingTimeouts()
+    {
+        SettableFuture<Object> future = SettableFuture.create();
+        scheduler.schedule(future, new Runnable() {
+            @Override
+            public void run()
+            {
+            }
+        }, 1, TimeUnit.MINUTES);
+
+        scheduler.stop();
+        future.set(null);
+
+        assertThat(scheduler.getPendingCount(), equalTo(0));
+    }
+}